@@ -4,6 +4,7 @@ import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import android.os.SystemClock;
+import android.util.Log;
 
 import com.regar007.shapesinopengles20.R;
 import com.regar007.shapesinopengles20.ShapeActivity;
@@ -12,12 +13,23 @@ import com.regar007.shapesinopengles20.Shapes.HeightMap;
 import com.regar007.shapesinopengles20.Shapes.Lines;
 import com.regar007.shapesinopengles20.Shapes.Points;
 import com.regar007.shapesinopengles20.Shapes.Quad;
+import com.regar007.shapesinopengles20.Shapes.SphereMesh;
 import com.regar007.shapesinopengles20.Shapes.Spheres;
 import com.regar007.shapesinopengles20.Shapes.Triangles;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.ProgramBinaryCache;
+import com.regar007.shapesinopengles20.Utils.RebuildScheduler;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
 import com.regar007.shapesinopengles20.Utils.TextureHelper;
+import com.regar007.shapesinopengles20.Utils.UploadScheduler;
+import com.regar007.shapesinopengles20.Utils.VertexData;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -109,13 +121,36 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
     private HeightMap aHeightMap;
 	private static final int PLOT_RANGE = 240;
 	private static final int PLOT_MIN_POSITION = -120;
+	private static final int SPHERE_STEPS = 50;
+	private static final float SPHERE_RADIUS = .5f;
+	private static final float[] QUAD_SIZE = new float[]{2, 2, 0};
+
+	/** Shape number of the scene mixing instances of all seven shape types. */
+	public static final int SCENE = 7;
+	private static final int SCENE_OBJECTS = 2100;
+	/** Instances sit on a SCENE_GRID^3 grid, SCENE_SPACING apart. */
+	private static final int SCENE_GRID = 13;
+	private static final float SCENE_SPACING = 3f;
+	private static final float SCENE_DISTANCE = 60f;
+	private static final int SCENE_SPHERE_STEPS = 16;
+	private static final long SCENE_SEED = 7;
 
 	// These still work without volatile, but refreshes are not guaranteed to happen.
 	public volatile float aDeltaX;
 	public volatile float aDeltaY;
 
-	/** Thread executor for generating data points in the background. */
-	private final ExecutorService aSingleThreadedExecutor = Executors.newSingleThreadExecutor();
+	/** Builds the shapes on the shared worker pool and uploads them on the GL thread, newest build of a shape wins. */
+	private final RebuildScheduler aRebuildScheduler;
+
+	/** Spreads the vertex uploads of the shapes over frames, at most its byte budget at the start of each frame. */
+	private final UploadScheduler aUploadScheduler = new UploadScheduler();
+
+	/** Every loaded shape submits its draw items here each frame, they are drawn sorted by state and depth. */
+	private final RenderQueue aRenderQueue = new RenderQueue();
+
+	/** The shape instances drawn each frame, the one loaded shape or the SCENE of all types. */
+	private final Scene aScene = new Scene();
+	private final float[] aInstanceMatrix = new float[16];
 
 	/** The current shape variables. */
 	private int _width, _height;
@@ -129,92 +164,508 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
 		aShapeActivity = shapeActivity;
 		aGlSurfaceView = glSurfaceView;
         aShapeNumber = shapeNumber;
+		aRebuildScheduler = new RebuildScheduler(glSurfaceView);
     }
 
-	private void generatePlots(int aShapeNumber) {
-		aSingleThreadedExecutor.submit(new GenDataRunnable(aShapeNumber));
+	private void generatePlots(final int aShapeNumber) {
+		aRebuildScheduler.schedule(aShapeNumber, createLoadJob(aShapeNumber), aLoadCallback);
+	}
+
+	/**
+	 * rebuilds the current shape with new positions and colors, e.g. while a slider is dragged. Only the newest call
+	 * reaches the GPU, older ones still building or queued are dropped. The vertices of a shape already loaded go
+	 * through the UploadScheduler, so it keeps drawing the old ones until the new buffer is complete. Spheres keep
+	 * SPHERE_RADIUS and SPHERE_STEPS, see the overload taking them; a quad moves its corner to the first position and
+	 * has no colors; a height map is built again from the positions as data points. The scene is left as it is.
+	 * @param positions in the order the constructor of the shape takes them.
+	 * @param colors in {r, g, b, a} order.
+	 */
+	public void rebuildShape(final float[] positions, final float[] colors)
+	{
+		if (aShapeNumber == 3) {
+			rebuildQuad(positions);
+			return;
+		} else if (aShapeNumber == 5) {
+			final float[] radii = new float[positions.length / POSITION_DATA_SIZE];
+			Arrays.fill(radii, SPHERE_RADIUS);
+			rebuildShape(positions, colors, radii, SPHERE_STEPS);
+			return;
+		} else if (aShapeNumber == 6) {
+			rebuildHeightMap(positions, colors);
+			return;
+		} else if (aShapeNumber == SCENE) {
+			Log.w(TAG, "the scene mixes every shape type, there is no single shape to rebuild");
+			return;
+		}
+		final boolean cubes = aShapeNumber == 4;
+		aRebuildScheduler.schedule(aShapeNumber, new RebuildScheduler.Job<VertexData, Object>() {
+			@Override
+			public VertexData build() {
+				return cubes ? Cubes.buildVertices(positions, colors) : Points.buildVertices(positions, colors);
+			}
+
+			@Override
+			public Object upload(VertexData data) {
+				// the first load may still be on its way, it is superseded by this one then.
+				if (aPoints != null) {
+					aPoints.createBuffers(data, aUploadScheduler);
+					return aPoints;
+				} else if (aLines != null) {
+					aLines.createBuffers(data, aUploadScheduler);
+					return aLines;
+				} else if (aTriangles != null) {
+					aTriangles.createBuffers(data, aUploadScheduler);
+					return aTriangles;
+				} else if (aCubes != null) {
+					aCubes.createBuffers(data, aUploadScheduler);
+					return aCubes;
+				}
+				return createShape(data);
+			}
+
+			@Override
+			public void discard(VertexData data) {
+				data.recycle();
+			}
+		}, aLoadCallback);
+	}
+
+	/**
+	 * rebuilds the spheres latest-wins like rebuildShape(), e.g. while their size or smoothness is dragged. The unit
+	 * sphere of a new smoothness is built on the worker, the GL thread only uploads it.
+	 * @param positions centers in {x, y, z} order.
+	 * @param colors in {r, g, b, a} order.
+	 * @param radii one per sphere.
+	 * @param steps smoothness, see SphereMesh.
+	 */
+	public void rebuildShape(final float[] positions, final float[] colors, final float[] radii, final int steps)
+	{
+		aRebuildScheduler.schedule(aShapeNumber, new RebuildScheduler.Job<Void, Spheres>() {
+			@Override
+			public Void build() {
+				SphereMesh.prepare(steps);
+				return null;
+			}
+
+			@Override
+			public Spheres upload(Void data) {
+				// the first load may still be on its way, it is superseded by this one then.
+				if (aSpheres != null) {
+					aSpheres.createBuffers(positions, colors, radii, steps);
+					return aSpheres;
+				}
+				return aSpheres = show(new Spheres(aShapeActivity, 0, steps, positions, colors, radii));
+			}
+
+			@Override
+			public void discard(Void data) {
+			}
+		}, aLoadCallback);
+	}
+
+	/**
+	 * moves the quad, a quad is 4 vertices so there is nothing to build on the worker.
+	 */
+	private void rebuildQuad(final float[] position)
+	{
+		aRebuildScheduler.schedule(aShapeNumber, new RebuildScheduler.Job<Void, Quad>() {
+			@Override
+			public Void build() {
+				return null;
+			}
+
+			@Override
+			public Quad upload(Void data) {
+				if (aQuad != null) {
+					aQuad.createBuffers(position, QUAD_SIZE);
+					return aQuad;
+				}
+				aQuad = new Quad(aShapeActivity, position, QUAD_SIZE);
+				aQuad.setTexture(aTexture);
+				return show(aQuad);
+			}
+
+			@Override
+			public void discard(Void data) {
+			}
+		}, aLoadCallback);
+	}
+
+	/**
+	 * builds a new height map from data points on the worker and swaps it in on the GL thread.
+	 */
+	private void rebuildHeightMap(final float[] positions, final float[] colors)
+	{
+		aRebuildScheduler.schedule(aShapeNumber, new RebuildScheduler.Job<HeightMap, HeightMap>() {
+			@Override
+			public HeightMap build() {
+				return buildHeightMap(positions, colors);
+			}
+
+			@Override
+			public HeightMap upload(HeightMap heightMap) {
+				// give the old memory back first, so the new height map can be reserved in its place.
+				if (aHeightMap != null) {
+					aScene.clear();
+					aHeightMap.release();
+					aHeightMap = null;
+				}
+				heightMap.initialize(aShapeActivity);
+				heightMap.createBuffers();
+				return aHeightMap = show(heightMap);
+			}
+
+			@Override
+			public void discard(HeightMap heightMap) {
+				heightMap.recycle();
+			}
+		}, aLoadCallback);
+	}
+
+	/**
+	 * builds a height map of the data points and encodes its vertices, makes no gl calls.
+	 */
+	private static HeightMap buildHeightMap(float[] positions, float[] colors)
+	{
+		final HeightMap heightMap = HeightMap.build(50, 50, PLOT_RANGE, PLOT_MIN_POSITION, 0);
+		heightMap.pushDataPointsToHeightMap(positions, colors);
+		heightMap.prepareBuffers();
+		return heightMap;
+	}
+
+	/**
+	 * drops the builds not uploaded yet, call it when the activity goes away.
+	 */
+	public void release()
+	{
+		aRebuildScheduler.cancelAll();
+	}
+
+	/**
+	 * creates the current shape from rebuilt vertices when the first load was superseded before its upload.
+	 */
+	private Object createShape(VertexData data)
+	{
+		if (aShapeNumber == 0) {
+			return aPoints = show(new Points(aShapeActivity, data));
+		} else if (aShapeNumber == 1) {
+			return aLines = show(new Lines(aShapeActivity, data));
+		} else if (aShapeNumber == 2) {
+			return aTriangles = show(new Triangles(aShapeActivity, data));
+		}
+		aCubes = new Cubes(aShapeActivity, data);
+		aCubes.setTexture(aTexture);
+		return show(aCubes);
 	}
 
-	class GenDataRunnable implements Runnable {
+	/**
+	 * makes a shape object the only instance of the scene, drawn with the model matrix of the frame.
+	 */
+	private <S extends Scene.Shape> S show(S shape)
+	{
+		aScene.clear();
+		Matrix.setIdentityM(aInstanceMatrix, 0);
+		aScene.add(shape, aInstanceMatrix);
+		return shape;
+	}
 
-        private final int shapeNumner;
-		GenDataRunnable(int aShapeNumber) {
-            shapeNumner = aShapeNumber;
+	/**
+	 * vertices of every shape type of the scene, built on the worker.
+	 */
+	private static class SceneData
+	{
+		VertexData points;
+		VertexData lines;
+		VertexData triangles;
+		VertexData cubes;
+		HeightMap heightMap;
+
+		void recycle()
+		{
+			points.recycle();
+			lines.recycle();
+			triangles.recycle();
+			cubes.recycle();
+			heightMap.recycle();
 		}
+	}
 
-		@Override
-		public void run() {
-			try {
+	/**
+	 * builds one small shape object of each type and adds SCENE_OBJECTS instances of them to the scene, each with
+	 * a model matrix of its own. The instances share the buffers of their shape object.
+	 */
+	private RebuildScheduler.Job<SceneData, Scene> createSceneJob()
+	{
+		return new RebuildScheduler.Job<SceneData, Scene>() {
+			@Override
+			public SceneData build() {
+				final Random random = new Random(SCENE_SEED);
+				final SceneData data = new SceneData();
+				data.points = Points.buildVertices(randomPositions(random, 64), randomColors(random, 64));
+				data.lines = Points.buildVertices(randomPositions(random, 2 * 32), randomColors(random, 2 * 32));
+				data.triangles = Points.buildVertices(randomPositions(random, 3 * 12), randomColors(random, 3 * 12));
+				data.cubes = Cubes.buildVertices(new float[]{-1, 1, -1, 1, -1, 1}, new float[]{1, .5f, 0, 1});
+				SphereMesh.prepare(SCENE_SPHERE_STEPS);
+				// some dummy data for heightmap, like the single height map.
+				float[] vertices = {.2f, .1f, .1f,.3f, .45f, .6f,.1f, .2f, .7f,.0f, .1f, .0f,.7f, .2f, .1f,};
+				data.heightMap = buildHeightMap(vertices, randomColors(random, vertices.length / POSITION_DATA_SIZE));
+				return data;
+			}
 
-				// Run on the GL thread -- the same thread the other members of the renderer run in.
-				aGlSurfaceView.queueEvent(new Runnable() {
+			@Override
+			public Scene upload(SceneData data) {
+				aPoints = new Points(aShapeActivity, data.points);
+				aLines = new Lines(aShapeActivity, data.lines);
+				aTriangles = new Triangles(aShapeActivity, data.triangles);
+				aQuad = new Quad(aShapeActivity, new float[]{-1, -1, 1}, QUAD_SIZE);
+				aQuad.setTexture(aTexture);
+				aCubes = new Cubes(aShapeActivity, data.cubes);
+				aCubes.setTexture(aTexture);
+				aSpheres = new Spheres(aShapeActivity, 0, SCENE_SPHERE_STEPS, new float[POSITION_DATA_SIZE],
+						new float[]{0, 1, 0, 1}, new float[]{SPHERE_RADIUS});
+				data.heightMap.initialize(aShapeActivity);
+				data.heightMap.createBuffers();
+				aHeightMap = data.heightMap;
+
+				fillScene(new Scene.Shape[]{aPoints, aLines, aTriangles, aQuad, aCubes, aSpheres, aHeightMap});
+				return aScene;
+			}
 
-					@Override
-					public void run() {
+			@Override
+			public void discard(SceneData data) {
+				data.recycle();
+			}
+		};
+	}
 
-						// Not supposed to manually call this, but Dalvik sometimes needs some additional prodding to clean up the heap.
-						System.gc();
-
-						try {
-                            if(shapeNumner == 0){
-                                aPoints = new Points(aShapeActivity, new float[]{-1, -1, -1, 1, 1, 1}, new float[]{1, 0, 0, 1, 0, 1, 1, 1});
-                            }else if(shapeNumner == 1){
-                                aLines = new Lines(aShapeActivity, new float[]{-1, -1, -1, 1, 1, 1}, new float[]{0, 1, 0, 1, 0, 1, 0, 1});
-                            }else if(shapeNumner == 2){
-                                aTriangles = new Triangles(aShapeActivity, new float[]{-1, -1, -1, 1, -1, -1, 1, 1, 1},
-                                        new float[]{1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 1, 0 });
-                            }else if(shapeNumner == 3){
-                                aQuad = new Quad(aShapeActivity, new float[]{-1, -1, 1},new float[]{2, 2, 0});
-                            }else if(shapeNumner == 4){
-                                float[] positions = new float[]{-1, 1, -1, 1, -1, 1,}; // x1, x2, y1, y2, z1, z2
-                                float[] colors = new float[]{1, 0, 0, 1}; // rgba
-                                aCubes = new Cubes(aShapeActivity, positions, colors);
-                            }else if(shapeNumner == 5){
-                                float[] positions = new float[]{-1, -1, -1, 1, 1, 1};
-                                float[] colors = new float[]{0, 1, 0, 1, 0, 1, 1, 1};
-                                float[] radii = new float[]{.5f, .5f};
-                                aSpheres = new Spheres(aShapeActivity, 0, 50, positions, colors, radii);
-                            }else if(shapeNumner == 6){
-								aHeightMap = new HeightMap(aShapeActivity, 50, 50, PLOT_RANGE, PLOT_MIN_POSITION);
-
-								// some dummy data for heightmap (y vertex is responsible for the bump in the 50x50 plane mesh)
-								float[] vertices = {.2f, .1f, .1f,.3f, .45f, .6f,.1f, .2f, .7f,.0f, .1f, .0f,.7f, .2f, .1f,};
-								float[] colors = {0, .1f, .51f, 1,0, .11f, .21f, 1, .4f, .21f, 1, 1,1.0f, .31f, .61f, 1,.50f, .61f, .01f, 1,};
-
-								aHeightMap.pushDataPointsToHeightMap(vertices, colors);
-							}
-
-						} catch (OutOfMemoryError err) {
-
-							// Not supposed to manually call this, but Dalvik sometimes needs some additional prodding to clean up the heap.
-							System.gc();
-
-							aShapeActivity.runOnUiThread(new Runnable() {
-								@Override
-								public void run() {
-//									Toast.makeText(mLessonSevenActivity, "Out of memory; Dalvik takes a while to clean up the memory. Please try again.\nExternal bytes allocated=" + dalvik.system.VMRuntime.getRuntime().getExternalBytesAllocated(), Toast.LENGTH_LONG).show();
-								}
-							});
-						}
-					}
-				});
-			} catch (OutOfMemoryError e) {
-				// Not supposed to manually call this, but Dalvik sometimes needs some additional prodding to clean up the heap.
-				System.gc();
+	/**
+	 * adds SCENE_OBJECTS instances on a grid around the origin, turned and sized at random. The shapes take turns,
+	 * so the queue gets the types mixed and sorts them back into groups.
+	 * @param shapes objects spanning about [-1, 1], except the height map spanning the plot range.
+	 */
+	private void fillScene(Scene.Shape[] shapes)
+	{
+		aScene.clear();
+		final Random random = new Random(SCENE_SEED);
+		final float half = (SCENE_GRID - 1) * SCENE_SPACING / 2;
+		for (int i = 0; i < SCENE_OBJECTS; i++) {
+			final Scene.Shape shape = shapes[i % shapes.length];
+			Matrix.setIdentityM(aInstanceMatrix, 0);
+			Matrix.translateM(aInstanceMatrix, 0, i % SCENE_GRID * SCENE_SPACING - half,
+					i / SCENE_GRID % SCENE_GRID * SCENE_SPACING - half,
+					i / (SCENE_GRID * SCENE_GRID) * SCENE_SPACING - half);
+			Matrix.rotateM(aInstanceMatrix, 0, random.nextFloat() * 360, random.nextFloat() - .5f,
+					random.nextFloat() - .5f, .5f);
+			final float scale = (shape == aHeightMap ? 2f / PLOT_RANGE : 1f) * (.4f + random.nextFloat() * .5f);
+			Matrix.scaleM(aInstanceMatrix, 0, scale, scale, scale);
+			aScene.add(shape, aInstanceMatrix);
+		}
+	}
+
+	private static float[] randomPositions(Random random, int count)
+	{
+		final float[] positions = new float[count * POSITION_DATA_SIZE];
+		for (int i = 0; i < positions.length; i++) {
+			positions[i] = random.nextFloat() * 2 - 1;
+		}
+		return positions;
+	}
+
+	private static float[] randomColors(Random random, int count)
+	{
+		final float[] colors = new float[count * COLOR_DATA_SIZE];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = i % COLOR_DATA_SIZE == 3 ? 1 : random.nextFloat();
+		}
+		return colors;
+	}
 
-				aShapeActivity.runOnUiThread(new Runnable() {
+	private final RebuildScheduler.Callback<Object> aLoadCallback = new RebuildScheduler.Callback<Object>() {
+		@Override
+		public void onLoaded(Object shape, long buildNanos, long uploadNanos) {
+			Log.i(TAG, shape.getClass().getSimpleName() + " built in " + buildNanos / 1000000f + " ms, uploaded in "
+					+ uploadNanos / 1000000f + " ms");
+		}
+
+		@Override
+		public void onFailed(Throwable error) {
+			Log.e(TAG, "loading shape " + aShapeNumber + " failed", error);
+			if (error instanceof OutOfMemoryError) {
+				// Give back what the shapes can rebuild instead of prodding the GC, trimmers make gl calls.
+				aGlSurfaceView.queueEvent(new Runnable() {
 					@Override
 					public void run() {
-//						Toast.makeText(mLessonSevenActivity, "Out of memory; Dalvik takes a while to clean up the memory. Please try again.\nExternal bytes allocated=" + dalvik.system.VMRuntime.getRuntime().getExternalBytesAllocated(), Toast.LENGTH_LONG).show();
+						final long freed = MemoryAccountant.trim(Long.MAX_VALUE);
+						Log.w(TAG, "out of memory, trimmed " + freed + " bytes\n" + MemoryAccountant.getBreakdown());
 					}
 				});
 			}
 		}
+	};
+
+	/**
+	 * The vertex data of a shape is built by the job on the RebuildScheduler pool, the GL thread only links the program
+	 * and uploads the buffers.
+	 */
+	private RebuildScheduler.Job<?, ?> createLoadJob(final int shapeNumber)
+	{
+		if (shapeNumber == 0) {
+			return new RebuildScheduler.Job<VertexData, Points>() {
+				@Override
+				public VertexData build() {
+					return Points.buildVertices(new float[]{-1, -1, -1, 1, 1, 1}, new float[]{1, 0, 0, 1, 0, 1, 1, 1});
+				}
+
+				@Override
+				public Points upload(VertexData data) {
+					return aPoints = show(new Points(aShapeActivity, data));
+				}
+
+				@Override
+				public void discard(VertexData data) {
+					data.recycle();
+				}
+			};
+		} else if (shapeNumber == 1) {
+			return new RebuildScheduler.Job<VertexData, Lines>() {
+				@Override
+				public VertexData build() {
+					return Points.buildVertices(new float[]{-1, -1, -1, 1, 1, 1}, new float[]{0, 1, 0, 1, 0, 1, 0, 1});
+				}
+
+				@Override
+				public Lines upload(VertexData data) {
+					return aLines = show(new Lines(aShapeActivity, data));
+				}
+
+				@Override
+				public void discard(VertexData data) {
+					data.recycle();
+				}
+			};
+		} else if (shapeNumber == 2) {
+			return new RebuildScheduler.Job<VertexData, Triangles>() {
+				@Override
+				public VertexData build() {
+					return Points.buildVertices(new float[]{-1, -1, -1, 1, -1, -1, 1, 1, 1},
+							new float[]{1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 1, 0 });
+				}
+
+				@Override
+				public Triangles upload(VertexData data) {
+					return aTriangles = show(new Triangles(aShapeActivity, data));
+				}
+
+				@Override
+				public void discard(VertexData data) {
+					data.recycle();
+				}
+			};
+		} else if (shapeNumber == 3) {
+			// a quad is 4 vertices, nothing worth building off the GL thread.
+			return new RebuildScheduler.Job<Void, Quad>() {
+				@Override
+				public Void build() {
+					return null;
+				}
+
+				@Override
+				public Quad upload(Void data) {
+					aQuad = new Quad(aShapeActivity, new float[]{-1, -1, 1}, QUAD_SIZE);
+					aQuad.setTexture(aTexture);
+					return show(aQuad);
+				}
+
+				@Override
+				public void discard(Void data) {
+				}
+			};
+		} else if (shapeNumber == 4) {
+			return new RebuildScheduler.Job<VertexData, Cubes>() {
+				@Override
+				public VertexData build() {
+					float[] positions = new float[]{-1, 1, -1, 1, -1, 1,}; // x1, x2, y1, y2, z1, z2
+					float[] colors = new float[]{1, 0, 0, 1}; // rgba
+					return Cubes.buildVertices(positions, colors);
+				}
+
+				@Override
+				public Cubes upload(VertexData data) {
+					// the buffer fills over the next frames instead of stalling this one.
+					aCubes = new Cubes(aShapeActivity, (VertexData) null);
+					aCubes.setTexture(aTexture);
+					show(aCubes);
+					aCubes.createBuffers(data, aUploadScheduler);
+					return aCubes;
+				}
+
+				@Override
+				public void discard(VertexData data) {
+					data.recycle();
+				}
+			};
+		} else if (shapeNumber == 5) {
+			return new RebuildScheduler.Job<Void, Spheres>() {
+				@Override
+				public Void build() {
+					SphereMesh.prepare(SPHERE_STEPS);
+					return null;
+				}
+
+				@Override
+				public Spheres upload(Void data) {
+					float[] positions = new float[]{-1, -1, -1, 1, 1, 1};
+					float[] colors = new float[]{0, 1, 0, 1, 0, 1, 1, 1};
+					float[] radii = new float[]{SPHERE_RADIUS, SPHERE_RADIUS};
+					return aSpheres = show(new Spheres(aShapeActivity, 0, SPHERE_STEPS, positions, colors, radii));
+				}
+
+				@Override
+				public void discard(Void data) {
+				}
+			};
+		} else if (shapeNumber == SCENE) {
+			return createSceneJob();
+		}
+		return new RebuildScheduler.Job<HeightMap, HeightMap>() {
+			@Override
+			public HeightMap build() {
+				// some dummy data for heightmap (y vertex is responsible for the bump in the 50x50 plane mesh)
+				float[] vertices = {.2f, .1f, .1f,.3f, .45f, .6f,.1f, .2f, .7f,.0f, .1f, .0f,.7f, .2f, .1f,};
+				float[] colors = {0, .1f, .51f, 1,0, .11f, .21f, 1, .4f, .21f, 1, 1,1.0f, .31f, .61f, 1,.50f, .61f, .01f, 1,};
+
+				return buildHeightMap(vertices, colors);
+			}
+
+			@Override
+			public HeightMap upload(HeightMap heightMap) {
+				heightMap.initialize(aShapeActivity);
+				heightMap.createBuffers();
+				return aHeightMap = show(heightMap);
+			}
+
+			@Override
+			public void discard(HeightMap heightMap) {
+				heightMap.recycle();
+			}
+		};
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 glUnused, javax.microedition.khronos.egl.EGLConfig config)
 	{
+		// A new EGL context was created, programs linked in the previous one are gone.
+		GlState.invalidate();
+		ShaderProgramCache.invalidate();
+		SphereMesh.invalidate();
+		aUploadScheduler.invalidate();
+		MemoryAccountant.invalidate();
+
+		// Load linked programs from disk instead of compiling them again on warm starts.
+		if (ShaderProgramCache.getBinaryCache() == null) {
+			ShaderProgramCache.setBinaryCache(new ProgramBinaryCache(new File(aShapeActivity.getCacheDir(), "programs")));
+		}
+
         aTexture = TextureHelper.loadTexture(aShapeActivity, R.drawable.stone_wall_public_domain
                 , false);
 		generatePlots(aShapeNumber);
@@ -222,11 +673,11 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
 		// Set the background clear color to black.
 		GLES20.glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
 
-		// Use culling to remove back faces.
-		GLES20.glEnable(GLES20.GL_CULL_FACE);
+		// Use culling to remove back faces, shapes drawing both sides turn it off through GlState.
+		GlState.setEnabled(GLES20.GL_CULL_FACE, true);
 
 		// Enable depth testing
-		GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+		GlState.setEnabled(GLES20.GL_DEPTH_TEST, true);
 
 		// Position the eye in front of the origin.
 		final float eyeX = 0.0f;
@@ -279,6 +730,9 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
 	@Override
 	public void onDrawFrame(GL10 glUnused)
 	{
+		// Spend this frame's upload budget before drawing, shapes swap in their buffers once complete.
+		aUploadScheduler.pump();
+
 		GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
 
         // Do a complete rotation every 10 seconds.
@@ -294,7 +748,9 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
 
 		// Translate the cube into the screen.
 		Matrix.setIdentityM(aModelMatrix, 0);
-		if(aHeightMap != null){
+		if (aShapeNumber == SCENE) {
+			Matrix.translateM(aModelMatrix, 0, 0, 0, -SCENE_DISTANCE);
+		} else if(aHeightMap != null){
 			Matrix.translateM(aModelMatrix, 0, 0, 0, -300.5f);
 		}else {
 			Matrix.translateM(aModelMatrix, 0, 0, 0, -3.5f);
@@ -334,22 +790,15 @@ public class ShapeRenderer implements GLSurfaceView.Renderer
 		Matrix.multiplyMM(aTemporaryMatrix, 0, aProjectionMatrix, 0, aMVPMatrix, 0);
 		System.arraycopy(aTemporaryMatrix, 0, aMVPMatrix, 0, 16);
 
-        if(aPoints != null){
-            aPoints.render(aMVPMatrix);
-        }else if(aLines != null){
-            aLines.render(aMVPMatrix);
-        }else if(aTriangles != null){
-            aTriangles.render(aMVPMatrix);
-        }else if(aQuad != null){
-            aQuad.render(aMVPMatrix, aTexture);
-        }else if(aCubes != null){
-            aCubes.render(aMVPMatrix, aTexture);
-        }else if(aSpheres != null){
-            aSpheres.render(aMVPMatrix);
-        }else if(aHeightMap != null){
-			aHeightMap.render(aMVPMatrix);
+		if (aHeightMap != null) {
+			aHeightMap.setViewport(_height, aProjectionMatrix);
 		}
 
+		// Queue every instance of the scene with the MVP matrix times its own model matrix, then draw them sorted:
+		// opaque ones grouped by state and front-to-back, blended ones back-to-front.
+		aRenderQueue.clear();
+		aScene.submit(aRenderQueue, aMVPMatrix);
+		aRenderQueue.draw();
 	}
 
 }
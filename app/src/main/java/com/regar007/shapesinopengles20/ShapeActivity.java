@@ -47,6 +47,9 @@ public class ShapeActivity extends Activity {
 		else if(shape == 6){
 			setTitle(R.string.shape_seven);
 		}
+		else if(shape == ShapeRenderer.SCENE){
+			setTitle(R.string.shape_eight);
+		}
 
 		setContentView(R.layout.shapes);
 
@@ -90,4 +93,13 @@ public class ShapeActivity extends Activity {
 		aGLSurfaceView.onPause();
 	}
 
+	@Override
+	protected void onDestroy() {
+		// Drop the shape builds still queued, their results would never be drawn.
+		if (aRenderer != null) {
+			aRenderer.release();
+		}
+		super.onDestroy();
+	}
+
 }
\ No newline at end of file
@@ -4,13 +4,23 @@ import android.content.Context;
 import android.opengl.GLES20;
 
 import com.regar007.shapesinopengles20.R;
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.Frustum;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
 import com.regar007.shapesinopengles20.Utils.ShapeBuilder;
+import com.regar007.shapesinopengles20.Utils.UploadScheduler;
+import com.regar007.shapesinopengles20.Utils.VertexBuffer;
+import com.regar007.shapesinopengles20.Utils.VertexData;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 /**
  * Created by regar007.
@@ -22,13 +32,24 @@ import java.nio.FloatBuffer;
  * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
  * render function takes "MVP Matrix to draw point/points".
  * Use(OnDrawFrame): aCubes.render(mvpMatrix);
+ * Use(OnDrawFrame, scene): aCubes.submit(renderQueue, mvpMatrix, texture); then renderQueue.draw(); to draw them sorted with other shapes.
+ *
+ * Position, color, normal and texture coordinate are interleaved in a single VBO laid out by createLayout() for
+ * the default VertexFormat.
+ *
+ * Instanced mode (new Cubes(activity, positions, colors, true)) keeps a single indexed unit cube on the GPU and
+ * draws up to 32 cubes per draw call with their translate/scale/color passed in a uniform array, so moving a
+ * cube with updateCube() never touches a vertex buffer.
+ *
+ * buildVertices() makes no gl calls, so the cubes of the non instanced mode can be built on a worker thread and
+ * handed to new Cubes(activity, data) or createBuffers(data) on the GL thread.
  */
-public class Cubes {
+public class Cubes implements RenderQueue.Drawable, Scene.Shape {
 
     private final String Tag = "Cubes";
 
-    private int POSITION_DATA_SIZE_PER_CUBE = 6;
-    private int VERTEX_DATA_SIZE_PER_CUBE = 36;
+    private static final int POSITION_DATA_SIZE_PER_CUBE = 6;
+    private static final int VERTEX_DATA_SIZE_PER_CUBE = 36;
 
     /** Size of the position data in elements. */
     static final int POSITION_DATA_SIZE = 3;
@@ -39,16 +60,27 @@ public class Cubes {
     /** Size of the texture coordinate data in elements. */
     static final int TEXTURE_COORDINATE_DATA_SIZE = 2;
 
-    /** How many bytes per float. */
-    static final int BYTES_PER_FLOAT = 4;
+    static final int COLOR_DATA_SIZE = 4;
+
+
+    /** Cubes drawn per draw call in instanced mode, must match u_InstanceData in cube_instanced_vertex_shader. */
+    static final int INSTANCES_PER_BATCH = 32;
+
+    /** translate (x, y, z, 0), scale (x, y, z, 0) and color (r, g, b, a) per cube in instanced mode. */
+    private static final int INSTANCE_DATA_SIZE = 12;
+
+    /** Vertices and indices of the indexed unit cube. */
+    private static final int VERTICES_PER_INDEXED_CUBE = 24;
+    private static final int INDICES_PER_CUBE = 36;
+
 
-    private int COLOR_DATA_SIZE = 4;
+    private static final int BYTES_PER_SHORT = 2;
 
     // X, Y, Z
     // The normal is used in light calculations and is a vector which points
     // orthogonal to the plane of the surface. For a cube model, the normals
     // should be orthogonal to the points of each face.
-    final float[] cubeNormalData =
+    static final float[] cubeNormalData =
             {
                     // Front face
                     0.0f, 0.0f, 1.0f,
@@ -104,7 +136,7 @@ public class Cubes {
     // Because images have a Y axis pointing downward (values increase as you move down the image) while
     // OpenGL has a Y axis pointing upward, we adjust for that here by flipping the Y axis.
     // What's more is that the texture coordinates are the same for every face.
-    final float[] cubeTextureCoordinateData =
+    static final float[] cubeTextureCoordinateData =
             {
                     // Front face
                     0.0f, 0.0f,
@@ -154,22 +186,35 @@ public class Cubes {
                     1.0f, 1.0f,
                     1.0f, 0.0f
             };
-    private final int aCubesProgramHandle;
-    private int aCubePositionsBufferIdx;
-    private int aCubeNormalsBufferIdx;
-    private int aCubeTexCoordsBufferIdx;
-    private int aCubeColorBufferIdx;
-
-    private int aPositionHandle;
-    private int aNormalHandle;
-    private int aColorHandle;
-    private int aLightPosUniform;
-    private int aMVPMatrixHandle;
-    private int aMVMatrixHandle;
-    private int vertexCount;
-    private int aLightPosHandle;
-    private int aTextureUniformHandle;
-    private int aTextureCoordinateHandle;
+    private final ShaderProgram aCubesProgram;
+
+    private final VertexFormat aFormat;
+    private final VertexLayout aLayout;
+    /** Vertices of the non instanced mode with their transform and bounds, null in instanced mode. */
+    private final VertexBuffer aVertexBuffer;
+    private final int[] aAttributeHandles;
+    private final int aMVPMatrixHandle;
+    private final int aPositionScaleHandle;
+    private final int aPositionOffsetHandle;
+    private final int aMVMatrixHandle;
+    private final int aLightPosHandle;
+    private final int aUseColorHandle;
+    private final int aTextureUniformHandle;
+    /** Texture the cubes are drawn with when submitted as a Scene.Shape. */
+    private int aTexture;
+
+    private final boolean aInstanced;
+    private final int aInstanceDataHandle;
+    private final int[] aInstancedBuffers = new int[2];
+    private float[] aInstanceData = new float[0];
+    private int aCubeCount;
+    /** Bounds of the instanced cubes, {minX, minY, minZ, maxX, maxY, maxZ}, submit() skips them outside the view. */
+    private final float[] aInstanceBounds = new float[6];
+    /** true once updateCube() moved a cube, aInstanceBounds are recomputed by the next submit(). */
+    private boolean aInstanceBoundsDirty;
+    /** Instance data of the cubes inside the view, renderInstanced() draws only these. */
+    private float[] aVisibleInstanceData = new float[0];
+    private final Frustum aFrustum = new Frustum();
 
 
     /**
@@ -179,21 +224,98 @@ public class Cubes {
      * @param cubeColors
      */
     public Cubes(Context activity, float[] cubePositions, float[] cubeColors){
-        /** initialize the cube program */
-        final String cubeVS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.cube_vertex_shader);
-        final String cubeFS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.cube_fragment_shader);
-
-        final int cubeVSHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, cubeVS);
-        final int cubeFSHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, cubeFS);
+        this(activity, cubePositions, cubeColors, false);
+    }
 
-        aCubesProgramHandle = ShaderHelper.createAndLinkProgram(cubeVSHandle, cubeFSHandle,
-                new String[] {"a_Position", "a_Color",  "a_Normal", "a_TexCoordinate"});
+    /**
+     * Instantiate cube shape objects
+     * @param activity
+     * @param cubePositions
+     * @param cubeColors
+     * @param instanced true to draw the cubes as instances of one unit cube.
+     */
+    public Cubes(Context activity, float[] cubePositions, float[] cubeColors, boolean instanced){
+        this(activity, instanced, null);
 
         if(cubePositions != null) {
             createBuffers(cubePositions, cubeColors);
         }
     }
 
+    /**
+     * Instantiate cube shape objects from vertices built by buildVertices(). Must be called on the GL thread.
+     * @param activity
+     * @param data
+     */
+    public Cubes(Context activity, VertexData data){
+        this(activity, false, data);
+    }
+
+    private Cubes(Context activity, boolean instanced, VertexData data){
+        aInstanced = instanced;
+
+        /** initialize the cube program */
+        if (aInstanced) {
+            aCubesProgram = ShaderProgramCache.acquire(activity, R.raw.cube_instanced_vertex_shader,
+                    R.raw.cube_fragment_shader,
+                    new String[] {"a_Position", "a_Normal", "a_TexCoordinate", "a_InstanceIndex"});
+        } else {
+            aCubesProgram = ShaderProgramCache.acquire(activity, R.raw.cube_vertex_shader, R.raw.cube_fragment_shader,
+                    new String[] {"a_Position", "a_Color",  "a_Normal", "a_TexCoordinate"});
+        }
+
+        // Set program handles for cube drawing.
+        aMVPMatrixHandle = aCubesProgram.getUniformHandle("u_MVPMatrix");
+        aMVMatrixHandle = aCubesProgram.getUniformHandle("u_MVMatrix");
+        aLightPosHandle = aCubesProgram.getUniformHandle("u_LightPos");
+        aUseColorHandle = aCubesProgram.getUniformHandle("u_UseColor");
+        aTextureUniformHandle = aCubesProgram.getUniformHandle("u_Texture");
+        aInstanceDataHandle = aCubesProgram.getUniformHandle("u_InstanceData");
+        aPositionScaleHandle = aCubesProgram.getUniformHandle("u_PositionScale");
+        aPositionOffsetHandle = aCubesProgram.getUniformHandle("u_PositionOffset");
+
+        aFormat = VertexFormat.getDefault();
+        aLayout = aInstanced ? createInstancedLayout(aFormat) : createLayout(aFormat);
+        aAttributeHandles = aLayout.resolveHandles(aCubesProgram);
+
+        if (aInstanced) {
+            createInstancedMesh();
+            aVertexBuffer = null;
+        } else {
+            aVertexBuffer = new VertexBuffer(this);
+        }
+
+        if(data != null) {
+            createBuffers(data);
+        }
+    }
+
+    /**
+     * interleaved {x, y, z, r, g, b, a, nx, ny, nz, s, t} vertex.
+     * @param format types of the position, color and normal.
+     */
+    static VertexLayout createLayout(VertexFormat format) {
+        final VertexLayout.Builder builder = new VertexLayout.Builder();
+        format.addPosition(builder, POSITION_DATA_SIZE);
+        format.addColor(builder);
+        format.addNormal(builder);
+        return builder.add("a_TexCoordinate", TEXTURE_COORDINATE_DATA_SIZE, GLES20.GL_FLOAT, false).build();
+    }
+
+    /**
+     * position, normal, texture coordinate and instance index of the instanced unit cube. The unit cube
+     * already spans -1 to 1, so normalized positions need no scale/offset.
+     * @param format types of the position and normal.
+     */
+    static VertexLayout createInstancedLayout(VertexFormat format) {
+        final VertexLayout.Builder builder = new VertexLayout.Builder();
+        format.addPosition(builder, POSITION_DATA_SIZE);
+        format.addNormal(builder);
+        return builder.add("a_TexCoordinate", TEXTURE_COORDINATE_DATA_SIZE, GLES20.GL_FLOAT, false)
+                .add("a_InstanceIndex", 1, GLES20.GL_FLOAT, false)
+                .build();
+    }
+
     /**
      * create cube vertices from given boundary points
      * @param x1
@@ -205,6 +327,10 @@ public class Cubes {
      * @return
      */
     protected float[] buildCube(float x1, float x2, float y1, float y2, float z1, float z2){
+        return generateCube(x1, x2, y1, y2, z1, z2);
+    }
+
+    private static float[] generateCube(float x1, float x2, float y1, float y2, float z1, float z2){
         final float[] p1p = { x1, y2, z2 };
         final float[] p2p = { x2, y2, z2 };
         final float[] p3p = { x1, y1, z2 };
@@ -226,87 +352,305 @@ public class Cubes {
      * @param cubeColors
      */
     public void createBuffers(float[] cubePositions, float[] cubeColors) {
+        if (aInstanced) {
+            setInstances(cubePositions, cubeColors);
+            return;
+        }
 
-        vertexCount = cubePositions.length * VERTEX_DATA_SIZE_PER_CUBE;
+        createBuffers(buildVertices(cubePositions, cubeColors));
+    }
+
+    /**
+     * uploads vertices built by buildVertices(), non instanced mode only. Must be called on the GL thread.
+     * @param data recycled, also if it does not fit the budget.
+     * @throws IllegalStateException if the cubes are instanced, or the vertices do not fit the MemoryAccountant
+     * budget.
+     */
+    public void createBuffers(VertexData data) {
+        if (aInstanced) {
+            data.recycle();
+            throw new IllegalStateException("instanced cubes take positions and colors");
+        }
+        aVertexBuffer.upload(data);
+    }
+
+    /**
+     * queues vertices built by buildVertices() on an UploadScheduler instead of uploading them in one go, non
+     * instanced mode only. The Cubes keep drawing their current vertices until the new buffer is complete, a newer
+     * call cancels the upload still pending. Must be called on the GL thread.
+     * @param data recycled once uploaded or cancelled.
+     * @param scheduler
+     * @throws IllegalStateException if the cubes are instanced, or the vertices do not fit the MemoryAccountant
+     * budget.
+     */
+    public void createBuffers(VertexData data, UploadScheduler scheduler) {
+        if (aInstanced) {
+            data.recycle();
+            throw new IllegalStateException("instanced cubes take positions and colors");
+        }
+        aVertexBuffer.upload(data, scheduler);
+    }
+
+    /**
+     * builds the interleaved vertices of the non instanced mode in the default VertexFormat. Makes no gl calls.
+     * @param cubePositions cubes in {x1, x2, y1, y2, z1, z2} order
+     * @param cubeColors colors in {r, g, b, a} order
+     * @return
+     */
+    public static VertexData buildVertices(float[] cubePositions, float[] cubeColors) {
+        final VertexFormat format = VertexFormat.getDefault();
         int noOfCubes = cubePositions.length/POSITION_DATA_SIZE_PER_CUBE;
+        final VertexData data = new VertexData(createLayout(format), noOfCubes * VERTEX_DATA_SIZE_PER_CUBE);
 
-        float[] cubePositionsData = new float[VERTEX_DATA_SIZE_PER_CUBE * POSITION_DATA_SIZE * noOfCubes];
+        float[] cubePositionsData = new float[data.vertexCount * POSITION_DATA_SIZE];
+        computeBounds(cubePositions, noOfCubes, data.bounds);
         for(int k = 0; k < noOfCubes; k++){
             int idx = k * POSITION_DATA_SIZE_PER_CUBE;
-            float[] cube = buildCube(cubePositions[idx],cubePositions[idx+1],cubePositions[idx+2],cubePositions[idx+3],cubePositions[idx+4],cubePositions[idx+5]);
+            float[] cube = generateCube(cubePositions[idx],cubePositions[idx+1],cubePositions[idx+2],cubePositions[idx+3],cubePositions[idx+4],cubePositions[idx+5]);
             System.arraycopy(cube, 0, cubePositionsData, k * cube.length, cube.length);
         }
+        format.computePositionTransform(cubePositionsData, POSITION_DATA_SIZE, data.positionTransform);
+        cubePositionsData = format.encodePositions(cubePositionsData, POSITION_DATA_SIZE, data.positionTransform);
 
-        final float[] colors = new float[COLOR_DATA_SIZE * noOfCubes * VERTEX_DATA_SIZE_PER_CUBE];
-        for (int k = 0; k < noOfCubes; k++){
-            int idx = k * COLOR_DATA_SIZE;
-            float[] currColor = {cubeColors[idx], cubeColors[idx+1], cubeColors[idx+2], cubeColors[idx+3]};
+        // interleave cube information into a client-side buffer.
+        final VertexLayout layout = data.layout;
+        layout.putAll(data.vertices, 0, data.vertexCount, 0, cubePositionsData);
+        for(int k = 0; k < noOfCubes; k++){
+            int firstVertex = k * VERTEX_DATA_SIZE_PER_CUBE;
             for(int j = 0; j < VERTEX_DATA_SIZE_PER_CUBE; j++){
-                System.arraycopy(currColor, 0, colors, (VERTEX_DATA_SIZE_PER_CUBE * COLOR_DATA_SIZE * k) +(j * COLOR_DATA_SIZE), COLOR_DATA_SIZE);
+                layout.put(data.vertices, firstVertex + j, 1, cubeColors, k * COLOR_DATA_SIZE);
+            }
+            layout.putAll(data.vertices, firstVertex, VERTEX_DATA_SIZE_PER_CUBE, 2, cubeNormalData);
+            layout.putAll(data.vertices, firstVertex, VERTEX_DATA_SIZE_PER_CUBE, 3, cubeTextureCoordinateData);
+        }
+        return data;
+    }
+
+    /**
+     * computes the bounds of cubes given by their corners.
+     * @param cubePositions cubes in {x1, x2, y1, y2, z1, z2} order
+     * @param bounds receives {minX, minY, minZ, maxX, maxY, maxZ}
+     */
+    private static void computeBounds(float[] cubePositions, int cubeCount, float[] bounds) {
+        for (int c = 0; c < 3; c++) {
+            bounds[c] = cubeCount > 0 ? Float.MAX_VALUE : 0;
+            bounds[3 + c] = cubeCount > 0 ? -Float.MAX_VALUE : 0;
+        }
+        for (int k = 0; k < cubeCount; k++) {
+            final int idx = k * POSITION_DATA_SIZE_PER_CUBE;
+            for (int c = 0; c < 3; c++) {
+                final float a = cubePositions[idx + 2 * c];
+                final float b = cubePositions[idx + 2 * c + 1];
+                bounds[c] = Math.min(bounds[c], Math.min(a, b));
+                bounds[3 + c] = Math.max(bounds[3 + c], Math.max(a, b));
             }
         }
+    }
 
-        // First, copy cube information into client-side floating point buffers.
-        FloatBuffer cubePositionsBuffer;
-        FloatBuffer cubeNormalsBuffer;
-        FloatBuffer cubeTextureCoordinatesBuffer;
-        FloatBuffer cubeColorBuffer;
+    /**
+     * uploads INSTANCES_PER_BATCH copies of an indexed unit cube, each copy tagged with its index in the batch.
+     * @throws IllegalStateException if the buffers do not fit the MemoryAccountant budget.
+     */
+    private void createInstancedMesh() {
+        final float[] unitCube = ShapeBuilder.generateIndexedCubeData(
+                new float[]{-1, 1, 1}, new float[]{1, 1, 1}, new float[]{-1, -1, 1}, new float[]{1, -1, 1},
+                new float[]{-1, 1, -1}, new float[]{1, 1, -1}, new float[]{-1, -1, -1}, new float[]{1, -1, -1},
+                POSITION_DATA_SIZE);
+        final float[] faceNormals = {0, 0, 1, 1, 0, 0, 0, 0, -1, -1, 0, 0, 0, 1, 0, 0, -1, 0};
+        final float[] cornerTexCoords = {0, 0, 1, 0, 0, 1, 1, 1};
+
+        final ByteBuffer vertexBuffer = aLayout.allocate(INSTANCES_PER_BATCH * VERTICES_PER_INDEXED_CUBE);
+        final float[] instanceIndex = new float[1];
+        int vertex = 0;
+        for (int instance = 0; instance < INSTANCES_PER_BATCH; instance++) {
+            instanceIndex[0] = instance;
+            for (int v = 0; v < VERTICES_PER_INDEXED_CUBE; v++) {
+                final int face = v / 4;
+                final int corner = v % 4;
+                aLayout.put(vertexBuffer, vertex, 0, unitCube, v * POSITION_DATA_SIZE);
+                aLayout.put(vertexBuffer, vertex, 1, faceNormals, face * NORMAL_DATA_SIZE);
+                aLayout.put(vertexBuffer, vertex, 2, cornerTexCoords, corner * TEXTURE_COORDINATE_DATA_SIZE);
+                aLayout.put(vertexBuffer, vertex, 3, instanceIndex, 0);
+                vertex++;
+            }
+        }
 
-        cubePositionsBuffer = ByteBuffer.allocateDirect(cubePositionsData.length * BYTES_PER_FLOAT )
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        cubePositionsBuffer.put(cubePositionsData).position(0);
+        final short[] indices = ShapeBuilder.generateCubeIndices(INSTANCES_PER_BATCH);
+        final ByteBuffer indexBytes = BufferPool.acquire(indices.length * BYTES_PER_SHORT);
+        final ShortBuffer indexBuffer = indexBytes.asShortBuffer();
+        indexBuffer.put(indices).position(0);
+
+        try {
+            MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER,
+                    vertexBuffer.limit() + indices.length * BYTES_PER_SHORT);
+            GLES20.glGenBuffers(aInstancedBuffers.length, aInstancedBuffers, 0);
+
+            VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, aInstancedBuffers[0], vertexBuffer, GLES20.GL_STATIC_DRAW);
+
+            GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, aInstancedBuffers[1]);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.length * BYTES_PER_SHORT, indexBuffer,
+                    GLES20.GL_STATIC_DRAW);
+        } finally {
+            // also when the budget refused the buffers.
+            BufferPool.release(vertexBuffer);
+            BufferPool.release(indexBytes);
+        }
+    }
 
-        cubeColorBuffer = ByteBuffer.allocateDirect(colors.length * BYTES_PER_FLOAT )
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        cubeColorBuffer.put(colors).position(0);
+    /**
+     * stores the per-cube translate/scale/color used in instanced mode, no gl calls are made.
+     * @param cubePositions cubes in {x1, x2, y1, y2, z1, z2} order
+     * @param cubeColors colors in {r, g, b, a} order
+     */
+    private void setInstances(float[] cubePositions, float[] cubeColors) {
+        aCubeCount = cubePositions.length / POSITION_DATA_SIZE_PER_CUBE;
+        if (aInstanceData.length != aCubeCount * INSTANCE_DATA_SIZE) {
+            aInstanceData = new float[aCubeCount * INSTANCE_DATA_SIZE];
+            aVisibleInstanceData = new float[aCubeCount * INSTANCE_DATA_SIZE];
+        }
+        for (int k = 0; k < aCubeCount; k++) {
+            updateCube(k, cubePositions, k * POSITION_DATA_SIZE_PER_CUBE, cubeColors, k * COLOR_DATA_SIZE);
+        }
+    }
 
-        cubeNormalsBuffer = ByteBuffer.allocateDirect(cubeNormalData.length * BYTES_PER_FLOAT * noOfCubes)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    /**
+     * moves/recolors a single cube in instanced mode, the change is picked up by the next render().
+     * @param index index of the cube
+     * @param bounds boundary points in {x1, x2, y1, y2, z1, z2} order
+     * @param color color in {r, g, b, a} order
+     * @throws IllegalStateException if the cubes are not instanced, move those with createBuffers() instead.
+     */
+    public void updateCube(int index, float[] bounds, float[] color) {
+        if (!aInstanced) {
+            throw new IllegalStateException("only instanced cubes are moved one by one");
+        }
+        updateCube(index, bounds, 0, color, 0);
+    }
 
-        cubeTextureCoordinatesBuffer = ByteBuffer.allocateDirect(cubeTextureCoordinateData.length * BYTES_PER_FLOAT * noOfCubes)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    private void updateCube(int index, float[] bounds, int boundsOffset, float[] color, int colorOffset) {
+        final int idx = index * INSTANCE_DATA_SIZE;
+
+        // translate to the center
+        aInstanceData[idx] = (bounds[boundsOffset] + bounds[boundsOffset + 1]) / 2;
+        aInstanceData[idx + 1] = (bounds[boundsOffset + 2] + bounds[boundsOffset + 3]) / 2;
+        aInstanceData[idx + 2] = (bounds[boundsOffset + 4] + bounds[boundsOffset + 5]) / 2;
+
+        // scale the -1 to 1 unit cube to half of the size
+        aInstanceData[idx + 4] = (bounds[boundsOffset + 1] - bounds[boundsOffset]) / 2;
+        aInstanceData[idx + 5] = (bounds[boundsOffset + 3] - bounds[boundsOffset + 2]) / 2;
+        aInstanceData[idx + 6] = (bounds[boundsOffset + 5] - bounds[boundsOffset + 4]) / 2;
+
+        System.arraycopy(color, colorOffset, aInstanceData, idx + 8, COLOR_DATA_SIZE);
+        aInstanceBoundsDirty = true;
+    }
 
-        for (int i = 0; i < (noOfCubes); i++) {
-            cubeNormalsBuffer.put(cubeNormalData);
-            cubeTextureCoordinatesBuffer.put(cubeTextureCoordinateData);
+    /**
+     * computes aInstanceBounds from the instance data, the scales may be negative for cubes given with x2 < x1.
+     */
+    private void computeInstanceBounds() {
+        for (int c = 0; c < 3; c++) {
+            aInstanceBounds[c] = aCubeCount > 0 ? Float.MAX_VALUE : 0;
+            aInstanceBounds[3 + c] = aCubeCount > 0 ? -Float.MAX_VALUE : 0;
+        }
+        for (int idx = 0; idx < aCubeCount * INSTANCE_DATA_SIZE; idx += INSTANCE_DATA_SIZE) {
+            for (int c = 0; c < 3; c++) {
+                final float halfSize = Math.abs(aInstanceData[idx + 4 + c]);
+                aInstanceBounds[c] = Math.min(aInstanceBounds[c], aInstanceData[idx + c] - halfSize);
+                aInstanceBounds[3 + c] = Math.max(aInstanceBounds[3 + c], aInstanceData[idx + c] + halfSize);
+            }
         }
-        cubeNormalsBuffer.position(0);
-        cubeTextureCoordinatesBuffer.position(0);
+        aInstanceBoundsDirty = false;
+    }
+
+    /**
+     * draws cube shape objects in instanced mode, one draw call per INSTANCES_PER_BATCH cubes. Cubes outside the
+     * view are left out of the batches.
+     */
+    private void renderInstanced(float[] aMVPMatrix, int texture) {
+        aCubesProgram.use();
 
-        // Second, copy these buffers into OpenGL's memory. After, we don't need to keep the client-side buffers around.
-        final int buffers[] = new int[4];
-        GLES20.glGenBuffers(buffers.length, buffers, 0);
+        aLayout.bind(aInstancedBuffers[0], aAttributeHandles);
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, cubePositionsBuffer.capacity() * BYTES_PER_FLOAT, cubePositionsBuffer, GLES20.GL_STATIC_DRAW);
+        GlState.bindTexture(0, texture);
+        GlState.uniform1i(aTextureUniformHandle, 0);
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[1]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, cubeNormalsBuffer.capacity() * BYTES_PER_FLOAT, cubeNormalsBuffer, GLES20.GL_STATIC_DRAW);
+        // Pass in the modelview matrix.
+        GlState.uniformMatrix4fv(aMVMatrixHandle, aMVPMatrix, 0);
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[2]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, cubeTextureCoordinatesBuffer.capacity() * BYTES_PER_FLOAT, cubeTextureCoordinatesBuffer,
-                GLES20.GL_STATIC_DRAW);
+        // Pass in the combined matrix.
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
+
+        GlState.uniform1f(aUseColorHandle, 0.0f);
+
+        // pack the visible cubes, the batches then only hold cubes that can show up.
+        aFrustum.set(aMVPMatrix);
+        int visibleCount = 0;
+        for (int idx = 0; idx < aCubeCount * INSTANCE_DATA_SIZE; idx += INSTANCE_DATA_SIZE) {
+            final float x = aInstanceData[idx];
+            final float y = aInstanceData[idx + 1];
+            final float z = aInstanceData[idx + 2];
+            final float halfX = Math.abs(aInstanceData[idx + 4]);
+            final float halfY = Math.abs(aInstanceData[idx + 5]);
+            final float halfZ = Math.abs(aInstanceData[idx + 6]);
+            if (aFrustum.intersectsBox(x - halfX, y - halfY, z - halfZ, x + halfX, y + halfY, z + halfZ)) {
+                System.arraycopy(aInstanceData, idx, aVisibleInstanceData, visibleCount * INSTANCE_DATA_SIZE,
+                        INSTANCE_DATA_SIZE);
+                visibleCount++;
+            }
+        }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[3]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, cubeColorBuffer.capacity() * BYTES_PER_FLOAT, cubeColorBuffer,
-                GLES20.GL_STATIC_DRAW);
+        GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, aInstancedBuffers[1]);
+        for (int first = 0; first < visibleCount; first += INSTANCES_PER_BATCH) {
+            final int count = Math.min(INSTANCES_PER_BATCH, visibleCount - first);
+            GlState.uniform4fv(aInstanceDataHandle, count * INSTANCE_DATA_SIZE / 4, aVisibleInstanceData,
+                    first * INSTANCE_DATA_SIZE);
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, count * INDICES_PER_CUBE, GLES20.GL_UNSIGNED_SHORT, 0);
+        }
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    /**
+     * queues the cubes for the next RenderQueue.draw(), at the depth of the center of their bounds. Nothing is
+     * queued if the bounds are outside the view, instanced cubes are also culled one by one when drawn.
+     * @param queue
+     * @param aMVPMatrix
+     * @param texture
+     */
+    public void submit(RenderQueue queue, float[] aMVPMatrix, int texture) {
+        if (aInstanced && aInstanceBoundsDirty) {
+            computeInstanceBounds();
+        }
+        final float[] bounds = aInstanced ? aInstanceBounds : aVertexBuffer.getBounds();
+        if (!queue.getFrustum(aMVPMatrix).intersectsBox(bounds, 0)) {
+            return;
+        }
+        final float depth = RenderQueue.getDepth(aMVPMatrix, (bounds[0] + bounds[3]) / 2,
+                (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2);
+        final int buffer = aInstanced ? aInstancedBuffers[0] : aVertexBuffer.getBuffer();
+        queue.add(RenderQueue.makeKey(false, aCubesProgram.getHandle(), texture, buffer, depth), this, texture,
+                aMVPMatrix);
+    }
 
-        aCubePositionsBufferIdx = buffers[0];
-        aCubeNormalsBufferIdx = buffers[1];
-        aCubeTexCoordsBufferIdx = buffers[2];
-        aCubeColorBufferIdx = buffers[3];
+    /**
+     * @param texture drawn with by submit(queue, matrix), i.e. as an instance of a Scene.
+     */
+    public void setTexture(int texture) {
+        aTexture = texture;
+    }
 
-        cubePositionsBuffer.limit(0);
-        cubePositionsBuffer = null;
-        cubeNormalsBuffer.limit(0);
-        cubeNormalsBuffer = null;
-        cubeTextureCoordinatesBuffer.limit(0);
-        cubeTextureCoordinatesBuffer = null;
-        cubeColorBuffer.limit(0);
-        cubeColorBuffer = null;
+    /**
+     * like submit(queue, matrix, texture) with the texture of setTexture().
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        submit(queue, aMVPMatrix, aTexture);
+    }
 
+    /**
+     * @param item the texture to draw the cubes with.
+     */
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix, item);
     }
 
     /**
@@ -315,70 +659,56 @@ public class Cubes {
      * @param texture
      */
     public void render(float[] aMVPMatrix, int texture) {
+        // Use culling to remove back faces, no blending. GlState skips what is already set.
+        GlState.setEnabled(GLES20.GL_CULL_FACE, true);
+        GlState.setEnabled(GLES20.GL_BLEND, false);
+
+        if (aInstanced) {
+            renderInstanced(aMVPMatrix, texture);
+            return;
+        }
+
         // Set our per-vertex lighting program.
-        GLES20.glUseProgram(aCubesProgramHandle);
+        aCubesProgram.use();
 
-        // Set program handles for cube drawing.
-        aMVPMatrixHandle = GLES20.glGetUniformLocation(aCubesProgramHandle, "u_MVPMatrix");
-        aMVMatrixHandle = GLES20.glGetUniformLocation(aCubesProgramHandle, "u_MVMatrix");
-        aLightPosHandle = GLES20.glGetUniformLocation(aCubesProgramHandle, "u_LightPos");
-        int aColorHandle = GLES20.glGetAttribLocation(aCubesProgramHandle, "a_Color");
-        int aUseColorHandle = GLES20.glGetUniformLocation(aCubesProgramHandle, "u_UseColor");
-        aTextureUniformHandle = GLES20.glGetUniformLocation(aCubesProgramHandle, "u_Texture");
-        aPositionHandle = GLES20.glGetAttribLocation(aCubesProgramHandle, "a_Position");
-        aNormalHandle = GLES20.glGetAttribLocation(aCubesProgramHandle, "a_Normal");
-        aTextureCoordinateHandle = GLES20.glGetAttribLocation(aCubesProgramHandle, "a_TexCoordinate");
-
-        // Pass in the position information
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aCubePositionsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        GLES20.glVertexAttribPointer(aPositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Pass in the normal information
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aCubeColorBufferIdx);
-        GLES20.glEnableVertexAttribArray(aColorHandle);
-        GLES20.glVertexAttribPointer(aColorHandle, COLOR_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Pass in the normal information
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aCubeNormalsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aNormalHandle);
-        GLES20.glVertexAttribPointer(aNormalHandle, NORMAL_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Pass in the texture information
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aCubeTexCoordsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aTextureCoordinateHandle);
-        GLES20.glVertexAttribPointer(aTextureCoordinateHandle, TEXTURE_COORDINATE_DATA_SIZE, GLES20.GL_FLOAT, false,
-                0, 0);
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
-        GLES20.glUniform1f(aTextureUniformHandle, 0);
+        // Pass in the position, color, normal and texture information
+        aLayout.bind(aVertexBuffer.getBuffer(), aAttributeHandles);
+
+        GlState.bindTexture(0, texture);
+        GlState.uniform1i(aTextureUniformHandle, 0);
 
         // Pass in the modelview matrix.
-        GLES20.glUniformMatrix4fv(aMVMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aMVMatrixHandle, aMVPMatrix, 0);
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aMVPMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
+        VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle,
+                aVertexBuffer.getPositionTransform());
 
-        GLES20.glUniform1f(aUseColorHandle, 0.0f);
+        GlState.uniform1f(aUseColorHandle, 0.0f);
         // Pass in the color .
 //            GLES20.glUniform4f(aColorHandle, Color.red(color), Color.green(color), Color.blue(color), 1);
 
-        // Clear the currently bound buffer (so future OpenGL calls do not use this buffer).
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
         // Draw the cubes.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, aVertexBuffer.getVertexCount());
     }
 
     /**
      * deletes buffers from opneGL's memory
      */
     public void release() {
+        if (aInstanced) {
+            GlState.deleteBuffers(aInstancedBuffers.length, aInstancedBuffers, 0);
+            MemoryAccountant.forget(this);
+            ShaderProgramCache.release(aCubesProgram);
+            return;
+        }
+
         // Delete buffers from OpenGL's memory
-        final int[] buffersToDelete = new int[] { aCubePositionsBufferIdx, aCubeNormalsBufferIdx,
-                aCubeTexCoordsBufferIdx, aCubeColorBufferIdx };
-        GLES20.glDeleteBuffers(buffersToDelete.length, buffersToDelete, 0);
+        aVertexBuffer.release();
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aCubesProgram);
     }
 
 }
\ No newline at end of file
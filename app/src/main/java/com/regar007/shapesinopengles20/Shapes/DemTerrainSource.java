@@ -0,0 +1,541 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to view elevation datasets far larger than memory through a HeightMap. The source reads a raw
+ *     headerless DEM file, row by row, 16-bit signed or 32-bit float samples, through FileChannel.map(), and the
+ *     height map shows a window of it around the focus set with setFocus().
+ * </p>
+ * <p>
+ *     The file is read in TILE_SIZE x TILE_SIZE tiles on a background thread: first the tiles of the window, the
+ *     closest to the focus first, then a ring of PREFETCH_TILES around it. Loaded tiles live in an LRU cache with a
+ *     byte budget, the least recently used ones outside the window are evicted past it, so the heap is bounded by
+ *     the budget whatever the size of the file. Tiles are read from a mapped band of TILE_SIZE rows of the full
+ *     width, whose address space grows with the width of the file, but only the pages holding the rows of the
+ *     tiles read are paged in. A new focus cancels the tiles still queued for the previous one.
+ * </p>
+ * <p>
+ *     update() copies the resident tiles of the window into the height map, which uploads the chunks they touched
+ *     with its dirty rows. Tiles still loading keep the heights they had until they arrive.
+ * </p>
+ * <p>
+ *     Use(Once): DemTerrainSource.writeSynthetic(file, 8192, 8192, DemTerrainSource.FORMAT_INT16, 1);
+ *     Use(Once): aTerrain = new DemTerrainSource(file, 8192, 8192, DemTerrainSource.FORMAT_INT16,
+ *                    ByteOrder.LITTLE_ENDIAN, 32 << 20);
+ *                aTerrain.attach(aHeightMap, 0, 4000); // elevations shown from the bottom to the top of the plot
+ *     Use(AnyTime): aTerrain.setFocus(0.25f, 0.75f);
+ *     Use(OnDrawFrame): aTerrain.update(); before aHeightMap.render(mvpMatrix);
+ *     Use(OnDestroy): aTerrain.close();
+ * </p>
+ */
+public class DemTerrainSource {
+    private static final String TAG = "DemTerrainSource";
+
+    public static final int FORMAT_INT16 = 0;
+    public static final int FORMAT_FLOAT32 = 1;
+
+    /** Samples along each side of a tile. */
+    public static final int TILE_SIZE = 64;
+    /** Tiles loaded around the window ahead of the focus moving there. */
+    static final int PREFETCH_TILES = 1;
+    /** Tiles update() copies into the height map per call, the rest follow in the next frames. */
+    private static final int MAX_TILES_PER_UPDATE = 16;
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE * 4;
+
+    /**
+     * elevations of one tile, the tiles on the last column/row of the file are smaller.
+     */
+    private static class Tile {
+        final int tx;
+        final int tz;
+        final int columns;
+        final int rows;
+        final float[] elevations;
+
+        Tile(int tx, int tz, int columns, int rows) {
+            this.tx = tx;
+            this.tz = tz;
+            this.columns = columns;
+            this.rows = rows;
+            elevations = new float[columns * rows];
+        }
+    }
+
+    private final RandomAccessFile aFile;
+    private final FileChannel aChannel;
+    private final int aWidth;
+    private final int aHeight;
+    private final int aFormat;
+    private final ByteOrder aOrder;
+    private final int aBytesPerSample;
+    private final int aTilesX;
+    private final int aTilesZ;
+    private long aCacheBudget;
+
+    /** access ordered, the eldest entry is the least recently used tile. Guarded by itself. */
+    private final LinkedHashMap<Long, Tile> aCache = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+    /** tiles of the current window, never evicted. Guarded by aCache. */
+    private final HashSet<Long> aPinned = new HashSet<Long>();
+    private long aResidentBytes;
+
+    /** band of TILE_SIZE rows mapped for the last tile read, loader thread only. */
+    private MappedByteBuffer aBand;
+    private int aBandRow = -1;
+
+    private final ExecutorService aLoader;
+    /** bumped by every new window, a load for an older one stops at its next tile. */
+    private final AtomicInteger aGeneration = new AtomicInteger();
+
+    private HeightMap aMap;
+    private float aMinElevation;
+    private float aElevationRange;
+    private int aWindowColumns;
+    private int aWindowRows;
+    private volatile float aFocusX = 0.5f;
+    private volatile float aFocusZ = 0.5f;
+    private int aOriginX = -1;
+    private int aOriginZ = -1;
+    /** window tiles not copied into the height map yet, row by row from the window origin. */
+    private boolean[] aPendingTiles;
+    private int aPendingCount;
+
+    private final AtomicInteger aHits = new AtomicInteger();
+    private final AtomicInteger aMisses = new AtomicInteger();
+    private final AtomicInteger aPrefetches = new AtomicInteger();
+    private final AtomicInteger aEvictions = new AtomicInteger();
+    /** written on the loader thread, read on the thread that renders. */
+    private final AtomicLong aLoadNanos = new AtomicLong();
+
+    /**
+     * @param file raw DEM, width * height samples row by row with no header.
+     * @param format FORMAT_INT16 or FORMAT_FLOAT32.
+     * @param order byte order of the samples.
+     * @param cacheBytes budget of the tile cache, raised to the window of the height map if smaller.
+     */
+    public DemTerrainSource(File file, int width, int height, int format, ByteOrder order, long cacheBytes)
+            throws IOException {
+        if (format != FORMAT_INT16 && format != FORMAT_FLOAT32) {
+            throw new IllegalArgumentException("unknown format " + format);
+        }
+        aBytesPerSample = format == FORMAT_INT16 ? 2 : 4;
+        if (file.length() < (long) width * height * aBytesPerSample) {
+            throw new IOException(file + " holds less than " + width + "x" + height + " samples");
+        }
+        aFile = new RandomAccessFile(file, "r");
+        aChannel = aFile.getChannel();
+        aWidth = width;
+        aHeight = height;
+        aFormat = format;
+        aOrder = order;
+        aTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        aTilesZ = (height + TILE_SIZE - 1) / TILE_SIZE;
+        aCacheBudget = cacheBytes;
+        aLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * shows the file in a height map, one sample per grid sample. Must be called on the thread that renders.
+     * @param minElevation elevation drawn at the bottom of the plot range.
+     * @param maxElevation elevation drawn at the top of the plot range.
+     */
+    public void attach(HeightMap map, float minElevation, float maxElevation) {
+        if (map.isWaterfall()) {
+            throw new IllegalArgumentException("a waterfall height map cannot show a DEM");
+        }
+        if (map.getXLength() > aWidth || map.getZLength() > aHeight) {
+            throw new IllegalArgumentException("the height map is larger than the DEM");
+        }
+        aMap = map;
+        aMinElevation = minElevation;
+        aElevationRange = maxElevation - minElevation;
+        aWindowColumns = map.getXLength();
+        aWindowRows = map.getZLength();
+        // a window at a tile aligned origin spans one more tile than it holds.
+        final long windowBytes = (long) (aWindowColumns / TILE_SIZE + 2) * (aWindowRows / TILE_SIZE + 2) * TILE_BYTES;
+        synchronized (aCache) {
+            if (aCacheBudget < windowBytes) {
+                Log.i(TAG, "cache budget raised to the window, " + windowBytes + " bytes");
+                aCacheBudget = windowBytes;
+            }
+        }
+        aOriginX = -1;
+        moveWindow();
+    }
+
+    /**
+     * centers the window on a point of the file, may be called from any thread.
+     * @param x column of the focus in [0, 1].
+     * @param z row of the focus in [0, 1].
+     */
+    public void setFocus(float x, float z) {
+        aFocusX = Math.max(0, Math.min(1, x));
+        aFocusZ = Math.max(0, Math.min(1, z));
+    }
+
+    /**
+     * moves the window after the focus and copies the resident tiles of the window into the height map. Must be
+     * called on the thread that renders, before render().
+     */
+    public void update() {
+        if (aMap == null) {
+            return;
+        }
+        moveWindow();
+        if (aPendingCount == 0) {
+            return;
+        }
+
+        final int windowTilesX = windowTilesX();
+        int copied = 0;
+        for (int i = 0; i < aPendingTiles.length && copied < MAX_TILES_PER_UPDATE; i++) {
+            if (!aPendingTiles[i]) {
+                continue;
+            }
+            final Tile tile;
+            synchronized (aCache) {
+                tile = aCache.get(key(aOriginX / TILE_SIZE + i % windowTilesX, aOriginZ / TILE_SIZE + i / windowTilesX));
+            }
+            if (tile == null) {
+                continue;
+            }
+            copyTile(tile);
+            aPendingTiles[i] = false;
+            aPendingCount--;
+            copied++;
+        }
+    }
+
+    /**
+     * snaps the window around the focus to tile boundaries and, if it moved, queues its tiles for loading.
+     */
+    private void moveWindow() {
+        final int originX = snapOrigin(aFocusX, aWidth, aWindowColumns);
+        final int originZ = snapOrigin(aFocusZ, aHeight, aWindowRows);
+        if (originX == aOriginX && originZ == aOriginZ) {
+            return;
+        }
+        aOriginX = originX;
+        aOriginZ = originZ;
+
+        final int firstTx = originX / TILE_SIZE;
+        final int firstTz = originZ / TILE_SIZE;
+        final int lastTx = (originX + aWindowColumns - 1) / TILE_SIZE;
+        final int lastTz = (originZ + aWindowRows - 1) / TILE_SIZE;
+        aPendingTiles = new boolean[windowTilesX() * (lastTz - firstTz + 1)];
+        Arrays.fill(aPendingTiles, true);
+        aPendingCount = aPendingTiles.length;
+
+        final ArrayList<long[]> loads = new ArrayList<long[]>();
+        synchronized (aCache) {
+            aPinned.clear();
+            for (int tz = firstTz - PREFETCH_TILES; tz <= lastTz + PREFETCH_TILES; tz++) {
+                for (int tx = firstTx - PREFETCH_TILES; tx <= lastTx + PREFETCH_TILES; tx++) {
+                    if (tx < 0 || tz < 0 || tx >= aTilesX || tz >= aTilesZ) {
+                        continue;
+                    }
+                    final boolean inWindow = tx >= firstTx && tx <= lastTx && tz >= firstTz && tz <= lastTz;
+                    if (inWindow) {
+                        aPinned.add(key(tx, tz));
+                    }
+                    if (aCache.containsKey(key(tx, tz))) {
+                        aHits.incrementAndGet();
+                    } else {
+                        loads.add(new long[]{tx, tz, inWindow ? 0 : 1});
+                    }
+                }
+            }
+        }
+
+        // window tiles first, closest to the focus first.
+        final float focusTx = (aFocusX * (aWidth - 1)) / TILE_SIZE;
+        final float focusTz = (aFocusZ * (aHeight - 1)) / TILE_SIZE;
+        Collections.sort(loads, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (a[2] != b[2]) {
+                    return a[2] < b[2] ? -1 : 1;
+                }
+                return Float.compare(distance2(a, focusTx, focusTz), distance2(b, focusTx, focusTz));
+            }
+        });
+        final int generation = aGeneration.incrementAndGet();
+        aLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(loads, generation);
+            }
+        });
+    }
+
+    private static float distance2(long[] load, float tx, float tz) {
+        final float dx = load[0] + 0.5f - tx;
+        final float dz = load[1] + 0.5f - tz;
+        return dx * dx + dz * dz;
+    }
+
+    private int snapOrigin(float focus, int samples, int window) {
+        final int origin = Math.round(focus * (samples - 1)) - window / 2;
+        return Math.max(0, Math.min(samples - window, origin)) / TILE_SIZE * TILE_SIZE;
+    }
+
+    private int windowTilesX() {
+        return (aOriginX + aWindowColumns - 1) / TILE_SIZE - aOriginX / TILE_SIZE + 1;
+    }
+
+    private static long key(int tx, int tz) {
+        return ((long) tz << 32) | (tx & 0xffffffffL);
+    }
+
+    /**
+     * reads the queued tiles on the loader thread, until a newer window replaces them.
+     */
+    private void load(ArrayList<long[]> loads, int generation) {
+        for (long[] load : loads) {
+            if (aGeneration.get() != generation) {
+                return;
+            }
+            final int tx = (int) load[0];
+            final int tz = (int) load[1];
+            synchronized (aCache) {
+                if (aCache.containsKey(key(tx, tz))) {
+                    continue;
+                }
+            }
+            final long start = System.nanoTime();
+            final Tile tile;
+            try {
+                tile = readTile(tx, tz);
+            } catch (IOException e) {
+                Log.e(TAG, "reading tile " + tx + "," + tz + " failed", e);
+                continue;
+            }
+            aLoadNanos.addAndGet(System.nanoTime() - start);
+            aMisses.incrementAndGet();
+            if (load[2] != 0) {
+                aPrefetches.incrementAndGet();
+            }
+            synchronized (aCache) {
+                aCache.put(key(tx, tz), tile);
+                aResidentBytes += tile.elevations.length * 4L;
+                evict();
+            }
+        }
+        // let the last band go, the window may not move for a while.
+        aBand = null;
+        aBandRow = -1;
+    }
+
+    /**
+     * drops the least recently used tiles outside the window until the cache fits its budget. Holds aCache.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<Long, Tile>> entries = aCache.entrySet().iterator();
+        while (aResidentBytes > aCacheBudget && entries.hasNext()) {
+            final Map.Entry<Long, Tile> entry = entries.next();
+            if (aPinned.contains(entry.getKey())) {
+                continue;
+            }
+            aResidentBytes -= entry.getValue().elevations.length * 4L;
+            entries.remove();
+            aEvictions.incrementAndGet();
+        }
+    }
+
+    private Tile readTile(int tx, int tz) throws IOException {
+        final int firstColumn = tx * TILE_SIZE;
+        final int firstRow = tz * TILE_SIZE;
+        final Tile tile = new Tile(tx, tz, Math.min(TILE_SIZE, aWidth - firstColumn),
+                Math.min(TILE_SIZE, aHeight - firstRow));
+        if (aBandRow != firstRow) {
+            // map only the rows of the tile, TILE_SIZE rows of the full width shared by the tiles next to it. Only the
+            // pages the tile reads are paged in, about TILE_SIZE of them whatever the width.
+            final long rowBytes = (long) aWidth * aBytesPerSample;
+            aBand = aChannel.map(FileChannel.MapMode.READ_ONLY, firstRow * rowBytes, tile.rows * rowBytes);
+            aBand.order(aOrder);
+            aBandRow = firstRow;
+        }
+        int index = 0;
+        for (int row = 0; row < tile.rows; row++) {
+            int position = (row * aWidth + firstColumn) * aBytesPerSample;
+            for (int column = 0; column < tile.columns; column++) {
+                tile.elevations[index++] = aFormat == FORMAT_INT16 ? aBand.getShort(position) : aBand.getFloat(position);
+                position += aBytesPerSample;
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * writes the part of a tile inside the window into the height map. The grid x and z positions run backwards,
+     * so the columns and rows are mirrored to keep the file the right way up.
+     */
+    private void copyTile(Tile tile) {
+        final float minPosition = aMap.getMinPosition();
+        final float scale = aMap.getPositionRange() / aElevationRange;
+        final int firstColumn = Math.max(tile.tx * TILE_SIZE, aOriginX);
+        final int lastColumn = Math.min(tile.tx * TILE_SIZE + tile.columns, aOriginX + aWindowColumns);
+        final int firstRow = Math.max(tile.tz * TILE_SIZE, aOriginZ);
+        final int lastRow = Math.min(tile.tz * TILE_SIZE + tile.rows, aOriginZ + aWindowRows);
+        for (int row = firstRow; row < lastRow; row++) {
+            final int gridRow = aWindowRows - 1 - (row - aOriginZ);
+            final int local = (row - tile.tz * TILE_SIZE) * tile.columns - tile.tx * TILE_SIZE;
+            for (int column = firstColumn; column < lastColumn; column++) {
+                final int gridColumn = aWindowColumns - 1 - (column - aOriginX);
+                aMap.setSampleHeight(gridRow * aWindowColumns + gridColumn,
+                        minPosition + (tile.elevations[local + column] - aMinElevation) * scale);
+            }
+        }
+    }
+
+    /**
+     * @return tiles a new window needed, its own or read ahead, that were resident already.
+     */
+    public int getCacheHits() {
+        return aHits.get();
+    }
+
+    /**
+     * @return tiles read from the file.
+     */
+    public int getCacheMisses() {
+        return aMisses.get();
+    }
+
+    /**
+     * @return tiles read ahead, outside the window they were loaded for.
+     */
+    public int getPrefetchCount() {
+        return aPrefetches.get();
+    }
+
+    public int getEvictionCount() {
+        return aEvictions.get();
+    }
+
+    public long getResidentBytes() {
+        synchronized (aCache) {
+            return aResidentBytes;
+        }
+    }
+
+    public long getCacheBudget() {
+        synchronized (aCache) {
+            return aCacheBudget;
+        }
+    }
+
+    /**
+     * @return average time to read one tile from the file, in milliseconds.
+     */
+    public float getAverageLoadMillis() {
+        final int misses = aMisses.get();
+        return misses == 0 ? 0 : aLoadNanos.get() / 1e6f / misses;
+    }
+
+    /**
+     * @return true once every tile of the window is in the height map.
+     */
+    public boolean isWindowComplete() {
+        return aMap != null && aPendingCount == 0;
+    }
+
+    /**
+     * stops the loader and closes the file, the height map keeps its heights.
+     */
+    public void close() {
+        aGeneration.incrementAndGet();
+        aLoader.shutdownNow();
+        synchronized (aCache) {
+            aCache.clear();
+            aPinned.clear();
+            aResidentBytes = 0;
+        }
+        try {
+            aFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closing the DEM failed", e);
+        }
+    }
+
+    /**
+     * writes a synthetic DEM of rolling hills and ridges to try the streaming without real data, row by row so
+     * files larger than memory can be generated too. Elevations are in [0, 4000], little endian.
+     * @param format FORMAT_INT16 or FORMAT_FLOAT32.
+     * @param seed varies the terrain.
+     */
+    public static void writeSynthetic(File file, int width, int height, int format, long seed) throws IOException {
+        final int bytesPerSample = format == FORMAT_INT16 ? 2 : 4;
+        final Random random = new Random(seed);
+        final int octaves = 6;
+        final float[] phases = new float[octaves * 2];
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = random.nextFloat() * (float) (2 * Math.PI);
+        }
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            final ByteBuffer row = ByteBuffer.allocateDirect(width * bytesPerSample).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 0; z < height; z++) {
+                row.clear();
+                for (int x = 0; x < width; x++) {
+                    float value = 0;
+                    float amplitude = 0.5f;
+                    float frequency = 4f * (float) (2 * Math.PI);
+                    for (int o = 0; o < octaves; o++) {
+                        value += amplitude * (float) (Math.sin(x * frequency / width + phases[2 * o])
+                                * Math.cos(z * frequency / height + phases[2 * o + 1]));
+                        amplitude *= 0.5f;
+                        frequency *= 2.1f;
+                    }
+                    final float elevation = (value + 1) * 2000f;
+                    if (format == FORMAT_INT16) {
+                        row.putShort((short) Math.round(elevation));
+                    } else {
+                        row.putFloat(elevation);
+                    }
+                }
+                row.flip();
+                while (row.hasRemaining()) {
+                    channel.write(row);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -2,14 +2,54 @@ package com.regar007.shapesinopengles20.Shapes;
 
 /**
  * Created by regar007.
- * This implementation make use of VBO's(vertex buffer objects) to draw cubes.
+ * This implementation make use of VBO's(vertex buffer objects) to draw a height map.
  * i.e., Instantiate once and draw always using just render() function.
  *
- * This class takes "Activity", "Points in {x1, x2 y1, y2, z1, z2} order" and "Colors in {r, g, b, a} order".
- * Use(Once): aHeightMap = new HeightMap(activity, new float{0, 0, 0, 1, 1, 1}, new float{1, 0, 0, 1, 0, 1, 0, 1});
- * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
- * render function takes "MVP Matrix to draw point/points".
- * Use(OnDrawFrame): aCubes.render(mvpMatrix);
+ * This class takes "Activity", "Grid size in x and z" and "Plot range and minimum position".
+ * Use(Once): aHeightMap = new HeightMap(activity, 50, 50, 240, -120);
+ * Note: Use(AnyTime) call pushDataPointsToHeightMap() function with new data points {x, y, z} in [0, 1],
+ * or ingest() with the x, y and z of many points in separate arrays/buffers. Scattered points can also go through
+ * a HeightMapGridder to get a smooth surface instead of single bumps.
+ * render function takes "MVP Matrix to draw the height map".
+ * Use(OnDrawFrame): aHeightMap.render(mvpMatrix);
+ * Use(OnDrawFrame, scene): aHeightMap.submit(renderQueue, mvpMatrix); then renderQueue.draw(); to draw it sorted with other shapes.
+ *
+ * The grid is split into HeightMapChunk tiles of at most CHUNK_QUADS x CHUNK_QUADS quads, so every tile can be
+ * drawn with short indices whatever the size of the grid (2048x2048 and more). All tiles have the same vertex count
+ * and share their index buffers. Pushed data points only mark the rows of the tiles they touch dirty;
+ * render() uploads the dirty rows of each tile with glBufferSubData() into its GL_DYNAMIC_DRAW vertex buffer.
+ *
+ * After setViewport() each tile is drawn at 1x, 2x, 4x or 8x decimation, the coarsest level whose height error
+ * projects to at most setMaxScreenError() pixels. Edges next to a coarser tile snap their vertices to the coarser
+ * spacing so the tiles stay crack free. Index buffers are built once per level and edge levels and shared.
+ *
+ * In texture displacement mode the vertex buffers only hold the x/z grid and are uploaded once; the heights live in
+ * a HeightMapTexture sampled by heightmap_displacement_vertex_shader, so a push only uploads texture rows. Devices
+ * without vertex texture units fall back to displacing the vertices on the cpu.
+ * Use(Once): aHeightMap = new HeightMap(activity, 2048, 2048, 240, -120, true);
+ *
+ * In waterfall mode the rows are a ring buffer for rolling data such as spectrograms: pushWaterfallRow() overwrites
+ * the oldest row and render() rotates the rows so it shows up last, so an update costs one row whatever the grid
+ * size. On the cpu the rotation is a z offset per chunk draw, with displacement textures a texture row offset.
+ * Use(Once): aHeightMap = new HeightMap(activity, 512, 256, 240, -120, HeightMap.MODE_WATERFALL);
+ * Use(AnyTime): aHeightMap.pushWaterfallRow(spectrum); // 512 values in [0, 1]
+ *
+ * In colormap mode the vertices carry no color, the fragment shader looks the height up in a Colormap texture.
+ * The palette (setColormap()) and the heights it spans (setColormapRange()) can change at any time without
+ * touching the vertex buffers.
+ *
+ * Normals come from central differences of the heights. A push only marks the samples around the changed ones, and
+ * render() recomputes just those, spread over the WorkerPool for large pushes, before the dirty rows are uploaded.
+ *
+ * build() creates a height map without any gl call, and prepareBuffers() encodes the vertices of every chunk, so
+ * the grid can be built on a worker thread; the GL thread then only runs initialize() and createBuffers().
+ * Use(Worker): map = HeightMap.build(2048, 2048, 240, -120, 0); map.prepareBuffers();
+ * Use(GL thread): map.initialize(activity); map.createBuffers(); aHeightMap = map;
+ *
+ * The vertex buffers, index buffers and height texture are reserved with the MemoryAccountant, by createBuffers()
+ * which throws when they do not fit. render() never throws, over the budget it leaves them out until they fit. To
+ * give memory back the height map drops its vertex staging buffer and the cpu copy of the height texture, both are
+ * made again by the next upload that needs them.
  */
 
 import android.content.Context;
@@ -18,278 +58,1128 @@ import android.opengl.Matrix;
 import android.util.Log;
 
 import com.regar007.shapesinopengles20.R;
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.Colormap;
+import com.regar007.shapesinopengles20.Utils.Frustum;
+import com.regar007.shapesinopengles20.Utils.GlState;
 import com.regar007.shapesinopengles20.Utils.GlUtil;
-import com.regar007.shapesinopengles20.Utils.MathUtils;
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
+import com.regar007.shapesinopengles20.Utils.WorkerPool;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 
-public class HeightMap {
+public class HeightMap implements RenderQueue.Drawable, Scene.Shape {
     private final static String TAG = "HeightMap";
     public static boolean isActive = true;
 
-    static float MIN_POSITION = -1.1f;
-    static float POSITION_RANGE = 2.2f;
-    static float AMPLITUDE_FACTOR = 5.0f;
+    /** Keep the heights in a texture displacing a static grid, if the device can fetch textures in vertex shaders. */
+    public static final int MODE_TEXTURE_DISPLACEMENT = 1;
+    /** Keep the rows as a ring buffer filled by pushWaterfallRow(). */
+    public static final int MODE_WATERFALL = 2;
+    /** Color the surface from a Colormap by height instead of per vertex colors. */
+    public static final int MODE_COLORMAP = 4;
+
+    /** Quads along each side of a chunk, (CHUNK_QUADS + 1)^2 vertices must fit in a short index. */
+    public static final int CHUNK_QUADS = 64;
+
+    /** LOD levels, level l draws every (1 << l)th sample. */
+    public static final int LOD_LEVELS = 4;
+
+    static final float AMPLITUDE_FACTOR = 5.0f;
+
+    /** Stale normals from which the recomputation is spread over the WorkerPool. */
+    static final int PARALLEL_NORMAL_SAMPLES = 16384;
+
+    /** Points from which ingest() bins on the WorkerPool. */
+    static final int PARALLEL_INGEST_SAMPLES = 65536;
 
-    static final int[] vbo = new int[1];
-    static final int[] ibo = new int[1];
     private final static int NORMAL_DATA_SIZE = 3;
     private final static int COLOR_DATA_SIZE = 4;
-    private final static int BYTES_PER_FLOAT = 4;
     private final static int BYTES_PER_SHORT = 2;
     private final static int POSITION_DATA_SIZE = 3;
-    private final int STRIDE = (POSITION_DATA_SIZE + NORMAL_DATA_SIZE + COLOR_DATA_SIZE)
-            * BYTES_PER_FLOAT;
-    private static float[] xzRangeValues;
-    private static float[] aHeightMapVertexData;
-    private static short[] aHeightMapIndexData;
-
-    int indexCount;
-
-    private int aPositionHandle;
-    private int aNormalHandle;
-    private int aColorHandle;
-    private int aProgramHandle;
-    private int aLightPosUniform;
+
+    private final float aMinPosition;
+    private final float aPositionRange;
+    private final int aXLength;
+    private final int aZLength;
+
+    /** Grid positions, both descending like the original plot. */
+    private final float[] aXRangeValues;
+    private final float[] aZRangeValues;
+    /** One height and one rgba color per grid sample, row by row, no colors in colormap mode. */
+    private final float[] aHeights;
+    private final byte[] aColors;
+    /** One normal per grid sample as signed bytes, and the columns of every row whose normals are stale. */
+    private final byte[] aNormals;
+    private final int[] aNormalDirtyFrom;
+    private final int[] aNormalDirtyTo;
+    private boolean aNormalsDirty;
+
+    private int aLastIngestSamples;
+    private long aLastIngestNanos;
+
+    private final HeightMapChunk[] aChunks;
+    private final int aChunksX;
+    private final int aChunkColumns;
+    private final int aChunkRows;
+
+    /**
+     * one shared index buffer of a chunk LOD level.
+     */
+    private static class LodIndices {
+        final int[] buffer = new int[1];
+        int count;
+    }
+
+    /** Index buffers by level and edge levels, 2 bits each, created when a chunk first needs them. */
+    private final LodIndices[] aLodIndices = new LodIndices[1 << (2 + 4 * 2)];
+    private final int[] aChunkLevels;
+    private float aLodScale;
+    private float aMaxScreenError = 2f;
+    private final float[] aLodScratch = new float[8];
+    private int aDrawnTriangles;
+    /** Chunks outside it are not drawn, except in waterfall mode where rows move away from the chunk bounds. */
+    private final Frustum aFrustum = new Frustum();
+
+    private final boolean aTextureDisplaced;
+    private final boolean aColormapped;
+    private Colormap aColormap;
+    private final float[] aColormapRange = new float[2];
+    private final boolean aWaterfall;
+    /** Rows shown by a waterfall, and the storage row holding the oldest of them. */
+    private final int aWaterfallRows;
+    private int aWaterfallHead;
+    private final float[] aWaterfallTransform = new float[VertexFormat.POSITION_TRANSFORM_SIZE];
+    private HeightMapTexture aHeightTexture;
+    /** x/z position to height texture coordinate, {scale x, offset x, scale z, offset z}. */
+    private final float[] aTextureTransform = new float[4];
+
+    private final VertexFormat aFormat;
+    private final VertexLayout aLayout;
+    /** Encoded vertices of one chunk, shared by all chunks while uploading. */
+    private ByteBuffer aVertexStaging;
+    private final float[] aVertexScratch = new float[POSITION_DATA_SIZE + NORMAL_DATA_SIZE + COLOR_DATA_SIZE];
+
+    /** Bytes of the LOD index buffers created so far. */
+    private long aIndexBytes;
+    private boolean aBuffersReserved;
+    /** Set when the MemoryAccountant refused a reserve of render(), which then waits until the bytes fit. */
+    private boolean aMemoryRefused;
+    /** Set when the memory held changed, render() reports it to the MemoryAccountant. */
+    private boolean aMemoryChanged = true;
+    private final MemoryAccountant.Trimmer aTrimmer = new MemoryAccountant.Trimmer() {
+        @Override
+        public void trim(long bytes) {
+            // not back to the BufferPool, the memory has to go.
+            aVertexStaging = null;
+            if (aHeightTexture != null) {
+                aHeightTexture.dropTexels();
+            }
+            accountMemory();
+        }
+    };
+
+    private int[] aAttributeHandles;
+    private ShaderProgram aProgram;
     private int aMVPMatrixHandle;
-    private int aMVMatrixHandle;
+    private int aPositionScaleHandle;
+    private int aPositionOffsetHandle;
+    private int aHeightTextureHandle;
+    private int aTextureTransformHandle;
+    private int aHeightRangeHandle;
+    private int aRowOffsetHandle;
+    private int aColormapHandle;
+    private int aColormapRangeHandle;
 
     public HeightMap(Context context, int xLen, int zLen, float plotRange, float plotMin) {
-        int xLength = xLen;
-        int zLength = zLen;
-        MIN_POSITION = plotMin;
-        POSITION_RANGE = plotRange;
+        this(context, xLen, zLen, plotRange, plotMin, false);
+    }
 
-        xzRangeValues = new float[xLength];
+    /**
+     * @param textureDisplacement true to keep the heights in a texture displacing a static grid, if the device
+     *                            can fetch textures in vertex shaders. Must be created on the GL thread.
+     */
+    public HeightMap(Context context, int xLen, int zLen, float plotRange, float plotMin,
+                     boolean textureDisplacement) {
+        this(context, xLen, zLen, plotRange, plotMin, textureDisplacement ? MODE_TEXTURE_DISPLACEMENT : 0);
+    }
 
+    /**
+     * @param modes MODE_TEXTURE_DISPLACEMENT, MODE_WATERFALL and MODE_COLORMAP or'ed together, or 0. Must be
+     *              created on the GL thread.
+     */
+    public HeightMap(Context context, int xLen, int zLen, float plotRange, float plotMin, int modes) {
+        this(xLen, zLen, plotRange, plotMin, modes,
+                (modes & MODE_TEXTURE_DISPLACEMENT) != 0 && HeightMapTexture.isSupported(xLen, zLen));
         initializeGLProgram(context);
+    }
 
-        try {
-            final int floatsPerVertex = POSITION_DATA_SIZE + NORMAL_DATA_SIZE
-                    + COLOR_DATA_SIZE;
+    /**
+     * creates a height map without any gl call, so it can be built on a worker thread. initialize() has to run on
+     * the GL thread before the first render(). MODE_TEXTURE_DISPLACEMENT needs the device limits, which are only
+     * known once a HeightMap was created on the GL thread, so it falls back to cpu displacement before that.
+     * @param modes MODE_TEXTURE_DISPLACEMENT, MODE_WATERFALL and MODE_COLORMAP or'ed together, or 0.
+     */
+    public static HeightMap build(int xLen, int zLen, float plotRange, float plotMin, int modes) {
+        return new HeightMap(xLen, zLen, plotRange, plotMin, modes,
+                (modes & MODE_TEXTURE_DISPLACEMENT) != 0 && HeightMapTexture.isKnownSupported(xLen, zLen));
+    }
+
+    private HeightMap(int xLen, int zLen, float plotRange, float plotMin, int modes, boolean textureDisplaced) {
+        if (xLen < 2 || zLen < 2) {
+            throw new IllegalArgumentException("a height map needs at least 2x2 samples");
+        }
+        aTextureDisplaced = textureDisplaced;
+        aColormapped = (modes & MODE_COLORMAP) != 0;
+        final boolean waterfall = (modes & MODE_WATERFALL) != 0;
+        aWaterfall = waterfall;
+        aWaterfallRows = zLen;
+        aXLength = xLen;
+        // on the cpu a waterfall stores a copy of its first row after the last one, see drawWaterfallChunk().
+        aZLength = waterfall && !aTextureDisplaced ? zLen + 1 : zLen;
+        aMinPosition = plotMin;
+        aPositionRange = plotRange;
 
-            aHeightMapVertexData = new float[xLength * zLength * floatsPerVertex];
+        aFormat = VertexFormat.getDefault();
+        aLayout = createLayout(aFormat, !aColormapped);
+        if (aColormapped) {
+            aColormap = Colormap.heat();
+            aColormapRange[0] = aMinPosition;
+            aColormapRange[1] = aMinPosition + aPositionRange;
+        }
 
-            int offset = 0;
-            int currZ = 0;
+        aXRangeValues = new float[aXLength];
+        aZRangeValues = new float[aZLength];
+        for (int x = 0; x < aXLength; x++) {
+            aXRangeValues[x] = aMinPosition + ((aXLength - x) / (float) (aXLength - 1)) * aPositionRange;
+        }
+        for (int z = 0; z < aZLength; z++) {
+            // Build our heightmap from the top down, so that our triangles are counter-clockwise.
+            aZRangeValues[z] = aMinPosition + (1f - (z / (float) (aZLength - 1))) * aPositionRange;
+        }
 
-            // First, build the data for the vertex buffer
-            for (int z = 0; z < zLength; z++) {
-                for (int x = xLength; x > 0; x--) {
-                    final float xRatio = x / (float) (xLength - 1);
+        aHeights = new float[aXLength * aZLength];
+        aColors = aColormapped ? null : new byte[aXLength * aZLength * COLOR_DATA_SIZE];
+        aNormals = new byte[aXLength * aZLength * NORMAL_DATA_SIZE];
+        aNormalDirtyFrom = new int[aZLength];
+        aNormalDirtyTo = new int[aZLength];
+        Arrays.fill(aNormalDirtyFrom, Integer.MAX_VALUE);
+        Arrays.fill(aNormalDirtyTo, -1);
+        // The grid starts flat, every normal points up.
+        for (int i = 1; i < aNormals.length; i += NORMAL_DATA_SIZE) {
+            aNormals[i] = Byte.MAX_VALUE;
+        }
+        int offset = 0;
+        for (int z = 0; z < aZLength && aColors != null; z++) {
+            for (int x = 0; x < aXLength; x++) {
+                // Add some fancy colors.
+                aColors[offset++] = 0;
+                aColors[offset++] = toColorByte((aXLength - x) / (float) aXLength);
+                aColors[offset++] = toColorByte(z / (float) aZLength);
+                aColors[offset++] = (byte) 0xff;
+            }
+        }
+
+        // Split the grid into chunks sharing their border samples, the last chunks repeat the last column/row.
+        // Chunk sides are a multiple of the coarsest LOD step so every level ends on the chunk edges.
+        aChunkColumns = alignToLod(Math.min(CHUNK_QUADS, aXLength - 1)) + 1;
+        aChunkRows = alignToLod(Math.min(CHUNK_QUADS, aZLength - 1)) + 1;
+        aChunksX = (aXLength - 2) / (aChunkColumns - 1) + 1;
+        final int chunksZ = (aZLength - 2) / (aChunkRows - 1) + 1;
+        aChunks = new HeightMapChunk[aChunksX * chunksZ];
+        for (int cz = 0; cz < chunksZ; cz++) {
+            for (int cx = 0; cx < aChunksX; cx++) {
+                aChunks[cz * aChunksX + cx] = new HeightMapChunk(cx * (aChunkColumns - 1), cz * (aChunkRows - 1),
+                        aChunkColumns, aChunkRows);
+            }
+        }
+        aChunkLevels = new int[aChunks.length];
+
+        if (aTextureDisplaced) {
+            aHeightTexture = new HeightMapTexture(aXLength, aZLength);
+            // inverse of the grid positions above, landing on texel centers.
+            final float xScale = (aXLength - 1) / aPositionRange;
+            final float zScale = (aZLength - 1) / aPositionRange;
+            aTextureTransform[0] = -xScale / aXLength;
+            aTextureTransform[1] = (aXLength + 0.5f + aMinPosition * xScale) / aXLength;
+            aTextureTransform[2] = -zScale / aZLength;
+            aTextureTransform[3] = (aZLength - 0.5f + aMinPosition * zScale) / aZLength;
+        } else if ((modes & MODE_TEXTURE_DISPLACEMENT) != 0) {
+            Log.i(TAG, "vertex texture fetch unavailable, displacing on the cpu");
+        }
+    }
+
+    /**
+     * links the program of a height map made by build(), does nothing if it already has one. Must be called on the
+     * GL thread.
+     */
+    public void initialize(Context context) {
+        if (aProgram == null) {
+            initializeGLProgram(context);
+        }
+    }
+
+    public void pushDataPointsToHeightMap(float[] positions, float[] colors){
+        try {
+            for (int i = 0; i < positions.length; i = i + 3) {
+                pushSample(positions[i], positions[i + 1], positions[i + 2]);
+            }
+        }catch (Exception e){
+            Log.d(TAG,"data points integration failed!",e);
+        }
+    }
+
+    /**
+     * replaces the oldest row of a waterfall, it is drawn as the newest one from the next render() on.
+     * @param values one value per column in [0, 1], 0 is the bottom and 1 the top of the plot range.
+     */
+    public void pushWaterfallRow(float[] values) {
+        if (!aWaterfall) {
+            throw new IllegalStateException("pushWaterfallRow() needs a waterfall height map");
+        }
+        writeRow(aWaterfallHead, values);
+        if (aWaterfallHead == 0 && aZLength > aWaterfallRows) {
+            writeRow(aWaterfallRows, values);
+        }
+        aWaterfallHead = (aWaterfallHead + 1) % aWaterfallRows;
+    }
 
-                    // Build our heightmap from the top down, so that our triangles are counter-clockwise.
-                    final float zRatio = 1f - (z / (float) (zLength - 1));
+    private void writeRow(int z, float[] values) {
+        final int columns = Math.min(aXLength, values.length);
+        for (int x = 0; x < columns; x++) {
+            setSampleHeight(z * aXLength + x, aMinPosition + values[x] * aPositionRange);
+        }
+    }
 
-                    final float xPosition = MIN_POSITION + (xRatio * POSITION_RANGE);
-                    final float zPosition = MIN_POSITION + (zRatio * POSITION_RANGE);
+    /**
+     * same as ingest(FloatBuffer, FloatBuffer, FloatBuffer) for the first count values of the arrays.
+     */
+    public void ingest(float[] xs, float[] ys, float[] zs, int count) {
+        ingest(FloatBuffer.wrap(xs, 0, count), FloatBuffer.wrap(ys, 0, count), FloatBuffer.wrap(zs, 0, count));
+    }
 
-                    if(currZ == z) {
-                        xzRangeValues[z] = zPosition;
-                        currZ++;
+    /**
+     * pushes data points given as columns, from the position to the limit of each buffer; the buffers are not
+     * moved. Large batches are binned in parallel on the WorkerPool into HeightMapPartialGrid's merged in sample
+     * order, which gives the same heights as pushing the points one by one; the red of a cell is only clamped
+     * once per batch then. Must be called on the thread that renders.
+     * @param xs x of every point in [0, 1].
+     * @param ys y of every point in [0, 1].
+     * @param zs z of every point in [0, 1].
+     */
+    public void ingest(final FloatBuffer xs, final FloatBuffer ys, final FloatBuffer zs) {
+        final long start = System.nanoTime();
+        final int count = Math.min(xs.remaining(), Math.min(ys.remaining(), zs.remaining()));
+        if (count < PARALLEL_INGEST_SAMPLES) {
+            for (int i = 0; i < count; i++) {
+                pushSample(xs.get(xs.position() + i), ys.get(ys.position() + i), zs.get(zs.position() + i));
+            }
+        } else {
+            final int parts = WorkerPool.getThreadCount();
+            final HeightMapPartialGrid[] partialGrids = new HeightMapPartialGrid[parts];
+            final float a = AMPLITUDE_FACTOR / 2.0f;
+            WorkerPool.parallelFor(parts, 1, new WorkerPool.RangeTask() {
+                @Override
+                public void run(int from, int to) {
+                    for (int p = from; p < to; p++) {
+                        final int first = (int) ((long) count * p / parts);
+                        final int last = (int) ((long) count * (p + 1) / parts);
+                        final HeightMapPartialGrid grid = new HeightMapPartialGrid(last - first);
+                        for (int i = first; i < last; i++) {
+                            final int cell = binCell(xs.get(xs.position() + i), zs.get(zs.position() + i));
+                            if (cell >= 0) {
+                                grid.push(cell, a, heightIncrement(ys.get(ys.position() + i)));
+                            }
+                        }
+                        partialGrids[p] = grid;
                     }
-                    // Position
-                    aHeightMapVertexData[offset++] = xPosition;
-                    aHeightMapVertexData[offset++] = 0.0f;//((xPosition * xPosition) + (zPosition * zPosition)) / 10f;
-                    aHeightMapVertexData[offset++] = zPosition;
-                    // Cheap normal using a derivative of the function.
-                    // The slope for X will be 2X, for Z will be 2Z.
-                    // Divide by 10 since the position's Y is also divided by 10.
-                    final float xSlope = (2 * xPosition) / 1f;
-                    final float zSlope = (2 * zPosition) / 1f;
-
-                    // Calculate the normal using the cross product of the slopes.
-                    final float[] planeVectorX = {1f, xSlope, 0f,};
-                    final float[] planeVectorZ = {0f, zSlope, 1f};
-                    final float[] normalVector = {
-                            (planeVectorX[1] * planeVectorZ[2]) - (planeVectorX[2] * planeVectorZ[1]),
-                            (planeVectorX[0] * planeVectorZ[1]) - (planeVectorX[1] * planeVectorZ[0]),
-                            (planeVectorX[2] * planeVectorZ[0]) - (planeVectorX[0] * planeVectorZ[2]),
-                    };
-
-                    // Normalize the normal
-                    final float length = Matrix.length(normalVector[0], normalVector[1], normalVector[2]);
-
-                    aHeightMapVertexData[offset++] = normalVector[0] / length;
-                    aHeightMapVertexData[offset++] = normalVector[1] / length;
-                    aHeightMapVertexData[offset++] = normalVector[2] / length;
-
-                    // Add some fancy colors.
-                    float g = (float )(x)/(float)(xLength);
-                    float b = (float )(z)/(float)(zLength);
-                    aHeightMapVertexData[offset++] = 0.0f;
-                    aHeightMapVertexData[offset++] = g;//1.0f;
-                    aHeightMapVertexData[offset++] = b;//0.0f;
-                    aHeightMapVertexData[offset++] = 1f;
                 }
+            });
+            for (HeightMapPartialGrid grid : partialGrids) {
+                grid.mergeInto(this);
             }
+        }
+        aLastIngestSamples = count;
+        aLastIngestNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return points per second binned by the last ingest().
+     */
+    public float getLastIngestRate() {
+        return aLastIngestNanos > 0 ? aLastIngestSamples * 1e9f / aLastIngestNanos : 0;
+    }
+
+    private void pushSample(float x, float y, float z) {
+        final int cell = binCell(x, z);
+        if (cell < 0) {
+            return;
+        }
+        final float a = AMPLITUDE_FACTOR / 2.0f;
+        final float b = a * heightIncrement(y);
+        applyCellUpdate(cell, a, b, a, b);
+    }
+
+    /**
+     * @return grid sample nearest to a point in [0, 1], or -1 outside the grid. Inverse of aXRangeValues and
+     * aZRangeValues, so it needs no search. The columns start one step past x = 1 and end one step short of x = 0,
+     * so the points within half a step of x = 0 land on the last column, as they did with the nearest search.
+     */
+    int binCell(float x, float z) {
+        if (Float.isNaN(x) || Float.isNaN(z)) {
+            // Math.round() would put them on the first column or row.
+            return -1;
+        }
+        int column = Math.round(aXLength - x * (aXLength - 1));
+        if (column == aXLength && x >= 0) {
+            column = aXLength - 1;
+        }
+        final int row = Math.round((1f - z) * (aZLength - 1));
+        if (column < 0 || column >= aXLength || row < 0 || row >= aZLength) {
+            return -1;
+        }
+        return row * aXLength + column;
+    }
 
-            // Now build the index data
-            final int numStripsRequired = zLength - 1;
-            final int numDegensRequired = 2 * (numStripsRequired - 1);
-            final int verticesPerStrip = 2 * xLength;
+    private float heightIncrement(float y) {
+        return (aPositionRange / 4) + ((y * aPositionRange + aMinPosition) / 2.0f);
+    }
 
-            aHeightMapIndexData = new short[(verticesPerStrip * numStripsRequired) + numDegensRequired];
+    /**
+     * applies h = m * h0 + b to a sample and adds s * h0 + t to its red, see HeightMapPartialGrid.
+     */
+    void applyCellUpdate(int cell, float m, float b, float s, float t) {
+        final float height = aHeights[cell];
+        aHeights[cell] = m * height + b; // y axis
+        if (aColors != null) {
+            final int colorIdx = cell * COLOR_DATA_SIZE;
+            aColors[colorIdx] = toColorByte((aColors[colorIdx] & 0xff) / 255f + s * height + t); //red
+            aColors[colorIdx + 1] = 0; //green
+        }
 
-            offset = 0;
+        final int x = cell % aXLength;
+        final int z = cell / aXLength;
+        markHeightChanged(x, z);
+        if (aTextureDisplaced) {
+            aHeightTexture.markRowDirty(z);
+        }
+    }
 
-            for (int z = 0; z < zLength - 1; z++) {
-                if (z > 0) {
-                    // Degenerate begin: repeat first vertex
-                    aHeightMapIndexData[offset++] = (short) (z * zLength);
-                }
+    /**
+     * marks the normals around a changed height stale, and their vertices dirty.
+     */
+    private void markHeightChanged(int x, int z) {
+        for (int row = Math.max(0, z - 1); row <= Math.min(aZLength - 1, z + 1); row++) {
+            final int from = row == z ? Math.max(0, x - 1) : x;
+            final int to = row == z ? Math.min(aXLength - 1, x + 1) : x;
+            aNormalDirtyFrom[row] = Math.min(aNormalDirtyFrom[row], from);
+            aNormalDirtyTo[row] = Math.max(aNormalDirtyTo[row], to);
+            for (int column = from; column <= to; column++) {
+                markSampleDirty(column, row);
+            }
+        }
+        aNormalsDirty = true;
+    }
 
-                for (int x = 0; x < xLength; x++) {
-                    // One part of the strip
-                    aHeightMapIndexData[offset++] = (short) ((z * zLength) + x);
-                    aHeightMapIndexData[offset++] = (short) (((z + 1) * zLength) + x);
+    /**
+     * recomputes the stale normals, in parallel over rows when there are many of them.
+     */
+    private void updateNormals() {
+        if (!aNormalsDirty) {
+            return;
+        }
+        int staleSamples = 0;
+        for (int z = 0; z < aZLength; z++) {
+            staleSamples += Math.max(0, aNormalDirtyTo[z] - aNormalDirtyFrom[z] + 1);
+        }
+        final WorkerPool.RangeTask task = new WorkerPool.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                for (int z = from; z < to; z++) {
+                    updateNormalRow(z);
                 }
+            }
+        };
+        if (staleSamples >= PARALLEL_NORMAL_SAMPLES) {
+            WorkerPool.parallelFor(aZLength, 1, task);
+        } else {
+            task.run(0, aZLength);
+        }
+        aNormalsDirty = false;
+    }
+
+    /**
+     * central differences of the heights around every stale sample of a row, one-sided on the grid borders.
+     */
+    private void updateNormalRow(int z) {
+        if (aNormalDirtyTo[z] < aNormalDirtyFrom[z]) {
+            return;
+        }
+        // model space distance between two samples, the grid runs from high to low x and z.
+        final float xSpacing = -aPositionRange / (aXLength - 1);
+        final float zSpacing = -aPositionRange / (aZLength - 1);
+        final int z0 = Math.max(0, z - 1);
+        final int z1 = Math.min(aZLength - 1, z + 1);
+        for (int x = aNormalDirtyFrom[z]; x <= aNormalDirtyTo[z]; x++) {
+            final int x0 = Math.max(0, x - 1);
+            final int x1 = Math.min(aXLength - 1, x + 1);
+            final float xSlope = (aHeights[z * aXLength + x1] - aHeights[z * aXLength + x0]) / ((x1 - x0) * xSpacing);
+            final float zSlope = (aHeights[z1 * aXLength + x] - aHeights[z0 * aXLength + x]) / ((z1 - z0) * zSpacing);
 
-                if (z < zLength - 2) {
-                    // Degenerate end: repeat last vertex
-                    aHeightMapIndexData[offset++] = (short) (((z + 1) * zLength) + (xLength - 1));
+            // The normal of the surface y = h(x, z) is {-dh/dx, 1, -dh/dz}.
+            final float length = Matrix.length(xSlope, 1f, zSlope);
+            final int normalIdx = (z * aXLength + x) * NORMAL_DATA_SIZE;
+            aNormals[normalIdx] = (byte) Math.round(-xSlope / length * Byte.MAX_VALUE);
+            aNormals[normalIdx + 1] = (byte) Math.round(1f / length * Byte.MAX_VALUE);
+            aNormals[normalIdx + 2] = (byte) Math.round(-zSlope / length * Byte.MAX_VALUE);
+        }
+        aNormalDirtyFrom[z] = Integer.MAX_VALUE;
+        aNormalDirtyTo[z] = -1;
+    }
+
+    /**
+     * marks the sample dirty in every chunk storing it, up to four on chunk corners.
+     */
+    private void markSampleDirty(int x, int z) {
+        final int cx = Math.min(x / (aChunkColumns - 1), aChunksX - 1);
+        final int cz = Math.min(z / (aChunkRows - 1), aChunks.length / aChunksX - 1);
+        for (int j = Math.max(0, cz - 1); j <= cz; j++) {
+            for (int i = Math.max(0, cx - 1); i <= cx; i++) {
+                final HeightMapChunk chunk = aChunks[j * aChunksX + i];
+                if (chunk.contains(x, z)) {
+                    chunk.markRowDirty(z, aZLength);
                 }
             }
+        }
+    }
+
+    private static int alignToLod(int quads) {
+        final int step = 1 << (LOD_LEVELS - 1);
+        return (quads + step - 1) / step * step;
+    }
+
+    private static byte toColorByte(float value) {
+        return (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255);
+    }
+
+    /**
+     * interleaved {x, y, z, nx, ny, nz, r, g, b, a} vertex.
+     * @param format types of the position, normal and color.
+     */
+    static VertexLayout createLayout(VertexFormat format) {
+        return createLayout(format, true);
+    }
 
-            indexCount = aHeightMapIndexData.length;
+    /**
+     * @param color false for the {x, y, z, nx, ny, nz} vertex of colormap mode.
+     */
+    static VertexLayout createLayout(VertexFormat format, boolean color) {
+        final VertexLayout.Builder builder = new VertexLayout.Builder();
+        format.addPosition(builder, POSITION_DATA_SIZE);
+        format.addNormal(builder);
+        return color ? format.addColor(builder).build() : builder.build();
+    }
+
+    /**
+     * uploads every chunk, with the vertices prepareBuffers() encoded when there are, and the height texture. Must
+     * be called on the GL thread, in the upload stage of a load: the buffers and texture are reserved with the
+     * MemoryAccountant before the first gl call, and a refusal is thrown to the caller instead of reaching render().
+     * @throws IllegalStateException if the height map does not fit the memory budget. Nothing was uploaded then,
+     *                               and what prepareBuffers() encoded went back to the BufferPool.
+     */
+    public void createBuffers() {
+        try {
+            if (!aBuffersReserved) {
+                MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER, aChunks.length * getChunkBytes());
+                aBuffersReserved = true;
+            }
+            if (aTextureDisplaced && !aHeightTexture.hasTexture()) {
+                MemoryAccountant.reserve(this, MemoryAccountant.GPU_TEXTURE, aHeightTexture.getByteCount());
+            }
+        } catch (IllegalStateException e) {
+            recycle();
+            aBuffersReserved = false;
+            MemoryAccountant.forget(this);
+            throw e;
+        }
+        aMemoryRefused = false;
+
+        for (HeightMapChunk chunk : aChunks) {
+            if (!chunk.isPrepared()) {
+                chunk.markAllDirty();
+            }
+        }
+        uploadDirtyChunks();
+        if (aTextureDisplaced) {
+            aHeightTexture.upload(this);
+        }
+        accountMemory();
+    }
+
+    /**
+     * computes the normals and encodes the vertices of every chunk without a buffer yet into its own direct
+     * buffer, so the next createBuffers() or render() only copies them into OpenGL's memory. Makes no gl calls;
+     * call it on a worker thread before the height map is handed to the GL thread.
+     */
+    public void prepareBuffers() {
+        updateNormals();
+        for (HeightMapChunk chunk : aChunks) {
+            if (chunk.getBuffer() == 0) {
+                chunk.prepare(this);
+            }
+        }
+    }
 
+    /**
+     * gives the vertices and texels prepareBuffers() encoded back to the BufferPool, for a height map dropped before
+     * it was ever uploaded. Makes no gl calls.
+     */
+    public void recycle() {
+        for (HeightMapChunk chunk : aChunks) {
+            chunk.recycle();
+        }
+        if (aHeightTexture != null) {
+            aHeightTexture.recycleTexels();
+        }
+    }
 
-        } catch (Throwable t) {
-            Log.w(TAG, t);
+    /**
+     * uploads the dirty rows of every chunk.
+     */
+    private void uploadDirtyChunks() {
+        updateNormals();
+        for (HeightMapChunk chunk : aChunks) {
+            if (chunk.getBuffer() != 0 && !chunk.isDirty()) {
+                continue;
+            }
+            if (!aBuffersReserved) {
+                // all chunks get their buffer in the first upload, over the budget none of them is uploaded.
+                if (!tryReserve(MemoryAccountant.GPU_BUFFER, aChunks.length * getChunkBytes())) {
+                    return;
+                }
+                aBuffersReserved = true;
+            }
+            if (aVertexStaging == null) {
+                aVertexStaging = aLayout.allocate(aChunkColumns * aChunkRows);
+                aMemoryChanged = true;
+            }
+            chunk.upload(this, aVertexStaging);
         }
     }
 
-    public static void pushDataPointsToHeightMap(float[] positions, float[] colors){
-        final int floatsPerVertex = POSITION_DATA_SIZE + NORMAL_DATA_SIZE
-                + COLOR_DATA_SIZE;
+    /**
+     * reserves memory on the draw path, where nothing may throw. After a refusal it only asks again once the bytes
+     * fit without trimming, so a height map over the budget does not trim the other shapes every frame.
+     * @return false if the MemoryAccountant refused the bytes, the caller leaves them unallocated.
+     */
+    private boolean tryReserve(int kind, long bytes) {
+        if (aMemoryRefused && MemoryAccountant.getTotalBytes() - MemoryAccountant.getBytes(this, kind) + bytes
+                > MemoryAccountant.getBudget()) {
+            return false;
+        }
         try {
-            for (int i = 0; i < positions.length; i = i + 3) {
-                int posIdx = i;
-                int xIdx = MathUtils.binarySearchNearest(xzRangeValues, (positions[posIdx]* POSITION_RANGE) + MIN_POSITION );
-                int zIdx = MathUtils.binarySearchNearest(xzRangeValues, (positions[posIdx + 2] * POSITION_RANGE) + MIN_POSITION);
-
-                int vertexIdx = floatsPerVertex * ((xIdx) + (zIdx * xzRangeValues.length));
-                aHeightMapVertexData[vertexIdx + 1] =
-                        (aHeightMapVertexData[vertexIdx + 1] + ((POSITION_RANGE/4) + ((positions[posIdx + 1] * POSITION_RANGE + MIN_POSITION ) / 2.0f))) * AMPLITUDE_FACTOR / 2.0f; // y axis
-                aHeightMapVertexData[vertexIdx + POSITION_DATA_SIZE + NORMAL_DATA_SIZE] =
-                        aHeightMapVertexData[vertexIdx + POSITION_DATA_SIZE + NORMAL_DATA_SIZE] + aHeightMapVertexData[vertexIdx + 1]; //red
-                aHeightMapVertexData[vertexIdx + POSITION_DATA_SIZE + NORMAL_DATA_SIZE + 1] = 0.0f; //green
-                //aHeightMapVertexData[vertexIdx + POSITION_DATA_SIZE + NORMAL_DATA_SIZE +2] = 0.0f; //blue
+            MemoryAccountant.reserve(this, kind, bytes);
+            aMemoryRefused = false;
+            return true;
+        } catch (IllegalStateException e) {
+            if (!aMemoryRefused) {
+                Log.w(TAG, "height map not drawn, " + e.getMessage());
             }
-            createBuffers();
-        }catch (Exception e){
-            Log.d(TAG,"data points integration failed!",e);
+            aMemoryRefused = true;
+            return false;
         }
     }
 
-    public static void createBuffers() {
-        final FloatBuffer heightMapVertexDataBuffer = ByteBuffer
-                .allocateDirect(aHeightMapVertexData.length * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        heightMapVertexDataBuffer.put(aHeightMapVertexData).position(0);
+    private long getChunkBytes() {
+        return (long) aChunkColumns * aChunkRows * aLayout.getStride();
+    }
 
-        final ShortBuffer heightMapIndexDataBuffer = ByteBuffer
-                .allocateDirect(aHeightMapIndexData.length * BYTES_PER_SHORT).order(ByteOrder.nativeOrder())
-                .asShortBuffer();
-        heightMapIndexDataBuffer.put(aHeightMapIndexData).position(0);
+    /**
+     * reports the buffers, texture and cpu copies held now to the MemoryAccountant.
+     */
+    private void accountMemory() {
+        long direct = aVertexStaging != null ? aVertexStaging.capacity() : 0;
+        long buffers = aIndexBytes;
+        long textures = 0;
+        for (HeightMapChunk chunk : aChunks) {
+            if (chunk.isPrepared()) {
+                direct += getChunkBytes();
+            }
+            if (chunk.getBuffer() != 0) {
+                buffers += getChunkBytes();
+            }
+        }
+        if (aHeightTexture != null) {
+            direct += aHeightTexture.getTexelBytes();
+            textures += aHeightTexture.hasTexture() ? aHeightTexture.getByteCount() : 0;
+        }
+        MemoryAccountant.set(this, MemoryAccountant.DIRECT, direct);
+        MemoryAccountant.set(this, MemoryAccountant.GPU_BUFFER, buffers);
+        MemoryAccountant.set(this, MemoryAccountant.GPU_TEXTURE, textures);
+        aMemoryChanged = false;
+    }
 
-        if (vbo[0] > 0 && ibo[0] > 0) {
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo[0]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, heightMapVertexDataBuffer.capacity() * BYTES_PER_FLOAT,
-                    heightMapVertexDataBuffer, GLES20.GL_STATIC_DRAW);
+    /**
+     * sets what the LOD selection needs to know about the projection, call it before render() whenever the
+     * viewport or the projection changes. Without it every chunk is drawn at full resolution.
+     * @param viewportHeight viewport height in pixels.
+     * @param projectionMatrix perspective projection matrix, as made by Matrix.frustumM().
+     */
+    public void setViewport(int viewportHeight, float[] projectionMatrix) {
+        // pixels covered by one unit seen at a distance of one unit.
+        aLodScale = viewportHeight / 2f * projectionMatrix[5];
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibo[0]);
-            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, heightMapIndexDataBuffer.capacity()
-                    * BYTES_PER_SHORT, heightMapIndexDataBuffer, GLES20.GL_STATIC_DRAW);
+    /**
+     * @param pixels largest height error allowed on screen, 2 by default.
+     */
+    public void setMaxScreenError(float pixels) {
+        aMaxScreenError = pixels;
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    /**
+     * @return triangles drawn by the last render(), degenerate ones excluded.
+     */
+    public int getDrawnTriangleCount() {
+        return aDrawnTriangles;
+    }
 
-        } else {
-            GlUtil.checkGlError("glGenBuffers");
+    /**
+     * picks the coarsest level of every chunk whose height error stays under aMaxScreenError pixels at the
+     * distance of the chunk.
+     */
+    private void selectLevels(float[] aMVPMatrix) {
+        final float[] v = aLodScratch;
+        for (int i = 0; i < aChunks.length; i++) {
+            final HeightMapChunk chunk = aChunks[i];
+            aChunkLevels[i] = 0;
+            if (aLodScale <= 0 || aWaterfall) {
+                continue;
+            }
+            final float[] b = chunk.bounds;
+            v[0] = (b[0] + b[3]) / 2;
+            v[1] = (b[1] + b[4]) / 2;
+            v[2] = (b[2] + b[5]) / 2;
+            v[3] = 1;
+            Matrix.multiplyMV(v, 4, aMVPMatrix, 0, v, 0);
+            // clip w is the eye space depth, take the nearest point of the bounding sphere.
+            final float radius = Matrix.length(b[3] - b[0], b[4] - b[1], b[5] - b[2]) / 2;
+            final float distance = v[7] - radius;
+            if (distance <= 0) {
+                continue;
+            }
+            for (int level = LOD_LEVELS - 1; level > 0; level--) {
+                if (chunk.lodErrors[level] * aLodScale / distance <= aMaxScreenError) {
+                    aChunkLevels[i] = level;
+                    break;
+                }
+            }
         }
     }
 
-    private void initializeGLProgram(Context context) {
-        final String vertexShader = RawResourceReader.readTextFileFromRawResource(context,
-                R.raw.heightmap_vertex_shader);
-        final String fragmentShader = RawResourceReader.readTextFileFromRawResource(context,
-                R.raw.heightmap_fragment_shader);
+    /**
+     * @return index buffer of the chunk at the given level, stitched to its coarser neighbours.
+     */
+    private LodIndices getLodIndices(int chunkIdx) {
+        final int cx = chunkIdx % aChunksX;
+        final int cz = chunkIdx / aChunksX;
+        final int chunksZ = aChunks.length / aChunksX;
+        final int level = aChunkLevels[chunkIdx];
+        final int top = cz > 0 ? Math.max(level, aChunkLevels[chunkIdx - aChunksX]) : level;
+        final int bottom = cz < chunksZ - 1 ? Math.max(level, aChunkLevels[chunkIdx + aChunksX]) : level;
+        final int left = cx > 0 ? Math.max(level, aChunkLevels[chunkIdx - 1]) : level;
+        final int right = cx < aChunksX - 1 ? Math.max(level, aChunkLevels[chunkIdx + 1]) : level;
+
+        final int key = level | (top << 2) | (bottom << 4) | (left << 6) | (right << 8);
+        LodIndices lodIndices = aLodIndices[key];
+        if (lodIndices == null) {
+            final short[] indices = buildIndices(aChunkColumns, aChunkRows, level, top, bottom, left, right);
+            final ByteBuffer indexBytes = BufferPool.acquire(indices.length * BYTES_PER_SHORT);
+            final ShortBuffer indexBuffer = indexBytes.asShortBuffer();
+            indexBuffer.put(indices).position(0);
+
+            lodIndices = new LodIndices();
+            GLES20.glGenBuffers(1, lodIndices.buffer, 0);
+            if (lodIndices.buffer[0] <= 0) {
+                GlUtil.checkGlError("glGenBuffers");
+            }
+            GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, lodIndices.buffer[0]);
+            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.length * BYTES_PER_SHORT, indexBuffer,
+                    GLES20.GL_STATIC_DRAW);
+            BufferPool.release(indexBytes);
+            lodIndices.count = indices.length;
+            aLodIndices[key] = lodIndices;
+            aIndexBytes += indices.length * BYTES_PER_SHORT;
+            aMemoryChanged = true;
+        }
+        return lodIndices;
+    }
+
+    /**
+     * two triangles per quad of a chunk of columns x rows vertices, taking every (1 << level)th vertex. The
+     * vertices of an edge are snapped to the spacing of its own edge level, so they only meet the vertices the
+     * coarser neighbour draws; triangles that collapse are left out.
+     * @param top level of the first row, at least level, the other edges likewise.
+     */
+    static short[] buildIndices(int columns, int rows, int level, int top, int bottom, int left, int right) {
+        final int step = 1 << level;
+        final short[] indices = new short[((columns - 1) / step) * ((rows - 1) / step) * 6];
+        final int[] quad = new int[4];
+        int offset = 0;
+        for (int z = 0; z < rows - 1; z += step) {
+            for (int x = 0; x < columns - 1; x += step) {
+                quad[0] = snappedVertex(x, z, columns, rows, top, bottom, left, right);
+                quad[1] = snappedVertex(x, z + step, columns, rows, top, bottom, left, right);
+                quad[2] = snappedVertex(x + step, z, columns, rows, top, bottom, left, right);
+                quad[3] = snappedVertex(x + step, z + step, columns, rows, top, bottom, left, right);
+                offset = addTriangle(indices, offset, quad[0], quad[1], quad[2]);
+                offset = addTriangle(indices, offset, quad[2], quad[1], quad[3]);
+            }
+        }
+        return Arrays.copyOf(indices, offset);
+    }
+
+    private static int snappedVertex(int x, int z, int columns, int rows, int top, int bottom, int left, int right) {
+        if (z == 0) {
+            x = (x >> top) << top;
+        } else if (z == rows - 1) {
+            x = (x >> bottom) << bottom;
+        }
+        if (x == 0) {
+            z = (z >> left) << left;
+        } else if (x == columns - 1) {
+            z = (z >> right) << right;
+        }
+        return z * columns + x;
+    }
+
+    private static int addTriangle(short[] indices, int offset, int a, int b, int c) {
+        if (a == b || b == c || a == c) {
+            return offset;
+        }
+        indices[offset++] = (short) a;
+        indices[offset++] = (short) b;
+        indices[offset++] = (short) c;
+        return offset;
+    }
+
+    /**
+     * encodes one grid sample into a vertex of a chunk.
+     * @param staging buffer in the layout of this height map.
+     * @param vertex vertex index in the staging buffer.
+     * @param x grid column.
+     * @param z grid row.
+     * @param transform position transform of the chunk.
+     */
+    void encodeVertex(ByteBuffer staging, int vertex, int x, int z, float[] transform) {
+        final float[] v = aVertexScratch;
+        final float xPosition = aXRangeValues[x];
+        final float zPosition = aZRangeValues[z];
+        final int sampleIdx = z * aXLength + x;
+
+        // Position, mapped into [-1, 1] for quantized formats, the transform is the identity otherwise.
+        v[0] = (xPosition - transform[3]) / transform[0];
+        v[1] = (aHeights[sampleIdx] - transform[4]) / transform[1];
+        v[2] = (zPosition - transform[5]) / transform[2];
+
+        final int normalIdx = sampleIdx * NORMAL_DATA_SIZE;
+        for (int n = 0; n < NORMAL_DATA_SIZE; n++) {
+            v[3 + n] = aNormals[normalIdx + n] / (float) Byte.MAX_VALUE;
+        }
+
+        aLayout.put(staging, vertex, 0, v, 0);
+        aLayout.put(staging, vertex, 1, v, POSITION_DATA_SIZE);
+        if (aColors != null) {
+            final int colorIdx = sampleIdx * COLOR_DATA_SIZE;
+            for (int c = 0; c < COLOR_DATA_SIZE; c++) {
+                v[6 + c] = (aColors[colorIdx + c] & 0xff) / 255f;
+            }
+            aLayout.put(staging, vertex, 2, v, POSITION_DATA_SIZE + NORMAL_DATA_SIZE);
+        }
+    }
+
+    /**
+     * sets the height of a grid sample, used by HeightMapGridder.
+     */
+    void setSampleHeight(int cell, float height) {
+        aHeights[cell] = height;
+        final int z = cell / aXLength;
+        markHeightChanged(cell % aXLength, z);
+        if (aTextureDisplaced) {
+            aHeightTexture.markRowDirty(z);
+        }
+    }
+
+    boolean isWaterfall() {
+        return aWaterfall;
+    }
+
+    float getMinPosition() {
+        return aMinPosition;
+    }
+
+    float getPositionRange() {
+        return aPositionRange;
+    }
+
+    int getXLength() {
+        return aXLength;
+    }
+
+    int getZLength() {
+        return aZLength;
+    }
+
+    float getXPosition(int x) {
+        return aXRangeValues[x];
+    }
+
+    float getZPosition(int z) {
+        return aZRangeValues[z];
+    }
+
+    float getHeight(int x, int z) {
+        return aHeights[z * aXLength + x];
+    }
+
+    /**
+     * @return one 0-255 component of the rgba color of a grid sample.
+     */
+    int getColor(int x, int z, int component) {
+        if (aColors == null) {
+            return 0;
+        }
+        return aColors[(z * aXLength + x) * COLOR_DATA_SIZE + component] & 0xff;
+    }
+
+    /**
+     * @return true if the heights are displaced from a texture, false if they are stored in the vertices.
+     */
+    public boolean isTextureDisplaced() {
+        return aTextureDisplaced;
+    }
+
+    /**
+     * sets the palette of colormap mode, takes effect with the next render().
+     */
+    public void setColormap(Colormap colormap) {
+        if (!aColormapped) {
+            throw new IllegalStateException("setColormap() needs MODE_COLORMAP");
+        }
+        if (aColormap != null && aColormap != colormap) {
+            aColormap.release();
+        }
+        aColormap = colormap;
+    }
 
-        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
-        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+    /**
+     * sets the heights mapped to the first and the last color of the colormap, the plot range by default.
+     */
+    public void setColormapRange(float minHeight, float maxHeight) {
+        aColormapRange[0] = minHeight;
+        aColormapRange[1] = maxHeight;
+    }
 
-        aProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, new String[] {
-                "a_Position", "a_Normal", "a_Color" });
+    VertexFormat getFormat() {
+        return aFormat;
+    }
 
-        GLES20.glGenBuffers(1, vbo, 0);
-        GLES20.glGenBuffers(1, ibo, 0);
+    VertexLayout getLayout() {
+        return aLayout;
+    }
+
+    public int getChunkCount() {
+        return aChunks.length;
+    }
+
+    private void initializeGLProgram(Context context) {
+        MemoryAccountant.register(this, "HeightMap " + aXLength + "x" + aZLength, aTrimmer);
+
+        aProgram = ShaderProgramCache.acquire(context, aTextureDisplaced ? R.raw.heightmap_displacement_vertex_shader
+                : R.raw.heightmap_vertex_shader,
+                aColormapped ? R.raw.heightmap_colormap_fragment_shader : R.raw.heightmap_fragment_shader,
+                new String[] { "a_Position", "a_Normal", "a_Color" });
+
+        // Set program handles for heightmap drawing.
+        aMVPMatrixHandle = aProgram.getUniformHandle("u_MVPMatrix");
+        aPositionScaleHandle = aProgram.getUniformHandle("u_PositionScale");
+        aPositionOffsetHandle = aProgram.getUniformHandle("u_PositionOffset");
+        aAttributeHandles = aLayout.resolveHandles(aProgram);
+        if (aTextureDisplaced) {
+            aHeightTextureHandle = aProgram.getUniformHandle("u_HeightTexture");
+            aTextureTransformHandle = aProgram.getUniformHandle("u_TextureTransform");
+            aHeightRangeHandle = aProgram.getUniformHandle("u_HeightRange");
+            aRowOffsetHandle = aProgram.getUniformHandle("u_RowOffset");
+        }
+        if (aColormapped) {
+            aColormapHandle = aProgram.getUniformHandle("u_Colormap");
+            aColormapRangeHandle = aProgram.getUniformHandle("u_ColormapRange");
+        }
 
         isActive = true;
 
     }
 
+    /**
+     * queues the height map for the next RenderQueue.draw(), at the depth of the center of the plot. Its chunks are
+     * one item, they share the per-frame uploads and the LOD selection of render().
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        final float center = aMinPosition + aPositionRange / 2;
+        final int buffer = aChunks.length > 0 ? aChunks[0].getBuffer() : 0;
+        queue.add(RenderQueue.makeKey(false, aProgram.getHandle(), 0, buffer,
+                RenderQueue.getDepth(aMVPMatrix, center, center, center)), this, 0, aMVPMatrix);
+    }
+
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix);
+    }
+
     public void render(float[] aMVPMatrix) {
-        // Use culling to remove back faces.
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
+        // Both sides of the surface are visible, no culling and no blending. GlState skips what is already set.
+        GlState.setEnabled(GLES20.GL_CULL_FACE, false);
+        GlState.setEnabled(GLES20.GL_BLEND, false);
 
         // Set our per-vertex lighting program.
-        GLES20.glUseProgram(aProgramHandle);
+        aProgram.use();
 
-        // Set program handles for cube drawing.
-        aMVPMatrixHandle = GLES20.glGetUniformLocation(aProgramHandle, "u_MVPMatrix");
-        aMVMatrixHandle = GLES20.glGetUniformLocation(aProgramHandle, "u_MVMatrix");
-        aLightPosUniform = GLES20.glGetUniformLocation(aProgramHandle, "u_LightPos");
-        aPositionHandle = GLES20.glGetAttribLocation(aProgramHandle, "a_Position");
-        aNormalHandle = GLES20.glGetAttribLocation(aProgramHandle, "a_Normal");
-        aColorHandle = GLES20.glGetAttribLocation(aProgramHandle, "a_Color");
+        // Upload the rows changed by pushDataPointsToHeightMap(), this may update the position transforms.
+        uploadDirtyChunks();
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aMVPMatrixHandle, 1, false, aMVPMatrix, 0);
-
-        if (vbo[0] > 0 && ibo[0] > 0) {
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo[0]);
-
-            // Bind Attributes
-            GLES20.glVertexAttribPointer(aPositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, 0);
-            GLES20.glEnableVertexAttribArray(aPositionHandle);
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
 
-            GLES20.glVertexAttribPointer(aNormalHandle, NORMAL_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, POSITION_DATA_SIZE * BYTES_PER_FLOAT);
-            GLES20.glEnableVertexAttribArray(aNormalHandle);
+        if (aTextureDisplaced) {
+            if (!aHeightTexture.hasTexture()
+                    && !tryReserve(MemoryAccountant.GPU_TEXTURE, aHeightTexture.getByteCount())) {
+                // the static grid is flat without its heights, draw nothing until the texture fits.
+                return;
+            }
+            if (aHeightTexture.getTexelBytes() == 0) {
+                // the upload creates the texture or its cpu copy.
+                aMemoryChanged = true;
+            }
+            aHeightTexture.upload(this);
+            aHeightTexture.bind(0, aHeightTextureHandle);
+            GlState.uniform4f(aTextureTransformHandle, aTextureTransform[0], aTextureTransform[1],
+                    aTextureTransform[2], aTextureTransform[3]);
+            GlState.uniform2f(aHeightRangeHandle, aHeightTexture.heightRange[0], aHeightTexture.heightRange[1]);
+            GlState.uniform1f(aRowOffsetHandle, aWaterfall ? aWaterfallHead / (float) aWaterfallRows : 0f);
+        }
+        if (aColormapped) {
+            aColormap.bind(1, aColormapHandle);
+            GlState.uniform2f(aColormapRangeHandle, aColormapRange[0], aColormapRange[1]);
+        }
+        if (aMemoryChanged) {
+            accountMemory();
+        }
 
-            GLES20.glVertexAttribPointer(aColorHandle, COLOR_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, (POSITION_DATA_SIZE + NORMAL_DATA_SIZE) * BYTES_PER_FLOAT);
-            GLES20.glEnableVertexAttribArray(aColorHandle);
+        selectLevels(aMVPMatrix);
+        aFrustum.set(aMVPMatrix);
+        aDrawnTriangles = 0;
+        for (int i = 0; i < aChunks.length; i++) {
+            final HeightMapChunk chunk = aChunks[i];
+            if (chunk.getBuffer() <= 0) {
+                continue;
+            }
+            if (!aWaterfall && !aFrustum.intersectsBox(chunk.bounds, 0)) {
+                continue;
+            }
+            final LodIndices lodIndices = getLodIndices(i);
 
+            // Bind Attributes
+            aLayout.bind(chunk.getBuffer(), aAttributeHandles);
+            GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, lodIndices.buffer[0]);
 
             // Draw
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, ibo[0]);
-            GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+            if (aWaterfall && !aTextureDisplaced) {
+                drawWaterfallChunk(chunk);
+            } else {
+                VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle,
+                        chunk.positionTransform);
+                GLES20.glDrawElements(GLES20.GL_TRIANGLES, lodIndices.count, GLES20.GL_UNSIGNED_SHORT, 0);
+                aDrawnTriangles += lodIndices.count / 3;
+            }
+        }
+    }
+
+    /**
+     * draws a chunk of a cpu waterfall with the full resolution indices. The storage rows are a ring starting at
+     * aWaterfallHead: quads from the oldest row on move to the front, quads before it follow the newest row, and
+     * the quad joining the newest row to the oldest one is skipped. The copy of the first row stored after the
+     * last one lets the quads across the end of the storage join up.
+     */
+    private void drawWaterfallChunk(HeightMapChunk chunk) {
+        final int firstQuad = chunk.firstRow;
+        final int lastQuad = chunk.firstRow + aChunkRows - 2;
+        final int seam = (aWaterfallHead + aWaterfallRows - 1) % aWaterfallRows;
+        if (seam < firstQuad || seam > lastQuad) {
+            drawWaterfallQuads(chunk, firstQuad, lastQuad);
+        } else {
+            drawWaterfallQuads(chunk, firstQuad, seam - 1);
+            drawWaterfallQuads(chunk, seam + 1, lastQuad);
+        }
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    /**
+     * draws the quad rows [first, last] of a chunk, shifted to their place in the waterfall.
+     */
+    private void drawWaterfallQuads(HeightMapChunk chunk, int first, int last) {
+        if (first > last) {
+            return;
         }
+        final int shift = first >= aWaterfallHead ? -aWaterfallHead : aWaterfallRows - aWaterfallHead;
+        System.arraycopy(chunk.positionTransform, 0, aWaterfallTransform, 0, aWaterfallTransform.length);
+        aWaterfallTransform[5] += shift * (aZRangeValues[1] - aZRangeValues[0]);
+        VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle, aWaterfallTransform);
 
-        // Use culling to remove back faces.
-        GLES20.glEnable(GLES20.GL_CULL_FACE);
+        final int indicesPerRow = (aChunkColumns - 1) * 6;
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, (last - first + 1) * indicesPerRow, GLES20.GL_UNSIGNED_SHORT,
+                (first - chunk.firstRow) * indicesPerRow * BYTES_PER_SHORT);
+        aDrawnTriangles += (last - first + 1) * indicesPerRow / 3;
     }
 
-    void release() {
-        if (vbo[0] > 0) {
-            GLES20.glDeleteBuffers(vbo.length, vbo, 0);
-            vbo[0] = 0;
+    /**
+     * Delete buffers and textures from OpenGL's memory. Must be called on the GL thread.
+     */
+    public void release() {
+        for (HeightMapChunk chunk : aChunks) {
+            chunk.release();
+        }
+
+        for (int i = 0; i < aLodIndices.length; i++) {
+            if (aLodIndices[i] != null) {
+                GlState.deleteBuffers(1, aLodIndices[i].buffer, 0);
+                aLodIndices[i] = null;
+            }
         }
 
-        if (ibo[0] > 0) {
-            GLES20.glDeleteBuffers(ibo.length, ibo, 0);
-            ibo[0] = 0;
+        if (aHeightTexture != null) {
+            aHeightTexture.release();
         }
+        if (aColormap != null) {
+            aColormap.release();
+        }
+
+        BufferPool.release(aVertexStaging);
+        aVertexStaging = null;
+        aIndexBytes = 0;
+        aBuffersReserved = false;
+        aMemoryRefused = false;
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aProgram);
+        aProgram = null;
     }
 }
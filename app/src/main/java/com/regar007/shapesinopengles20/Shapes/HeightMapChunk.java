@@ -0,0 +1,315 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import android.opengl.GLES20;
+
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to hold one tile of a HeightMap: a block of grid samples with its own vertex buffer, bounds,
+ *     position transform and dirty rows. Neighbouring chunks both store the samples of the row/column they share,
+ *     so the tiles meet without cracks. Every chunk of a height map has the same number of vertices, chunks on the
+ *     far edges repeat the last grid column/row, so all of them draw with the one index buffer of the height map.
+ * </p>
+ */
+class HeightMapChunk {
+
+    /** Grid sample of the first vertex. */
+    final int firstColumn;
+    final int firstRow;
+
+    /** Vertices per chunk row and rows of vertices. */
+    final int columns;
+    final int rows;
+
+    /** Bounds in model space, {minX, minY, minZ, maxX, maxY, maxZ}. */
+    final float[] bounds = new float[6];
+
+    /** Scale/offset the positions of this chunk are encoded with. */
+    final float[] positionTransform = new float[VertexFormat.POSITION_TRANSFORM_SIZE];
+
+    /** Largest height error of every HeightMap LOD level against the full resolution samples. */
+    final float[] lodErrors = new float[HeightMap.LOD_LEVELS];
+
+    private final int[] aBuffer = new int[1];
+    private final boolean[] aDirtyRows;
+    private boolean aAnyRowDirty;
+    private boolean aAllRowsDirty = true;
+    /** vertices encoded by prepare(), uploaded as they are by the next upload(). */
+    private ByteBuffer aPrepared;
+    /** {min, max} of the quantized heights, see expandRange(). */
+    private final float[] aHeightRange = new float[2];
+
+    HeightMapChunk(int firstColumn, int firstRow, int columns, int rows) {
+        this.firstColumn = firstColumn;
+        this.firstRow = firstRow;
+        this.columns = columns;
+        this.rows = rows;
+        aDirtyRows = new boolean[rows];
+    }
+
+    /**
+     * @return true if the chunk stores the given grid sample.
+     */
+    boolean contains(int column, int row) {
+        return column >= firstColumn && column < firstColumn + columns && row >= firstRow && row < firstRow + rows;
+    }
+
+    /**
+     * marks the vertices of a grid row dirty, rows past the end of the grid repeat the last grid row and follow it.
+     * @param row grid row, must be stored by this chunk.
+     * @param gridRows rows of the whole grid.
+     */
+    void markRowDirty(int row, int gridRows) {
+        final int local = row - firstRow;
+        final int last = row == gridRows - 1 ? rows - 1 : local;
+        for (int r = local; r <= last; r++) {
+            aDirtyRows[r] = true;
+        }
+        aAnyRowDirty = true;
+    }
+
+    void markAllDirty() {
+        aAllRowsDirty = true;
+    }
+
+    boolean isDirty() {
+        return aAllRowsDirty || aAnyRowDirty;
+    }
+
+    int getBuffer() {
+        return aBuffer[0];
+    }
+
+    boolean isPrepared() {
+        return aPrepared != null;
+    }
+
+    /**
+     * encodes every vertex of the chunk into a buffer of its own, without any gl call, so it can run on a worker
+     * thread before the height map is used on the GL thread.
+     * @param map height map owning the grid samples.
+     */
+    void prepare(HeightMap map) {
+        final ByteBuffer vertices = map.getLayout().allocate(columns * rows);
+        encodeAll(map, vertices);
+        computeLodErrors(map);
+        aPrepared = vertices;
+    }
+
+    /**
+     * uploads the dirty rows of this chunk, one glBufferSubData() per run of consecutive dirty rows. The whole chunk
+     * is uploaded when it has no buffer yet or a height left its quantized range. Must be called on the GL thread.
+     * @param map height map owning the grid samples.
+     * @param staging buffer of columns * rows vertices in the layout of the height map, shared by all chunks.
+     */
+    void upload(HeightMap map, ByteBuffer staging) {
+        if (aBuffer[0] == 0) {
+            GLES20.glGenBuffers(1, aBuffer, 0);
+            if (aPrepared != null) {
+                // rows pushed since prepare() are still marked dirty and follow below.
+                VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, aBuffer[0], aPrepared, GLES20.GL_DYNAMIC_DRAW);
+                BufferPool.release(aPrepared);
+                aPrepared = null;
+            } else {
+                aAllRowsDirty = true;
+            }
+        }
+        if (aAllRowsDirty) {
+            uploadAll(map, staging);
+            computeLodErrors(map);
+            return;
+        }
+        if (!aAnyRowDirty) {
+            return;
+        }
+        if (map.isTextureDisplaced()) {
+            // the vertices hold no heights, only the bounds and the LOD errors follow them.
+            growBounds(map);
+            Arrays.fill(aDirtyRows, false);
+            aAnyRowDirty = false;
+            computeLodErrors(map);
+            return;
+        }
+        if (!growBounds(map)) {
+            uploadAll(map, staging);
+            computeLodErrors(map);
+            return;
+        }
+        computeLodErrors(map);
+
+        final int rowBytes = columns * map.getLayout().getStride();
+        int row = 0;
+        while (row < rows) {
+            if (!aDirtyRows[row]) {
+                row++;
+                continue;
+            }
+            final int first = row;
+            while (row < rows && aDirtyRows[row]) {
+                encodeRow(map, staging, row);
+                aDirtyRows[row] = false;
+                row++;
+            }
+            VertexLayout.uploadRange(GLES20.GL_ARRAY_BUFFER, aBuffer[0], staging, first * rowBytes,
+                    (row - first) * rowBytes);
+        }
+        aAnyRowDirty = false;
+    }
+
+    private void uploadAll(HeightMap map, ByteBuffer staging) {
+        encodeAll(map, staging);
+        VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, aBuffer[0], staging, GLES20.GL_DYNAMIC_DRAW);
+    }
+
+    /**
+     * recomputes the bounds and the position transform and encodes every row, which are then clean.
+     */
+    private void encodeAll(HeightMap map, ByteBuffer staging) {
+        computeBounds(map);
+        map.getFormat().computeBoundsTransform(bounds, positionTransform);
+        if (map.getFormat().isPositionQuantized()) {
+            expandRange(bounds[1], bounds[4], aHeightRange);
+            positionTransform[1] = (aHeightRange[1] - aHeightRange[0]) / 2;
+            positionTransform[4] = (aHeightRange[0] + aHeightRange[1]) / 2;
+        }
+        for (int r = 0; r < rows; r++) {
+            encodeRow(map, staging, r);
+        }
+
+        Arrays.fill(aDirtyRows, false);
+        aAnyRowDirty = false;
+        aAllRowsDirty = false;
+    }
+
+    /**
+     * widens a range of heights to twice its extent around its center, at least 2 on either side, so later pushes
+     * can still be uploaded row by row instead of re-encoding everything. Also used by HeightMapTexture.
+     * @param out receives {min, max} of the widened range.
+     */
+    static void expandRange(float min, float max, float[] out) {
+        final float halfExtent = Math.max((max - min) / 2, 1f) * 2;
+        out[0] = (max + min) / 2 - halfExtent;
+        out[1] = (max + min) / 2 + halfExtent;
+    }
+
+    /**
+     * measures how far the samples are from the surface drawn at every LOD level, the errors never shrink from one
+     * level to the next.
+     */
+    private void computeLodErrors(HeightMap map) {
+        lodErrors[0] = 0;
+        for (int level = 1; level < lodErrors.length; level++) {
+            final int step = 1 << level;
+            float error = lodErrors[level - 1];
+            for (int r = 0; r < rows; r++) {
+                final int r0 = Math.min(r / step * step, rows - 1 - step);
+                final float fz = (r - r0) / (float) step;
+                for (int c = 0; c < columns; c++) {
+                    final int c0 = Math.min(c / step * step, columns - 1 - step);
+                    final float fx = (c - c0) / (float) step;
+                    final float top = sampleHeight(map, c0, r0) * (1 - fx) + sampleHeight(map, c0 + step, r0) * fx;
+                    final float bottom = sampleHeight(map, c0, r0 + step) * (1 - fx)
+                            + sampleHeight(map, c0 + step, r0 + step) * fx;
+                    error = Math.max(error, Math.abs(sampleHeight(map, c, r) - (top * (1 - fz) + bottom * fz)));
+                }
+            }
+            lodErrors[level] = error;
+        }
+    }
+
+    private float sampleHeight(HeightMap map, int column, int row) {
+        return map.getHeight(Math.min(firstColumn + column, map.getXLength() - 1),
+                Math.min(firstRow + row, map.getZLength() - 1));
+    }
+
+    private void encodeRow(HeightMap map, ByteBuffer staging, int row) {
+        final int gridRow = Math.min(firstRow + row, map.getZLength() - 1);
+        final int lastColumn = map.getXLength() - 1;
+        for (int c = 0; c < columns; c++) {
+            map.encodeVertex(staging, row * columns + c, Math.min(firstColumn + c, lastColumn), gridRow,
+                    positionTransform);
+        }
+    }
+
+    private void computeBounds(HeightMap map) {
+        final int lastColumn = Math.min(firstColumn + columns, map.getXLength()) - 1;
+        final int lastRow = Math.min(firstRow + rows, map.getZLength()) - 1;
+        final float x0 = map.getXPosition(firstColumn);
+        final float x1 = map.getXPosition(lastColumn);
+        final float z0 = map.getZPosition(firstRow);
+        final float z1 = map.getZPosition(lastRow);
+        bounds[0] = Math.min(x0, x1);
+        bounds[2] = Math.min(z0, z1);
+        bounds[3] = Math.max(x0, x1);
+        bounds[5] = Math.max(z0, z1);
+        bounds[1] = Float.MAX_VALUE;
+        bounds[4] = -Float.MAX_VALUE;
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                final float height = map.getHeight(c, r);
+                bounds[1] = Math.min(bounds[1], height);
+                bounds[4] = Math.max(bounds[4], height);
+            }
+        }
+    }
+
+    /**
+     * grows the y bounds by the heights of the dirty rows.
+     * @return true if all of them can still be stored with the current position transform.
+     */
+    private boolean growBounds(HeightMap map) {
+        if (!aAnyRowDirty) {
+            return true;
+        }
+        final float min = positionTransform[4] - positionTransform[1];
+        final float max = positionTransform[4] + positionTransform[1];
+        final boolean quantized = map.getFormat().isPositionQuantized();
+        final int lastColumn = Math.min(firstColumn + columns, map.getXLength()) - 1;
+        final int lastRow = map.getZLength() - 1;
+        boolean fits = true;
+        for (int r = 0; r < rows && firstRow + r <= lastRow; r++) {
+            if (!aDirtyRows[r]) {
+                continue;
+            }
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                final float height = map.getHeight(c, firstRow + r);
+                bounds[1] = Math.min(bounds[1], height);
+                bounds[4] = Math.max(bounds[4], height);
+                if (quantized && (height < min || height > max)) {
+                    fits = false;
+                }
+            }
+        }
+        return fits;
+    }
+
+    /**
+     * gives the vertices prepare() encoded back to the BufferPool without uploading them, no gl calls.
+     */
+    void recycle() {
+        BufferPool.release(aPrepared);
+        aPrepared = null;
+    }
+
+    /**
+     * Delete the buffer from OpenGL's memory, the next upload() creates a new one.
+     */
+    void release() {
+        if (aBuffer[0] > 0) {
+            GlState.deleteBuffers(1, aBuffer, 0);
+            aBuffer[0] = 0;
+        }
+        BufferPool.release(aPrepared);
+        aPrepared = null;
+        aAllRowsDirty = true;
+    }
+}
@@ -0,0 +1,281 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import com.regar007.shapesinopengles20.Utils.WorkerPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to turn scattered data points into a smooth HeightMap surface. Every point is splatted onto
+ *     the grid samples around it with the selected kernel, and the height of a sample becomes the kernel-weighted
+ *     value of the points that reached it:
+ *     KERNEL_NEAREST keeps the closest point within the radius, KERNEL_BILINEAR spreads a point over the 4 samples
+ *     around it, KERNEL_IDW weights every point within the radius by the inverse of its squared distance.
+ * </p>
+ * <p>
+ *     The per-sample sums are kept in TILE_SIZE x TILE_SIZE tiles allocated the first time a point reaches them,
+ *     the tiles are the buckets of the spatial lookup: a point only visits the tiles its footprint overlaps, so a
+ *     batch costs O(points * footprint) whatever the grid size. Batches are incremental, later points refine the
+ *     sums of earlier ones, and the tiles touched by a batch are splatted in parallel on the WorkerPool. Only the
+ *     changed samples are written to the height map, which uploads them with its dirty rows.
+ * </p>
+ * <p>
+ *     Use(Once): aGridder = new HeightMapGridder(aHeightMap, HeightMapGridder.KERNEL_IDW, 3);
+ *     Use(AnyTime): aGridder.add(xs, ys, zs, count); // points {x, y, z} in [0, 1], on the thread that renders.
+ * </p>
+ */
+public class HeightMapGridder {
+
+    public static final int KERNEL_NEAREST = 0;
+    public static final int KERNEL_BILINEAR = 1;
+    public static final int KERNEL_IDW = 2;
+
+    /** Samples along each side of a tile. */
+    static final int TILE_SIZE = 64;
+
+    /** Keeps the weight of a point sitting exactly on a sample finite. */
+    private static final float IDW_EPSILON = 1e-4f;
+
+    /**
+     * sums of the samples of one tile and the points of the batch reaching it.
+     */
+    private static class Tile {
+        final int firstColumn;
+        final int firstRow;
+        final int columns;
+        final int rows;
+        /** sum of the weights, or the squared distance of the nearest point for KERNEL_NEAREST. */
+        final float[] weights;
+        /** sum of the weighted values, or the value of the nearest point for KERNEL_NEAREST. */
+        final float[] values;
+        final boolean[] dirty;
+        final int[] dirtyCells;
+        int dirtyCount;
+        int[] points = new int[16];
+        int pointCount;
+
+        Tile(int firstColumn, int firstRow, int columns, int rows, float initialWeight) {
+            this.firstColumn = firstColumn;
+            this.firstRow = firstRow;
+            this.columns = columns;
+            this.rows = rows;
+            weights = new float[columns * rows];
+            values = new float[columns * rows];
+            dirty = new boolean[columns * rows];
+            dirtyCells = new int[columns * rows];
+            Arrays.fill(weights, initialWeight);
+        }
+
+        void addPoint(int point) {
+            if (pointCount == points.length) {
+                points = Arrays.copyOf(points, pointCount * 2);
+            }
+            points[pointCount++] = point;
+        }
+
+        void markDirty(int local) {
+            if (!dirty[local]) {
+                dirty[local] = true;
+                dirtyCells[dirtyCount++] = local;
+            }
+        }
+    }
+
+    private final HeightMap aMap;
+    private final int aKernel;
+    private final float aRadius;
+    private final int aXLength;
+    private final int aZLength;
+    private final int aTilesX;
+    private final Tile[] aTiles;
+    private final ArrayList<Tile> aBatchTiles = new ArrayList<Tile>();
+
+    /**
+     * @param map height map receiving the gridded heights.
+     * @param kernel KERNEL_NEAREST, KERNEL_BILINEAR or KERNEL_IDW.
+     * @param radius reach of a point in grid samples for KERNEL_NEAREST and KERNEL_IDW, at least 0.5.
+     */
+    public HeightMapGridder(HeightMap map, int kernel, float radius) {
+        if (kernel < KERNEL_NEAREST || kernel > KERNEL_IDW) {
+            throw new IllegalArgumentException("unknown kernel " + kernel);
+        }
+        aMap = map;
+        aKernel = kernel;
+        aRadius = Math.max(0.5f, radius);
+        aXLength = map.getXLength();
+        aZLength = map.getZLength();
+        aTilesX = (aXLength + TILE_SIZE - 1) / TILE_SIZE;
+        aTiles = new Tile[aTilesX * ((aZLength + TILE_SIZE - 1) / TILE_SIZE)];
+    }
+
+    /**
+     * splats a batch of points and writes the samples they changed to the height map. Must be called on the
+     * thread that renders the height map.
+     * @param xs x of every point in [0, 1].
+     * @param ys y of every point in [0, 1], 0 is the bottom and 1 the top of the plot range.
+     * @param zs z of every point in [0, 1].
+     * @param count points to add.
+     */
+    public void add(final float[] xs, final float[] ys, final float[] zs, int count) {
+        final int[] footprint = new int[4];
+        for (int i = 0; i < count; i++) {
+            if (!getFootprint(toGridX(xs[i]), toGridZ(zs[i]), footprint)) {
+                continue;
+            }
+            for (int tz = footprint[2] / TILE_SIZE; tz <= footprint[3] / TILE_SIZE; tz++) {
+                for (int tx = footprint[0] / TILE_SIZE; tx <= footprint[1] / TILE_SIZE; tx++) {
+                    final Tile tile = getTile(tx, tz);
+                    if (tile.pointCount == 0) {
+                        aBatchTiles.add(tile);
+                    }
+                    tile.addPoint(i);
+                }
+            }
+        }
+
+        // tiles own disjoint samples, so they splat in parallel without locking.
+        WorkerPool.parallelFor(aBatchTiles.size(), 4, new WorkerPool.RangeTask() {
+            @Override
+            public void run(int from, int to) {
+                final int[] footprint = new int[4];
+                for (int t = from; t < to; t++) {
+                    final Tile tile = aBatchTiles.get(t);
+                    for (int p = 0; p < tile.pointCount; p++) {
+                        final int point = tile.points[p];
+                        splat(tile, toGridX(xs[point]), toGridZ(zs[point]), ys[point], footprint);
+                    }
+                }
+            }
+        });
+
+        final float minPosition = aMap.getMinPosition();
+        final float positionRange = aMap.getPositionRange();
+        for (Tile tile : aBatchTiles) {
+            for (int d = 0; d < tile.dirtyCount; d++) {
+                final int local = tile.dirtyCells[d];
+                final float value = aKernel == KERNEL_NEAREST ? tile.values[local]
+                        : tile.values[local] / tile.weights[local];
+                final int column = tile.firstColumn + local % tile.columns;
+                final int row = tile.firstRow + local / tile.columns;
+                aMap.setSampleHeight(row * aXLength + column, minPosition + value * positionRange);
+                tile.dirty[local] = false;
+            }
+            tile.dirtyCount = 0;
+            tile.pointCount = 0;
+        }
+        aBatchTiles.clear();
+    }
+
+    /**
+     * forgets every point added so far, the heights already written stay.
+     */
+    public void clear() {
+        Arrays.fill(aTiles, null);
+    }
+
+    /**
+     * @return bytes held by the allocated tiles.
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Tile tile : aTiles) {
+            if (tile != null) {
+                // weights, values, dirty cells and dirty flags.
+                bytes += tile.columns * tile.rows * 13L + tile.points.length * 4L;
+            }
+        }
+        return bytes;
+    }
+
+    private Tile getTile(int tx, int tz) {
+        final int index = tz * aTilesX + tx;
+        if (aTiles[index] == null) {
+            final int firstColumn = tx * TILE_SIZE;
+            final int firstRow = tz * TILE_SIZE;
+            aTiles[index] = new Tile(firstColumn, firstRow, Math.min(TILE_SIZE, aXLength - firstColumn),
+                    Math.min(TILE_SIZE, aZLength - firstRow), aKernel == KERNEL_NEAREST ? Float.MAX_VALUE : 0);
+        }
+        return aTiles[index];
+    }
+
+    /**
+     * continuous grid column of a point, the inverse of the grid x positions of HeightMap.
+     */
+    private float toGridX(float x) {
+        return aXLength - x * (aXLength - 1);
+    }
+
+    private float toGridZ(float z) {
+        return (1f - z) * (aZLength - 1);
+    }
+
+    /**
+     * @param footprint receives the first/last column and first/last row the point reaches, clipped to the grid.
+     * @return false if the point reaches no sample.
+     */
+    private boolean getFootprint(float gx, float gz, int[] footprint) {
+        if (aKernel == KERNEL_BILINEAR) {
+            footprint[0] = (int) Math.floor(gx);
+            footprint[2] = (int) Math.floor(gz);
+            footprint[1] = footprint[0] + 1;
+            footprint[3] = footprint[2] + 1;
+        } else {
+            footprint[0] = (int) Math.ceil(gx - aRadius);
+            footprint[1] = (int) Math.floor(gx + aRadius);
+            footprint[2] = (int) Math.ceil(gz - aRadius);
+            footprint[3] = (int) Math.floor(gz + aRadius);
+        }
+        footprint[0] = Math.max(0, footprint[0]);
+        footprint[1] = Math.min(aXLength - 1, footprint[1]);
+        footprint[2] = Math.max(0, footprint[2]);
+        footprint[3] = Math.min(aZLength - 1, footprint[3]);
+        return footprint[0] <= footprint[1] && footprint[2] <= footprint[3];
+    }
+
+    /**
+     * adds one point to the samples of a tile it reaches.
+     */
+    private void splat(Tile tile, float gx, float gz, float value, int[] footprint) {
+        getFootprint(gx, gz, footprint);
+        final int firstColumn = Math.max(footprint[0], tile.firstColumn);
+        final int lastColumn = Math.min(footprint[1], tile.firstColumn + tile.columns - 1);
+        final int firstRow = Math.max(footprint[2], tile.firstRow);
+        final int lastRow = Math.min(footprint[3], tile.firstRow + tile.rows - 1);
+        final float radius2 = aRadius * aRadius;
+        for (int row = firstRow; row <= lastRow; row++) {
+            final float dz = row - gz;
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final float dx = column - gx;
+                final int local = (row - tile.firstRow) * tile.columns + column - tile.firstColumn;
+                if (aKernel == KERNEL_BILINEAR) {
+                    final float weight = (1 - Math.abs(dx)) * (1 - Math.abs(dz));
+                    if (weight <= 0) {
+                        continue;
+                    }
+                    tile.weights[local] += weight;
+                    tile.values[local] += weight * value;
+                } else {
+                    final float distance2 = dx * dx + dz * dz;
+                    if (distance2 > radius2) {
+                        continue;
+                    }
+                    if (aKernel == KERNEL_NEAREST) {
+                        if (distance2 >= tile.weights[local]) {
+                            continue;
+                        }
+                        tile.weights[local] = distance2;
+                        tile.values[local] = value;
+                    } else {
+                        final float weight = 1f / (distance2 + IDW_EPSILON);
+                        tile.weights[local] += weight;
+                        tile.values[local] += weight * value;
+                    }
+                }
+                tile.markDirty(local);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import java.util.Arrays;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to let one worker bin its part of a HeightMap ingest batch without touching the grid. Every
+ *     push of a sample is an affine update of its cell height, h' = a * h + a * k, and the red of the cell adds up
+ *     the heights it went through. So the updates of a cell are kept as h = m * h0 + b and red += s * h0 + t, which
+ *     compose in order: merging the partial grids of consecutive sample ranges one after the other gives the same
+ *     heights as pushing every sample in sequence.
+ * </p>
+ * <p>
+ *     Cells live in an open addressing table sized for the samples of the worker, so memory follows the batch
+ *     and not the grid.
+ * </p>
+ */
+class HeightMapPartialGrid {
+    private static final int EMPTY = -1;
+    private static final int VALUES_PER_CELL = 4;
+
+    private int[] aCells;
+    private float[] aValues;
+    private int aSize;
+    private int aMask;
+
+    /**
+     * @param expectedCells upper bound of the cells touched, usually the sample count.
+     */
+    HeightMapPartialGrid(int expectedCells) {
+        int capacity = 16;
+        while (capacity < expectedCells * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        aCells = new int[capacity];
+        Arrays.fill(aCells, EMPTY);
+        aValues = new float[capacity * VALUES_PER_CELL];
+        aMask = capacity - 1;
+        aSize = 0;
+    }
+
+    /**
+     * composes one push into the cell, h' = a * (h + k).
+     */
+    void push(int cell, float a, float k) {
+        int slot = find(cell);
+        if (aCells[slot] == EMPTY) {
+            if ((aSize + 1) * 2 > aCells.length) {
+                grow();
+                slot = find(cell);
+            }
+            aCells[slot] = cell;
+            final int v = slot * VALUES_PER_CELL;
+            aValues[v] = 1;
+            aValues[v + 1] = 0;
+            aValues[v + 2] = 0;
+            aValues[v + 3] = 0;
+            aSize++;
+        }
+        final int v = slot * VALUES_PER_CELL;
+        final float m = aValues[v] * a;
+        final float b = (aValues[v + 1] + k) * a;
+        aValues[v] = m;
+        aValues[v + 1] = b;
+        aValues[v + 2] += m;
+        aValues[v + 3] += b;
+    }
+
+    private int find(int cell) {
+        int slot = (cell * 0x9E3779B9) >>> 1 & aMask;
+        while (aCells[slot] != EMPTY && aCells[slot] != cell) {
+            slot = (slot + 1) & aMask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        final int[] cells = aCells;
+        final float[] values = aValues;
+        allocate(cells.length * 2);
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] == EMPTY) {
+                continue;
+            }
+            final int slot = find(cells[i]);
+            aCells[slot] = cells[i];
+            System.arraycopy(values, i * VALUES_PER_CELL, aValues, slot * VALUES_PER_CELL, VALUES_PER_CELL);
+            aSize++;
+        }
+    }
+
+    /**
+     * applies every touched cell to the height map, in no particular order.
+     */
+    void mergeInto(HeightMap map) {
+        for (int i = 0; i < aCells.length; i++) {
+            if (aCells[i] != EMPTY) {
+                final int v = i * VALUES_PER_CELL;
+                map.applyCellUpdate(aCells[i], aValues[v], aValues[v + 1], aValues[v + 2], aValues[v + 3]);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.GlUtil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to hold the heights of a HeightMap in a texture for vertex texture fetch, one RGBA texel per
+ *     grid sample: the height as a 16-bit value in r/g, mapped with heightRange, and the red and green of the
+ *     sample color in b/a. Changed rows go up with one glTexSubImage2D() per run of dirty rows, so a pushed height
+ *     costs 4 bytes per sample of its rows instead of a vertex buffer upload.
+ * </p>
+ */
+class HeightMapTexture {
+    private static final String TAG = "HeightMapTexture";
+
+    private static final int BYTES_PER_TEXEL = 4;
+    private static final int HEIGHT_LEVELS = 0xffff;
+
+    /** Stored heights map back to model space as offset + value * scale, {offset, scale}. */
+    final float[] heightRange = new float[2];
+
+    /** device limits queried by the first isSupported(), -1 until then. */
+    private static volatile int sMaxVertexTextureUnits = -1;
+    private static volatile int sMaxTextureSize = -1;
+
+    private final int aWidth;
+    private final int aHeight;
+    private final int[] aTexture = new int[1];
+    private ByteBuffer aTexels;
+    private final boolean[] aDirtyRows;
+    private boolean aAnyRowDirty;
+    private boolean aAllRowsDirty = true;
+
+    HeightMapTexture(int width, int height) {
+        aWidth = width;
+        aHeight = height;
+        aDirtyRows = new boolean[height];
+    }
+
+    /**
+     * @return true if the device can sample a width x height texture in a vertex shader. Must be called on the GL
+     * thread.
+     */
+    static boolean isSupported(int width, int height) {
+        if (sMaxVertexTextureUnits < 0) {
+            final int[] value = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, value, 0);
+            sMaxTextureSize = value[0];
+            GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS, value, 0);
+            sMaxVertexTextureUnits = value[0];
+        }
+        return isKnownSupported(width, height);
+    }
+
+    /**
+     * same as isSupported() with the limits an earlier isSupported() queried, false if none did. Makes no gl calls.
+     */
+    static boolean isKnownSupported(int width, int height) {
+        if (sMaxVertexTextureUnits <= 0) {
+            Log.i(TAG, sMaxVertexTextureUnits < 0 ? "device limits unknown" : "no vertex texture units");
+            return false;
+        }
+        if (width > sMaxTextureSize || height > sMaxTextureSize) {
+            Log.i(TAG, width + "x" + height + " is above the max texture size " + sMaxTextureSize);
+            return false;
+        }
+        return true;
+    }
+
+    void markRowDirty(int row) {
+        aDirtyRows[row] = true;
+        aAnyRowDirty = true;
+    }
+
+    /**
+     * uploads the dirty rows, or the whole texture when it has none yet or a height left heightRange. Must be
+     * called on the GL thread.
+     */
+    void upload(HeightMap map) {
+        if (aTexture[0] == 0) {
+            GLES20.glGenTextures(1, aTexture, 0);
+            GlUtil.checkGlError("glGenTextures");
+            aAllRowsDirty = true;
+        }
+        if (aAllRowsDirty || !fitsHeightRange(map)) {
+            uploadAll(map);
+            return;
+        }
+        if (!aAnyRowDirty) {
+            return;
+        }
+
+        GlState.bindTexture(aTexture[0]);
+        final int rowBytes = aWidth * BYTES_PER_TEXEL;
+        int row = 0;
+        while (row < aHeight) {
+            if (!aDirtyRows[row]) {
+                row++;
+                continue;
+            }
+            final int first = row;
+            while (row < aHeight && aDirtyRows[row]) {
+                encodeRow(map, row);
+                aDirtyRows[row] = false;
+                row++;
+            }
+            aTexels.position(first * rowBytes);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, first, aWidth, row - first, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, aTexels);
+        }
+        aTexels.position(0);
+        aAnyRowDirty = false;
+    }
+
+    private void uploadAll(HeightMap map) {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int z = 0; z < aHeight; z++) {
+            for (int x = 0; x < aWidth; x++) {
+                min = Math.min(min, map.getHeight(x, z));
+                max = Math.max(max, map.getHeight(x, z));
+            }
+        }
+        HeightMapChunk.expandRange(min, max, heightRange);
+        // {offset, scale}, the scale spans the whole range.
+        heightRange[1] -= heightRange[0];
+
+        if (aTexels == null) {
+            aTexels = BufferPool.acquire(aWidth * aHeight * BYTES_PER_TEXEL);
+        }
+        for (int z = 0; z < aHeight; z++) {
+            encodeRow(map, z);
+            aDirtyRows[z] = false;
+        }
+
+        GlState.bindTexture(aTexture[0]);
+        // vertex texture fetch has no filtering or mipmaps on most devices, sample exact texels.
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        aTexels.position(0);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, aWidth, aHeight, 0, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, aTexels);
+        GlUtil.checkGlError("glTexImage2D");
+
+        aAnyRowDirty = false;
+        aAllRowsDirty = false;
+    }
+
+    private void encodeRow(HeightMap map, int z) {
+        int position = z * aWidth * BYTES_PER_TEXEL;
+        for (int x = 0; x < aWidth; x++) {
+            final float normalized = (map.getHeight(x, z) - heightRange[0]) / heightRange[1];
+            final int value = Math.max(0, Math.min(HEIGHT_LEVELS, Math.round(normalized * HEIGHT_LEVELS)));
+            aTexels.put(position++, (byte) (value >> 8));
+            aTexels.put(position++, (byte) value);
+            aTexels.put(position++, (byte) map.getColor(x, z, 0));
+            aTexels.put(position++, (byte) map.getColor(x, z, 1));
+        }
+    }
+
+    private boolean fitsHeightRange(HeightMap map) {
+        final float max = heightRange[0] + heightRange[1];
+        for (int z = 0; z < aHeight; z++) {
+            if (!aDirtyRows[z]) {
+                continue;
+            }
+            for (int x = 0; x < aWidth; x++) {
+                final float height = map.getHeight(x, z);
+                if (height < heightRange[0] || height > max) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * drops the cpu copy of the texels to free its memory, the next upload() encodes and uploads the whole
+     * texture again.
+     */
+    void dropTexels() {
+        aTexels = null;
+        aAllRowsDirty = true;
+    }
+
+    /**
+     * like dropTexels(), but gives the cpu copy back to the BufferPool, for texels never uploaded.
+     */
+    void recycleTexels() {
+        BufferPool.release(aTexels);
+        dropTexels();
+    }
+
+    /**
+     * @return bytes of the cpu copy of the texels, 0 once dropped.
+     */
+    int getTexelBytes() {
+        return aTexels != null ? aTexels.capacity() : 0;
+    }
+
+    /**
+     * @return bytes of the texture in OpenGL's memory.
+     */
+    int getByteCount() {
+        return aWidth * aHeight * BYTES_PER_TEXEL;
+    }
+
+    /**
+     * @return true once upload() created the texture.
+     */
+    boolean hasTexture() {
+        return aTexture[0] != 0;
+    }
+
+    /**
+     * binds the texture to a texture unit and points the sampler at it.
+     */
+    void bind(int textureUnit, int samplerHandle) {
+        GlState.bindTexture(textureUnit, aTexture[0]);
+        GlState.uniform1i(samplerHandle, textureUnit);
+    }
+
+    /**
+     * Delete the texture from OpenGL's memory, the next upload() creates a new one.
+     */
+    void release() {
+        if (aTexture[0] > 0) {
+            GlState.deleteTextures(1, aTexture, 0);
+            aTexture[0] = 0;
+        }
+        BufferPool.release(aTexels);
+        aTexels = null;
+        aAllRowsDirty = true;
+    }
+}
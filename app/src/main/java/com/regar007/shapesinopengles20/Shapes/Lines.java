@@ -4,35 +4,46 @@ import android.content.Context;
 import android.opengl.GLES20;
 
 import com.regar007.shapesinopengles20.R;
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
+import com.regar007.shapesinopengles20.Utils.UploadScheduler;
+import com.regar007.shapesinopengles20.Utils.VertexBuffer;
+import com.regar007.shapesinopengles20.Utils.VertexData;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
 
 /**
  * Created by regar007.
  * This implementation uses VBOs(vertex buffer objects) to draw lines.
  * i.e., Instantiate once and draw always using just render() function.
  *
+ * Positions and colors are interleaved in a single VBO, see Points.createLayout().
+ *
  * This class takes "Activity", " a Combination of two Points in {x1, y1, z1, x2, y2, z2} order" and "Colors in {r, g, b, a, r, g, b, a} order".
  * Use(Once): aLines = new Lines(activity, new float{-1, -1, -1, 1, 1, 1}, new float{1, 0, 0, 1, 0, 1, 0, 1});
  * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
  * render function takes "MVP Matrix to draw point/points".
  * Use(OnDrawFrame): aPoint.render(mvpMatrix);
+ * Use(OnDrawFrame, scene): aPoint.submit(renderQueue, mvpMatrix); then renderQueue.draw(); to draw it sorted with other shapes.
  */
-public class Lines {
+public class Lines implements RenderQueue.Drawable, Scene.Shape {
     private final String Tag = "Lines";
-    static final int[] glLineBuffer = new int[2];
 
-    private final int aLineProgramHandle;
-    private int BYTES_PER_FLOAT = 4;
+    private final ShaderProgram aLineProgram;
+    private final int aLineMVPMatrixHandle;
+    private final int aPositionScaleHandle;
+    private final int aPositionOffsetHandle;
+    private final VertexFormat aFormat;
+    private final VertexLayout aLayout;
+    /** Vertices with their transform and bounds, submit() skips the lines outside the view. */
+    private final VertexBuffer aVertexBuffer;
+    private final int[] aLineAttributeHandles;
     private int POSITION_DATA_SIZE = 3;
 
-    private int aLinePositionsBufferIdx;
-    private int aLineColorsBufferIdx;
-    private int vertexCount;
 
     /**
      * instantiate the Lines shape object
@@ -41,21 +52,35 @@ public class Lines {
      * @param colors
      */
     public Lines(Context activity, float[] positions, float[] colors) {
+        this(activity, Points.buildVertices(positions, colors));
+    }
+
+    /**
+     * instantiate the Lines shape object from vertices built by Points.buildVertices(). Must be called on the GL
+     * thread.
+     * @param activity
+     * @param data
+     */
+    public Lines(Context activity, VertexData data) {
 
         /** initialize the line program */
-        final String lineVS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.line_vertex_shader);
-        final String lineFS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.line_fragment_shader);
+        aLineProgram = ShaderProgramCache.acquire(activity, R.raw.line_vertex_shader, R.raw.line_fragment_shader,
+                new String[]{"a_Position", "a_Color"});
 
-        final int lineVSHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, lineVS);
-        final int lineFSHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, lineFS);
+        aLineMVPMatrixHandle = aLineProgram.getUniformHandle("u_MVPMatrix");
+        aPositionScaleHandle = aLineProgram.getUniformHandle("u_PositionScale");
+        aPositionOffsetHandle = aLineProgram.getUniformHandle("u_PositionOffset");
 
-        aLineProgramHandle = ShaderHelper.createAndLinkProgram(lineVSHandle, lineFSHandle,
-                new String[]{"a_Position", "a_Color"});
+        aFormat = VertexFormat.getDefault();
+        aLayout = Points.createLayout(aFormat);
+        aLineAttributeHandles = aLayout.resolveHandles(aLineProgram);
 
         // Second, copy these buffers into OpenGL's memory. After, we don't need to keep the client-side buffers around.
-        GLES20.glGenBuffers(glLineBuffer.length, glLineBuffer, 0);
+        aVertexBuffer = new VertexBuffer(this);
 
-        createBuffers(positions, colors);
+        if (data != null) {
+            createBuffers(data);
+        }
     }
 
     /**
@@ -64,37 +89,51 @@ public class Lines {
      * @param lineColors
      */
     public void createBuffers(float[] linePositions, float[] lineColors) {
-        final int lineDataLength = linePositions.length;
-        vertexCount = linePositions.length / POSITION_DATA_SIZE;
-
-        final FloatBuffer lineBuffer = ByteBuffer.allocateDirect(lineDataLength * BYTES_PER_FLOAT)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        lineBuffer.put(linePositions);
-        final FloatBuffer colorBuffer = ByteBuffer.allocateDirect(lineColors.length * BYTES_PER_FLOAT)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-        colorBuffer.put(lineColors);
-
-        lineBuffer.position(0);
-        colorBuffer.position(0);
-
-        FloatBuffer linePositionsBuffer = lineBuffer;
-        FloatBuffer lineColorsBuffers = colorBuffer;
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glLineBuffer[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, linePositionsBuffer.capacity() * BYTES_PER_FLOAT, linePositionsBuffer, GLES20.GL_STATIC_DRAW);
+        createBuffers(Points.buildVertices(linePositions, lineColors));
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glLineBuffer[1]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, lineColorsBuffers.capacity() * BYTES_PER_FLOAT, lineColorsBuffers, GLES20.GL_STATIC_DRAW);
+    /**
+     * uploads vertices built by Points.buildVertices(). Must be called on the GL thread.
+     * @param data recycled, also if it does not fit the budget.
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data) {
+        aVertexBuffer.upload(data);
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    /**
+     * queues vertices built by Points.buildVertices() on an UploadScheduler instead of uploading them in one go. The
+     * Lines keep drawing their current vertices until the new buffer is complete, a newer call cancels the
+     * upload still pending. Must be called on the GL thread.
+     * @param data recycled once uploaded or cancelled.
+     * @param scheduler
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data, UploadScheduler scheduler) {
+        aVertexBuffer.upload(data, scheduler);
+    }
 
-        aLinePositionsBufferIdx = glLineBuffer[0];
-        aLineColorsBufferIdx = glLineBuffer[1];
+    /**
+     * queues the lines for the next RenderQueue.draw(), at the depth of the center of their bounds. Nothing is
+     * queued if the bounds are outside the view.
+     * @param queue
+     * @param aMVPMatrix
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        final float[] bounds = aVertexBuffer.getBounds();
+        if (!queue.getFrustum(aMVPMatrix).intersectsBox(bounds, 0)) {
+            return;
+        }
+        final float depth = RenderQueue.getDepth(aMVPMatrix, (bounds[0] + bounds[3]) / 2,
+                (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2);
+        queue.add(RenderQueue.makeKey(false, aLineProgram.getHandle(), 0, aVertexBuffer.getBuffer(), depth), this, 0,
+                aMVPMatrix);
+    }
 
-        linePositionsBuffer.limit(0);
-        linePositionsBuffer = null;
-        lineColorsBuffers.limit(0);
-        lineColorsBuffers = null;
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix);
     }
 
     /**
@@ -102,30 +141,22 @@ public class Lines {
      * @param aMVPMatrix
      */
     public void render(float[] aMVPMatrix) {
+        // No blending, GlState skips it when already disabled.
+        GlState.setEnabled(GLES20.GL_BLEND, false);
 
         // Set our per-vertex lighting program.
-        GLES20.glUseProgram(aLineProgramHandle);
-
-        int aLineMVPMatrixHandle = GLES20.glGetUniformLocation(aLineProgramHandle, "u_MVPMatrix");
-        int aLinePositionHandle = GLES20.glGetAttribLocation(aLineProgramHandle, "a_Position");
-        int aLineColorHandle = GLES20.glGetAttribLocation(aLineProgramHandle, "a_Color");
+        aLineProgram.use();
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aLineMVPMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aLineMVPMatrixHandle, aMVPMatrix, 0);
+        VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle,
+                aVertexBuffer.getPositionTransform());
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aLinePositionsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aLinePositionHandle);
-        GLES20.glVertexAttribPointer(aLinePositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aLineColorsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aLineColorHandle);
-        GLES20.glVertexAttribPointer(aLineColorHandle, 4, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Clear the currently bound buffer (so future OpenGL calls do not use this buffer).
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        // Pass in the position and color information.
+        aLayout.bind(aVertexBuffer.getBuffer(), aLineAttributeHandles);
 
         // Draw the line.
-        GLES20.glDrawArrays(GLES20.GL_LINES, 0, vertexCount);
+        GLES20.glDrawArrays(GLES20.GL_LINES, 0, aVertexBuffer.getVertexCount());
 
     }
 
@@ -134,8 +165,10 @@ public class Lines {
      */
     public void release() {
         // Delete buffers from OpenGL's memory
-        final int[] buffersToDelete = new int[] { aLineColorsBufferIdx, aLinePositionsBufferIdx };
-        GLES20.glDeleteBuffers(buffersToDelete.length, buffersToDelete, 0);
+        aVertexBuffer.release();
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aLineProgram);
     }
 
 }
@@ -3,12 +3,18 @@ package com.regar007.shapesinopengles20.Shapes;
 import android.content.Context;
 import android.opengl.GLES20;
 import android.util.Log;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
+import com.regar007.shapesinopengles20.Utils.UploadScheduler;
+import com.regar007.shapesinopengles20.Utils.VertexBuffer;
+import com.regar007.shapesinopengles20.Utils.VertexData;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
 import com.regar007.shapesinopengles20.R;
 
 /**
@@ -16,36 +22,37 @@ import com.regar007.shapesinopengles20.R;
  * This implementation make use of VBO's(vertex buffer objects) to draw points. 
  * i.e., Instantiate once and draw always using just render() function.  
  *
+ * Positions and colors are interleaved in a single VBO laid out by createLayout() for the default VertexFormat.
+ *
  * This class takes "Activity", "Points in {x, y, z} order" and "Colors in {r, g, b, a} order".
  * Use(Once): aPoint = new Points(activity, new float{0, 0, 0, 1, 1, 1}, new float{1, 0, 0, 1, 0, 1, 0, 1});
  * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
  * render function takes "MVP Matrix to draw point/points".
  * Use(OnDrawFrame): aPoint.render(mvpMatrix);
+ * Use(OnDrawFrame, scene): aPoint.submit(renderQueue, mvpMatrix); then renderQueue.draw(); to draw it sorted with other shapes.
+ *
+ * buildVertices() makes no gl calls, so the vertices can be built on a worker thread and handed to
+ * new Points(activity, data) or createBuffers(data) on the GL thread.
  */
-public class Points {
+public class Points implements RenderQueue.Drawable, Scene.Shape {
     private final String Tag = "Points";
 
-    /** How many bytes per float. */
-    static final int BYTES_PER_FLOAT = 4;
-
     /** Size of the position data in elements. */
     static final int POSITION_DATA_SIZE = 3;
 
-    static final int[] glPointBuffer = new int[3];
-
     /** Size of the color data in elements. */
-    private int COLOR_DATA_SIZE = 4;
-    
-    private final int aPointProgramHandle;
+    static final int COLOR_DATA_SIZE = 4;
 
-    private int aPointPositionsBufferIdx;
-    private int aPointColorsBufferIdx;
+    private final ShaderProgram aPointProgram;
+    private final VertexFormat aFormat;
+    private final VertexLayout aLayout;
+    /** Vertices with their transform and bounds, submit() skips the points outside the view. */
+    private final VertexBuffer aVertexBuffer;
 
-    private int vertexCount;
-
-    private int aPositionHandle;
-    private int aColorHandle;
-    private int aMVPMatrixHandle;
+    private final int[] aAttributeHandles;
+    private final int aMVPMatrixHandle;
+    private final int aPositionScaleHandle;
+    private final int aPositionOffsetHandle;
 
     /**
      * instantiate the Points shape object
@@ -54,21 +61,61 @@ public class Points {
      * @param colors
      */
     public Points(Context aActivity, float[] positions, float[] colors){
+        this(aActivity, buildVertices(positions, colors));
+    }
+
+    /**
+     * instantiate the Points shape object from vertices built by buildVertices(). Must be called on the GL thread.
+     * @param aActivity
+     * @param data
+     */
+    public Points(Context aActivity, VertexData data){
 
         /** initialize the point program */
-        final String pointVS = RawResourceReader.readTextFileFromRawResource(aActivity, R.raw.point_vertex_shader);
-        final String pointFS = RawResourceReader.readTextFileFromRawResource(aActivity, R.raw.point_fragment_shader);
+        aPointProgram = ShaderProgramCache.acquire(aActivity, R.raw.point_vertex_shader, R.raw.point_fragment_shader,
+                new String[]{"a_Position", "a_Color"});
 
-        final int pointVSHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, pointVS);
-        final int pointFSHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, pointFS);
+        aMVPMatrixHandle = aPointProgram.getUniformHandle("u_MVPMatrix");
+        aPositionScaleHandle = aPointProgram.getUniformHandle("u_PositionScale");
+        aPositionOffsetHandle = aPointProgram.getUniformHandle("u_PositionOffset");
 
-        aPointProgramHandle = ShaderHelper.createAndLinkProgram(pointVSHandle, pointFSHandle,
-                new String[]{"a_Position", "a_Color"});
+        aFormat = VertexFormat.getDefault();
+        aLayout = createLayout(aFormat);
+        aAttributeHandles = aLayout.resolveHandles(aPointProgram);
 
         // Second, copy these buffers into OpenGL's memory. After, we don't need to keep the client-side buffers around.
-        GLES20.glGenBuffers(glPointBuffer.length, glPointBuffer, 0);
+        aVertexBuffer = new VertexBuffer(this);
 
-        createBuffers(positions, colors);
+        if (data != null) {
+            createBuffers(data);
+        }
+    }
+
+    /**
+     * interleaved {x, y, z, r, g, b, a} vertex, also used by Lines and Triangles.
+     * @param format types of the position and color.
+     */
+    static VertexLayout createLayout(VertexFormat format) {
+        return format.addColor(format.addPosition(new VertexLayout.Builder(), POSITION_DATA_SIZE)).build();
+    }
+
+    /**
+     * interleaves positions and colors into {x, y, z, r, g, b, a} vertices of the default VertexFormat, also used
+     * by Lines and Triangles. Makes no gl calls.
+     * @param positions
+     * @param colors
+     * @return
+     */
+    public static VertexData buildVertices(float[] positions, float[] colors) {
+        final VertexFormat format = VertexFormat.getDefault();
+        final VertexData data = new VertexData(createLayout(format), positions.length / POSITION_DATA_SIZE);
+
+        format.computePositionTransform(positions, POSITION_DATA_SIZE, data.positionTransform);
+        VertexFormat.computeBounds(positions, POSITION_DATA_SIZE, data.bounds);
+        data.layout.putAll(data.vertices, 0, data.vertexCount, 0,
+                format.encodePositions(positions, POSITION_DATA_SIZE, data.positionTransform));
+        data.layout.putAll(data.vertices, 0, data.vertexCount, 1, colors);
+        return data;
     }
 
     /**
@@ -77,39 +124,55 @@ public class Points {
      * @param pointColors
      */
     public void createBuffers(float[] pointPositions, float[] pointColors) {
-        // First, copy cube information into client-side floating point buffers.
-        FloatBuffer pointPositionsBuffer;
-        FloatBuffer pointColorsBuffer;
-
         try{
-            vertexCount = pointPositions.length / POSITION_DATA_SIZE;
-
-            pointPositionsBuffer = ByteBuffer.allocateDirect(pointPositions.length * BYTES_PER_FLOAT)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-            pointPositionsBuffer.put(pointPositions).position(0);
-
-            pointColorsBuffer = ByteBuffer.allocateDirect(pointColors.length * BYTES_PER_FLOAT)
-                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
-            pointColorsBuffer.put(pointColors).position(0);
-
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glPointBuffer[0]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, pointPositionsBuffer.capacity() * BYTES_PER_FLOAT, pointPositionsBuffer, GLES20.GL_STATIC_DRAW);
-
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glPointBuffer[1]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, pointColorsBuffer.capacity() * BYTES_PER_FLOAT, pointColorsBuffer, GLES20.GL_STATIC_DRAW);
+            createBuffers(buildVertices(pointPositions, pointColors));
+        }catch (Exception e){
+            Log.d(Tag,"point buffer creation failed:", e);
+        }
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    /**
+     * uploads vertices built by buildVertices(). Must be called on the GL thread.
+     * @param data recycled, also if it does not fit the budget.
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data) {
+        aVertexBuffer.upload(data);
+    }
 
-            aPointPositionsBufferIdx = glPointBuffer[0];
-            aPointColorsBufferIdx = glPointBuffer[1];
+    /**
+     * queues vertices built by buildVertices() on an UploadScheduler instead of uploading them in one go. The
+     * Points keep drawing their current vertices until the new buffer is complete, a newer call cancels the
+     * upload still pending. Must be called on the GL thread.
+     * @param data recycled once uploaded or cancelled.
+     * @param scheduler
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data, UploadScheduler scheduler) {
+        aVertexBuffer.upload(data, scheduler);
+    }
 
-            pointPositionsBuffer.limit(0);
-            pointPositionsBuffer = null;
-            pointColorsBuffer.limit(0);
-            pointColorsBuffer = null;
-        }catch (Exception e){
-            Log.d(Tag,"point buffer creation failed:", e);
+    /**
+     * queues the points for the next RenderQueue.draw(), at the depth of the center of their bounds. Nothing is
+     * queued if the bounds are outside the view.
+     * @param queue
+     * @param aMVPMatrix
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        final float[] bounds = aVertexBuffer.getBounds();
+        if (!queue.getFrustum(aMVPMatrix).intersectsBox(bounds, 0)) {
+            return;
         }
+        final float depth = RenderQueue.getDepth(aMVPMatrix, (bounds[0] + bounds[3]) / 2,
+                (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2);
+        queue.add(RenderQueue.makeKey(false, aPointProgram.getHandle(), 0, aVertexBuffer.getBuffer(), depth), this, 0,
+                aMVPMatrix);
+    }
+
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix);
     }
 
     /**
@@ -117,30 +180,22 @@ public class Points {
      * @param aMVPMatrix
      */
     public void render(float[] aMVPMatrix) {
+        // No blending, GlState skips it when already disabled.
+        GlState.setEnabled(GLES20.GL_BLEND, false);
 
         // Set our per-vertex lighting program.
-        GLES20.glUseProgram(aPointProgramHandle);
-
-        aMVPMatrixHandle = GLES20.glGetUniformLocation(aPointProgramHandle, "u_MVPMatrix");
-        aPositionHandle = GLES20.glGetAttribLocation(aPointProgramHandle, "a_Position");
-        aColorHandle = GLES20.glGetAttribLocation(aPointProgramHandle, "a_Color");
+        aPointProgram.use();
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aMVPMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
+        VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle,
+                aVertexBuffer.getPositionTransform());
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aPointPositionsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        GLES20.glVertexAttribPointer(aPositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aPointColorsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aColorHandle);
-        GLES20.glVertexAttribPointer(aColorHandle, COLOR_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Clear the currently bound buffer (so future OpenGL calls do not use this buffer).
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        // Pass in the position and color information.
+        aLayout.bind(aVertexBuffer.getBuffer(), aAttributeHandles);
 
         // Draw the point.
-        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, vertexCount);
+        GLES20.glDrawArrays(GLES20.GL_POINTS, 0, aVertexBuffer.getVertexCount());
     }
 
     /**
@@ -148,8 +203,10 @@ public class Points {
      */
     public void release() {
         // Delete buffers from OpenGL's memory
-        final int[] buffersToDelete = new int[] { aPointPositionsBufferIdx, aPointColorsBufferIdx };
-        GLES20.glDeleteBuffers(buffersToDelete.length, buffersToDelete, 0);
+        aVertexBuffer.release();
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aPointProgram);
     }
 
 }
@@ -5,13 +5,18 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import com.regar007.shapesinopengles20.R;
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.GlState;
 import com.regar007.shapesinopengles20.Utils.GlUtil;
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
 
 /**
@@ -24,8 +29,9 @@ import java.nio.ShortBuffer;
  * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
  * render function takes "MVP Matrix" and "Texture" to draw quad.
  * Use(OnDrawFrame): aQuad.render(mvpMatrix, texture);
+ * Use(OnDrawFrame, scene): aQuad.submit(renderQueue, mvpMatrix, texture); then renderQueue.draw(); to draw it sorted with other shapes.
  */
-public class Quad {
+public class Quad implements RenderQueue.Drawable, Scene.Shape {
     private final static String TAG = "Quad";
 
     private static final int width = 2;
@@ -34,12 +40,14 @@ public class Quad {
     private int[] qvbo = new int[1];
     private int[] qibo = new int[1];
     private final static int COLOR_DATA_SIZE = 4;
-    private final static int BYTES_PER_FLOAT = 4;
     private final static int BYTES_PER_SHORT = 2;
     private final static int POSITION_DATA_SIZE = 3;
     private final static int UV_DATA_SIZE = 2;
-    private final int STRIDE = (POSITION_DATA_SIZE + COLOR_DATA_SIZE + UV_DATA_SIZE)
-            * BYTES_PER_FLOAT;
+    // a quad is only 4 vertices, so positions stay float and only the color follows the default format.
+    private final VertexLayout aLayout = VertexFormat.getDefault().addColor(new VertexLayout.Builder()
+            .add("a_Position", POSITION_DATA_SIZE, GLES20.GL_FLOAT, false))
+            .add("a_TexCoordinate", UV_DATA_SIZE, GLES20.GL_FLOAT, false)
+            .build();
     private static float[] aQuadVertexData;
     private static short[] aQuadIndexData;
     private float[] pos;
@@ -47,15 +55,15 @@ public class Quad {
     private float QUAD_HEIGHT;
     private float QUAD_DEPTH;
     private QUAD_TYPE aQuadType;
+    /** Texture the quad is drawn with when submitted as a Scene.Shape. */
+    private int aTexture;
 
     int indexCount;
 
-    private int aPositionHandle;
-    private int aColorHandle;
-    private int aQuadProgramHandle;
-    private int aMVPMatrixHandle;
-    private int aTextureCoordinateHandle;
-    private int aTextureUniformHandle;
+    private final int[] aAttributeHandles;
+    private final ShaderProgram aQuadProgram;
+    private final int aMVPMatrixHandle;
+    private final int aTextureUniformHandle;
 
     /**
      * instantiate the Quad shape object
@@ -65,16 +73,13 @@ public class Quad {
      */
     public Quad(Context activity, float[] positions, float[] widths) {
 
-        final String vertexShader = RawResourceReader.readTextFileFromRawResource(activity,
-                R.raw.quad_vertex_shader);
-        final String fragmentShader = RawResourceReader.readTextFileFromRawResource(activity,
-                R.raw.quad_fragment_shader);
+        aQuadProgram = ShaderProgramCache.acquire(activity, R.raw.quad_vertex_shader, R.raw.quad_fragment_shader,
+                new String[] { "a_Position", "a_Color", "a_TexCoordinate" });
 
-        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
-        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
-
-        aQuadProgramHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, new String[] {
-                "a_Position", "a_Color", "a_TexCoordinate" });
+        // Set program handles for quad drawing.
+        aMVPMatrixHandle = aQuadProgram.getUniformHandle("u_MVPMatrix");
+        aTextureUniformHandle = aQuadProgram.getUniformHandle("u_Texture");
+        aAttributeHandles = aLayout.resolveHandles(aQuadProgram);
 
         GLES20.glGenBuffers(1, qvbo, 0);
         GLES20.glGenBuffers(1, qibo, 0);
@@ -198,35 +203,81 @@ public class Quad {
      * creates buffers for Quad shape object
      * @param pos
      * @param widths
+     * @throws IllegalStateException if the buffers do not fit the MemoryAccountant budget.
      */
     public void createBuffers( float[] pos, float[] widths) {
         createVertexData(pos, widths);
 
-        final FloatBuffer heightMapVertexDataBuffer = ByteBuffer
-                .allocateDirect(aQuadVertexData.length * BYTES_PER_FLOAT).order(ByteOrder.nativeOrder())
-                .asFloatBuffer();
-        heightMapVertexDataBuffer.put(aQuadVertexData).position(0);
+        final int vertexCount = aQuadVertexData.length / aLayout.getFloatsPerVertex();
+        final ByteBuffer heightMapVertexDataBuffer = aLayout.allocate(vertexCount);
+        aLayout.putInterleaved(heightMapVertexDataBuffer, 0, vertexCount, aQuadVertexData);
 
-        final ShortBuffer heightMapIndexDataBuffer = ByteBuffer
-                .allocateDirect(aQuadIndexData.length * BYTES_PER_SHORT).order(ByteOrder.nativeOrder())
-                .asShortBuffer();
+        final ByteBuffer indexBytes = BufferPool.acquire(aQuadIndexData.length * BYTES_PER_SHORT);
+        final ShortBuffer heightMapIndexDataBuffer = indexBytes.asShortBuffer();
         heightMapIndexDataBuffer.put(aQuadIndexData).position(0);
 
-        if (qvbo[0] > 0 && qibo[0] > 0) {
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, qvbo[0]);
-            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, heightMapVertexDataBuffer.capacity() * BYTES_PER_FLOAT,
-                    heightMapVertexDataBuffer, GLES20.GL_STATIC_DRAW);
+        try {
+            if (qvbo[0] > 0 && qibo[0] > 0) {
+                MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER,
+                        heightMapVertexDataBuffer.limit() + aQuadIndexData.length * BYTES_PER_SHORT);
+                VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, qvbo[0], heightMapVertexDataBuffer,
+                        GLES20.GL_STATIC_DRAW);
+
+                GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, qibo[0]);
+                GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, aQuadIndexData.length
+                        * BYTES_PER_SHORT, heightMapIndexDataBuffer, GLES20.GL_STATIC_DRAW);
+
+            } else {
+                GlUtil.checkGlError("glGenBuffers");
+            }
+        } finally {
+            // also when the budget refused the buffers.
+            BufferPool.release(heightMapVertexDataBuffer);
+            BufferPool.release(indexBytes);
+        }
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, qibo[0]);
-            GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, heightMapIndexDataBuffer.capacity()
-                    * BYTES_PER_SHORT, heightMapIndexDataBuffer, GLES20.GL_STATIC_DRAW);
+    /**
+     * queues the quad for the next RenderQueue.draw(), at the depth of its center. Nothing is queued if the quad
+     * is outside the view.
+     * @param queue
+     * @param aMVPMatrix
+     * @param texture
+     */
+    public void submit(RenderQueue queue, float[] aMVPMatrix, int texture) {
+        if (!queue.getFrustum(aMVPMatrix).intersectsBox(Math.min(pos[0], pos[0] + QUAD_WIDTH),
+                Math.min(pos[1], pos[1] + QUAD_HEIGHT), Math.min(pos[2], pos[2] + QUAD_DEPTH),
+                Math.max(pos[0], pos[0] + QUAD_WIDTH), Math.max(pos[1], pos[1] + QUAD_HEIGHT),
+                Math.max(pos[2], pos[2] + QUAD_DEPTH))) {
+            return;
+        }
+        final float depth = RenderQueue.getDepth(aMVPMatrix, pos[0] + QUAD_WIDTH / 2, pos[1] + QUAD_HEIGHT / 2,
+                pos[2] + QUAD_DEPTH / 2);
+        queue.add(RenderQueue.makeKey(false, aQuadProgram.getHandle(), texture, qvbo[0], depth), this, texture,
+                aMVPMatrix);
+    }
+
+    /**
+     * @param texture drawn with by submit(queue, matrix), i.e. as an instance of a Scene.
+     */
+    public void setTexture(int texture) {
+        aTexture = texture;
+    }
 
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    /**
+     * like submit(queue, matrix, texture) with the texture of setTexture().
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        submit(queue, aMVPMatrix, aTexture);
+    }
 
-        } else {
-            GlUtil.checkGlError("glGenBuffers");
-        }
+    /**
+     * @param item the texture to draw the quad with.
+     */
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix, item);
     }
 
     /**
@@ -235,52 +286,27 @@ public class Quad {
      * @param texture
      */
     public void render(float[] aMVPMatrix, final int texture) {
-//        // Use culling to remove back faces.
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
+        // Both sides of the quad are visible, no culling and no blending. GlState skips what is already set.
+        GlState.setEnabled(GLES20.GL_CULL_FACE, false);
+        GlState.setEnabled(GLES20.GL_BLEND, false);
 
         // Set our per-vertex lighting program.
-        GLES20.glUseProgram(aQuadProgramHandle);
-
-        // Set program handles for cube drawing.
-        aMVPMatrixHandle = GLES20.glGetUniformLocation(aQuadProgramHandle, "u_MVPMatrix");
-        aPositionHandle = GLES20.glGetAttribLocation(aQuadProgramHandle, "a_Position");
-        aColorHandle = GLES20.glGetAttribLocation(aQuadProgramHandle, "a_Color");
-        aTextureCoordinateHandle = GLES20.glGetAttribLocation(aQuadProgramHandle, "a_TexCoordinate");
-        aTextureUniformHandle = GLES20.glGetUniformLocation(aQuadProgramHandle, "u_Texture");
+        aQuadProgram.use();
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aMVPMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
 
         if (qvbo[0] > 0 && qibo[0] > 0) {
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, qvbo[0]);
-
             // Bind Attributes
-            GLES20.glVertexAttribPointer(aPositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, 0);
-            GLES20.glEnableVertexAttribArray(aPositionHandle);
-
-            GLES20.glVertexAttribPointer(aColorHandle, COLOR_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, (POSITION_DATA_SIZE) * BYTES_PER_FLOAT);
-            GLES20.glEnableVertexAttribArray(aColorHandle);
-
-            GLES20.glVertexAttribPointer(aTextureCoordinateHandle, UV_DATA_SIZE, GLES20.GL_FLOAT, false,
-                    STRIDE, (POSITION_DATA_SIZE + COLOR_DATA_SIZE) * BYTES_PER_FLOAT);
-            GLES20.glEnableVertexAttribArray(aTextureCoordinateHandle);
+            aLayout.bind(qvbo[0], aAttributeHandles);
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
-            GLES20.glUniform1f(aTextureUniformHandle, 0);
+            GlState.bindTexture(0, texture);
+            GlState.uniform1i(aTextureUniformHandle, 0);
 
             // Draw
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, qibo[0]);
+            GlState.bindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, qibo[0]);
             GLES20.glDrawElements(GLES20.GL_TRIANGLE_STRIP, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
-
-            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-            GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
         }
-
-//        // Use culling to remove back faces.
-//        GLES20.glEnable(GLES20.GL_CULL_FACE);
     }
 
     /**
@@ -288,14 +314,17 @@ public class Quad {
      */
     void release() {
         if (qvbo[0] > 0) {
-            GLES20.glDeleteBuffers(qvbo.length, qvbo, 0);
+            GlState.deleteBuffers(qvbo.length, qvbo, 0);
             qvbo[0] = 0;
         }
 
         if (qibo[0] > 0) {
-            GLES20.glDeleteBuffers(qibo.length, qibo, 0);
+            GlState.deleteBuffers(qibo.length, qibo, 0);
             qibo[0] = 0;
         }
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aQuadProgram);
     }
 }
 
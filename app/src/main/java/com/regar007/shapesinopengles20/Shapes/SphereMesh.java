@@ -0,0 +1,296 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import android.opengl.GLES20;
+
+import com.regar007.shapesinopengles20.Utils.BufferPool;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+
+/**
+ * Created by regar007.
+ * Indexed unit sphere (radius 1, centered at the origin) shared by every Spheres object with the same
+ * smoothness. Spheres scale and move it in the vertex shader, so the geometry is built and uploaded
+ * once per tessellation level instead of once per sphere.
+ *
+ * Use(Once): aMesh = SphereMesh.acquire(steps);
+ * Use(Once, when done): SphereMesh.release(aMesh);
+ *
+ * prepare() builds the geometry of a smoothness on any thread ahead of time, acquire() then only uploads it.
+ * Use(Worker): SphereMesh.prepare(steps);
+ *
+ * The class lock only guards the maps. Uploads, deletes and MemoryAccountant calls run outside it, because the
+ * accountant calls trimmers, which acquire() meshes, while holding its own lock.
+ */
+public class SphereMesh {
+    private static final int BYTES_PER_SHORT = 2;
+    static final int POSITION_DATA_SIZE = 3;
+
+
+    /** (steps + 1) * steps vertices have to be addressable with unsigned short indices. */
+    static final int MAX_STEPS = 255;
+
+    private static final HashMap<Integer, SphereMesh> aMeshes = new HashMap<Integer, SphereMesh>();
+    /** meshes built by prepare() and not uploaded yet. */
+    private static final HashMap<Integer, SphereMesh> aPreparedMeshes = new HashMap<Integer, SphereMesh>();
+
+    private final int aSteps;
+    private final VertexLayout aLayout;
+    private final int[] aBuffers = new int[2];
+    private int aVertexCount;
+    private int aIndexCount;
+    private int aRefCount;
+    private ByteBuffer aVertexData;
+    private ByteBuffer aIndexData;
+
+    private SphereMesh(int steps, VertexFormat format) {
+        aSteps = steps;
+        aLayout = createLayout(format);
+    }
+
+    /**
+     * unit sphere vertex, {x, y, z}. Positions already span -1 to 1, so normalized positions need no
+     * scale/offset.
+     * @param format type of the position.
+     */
+    static VertexLayout createLayout(VertexFormat format) {
+        return format.addPosition(new VertexLayout.Builder(), POSITION_DATA_SIZE).build();
+    }
+
+    /**
+     * returns the shared unit sphere for the given smoothness, building it on first use.
+     * Must be called on the GL thread.
+     * @param steps number of latitude and longitude steps.
+     * @return shared mesh, call release() once done with it.
+     */
+    public static SphereMesh acquire(int steps) {
+        final int clampedSteps = Math.max(3, Math.min(steps, MAX_STEPS));
+        SphereMesh mesh;
+        final boolean uploaded;
+        synchronized (SphereMesh.class) {
+            mesh = aMeshes.get(clampedSteps);
+            uploaded = mesh != null;
+            if (!uploaded) {
+                mesh = aPreparedMeshes.remove(clampedSteps);
+                if (mesh == null) {
+                    mesh = new SphereMesh(clampedSteps, VertexFormat.getDefault());
+                }
+                // claims the smoothness, prepare() leaves it alone while this uploads.
+                aMeshes.put(clampedSteps, mesh);
+            }
+            mesh.aRefCount++;
+        }
+        if (!uploaded) {
+            try {
+                if (mesh.aVertexData == null) {
+                    mesh.buildBuffers();
+                }
+                mesh.uploadBuffers();
+            } catch (IllegalStateException e) {
+                // over the memory budget, the built data is dropped with the mesh.
+                synchronized (SphereMesh.class) {
+                    aMeshes.remove(clampedSteps);
+                }
+                mesh.releaseData();
+                MemoryAccountant.forget(mesh);
+                throw e;
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * builds the geometry for the given smoothness so the next acquire() only uploads it. Makes no gl calls and
+     * may be called on any thread.
+     * @param steps number of latitude and longitude steps.
+     */
+    public static void prepare(int steps) {
+        final int clampedSteps = Math.max(3, Math.min(steps, MAX_STEPS));
+        synchronized (SphereMesh.class) {
+            if (aMeshes.containsKey(clampedSteps) || aPreparedMeshes.containsKey(clampedSteps)) {
+                return;
+            }
+        }
+        // build outside the lock, the GL thread may acquire other meshes meanwhile.
+        final SphereMesh mesh = new SphereMesh(clampedSteps, VertexFormat.getDefault());
+        mesh.buildBuffers();
+        final boolean kept;
+        synchronized (SphereMesh.class) {
+            kept = !aMeshes.containsKey(clampedSteps) && !aPreparedMeshes.containsKey(clampedSteps);
+            if (kept) {
+                aPreparedMeshes.put(clampedSteps, mesh);
+            }
+        }
+        if (!kept) {
+            mesh.releaseData();
+            MemoryAccountant.forget(mesh);
+        }
+    }
+
+    /**
+     * drops one reference to the mesh, deleting its buffers once nobody uses it anymore.
+     * @param mesh mesh returned by acquire().
+     */
+    public static void release(SphereMesh mesh) {
+        if (mesh == null) {
+            return;
+        }
+        synchronized (SphereMesh.class) {
+            mesh.aRefCount--;
+            if (mesh.aRefCount > 0 || aMeshes.get(mesh.aSteps) != mesh) {
+                return;
+            }
+            aMeshes.remove(mesh.aSteps);
+        }
+        GlState.deleteBuffers(mesh.aBuffers.length, mesh.aBuffers, 0);
+        MemoryAccountant.forget(mesh);
+    }
+
+    /**
+     * forgets every mesh without deleting it, call this when the EGL context is lost.
+     */
+    public static synchronized void invalidate() {
+        aMeshes.clear();
+    }
+
+    /**
+     * builds unit sphere positions; ring i and column j is vertex (i * longs + j).
+     * @param lats number of latitude steps.
+     * @param longs number of longitude steps.
+     * @return positions in {x, y, z} order.
+     */
+    static float[] buildVertices(int lats, int longs) {
+        final float[] columnCos = new float[longs];
+        final float[] columnSin = new float[longs];
+        for (int j = 0; j < longs; j++) {
+            final double lng = 2 * Math.PI * j / longs;
+            columnCos[j] = (float) Math.cos(lng);
+            columnSin[j] = (float) Math.sin(lng);
+        }
+
+        final float[] vertices = new float[(lats + 1) * longs * POSITION_DATA_SIZE];
+        int offset = 0;
+        for (int i = 0; i <= lats; i++) {
+            final double lat = Math.PI * (-0.5 + (double) i / lats);
+            final float z = (float) Math.sin(lat);
+            final float zr = (float) Math.cos(lat);
+            for (int j = 0; j < longs; j++) {
+                vertices[offset++] = columnCos[j] * zr;
+                vertices[offset++] = columnSin[j] * zr;
+                vertices[offset++] = z;
+            }
+        }
+        return vertices;
+    }
+
+    /**
+     * builds two triangles for every lat/long quad, counter-clockwise seen from outside the sphere so that the back
+     * faces culled by Spheres are the inner ones.
+     * @param lats number of latitude steps.
+     * @param longs number of longitude steps.
+     * @return triangle indices.
+     */
+    static short[] buildIndices(int lats, int longs) {
+        final short[] indices = new short[lats * longs * 6];
+        int offset = 0;
+        for (int i = 0; i < lats; i++) {
+            for (int j = 0; j < longs; j++) {
+                final int nextJ = (j + 1) % longs;
+                final short v00 = (short) (i * longs + j);
+                final short v10 = (short) ((i + 1) * longs + j);
+                final short v01 = (short) (i * longs + nextJ);
+                final short v11 = (short) ((i + 1) * longs + nextJ);
+
+                // the first triangle
+                indices[offset++] = v00;
+                indices[offset++] = v01;
+                indices[offset++] = v10;
+
+                // the second triangle
+                indices[offset++] = v01;
+                indices[offset++] = v11;
+                indices[offset++] = v10;
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * builds the vertex and index data into direct buffers, no gl calls.
+     */
+    private void buildBuffers() {
+        final float[] vertices = buildVertices(aSteps, aSteps);
+        final short[] indices = buildIndices(aSteps, aSteps);
+        aVertexCount = vertices.length / POSITION_DATA_SIZE;
+        aIndexCount = indices.length;
+
+        aVertexData = aLayout.allocate(aVertexCount);
+        aLayout.putInterleaved(aVertexData, 0, aVertexCount, vertices);
+
+        aIndexData = BufferPool.acquire(indices.length * BYTES_PER_SHORT);
+        aIndexData.asShortBuffer().put(indices);
+        MemoryAccountant.register(this, "SphereMesh(" + aSteps + " steps)", null);
+        MemoryAccountant.set(this, MemoryAccountant.DIRECT, getByteCount());
+    }
+
+    /**
+     * copies the built data into OpenGL's memory, after that the client-side buffers are dropped.
+     */
+    private void uploadBuffers() {
+        MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER, getByteCount());
+        GLES20.glGenBuffers(aBuffers.length, aBuffers, 0);
+
+        VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, aBuffers[0], aVertexData, GLES20.GL_STATIC_DRAW);
+
+        VertexLayout.upload(GLES20.GL_ELEMENT_ARRAY_BUFFER, aBuffers[1], aIndexData, GLES20.GL_STATIC_DRAW);
+
+        releaseData();
+        MemoryAccountant.set(this, MemoryAccountant.DIRECT, 0);
+    }
+
+    /**
+     * gives the built data back to the BufferPool.
+     */
+    private void releaseData() {
+        BufferPool.release(aVertexData);
+        BufferPool.release(aIndexData);
+        aVertexData = null;
+        aIndexData = null;
+    }
+
+    /**
+     * @return bytes of the vertex and index data.
+     */
+    private int getByteCount() {
+        return aVertexCount * aLayout.getStride() + aIndexCount * BYTES_PER_SHORT;
+    }
+
+    int getSteps() {
+        return aSteps;
+    }
+
+    VertexLayout getLayout() {
+        return aLayout;
+    }
+
+    int getVertexBuffer() {
+        return aBuffers[0];
+    }
+
+    int getIndexBuffer() {
+        return aBuffers[1];
+    }
+
+    int getVertexCount() {
+        return aVertexCount;
+    }
+
+    int getIndexCount() {
+        return aIndexCount;
+    }
+}
@@ -4,40 +4,47 @@ import android.content.Context;
 import android.opengl.GLES20;
 
 import com.regar007.shapesinopengles20.R;
-import com.regar007.shapesinopengles20.Utils.RawResourceReader;
-import com.regar007.shapesinopengles20.Utils.ShaderHelper;
-
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import com.regar007.shapesinopengles20.Utils.GlState;
+import com.regar007.shapesinopengles20.Utils.MemoryAccountant;
+import com.regar007.shapesinopengles20.Utils.RenderQueue;
+import com.regar007.shapesinopengles20.Utils.Scene;
+import com.regar007.shapesinopengles20.Utils.ShaderProgram;
+import com.regar007.shapesinopengles20.Utils.ShaderProgramCache;
+import com.regar007.shapesinopengles20.Utils.UploadScheduler;
+import com.regar007.shapesinopengles20.Utils.VertexBuffer;
+import com.regar007.shapesinopengles20.Utils.VertexData;
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
 
 /**
  * Created by regar007.
  * This implementation uses VBOs(vertex buffer objects) to draw triangles.
  * i.e., Instantiate once and draw always using just render() function.
  *
+ * Positions and colors are interleaved in a single VBO, see Points.createLayout().
+ *
  * This class takes "Activity", " a Combination of three Points in {x1, y1, z1, x2, y2, z2, x3, y3, z3} order" and "Colors in {r, g, b, a, r, g, b, a, r, g, b, a} order".
  * Use(Once): aTriangles = new Triangles(activity, new float{-1, -1, -1, 1, -1, -1, 1, 1, 1}, new float{1, 0, 0, 1, 1, 1, 0, 1, 0, 1, 1, 0 };
  * Note: Use(OnDrawFrame) call createBuffer() function with changed values.
  * render function takes "MVP Matrix to draw triangle/triangles".
  * Use(OnDrawFrame): aTriangles.render(mvpMatrix);
+ * Use(OnDrawFrame, scene): aTriangles.submit(renderQueue, mvpMatrix); then renderQueue.draw(); to draw it sorted with other shapes.
  */
-public class Triangles {
+public class Triangles implements RenderQueue.Drawable, Scene.Shape {
     private final String Tag = "Triangles";
-    static final int[] glTriangleBuffer = new int[2];
 
-    private final int aTriangleProgramHandle;
+    private final ShaderProgram aTriangleProgram;
 
-    private int BYTES_PER_FLOAT = 4;
     private int POSITION_DATA_SIZE = 3;
-    private int COLOR_POSITION_DATA = 4;
 
-    private int aTrianglePositionsBufferIdx;
-    private int aTriangleColorsBufferIdx;
-    private int vertexCount;
-    private int aMVPMatrixHandle;
-    private int aPositionHandle;
-    private int aColorHandle;
+    private final int aMVPMatrixHandle;
+    private final int aPositionScaleHandle;
+    private final int aPositionOffsetHandle;
+    private final VertexFormat aFormat;
+    private final VertexLayout aLayout;
+    /** Vertices with their transform and bounds, submit() skips the triangles outside the view. */
+    private final VertexBuffer aVertexBuffer;
+    private final int[] aAttributeHandles;
 
     /**
      * instantiate the Triangle shape object
@@ -46,21 +53,36 @@ public class Triangles {
      * @param colors
      */
     public Triangles(Context activity, float[] positions, float[] colors) {
+        this(activity, Points.buildVertices(positions, colors));
+    }
+
+    /**
+     * instantiate the Triangle shape object from vertices built by Points.buildVertices(). Must be called on the GL
+     * thread.
+     * @param activity
+     * @param data
+     */
+    public Triangles(Context activity, VertexData data) {
 
         /** initialize the line program */
-        final String lineVS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.triangle_vertex_shader);
-        final String lineFS = RawResourceReader.readTextFileFromRawResource(activity, R.raw.triangle_fragment_shader);
+        aTriangleProgram = ShaderProgramCache.acquire(activity, R.raw.triangle_vertex_shader,
+                R.raw.triangle_fragment_shader, new String[]{"a_Position", "a_Color"});
 
-        final int lineVSHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, lineVS);
-        final int lineFSHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, lineFS);
+        // Set program handles. These will later be used to pass in values to the program.
+        aMVPMatrixHandle = aTriangleProgram.getUniformHandle("u_MVPMatrix");
+        aPositionScaleHandle = aTriangleProgram.getUniformHandle("u_PositionScale");
+        aPositionOffsetHandle = aTriangleProgram.getUniformHandle("u_PositionOffset");
 
-        aTriangleProgramHandle = ShaderHelper.createAndLinkProgram(lineVSHandle, lineFSHandle,
-                new String[]{"a_Position", "a_Color"});
+        aFormat = VertexFormat.getDefault();
+        aLayout = Points.createLayout(aFormat);
+        aAttributeHandles = aLayout.resolveHandles(aTriangleProgram);
 
         // Second, copy these buffers into OpenGL's memory. After, we don't need to keep the client-side buffers around.
-        GLES20.glGenBuffers(glTriangleBuffer.length, glTriangleBuffer, 0);
+        aVertexBuffer = new VertexBuffer(this);
 
-        createBuffers(positions, colors);
+        if (data != null) {
+            createBuffers(data);
+        }
 
     }
 
@@ -70,36 +92,51 @@ public class Triangles {
      * @param colors
      */
     public void createBuffers(float[] positions, float[] colors) {
-        FloatBuffer aTriangleVerticesBuffer;
-        FloatBuffer aTriangleColorBuffer;
-
-        vertexCount = positions.length/POSITION_DATA_SIZE;
-
-        // Initialize the buffers.
-        aTriangleVerticesBuffer = ByteBuffer.allocateDirect(positions.length * BYTES_PER_FLOAT)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        aTriangleColorBuffer = ByteBuffer.allocateDirect(colors.length * BYTES_PER_FLOAT)
-                .order(ByteOrder.nativeOrder()).asFloatBuffer();
-
-        aTriangleVerticesBuffer.put(positions).position(0);
-        aTriangleColorBuffer.put(colors).position(0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glTriangleBuffer[0]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, aTriangleVerticesBuffer.capacity() * BYTES_PER_FLOAT, aTriangleVerticesBuffer, GLES20.GL_STATIC_DRAW);
+        createBuffers(Points.buildVertices(positions, colors));
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, glTriangleBuffer[1]);
-        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, aTriangleColorBuffer.capacity() * BYTES_PER_FLOAT, aTriangleColorBuffer, GLES20.GL_STATIC_DRAW);
+    /**
+     * uploads vertices built by Points.buildVertices(). Must be called on the GL thread.
+     * @param data recycled, also if it does not fit the budget.
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data) {
+        aVertexBuffer.upload(data);
+    }
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    /**
+     * queues vertices built by Points.buildVertices() on an UploadScheduler instead of uploading them in one go. The
+     * Triangles keep drawing their current vertices until the new buffer is complete, a newer call cancels the
+     * upload still pending. Must be called on the GL thread.
+     * @param data recycled once uploaded or cancelled.
+     * @param scheduler
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget.
+     */
+    public void createBuffers(VertexData data, UploadScheduler scheduler) {
+        aVertexBuffer.upload(data, scheduler);
+    }
 
-        aTrianglePositionsBufferIdx = glTriangleBuffer[0];
-        aTriangleColorsBufferIdx = glTriangleBuffer[1];
+    /**
+     * queues the triangles for the next RenderQueue.draw(), at the depth of the center of their bounds. Nothing is
+     * queued if the bounds are outside the view.
+     * @param queue
+     * @param aMVPMatrix
+     */
+    @Override
+    public void submit(RenderQueue queue, float[] aMVPMatrix) {
+        final float[] bounds = aVertexBuffer.getBounds();
+        if (!queue.getFrustum(aMVPMatrix).intersectsBox(bounds, 0)) {
+            return;
+        }
+        final float depth = RenderQueue.getDepth(aMVPMatrix, (bounds[0] + bounds[3]) / 2,
+                (bounds[1] + bounds[4]) / 2, (bounds[2] + bounds[5]) / 2);
+        queue.add(RenderQueue.makeKey(false, aTriangleProgram.getHandle(), 0, aVertexBuffer.getBuffer(), depth),
+                this, 0, aMVPMatrix);
+    }
 
-        aTriangleVerticesBuffer.limit(0);
-        aTriangleVerticesBuffer = null;
-        aTriangleColorBuffer.limit(0);
-        aTriangleColorBuffer = null;
+    @Override
+    public void draw(float[] mvpMatrix, int item) {
+        render(mvpMatrix);
     }
 
     /**
@@ -107,33 +144,23 @@ public class Triangles {
      * @param aMVPMatrix
      */
     public void render(float[] aMVPMatrix){
-        // disable culling to enable back faces.
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
+        // disable culling to enable back faces, and blending. GlState skips what is already set.
+        GlState.setEnabled(GLES20.GL_CULL_FACE, false);
+        GlState.setEnabled(GLES20.GL_BLEND, false);
 
         // Tell OpenGL to use this program when rendering.
-        GLES20.glUseProgram(aTriangleProgramHandle);
-
-        // Set program handles. These will later be used to pass in values to the program.
-        aMVPMatrixHandle = GLES20.glGetUniformLocation(aTriangleProgramHandle, "u_MVPMatrix");
-        aPositionHandle = GLES20.glGetAttribLocation(aTriangleProgramHandle, "a_Position");
-        aColorHandle = GLES20.glGetAttribLocation(aTriangleProgramHandle, "a_Color");
+        aTriangleProgram.use();
 
         // Pass in the combined matrix.
-        GLES20.glUniformMatrix4fv(aMVPMatrixHandle, 1, false, aMVPMatrix, 0);
+        GlState.uniformMatrix4fv(aMVPMatrixHandle, aMVPMatrix, 0);
+        VertexFormat.setPositionUniforms(aPositionScaleHandle, aPositionOffsetHandle,
+                aVertexBuffer.getPositionTransform());
 
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aTrianglePositionsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aPositionHandle);
-        GLES20.glVertexAttribPointer(aPositionHandle, POSITION_DATA_SIZE, GLES20.GL_FLOAT, false, 0, 0);
-
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, aTriangleColorsBufferIdx);
-        GLES20.glEnableVertexAttribArray(aColorHandle);
-        GLES20.glVertexAttribPointer(aColorHandle, COLOR_POSITION_DATA, GLES20.GL_FLOAT, false, 0, 0);
-
-        // Clear the currently bound buffer (so future OpenGL calls do not use this buffer).
-        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        // Pass in the position and color information.
+        aLayout.bind(aVertexBuffer.getBuffer(), aAttributeHandles);
 
         // Draw the triangle.
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, vertexCount);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, aVertexBuffer.getVertexCount());
 
     }
 
@@ -142,8 +169,10 @@ public class Triangles {
      */
     public void release() {
         // Delete buffers from OpenGL's memory
-        final int[] buffersToDelete = new int[] { aTrianglePositionsBufferIdx, aTriangleColorsBufferIdx};
-        GLES20.glDeleteBuffers(buffersToDelete.length, buffersToDelete, 0);
+        aVertexBuffer.release();
+        MemoryAccountant.forget(this);
+
+        ShaderProgramCache.release(aTriangleProgram);
     }
 
 }
@@ -0,0 +1,131 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import com.regar007.shapesinopengles20.Utils.VertexFormat;
+import com.regar007.shapesinopengles20.Utils.VertexLayout;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to compare the old one-buffer-per-attribute setup of the shapes with the interleaved
+ *     VertexLayout buffers in the FLOAT and COMPACT vertex formats: buffer binds per draw, bytes uploaded and
+ *     the cpu time to fill the client buffers. No gl calls are made, so it can run on any thread.
+ * </p>
+ * <p>
+ *     Use: Log.d(TAG, VertexLayoutBenchmark.run(10000, 20));
+ *     Live gl traffic is counted by VertexLayout.getBufferBindCount() and VertexLayout.getUploadedBytes().
+ * </p>
+ */
+public class VertexLayoutBenchmark {
+
+    /**
+     * numbers for one layout.
+     */
+    public static class Result {
+        public final String name;
+        public final int vertexCount;
+        public final int separateBindsPerDraw;
+        public final int interleavedBindsPerDraw;
+        public final long separateUploadBytes;
+        public final long interleavedUploadBytes;
+        public final long separateFillNanos;
+        public final long interleavedFillNanos;
+
+        Result(String name, int vertexCount, int separateBindsPerDraw, int interleavedBindsPerDraw,
+               long separateUploadBytes, long interleavedUploadBytes, long separateFillNanos,
+               long interleavedFillNanos) {
+            this.name = name;
+            this.vertexCount = vertexCount;
+            this.separateBindsPerDraw = separateBindsPerDraw;
+            this.interleavedBindsPerDraw = interleavedBindsPerDraw;
+            this.separateUploadBytes = separateUploadBytes;
+            this.interleavedUploadBytes = interleavedUploadBytes;
+            this.separateFillNanos = separateFillNanos;
+            this.interleavedFillNanos = interleavedFillNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + vertexCount + " vertices, binds/draw " + separateBindsPerDraw + " -> "
+                    + interleavedBindsPerDraw + ", upload bytes " + separateUploadBytes + " -> "
+                    + interleavedUploadBytes + ", fill us " + separateFillNanos / 1000 + " -> "
+                    + interleavedFillNanos / 1000;
+        }
+    }
+
+    /**
+     * runs the comparison for the layouts of every shape.
+     * @param vertexCount vertices per shape.
+     * @param iterations fills timed per layout, the best one is reported.
+     * @return one line per shape and format.
+     */
+    public static String run(int vertexCount, int iterations) {
+        final StringBuilder report = new StringBuilder();
+        final VertexFormat[] formats = {VertexFormat.FLOAT, VertexFormat.COMPACT};
+        final String[] formatNames = {"float", "compact"};
+        for (int f = 0; f < formats.length; f++) {
+            final VertexFormat format = formats[f];
+            final String suffix = "(" + formatNames[f] + ")";
+            report.append(measure("Points/Lines/Triangles" + suffix, Points.createLayout(format), vertexCount,
+                    iterations)).append('\n');
+            report.append(measure("Cubes" + suffix, Cubes.createLayout(format), vertexCount, iterations))
+                    .append('\n');
+            report.append(measure("Cubes(instanced)" + suffix, Cubes.createInstancedLayout(format), vertexCount,
+                    iterations)).append('\n');
+            report.append(measure("HeightMap" + suffix, HeightMap.createLayout(format), vertexCount, iterations))
+                    .append('\n');
+            report.append(measure("Spheres" + suffix, SphereMesh.createLayout(format), vertexCount, iterations))
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * compares separate float buffers, one per attribute, with one buffer in the given layout.
+     * @param name name printed in the result.
+     * @param layout layout the shape uses now.
+     * @param vertexCount vertices to fill.
+     * @param iterations fills timed, the best one is reported.
+     */
+    public static Result measure(String name, VertexLayout layout, int vertexCount, int iterations) {
+        final int attributeCount = layout.getAttributeCount();
+        final float[][] sources = new float[attributeCount][];
+        long separateBytes = 0;
+        for (int i = 0; i < attributeCount; i++) {
+            final VertexLayout.Attribute attribute = layout.getAttribute(i);
+            sources[i] = new float[vertexCount * attribute.componentCount];
+            for (int j = 0; j < sources[i].length; j++) {
+                sources[i][j] = (j % 7) / 7f;
+            }
+            // the old shapes always uploaded floats.
+            separateBytes += sources[i].length * 4L;
+        }
+
+        long bestSeparate = Long.MAX_VALUE;
+        long bestInterleaved = Long.MAX_VALUE;
+        for (int n = 0; n < Math.max(1, iterations); n++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < attributeCount; i++) {
+                final FloatBuffer buffer = ByteBuffer.allocateDirect(sources[i].length * 4)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+                buffer.put(sources[i]).position(0);
+            }
+            bestSeparate = Math.min(bestSeparate, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            final ByteBuffer buffer = layout.allocate(vertexCount);
+            for (int i = 0; i < attributeCount; i++) {
+                layout.putAll(buffer, 0, vertexCount, i, sources[i]);
+            }
+            bestInterleaved = Math.min(bestInterleaved, System.nanoTime() - start);
+        }
+
+        // separate: one glBindBuffer per attribute plus the unbind, interleaved: one bind plus the unbind.
+        return new Result(name, vertexCount, attributeCount + 1, 2, separateBytes,
+                (long) vertexCount * layout.getStride(), bestSeparate, bestInterleaved);
+    }
+}
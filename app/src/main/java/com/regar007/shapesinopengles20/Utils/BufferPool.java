@@ -0,0 +1,210 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to reuse the direct buffers vertices and indices are staged in before they are copied into
+ *     OpenGL's memory. A direct buffer only gives its native memory back once the garbage collector finalizes it,
+ *     so rebuilding a shape many times a second with fresh buffers lets native memory pile up. acquire() hands out
+ *     buffers whose capacity is rounded up to a power of two size class, release() keeps them for the next
+ *     acquire() of the same class, up to MAX_FREE_PER_CLASS buffers a class and setMaxRetainedBytes() in all.
+ *     Buffers above MAX_POOLED_SIZE are allocated as they are and never kept.
+ * </p>
+ * <p>
+ *     All methods may be called on any thread, e.g. by the workers building shapes. A buffer must not be used
+ *     anymore once released. The retained buffers are reported to the MemoryAccountant, which may clear() them.
+ * </p>
+ * <p>
+ *     Use(AnyTime): final ByteBuffer staging = BufferPool.acquire(bytes);
+ *     Use(AfterUpload): BufferPool.release(staging);
+ * </p>
+ */
+public class BufferPool {
+
+    /** Smallest size class, smaller buffers are rounded up to it. */
+    public static final int MIN_POOLED_SIZE = 1 << 12;
+    /** Largest size class. */
+    public static final int MAX_POOLED_SIZE = 1 << 24;
+    public static final int MAX_FREE_PER_CLASS = 4;
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 32L << 20;
+
+    private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_SHIFT + 1;
+
+    /** Free buffers by size class, guarded by the class lock. */
+    @SuppressWarnings("unchecked")
+    private static final ArrayDeque<ByteBuffer>[] aFree = new ArrayDeque[CLASSES];
+
+    private static long aMaxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+    private static long aRetainedBytes;
+
+    private static long aHits;
+    private static long aMisses;
+    private static long aUnpooled;
+    private static long aDropped;
+
+    /** owner of the retained bytes in the MemoryAccountant. */
+    private static final Object aAccountOwner = new Object();
+    private static final MemoryAccountant.Trimmer aTrimmer = new MemoryAccountant.Trimmer() {
+        @Override
+        public void trim(long bytes) {
+            clear();
+        }
+    };
+
+    static {
+        for (int i = 0; i < CLASSES; i++) {
+            aFree[i] = new ArrayDeque<ByteBuffer>();
+        }
+    }
+
+    private BufferPool() {}     // do not instantiate
+
+    /**
+     * @return a direct buffer in native order with position 0 and limit bytes, its capacity may be larger. Its
+     * content is whatever the previous user left in it.
+     */
+    public static ByteBuffer acquire(int bytes) {
+        if (bytes > MAX_POOLED_SIZE) {
+            synchronized (BufferPool.class) {
+                aUnpooled++;
+            }
+            return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        final int sizeClass = getSizeClass(bytes);
+        ByteBuffer buffer;
+        synchronized (BufferPool.class) {
+            buffer = aFree[sizeClass].poll();
+            if (buffer != null) {
+                aHits++;
+                aRetainedBytes -= buffer.capacity();
+            } else {
+                aMisses++;
+            }
+        }
+        if (buffer == null) {
+            // allocate outside the lock, other threads may release meanwhile.
+            buffer = ByteBuffer.allocateDirect(MIN_POOLED_SIZE << sizeClass).order(ByteOrder.nativeOrder());
+        } else {
+            report();
+        }
+        buffer.clear();
+        buffer.limit(bytes);
+        return buffer;
+    }
+
+    /**
+     * keeps a buffer returned by acquire() for later, or leaves it to the garbage collector if the pool is full.
+     * @param buffer may be null, buffers that did not come from acquire() are ignored.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final int capacity = buffer.capacity();
+        if (capacity < MIN_POOLED_SIZE || capacity > MAX_POOLED_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        final int sizeClass = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        synchronized (BufferPool.class) {
+            if (aFree[sizeClass].size() >= MAX_FREE_PER_CLASS || aRetainedBytes + capacity > aMaxRetainedBytes) {
+                aDropped++;
+                return;
+            }
+            aFree[sizeClass].push(buffer);
+            aRetainedBytes += capacity;
+        }
+        report();
+    }
+
+    /**
+     * drops every retained buffer, their native memory goes once the garbage collector finalizes them.
+     */
+    public static void clear() {
+        synchronized (BufferPool.class) {
+            for (ArrayDeque<ByteBuffer> free : aFree) {
+                free.clear();
+            }
+            aRetainedBytes = 0;
+        }
+        report();
+    }
+
+    /**
+     * @param bytes the most the free buffers may hold together, the buffers above it are dropped.
+     */
+    public static void setMaxRetainedBytes(long bytes) {
+        synchronized (BufferPool.class) {
+            aMaxRetainedBytes = bytes;
+            for (int i = CLASSES - 1; i >= 0 && aRetainedBytes > aMaxRetainedBytes; i--) {
+                while (!aFree[i].isEmpty() && aRetainedBytes > aMaxRetainedBytes) {
+                    aRetainedBytes -= aFree[i].pop().capacity();
+                }
+            }
+        }
+        report();
+    }
+
+    private static int getSizeClass(int bytes) {
+        if (bytes <= MIN_POOLED_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * reports the retained bytes outside the pool lock, the accountant may call back into clear().
+     */
+    private static void report() {
+        MemoryAccountant.register(aAccountOwner, "BufferPool", aTrimmer);
+        MemoryAccountant.set(aAccountOwner, MemoryAccountant.DIRECT, getRetainedBytes());
+    }
+
+    /**
+     * @return bytes held by the free buffers.
+     */
+    public static synchronized long getRetainedBytes() {
+        return aRetainedBytes;
+    }
+
+    /**
+     * @return acquire() calls served with a free buffer.
+     */
+    public static synchronized long getHitCount() {
+        return aHits;
+    }
+
+    /**
+     * @return acquire() calls that allocated a pooled size class.
+     */
+    public static synchronized long getMissCount() {
+        return aMisses;
+    }
+
+    /**
+     * @return acquire() calls above MAX_POOLED_SIZE.
+     */
+    public static synchronized long getUnpooledCount() {
+        return aUnpooled;
+    }
+
+    /**
+     * @return release() calls whose buffer was not kept because the pool was full.
+     */
+    public static synchronized long getDroppedCount() {
+        return aDropped;
+    }
+
+    /**
+     * @return share of the pooled acquire() calls served with a free buffer, 0 before the first one.
+     */
+    public static synchronized float getHitRate() {
+        final long total = aHits + aMisses;
+        return total == 0 ? 0 : aHits / (float) total;
+    }
+}
@@ -0,0 +1,115 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to color a surface by value in the fragment shader: a SIZE x 1 RGBA texture holding a
+ *     gradient through evenly spaced color stops, looked up with texture2D(u_Colormap, vec2(value, 0.5)).
+ *     The stops can be swapped at any time, the texture is re-uploaded by the next bind().
+ * </p>
+ * <p>
+ *     Use(Once): aColormap = Colormap.heat();
+ *     Use(AnyTime): aColormap.setColors(0xff000000, 0xffffffff);
+ *     Use(OnDrawFrame): aColormap.bind(1, samplerHandle);
+ * </p>
+ */
+public class Colormap {
+
+    /** Texels of the gradient. */
+    public static final int SIZE = 256;
+
+    private final ByteBuffer aTexels = ByteBuffer.allocateDirect(SIZE * 4).order(ByteOrder.nativeOrder());
+    private final int[] aTexture = new int[1];
+    private boolean aDirty;
+
+    /**
+     * @param colors ARGB color stops from the lowest to the highest value, at least one.
+     */
+    public Colormap(int... colors) {
+        setColors(colors);
+    }
+
+    public static Colormap grayscale() {
+        return new Colormap(0xff000000, 0xffffffff);
+    }
+
+    /** black, red, yellow, white. */
+    public static Colormap heat() {
+        return new Colormap(0xff000000, 0xffff0000, 0xffffff00, 0xffffffff);
+    }
+
+    /** blue, cyan, green, yellow, red. */
+    public static Colormap rainbow() {
+        return new Colormap(0xff0000ff, 0xff00ffff, 0xff00ff00, 0xffffff00, 0xffff0000);
+    }
+
+    /**
+     * replaces the color stops, may be called from any thread.
+     * @param colors ARGB color stops from the lowest to the highest value, at least one.
+     */
+    public synchronized void setColors(int... colors) {
+        if (colors.length == 0) {
+            throw new IllegalArgumentException("a colormap needs at least one color");
+        }
+        for (int i = 0; i < SIZE; i++) {
+            final float position = i / (float) (SIZE - 1) * (colors.length - 1);
+            final int stop = Math.min((int) position, colors.length - 1);
+            final int next = Math.min(stop + 1, colors.length - 1);
+            final float t = position - stop;
+            // texels are r, g, b, a while the stops are a, r, g, b.
+            for (int c = 0; c < 4; c++) {
+                final int shift = c == 3 ? 24 : 16 - c * 8;
+                final int from = (colors[stop] >>> shift) & 0xff;
+                final int to = (colors[next] >>> shift) & 0xff;
+                aTexels.put(i * 4 + c, (byte) Math.round(from + (to - from) * t));
+            }
+        }
+        aDirty = true;
+    }
+
+    /**
+     * binds the colormap to a texture unit and points the sampler at it, uploading the texture first if the
+     * colors changed. Must be called on the GL thread.
+     */
+    public synchronized void bind(int textureUnit, int samplerHandle) {
+        if (aTexture[0] == 0) {
+            GLES20.glGenTextures(1, aTexture, 0);
+            GlState.bindTexture(textureUnit, aTexture[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            // values outside the range take the first or last color.
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            aTexels.position(0);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, SIZE, 1, 0, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, aTexels);
+            GlUtil.checkGlError("glTexImage2D");
+            aDirty = false;
+        } else {
+            GlState.bindTexture(textureUnit, aTexture[0]);
+            if (aDirty) {
+                aTexels.position(0);
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, SIZE, 1, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, aTexels);
+                aDirty = false;
+            }
+        }
+        GlState.uniform1i(samplerHandle, textureUnit);
+    }
+
+    /**
+     * Delete the texture from OpenGL's memory, the next bind() creates a new one.
+     */
+    public synchronized void release() {
+        if (aTexture[0] > 0) {
+            GlState.deleteTextures(1, aTexture, 0);
+            aTexture[0] = 0;
+        }
+    }
+}
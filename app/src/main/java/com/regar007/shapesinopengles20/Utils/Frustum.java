@@ -0,0 +1,114 @@
+package com.regar007.shapesinopengles20.Utils;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to skip drawing what the camera cannot see. set() extracts the six clip planes from a model
+ *     view projection matrix, in the model space of that matrix, so bounds are tested as the shapes store them:
+ *     axis aligned boxes in {minX, minY, minZ, maxX, maxY, maxZ} order, or spheres. The tests are conservative, a
+ *     box near a corner of the frustum may pass without being visible, but nothing visible is ever culled.
+ * </p>
+ * <p>
+ *     Every test is counted, getCulledCount() and getVisibleCount() add up the tests of all frustums.
+ * </p>
+ * <p>
+ *     Use(OnDrawFrame): aFrustum.set(mvpMatrix);
+ *                       if (aFrustum.intersectsBox(bounds, 0)) { draw(); }
+ * </p>
+ */
+public class Frustum {
+
+    private static final int PLANES = 6;
+
+    /** Planes {a, b, c, d} with the normals pointing inside, a point is inside a plane if ax + by + cz + d >= 0. */
+    private final float[] aPlanes = new float[PLANES * 4];
+
+    private static long aCulled;
+    private static long aVisible;
+
+    /**
+     * extracts the planes of a column major matrix, as made by android.opengl.Matrix.
+     */
+    public void set(float[] mvpMatrix) {
+        for (int i = 0; i < PLANES; i++) {
+            // left, right, bottom, top, near and far are the w row plus or minus the x, y and z rows.
+            final int row = i / 2;
+            final float sign = i % 2 == 0 ? 1 : -1;
+            float a = mvpMatrix[3] + sign * mvpMatrix[row];
+            float b = mvpMatrix[7] + sign * mvpMatrix[4 + row];
+            float c = mvpMatrix[11] + sign * mvpMatrix[8 + row];
+            float d = mvpMatrix[15] + sign * mvpMatrix[12 + row];
+            final float length = (float) Math.sqrt(a * a + b * b + c * c);
+            if (length > 0) {
+                a /= length;
+                b /= length;
+                c /= length;
+                d /= length;
+            }
+            aPlanes[i * 4] = a;
+            aPlanes[i * 4 + 1] = b;
+            aPlanes[i * 4 + 2] = c;
+            aPlanes[i * 4 + 3] = d;
+        }
+    }
+
+    /**
+     * @param bounds {minX, minY, minZ, maxX, maxY, maxZ} starting at offset.
+     * @return false if the box lies completely outside one of the planes.
+     */
+    public boolean intersectsBox(float[] bounds, int offset) {
+        return intersectsBox(bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3],
+                bounds[offset + 4], bounds[offset + 5]);
+    }
+
+    public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < PLANES * 4; i += 4) {
+            final float a = aPlanes[i];
+            final float b = aPlanes[i + 1];
+            final float c = aPlanes[i + 2];
+            // the corner furthest along the plane normal.
+            final float distance = a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY)
+                    + c * (c >= 0 ? maxZ : minZ) + aPlanes[i + 3];
+            if (distance < 0) {
+                aCulled++;
+                return false;
+            }
+        }
+        aVisible++;
+        return true;
+    }
+
+    /**
+     * @return false if the sphere lies completely outside one of the planes.
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int i = 0; i < PLANES * 4; i += 4) {
+            if (aPlanes[i] * x + aPlanes[i + 1] * y + aPlanes[i + 2] * z + aPlanes[i + 3] < -radius) {
+                aCulled++;
+                return false;
+            }
+        }
+        aVisible++;
+        return true;
+    }
+
+    /**
+     * @return tests that found the bounds outside, i.e. draws skipped, since the last resetStats().
+     */
+    public static long getCulledCount() {
+        return aCulled;
+    }
+
+    /**
+     * @return tests that found the bounds at least partly inside since the last resetStats().
+     */
+    public static long getVisibleCount() {
+        return aVisible;
+    }
+
+    public static void resetStats() {
+        aCulled = 0;
+        aVisible = 0;
+    }
+}
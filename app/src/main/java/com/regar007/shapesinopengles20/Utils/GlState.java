@@ -0,0 +1,396 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to keep redundant state changes away from the driver. It shadows the GL state the shapes
+ *     change while drawing: the program in use, the array and element buffer bindings, the active texture unit and
+ *     the 2D texture of every unit, the enabled vertex attribute arrays and their pointers, capabilities such as
+ *     GL_CULL_FACE and GL_BLEND, the blend function, and the uniform values of every ShaderProgram. A call that
+ *     would not change anything is skipped, so shapes can set everything they need before each draw without
+ *     unbinding afterwards. getIssuedCount() and getSkippedCount() show what that saves.
+ * </p>
+ * <p>
+ *     The shadow is only right as long as every change of this state goes through here, including deleting buffers
+ *     and textures, which unbinds them. Must be used on the GL thread only.
+ * </p>
+ * <p>
+ *     Use(OnSurfaceCreated): GlState.invalidate();
+ *     Use(OnDrawFrame): GlState.setEnabled(GLES20.GL_CULL_FACE, false); GlState.bindBuffer(target, buffer);
+ * </p>
+ */
+public class GlState {
+
+    /** Texture units and vertex attributes shadowed, the rest go straight to the driver. */
+    private static final int MAX_TEXTURE_UNITS = 16;
+    private static final int MAX_ATTRIBUTES = 16;
+
+    private static final int[] CAPABILITIES = {GLES20.GL_BLEND, GLES20.GL_CULL_FACE, GLES20.GL_DEPTH_TEST,
+            GLES20.GL_DITHER, GLES20.GL_POLYGON_OFFSET_FILL, GLES20.GL_SCISSOR_TEST, GLES20.GL_STENCIL_TEST};
+
+    private static ShaderProgram aProgram;
+    private static int aArrayBuffer;
+    private static int aElementBuffer;
+    private static int aActiveUnit;
+    private static final int[] aTextures = new int[MAX_TEXTURE_UNITS];
+    private static int aEnabledAttributes;
+    /** Last glVertexAttribPointer() of every attribute: buffer, size, type, normalized, stride and offset. */
+    private static final int[][] aAttributePointers = new int[MAX_ATTRIBUTES][6];
+    private static final boolean[] aCapabilities = new boolean[CAPABILITIES.length];
+    private static int aBlendSource;
+    private static int aBlendDestination;
+
+    private static final float[] aUniformScratch = new float[4];
+
+    private static long aIssued;
+    private static long aSkipped;
+
+    static {
+        invalidate();
+    }
+
+    private GlState() {}     // do not instantiate
+
+    /**
+     * resets the shadow to the state of a new context, call this whenever the EGL context was created.
+     */
+    public static void invalidate() {
+        aProgram = null;
+        aArrayBuffer = 0;
+        aElementBuffer = 0;
+        aActiveUnit = 0;
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            aTextures[i] = 0;
+        }
+        aEnabledAttributes = 0;
+        for (int[] pointer : aAttributePointers) {
+            pointer[0] = -1;
+        }
+        for (int i = 0; i < CAPABILITIES.length; i++) {
+            // GL_DITHER is the only capability enabled by default.
+            aCapabilities[i] = CAPABILITIES[i] == GLES20.GL_DITHER;
+        }
+        aBlendSource = GLES20.GL_ONE;
+        aBlendDestination = GLES20.GL_ZERO;
+    }
+
+    /**
+     * glUseProgram() unless the program is already in use.
+     */
+    public static void useProgram(ShaderProgram program) {
+        if (program == aProgram) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glUseProgram(program.getHandle());
+        aProgram = program;
+        aIssued++;
+    }
+
+    /**
+     * forgets a program about to be deleted, a new one may get its handle.
+     */
+    static void onProgramDeleted(ShaderProgram program) {
+        if (program == aProgram) {
+            aProgram = null;
+        }
+    }
+
+    /**
+     * glBindBuffer() unless the buffer is already bound to the target.
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     */
+    public static void bindBuffer(int target, int buffer) {
+        if (target == GLES20.GL_ARRAY_BUFFER ? aArrayBuffer == buffer : aElementBuffer == buffer) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glBindBuffer(target, buffer);
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            aArrayBuffer = buffer;
+        } else {
+            aElementBuffer = buffer;
+        }
+        aIssued++;
+    }
+
+    /**
+     * glDeleteBuffers(), forgetting the bindings and attribute pointers of the deleted buffers.
+     */
+    public static void deleteBuffers(int n, int[] buffers, int offset) {
+        for (int i = offset; i < offset + n; i++) {
+            final int buffer = buffers[i];
+            if (buffer == 0) {
+                continue;
+            }
+            if (aArrayBuffer == buffer) {
+                aArrayBuffer = 0;
+            }
+            if (aElementBuffer == buffer) {
+                aElementBuffer = 0;
+            }
+            for (int[] pointer : aAttributePointers) {
+                if (pointer[0] == buffer) {
+                    pointer[0] = -1;
+                }
+            }
+        }
+        GLES20.glDeleteBuffers(n, buffers, offset);
+        aIssued++;
+    }
+
+    /**
+     * enables the vertex attribute arrays in the mask and disables the other ones, issuing only what changes.
+     * @param mask bit i set to enable attribute i, attributes from MAX_ATTRIBUTES on are ignored.
+     */
+    public static void setEnabledAttributes(int mask) {
+        mask &= (1 << MAX_ATTRIBUTES) - 1;
+        int changed = aEnabledAttributes ^ mask;
+        if (changed == 0) {
+            aSkipped++;
+            return;
+        }
+        while (changed != 0) {
+            final int index = Integer.numberOfTrailingZeros(changed);
+            if ((mask & (1 << index)) != 0) {
+                GLES20.glEnableVertexAttribArray(index);
+            } else {
+                GLES20.glDisableVertexAttribArray(index);
+            }
+            changed &= changed - 1;
+            aIssued++;
+        }
+        aEnabledAttributes = mask;
+    }
+
+    /**
+     * glVertexAttribPointer() into the bound array buffer, unless the attribute already points there.
+     */
+    public static void vertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                                           int offset) {
+        if (index >= MAX_ATTRIBUTES) {
+            GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+            aIssued++;
+            return;
+        }
+        final int[] pointer = aAttributePointers[index];
+        final int normalizedValue = normalized ? 1 : 0;
+        if (pointer[0] == aArrayBuffer && pointer[1] == size && pointer[2] == type && pointer[3] == normalizedValue
+                && pointer[4] == stride && pointer[5] == offset) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+        pointer[0] = aArrayBuffer;
+        pointer[1] = size;
+        pointer[2] = type;
+        pointer[3] = normalizedValue;
+        pointer[4] = stride;
+        pointer[5] = offset;
+        aIssued++;
+    }
+
+    /**
+     * glActiveTexture() unless the unit is already active.
+     * @param unit texture unit index, 0 for GL_TEXTURE0.
+     */
+    public static void activeTexture(int unit) {
+        if (unit == aActiveUnit) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        aActiveUnit = unit;
+        aIssued++;
+    }
+
+    /**
+     * binds a 2D texture to the active unit unless it is already bound there.
+     */
+    public static void bindTexture(int texture) {
+        if (aActiveUnit < MAX_TEXTURE_UNITS && aTextures[aActiveUnit] == texture) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        if (aActiveUnit < MAX_TEXTURE_UNITS) {
+            aTextures[aActiveUnit] = texture;
+        }
+        aIssued++;
+    }
+
+    /**
+     * binds a 2D texture to a unit, making it the active one.
+     */
+    public static void bindTexture(int unit, int texture) {
+        activeTexture(unit);
+        bindTexture(texture);
+    }
+
+    /**
+     * glDeleteTextures(), forgetting the units the deleted textures were bound to.
+     */
+    public static void deleteTextures(int n, int[] textures, int offset) {
+        for (int i = offset; i < offset + n; i++) {
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                if (textures[i] != 0 && aTextures[unit] == textures[i]) {
+                    aTextures[unit] = 0;
+                }
+            }
+        }
+        GLES20.glDeleteTextures(n, textures, offset);
+        aIssued++;
+    }
+
+    /**
+     * glEnable() or glDisable() unless the capability already is in that state.
+     */
+    public static void setEnabled(int capability, boolean enabled) {
+        int i = 0;
+        while (i < CAPABILITIES.length && CAPABILITIES[i] != capability) {
+            i++;
+        }
+        if (i < CAPABILITIES.length) {
+            if (aCapabilities[i] == enabled) {
+                aSkipped++;
+                return;
+            }
+            aCapabilities[i] = enabled;
+        }
+        if (enabled) {
+            GLES20.glEnable(capability);
+        } else {
+            GLES20.glDisable(capability);
+        }
+        aIssued++;
+    }
+
+    /**
+     * glBlendFunc() unless the factors are already set.
+     */
+    public static void blendFunc(int source, int destination) {
+        if (source == aBlendSource && destination == aBlendDestination) {
+            aSkipped++;
+            return;
+        }
+        GLES20.glBlendFunc(source, destination);
+        aBlendSource = source;
+        aBlendDestination = destination;
+        aIssued++;
+    }
+
+    /**
+     * glUniform1f() on the program in use, unless the uniform already has the value.
+     */
+    public static void uniform1f(int location, float x) {
+        aUniformScratch[0] = x;
+        if (isUniformCurrent(location, aUniformScratch, 0, 1)) {
+            return;
+        }
+        GLES20.glUniform1f(location, x);
+    }
+
+    /**
+     * glUniform1i() on the program in use, e.g. for samplers, unless the uniform already has the value.
+     */
+    public static void uniform1i(int location, int x) {
+        aUniformScratch[0] = x;
+        if (isUniformCurrent(location, aUniformScratch, 0, 1)) {
+            return;
+        }
+        GLES20.glUniform1i(location, x);
+    }
+
+    public static void uniform2f(int location, float x, float y) {
+        aUniformScratch[0] = x;
+        aUniformScratch[1] = y;
+        if (isUniformCurrent(location, aUniformScratch, 0, 2)) {
+            return;
+        }
+        GLES20.glUniform2f(location, x, y);
+    }
+
+    public static void uniform3f(int location, float x, float y, float z) {
+        aUniformScratch[0] = x;
+        aUniformScratch[1] = y;
+        aUniformScratch[2] = z;
+        if (isUniformCurrent(location, aUniformScratch, 0, 3)) {
+            return;
+        }
+        GLES20.glUniform3f(location, x, y, z);
+    }
+
+    public static void uniform4f(int location, float x, float y, float z, float w) {
+        aUniformScratch[0] = x;
+        aUniformScratch[1] = y;
+        aUniformScratch[2] = z;
+        aUniformScratch[3] = w;
+        if (isUniformCurrent(location, aUniformScratch, 0, 4)) {
+            return;
+        }
+        GLES20.glUniform4f(location, x, y, z, w);
+    }
+
+    /**
+     * glUniformMatrix4fv() of one matrix on the program in use, unless the uniform already has the value.
+     */
+    public static void uniformMatrix4fv(int location, float[] matrix, int offset) {
+        if (isUniformCurrent(location, matrix, offset, 16)) {
+            return;
+        }
+        GLES20.glUniformMatrix4fv(location, 1, false, matrix, offset);
+    }
+
+    /**
+     * glUniform4fv() of count vec4s on the program in use, always issued: large arrays such as per batch instance
+     * data hardly ever repeat, so they are not stored. The values stored for the locations they cover are dropped
+     * instead, so a later uniform4f() there is not skipped by mistake.
+     */
+    public static void uniform4fv(int location, int count, float[] values, int offset) {
+        if (location < 0) {
+            aSkipped++;
+            return;
+        }
+        if (aProgram != null) {
+            aProgram.forgetUniforms(location, count);
+        }
+        aIssued++;
+        GLES20.glUniform4fv(location, count, values, offset);
+    }
+
+    /**
+     * counts the uniform call and stores its values in the program in use.
+     * @return true if the call can be skipped.
+     */
+    private static boolean isUniformCurrent(int location, float[] values, int offset, int count) {
+        // an inactive uniform ignores every value.
+        if (location < 0 || (aProgram != null && !aProgram.updateUniform(location, values, offset, count))) {
+            aSkipped++;
+            return true;
+        }
+        aIssued++;
+        return false;
+    }
+
+    /**
+     * @return calls that went to the driver since the last resetStats().
+     */
+    public static long getIssuedCount() {
+        return aIssued;
+    }
+
+    /**
+     * @return calls skipped because the state was already right since the last resetStats().
+     */
+    public static long getSkippedCount() {
+        return aSkipped;
+    }
+
+    public static void resetStats() {
+        aIssued = 0;
+        aSkipped = 0;
+    }
+}
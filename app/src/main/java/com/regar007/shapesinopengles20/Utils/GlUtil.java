@@ -129,7 +129,7 @@ public class GlUtil {
         GlUtil.checkGlError("glGenTextures");
 
         // Bind the texture handle to the 2D texture target.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle);
+        GlState.bindTexture(textureHandle);
 
         // Configure min/mag filtering, i.e. what scaling method do we use if what we're rendering
         // is smaller or larger than the source image.
@@ -0,0 +1,293 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to keep the native memory of the shapes under a budget instead of hoping the garbage collector
+ *     catches up. Every shape object reports what it holds in three kinds: direct buffers it keeps on the cpu side,
+ *     GPU buffer objects and GPU textures. reserve() is called before a shape allocates: when the new bytes would
+ *     not fit under setBudget(), the owners that registered a Trimmer are asked to give memory back, least recently
+ *     allocating first, e.g. by dropping a cpu copy they can rebuild or by lowering their tessellation. If that is
+ *     still not enough the allocation is refused with an IllegalStateException carrying getBreakdown().
+ * </p>
+ * <p>
+ *     Owners are compared by identity. reserve() and trim() may call trimmers making gl calls, so they must run on
+ *     the GL thread; set() and forget() may be called on any thread.
+ * </p>
+ * <p>
+ *     Use(Once): MemoryAccountant.register(this, "HeightMap", trimmer);
+ *     Use(BeforeAllocating): MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER, bytes);
+ *     Use(OnRelease): MemoryAccountant.forget(this);
+ *     Use(AnyTime): Log.i(TAG, MemoryAccountant.getBreakdown());
+ * </p>
+ */
+public class MemoryAccountant {
+
+    /** Direct buffers kept on the cpu side. */
+    public static final int DIRECT = 0;
+    /** Vertex and index buffer objects. */
+    public static final int GPU_BUFFER = 1;
+    /** Texture objects. */
+    public static final int GPU_TEXTURE = 2;
+
+    private static final int KINDS = 3;
+    private static final String[] KIND_NAMES = {"direct", "buffers", "textures"};
+
+    public static final long DEFAULT_BUDGET = 128L << 20;
+
+    /**
+     * gives memory back when another allocation needs room, called on the GL thread. It reports what it freed
+     * with set() or reserve(), which never trim again while a trimmer runs.
+     */
+    public interface Trimmer {
+        /**
+         * @param bytes bytes still missing, free at least that much if possible.
+         */
+        void trim(long bytes);
+    }
+
+    private static class Entry {
+        String name;
+        Trimmer trimmer;
+        final long[] bytes = new long[KINDS];
+
+        long getTotal() {
+            return bytes[DIRECT] + bytes[GPU_BUFFER] + bytes[GPU_TEXTURE];
+        }
+    }
+
+    /** Entries in access order, the least recently allocating owner first. */
+    private static final LinkedHashMap<Object, Entry> aEntries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+    private static final long[] aTotals = new long[KINDS];
+
+    private static long aBudget = DEFAULT_BUDGET;
+    private static boolean aTrimming;
+    private static int aNextId;
+
+    private static long aTrimCount;
+    private static long aTrimmedBytes;
+    private static long aDeniedCount;
+
+    private MemoryAccountant() {}     // do not instantiate
+
+    /**
+     * @param bytes the most the shapes may hold in all kinds together. Lowering it does not trim right away, the
+     *              next reserve() does.
+     */
+    public static synchronized void setBudget(long bytes) {
+        aBudget = bytes;
+    }
+
+    public static synchronized long getBudget() {
+        return aBudget;
+    }
+
+    /**
+     * names an owner in getBreakdown() and sets how it gives memory back. Optional, owners are otherwise named
+     * after their class.
+     * @param trimmer may be null if the owner cannot free anything while alive.
+     */
+    public static synchronized void register(Object owner, String name, Trimmer trimmer) {
+        final Entry entry = getEntry(owner);
+        entry.name = name;
+        entry.trimmer = trimmer;
+    }
+
+    /**
+     * records that the owner is about to hold the given bytes of a kind, instead of what it held before. Trims
+     * other owners first if that would go over the budget. Must be called on the GL thread.
+     * @throws IllegalStateException if the bytes do not fit even after trimming, nothing is recorded then.
+     */
+    public static synchronized void reserve(Object owner, int kind, long bytes) {
+        final Entry entry = getEntry(owner);
+        // shrinking always fits, and trimmers report what they reallocate without trimming again.
+        if (!aTrimming && bytes > entry.bytes[kind]) {
+            final long excess = getTotalBytes() - entry.bytes[kind] + bytes - aBudget;
+            if (excess > 0) {
+                trim(excess, entry);
+            }
+            if (getTotalBytes() - entry.bytes[kind] + bytes > aBudget) {
+                aDeniedCount++;
+                if (entry.getTotal() == 0 && entry.trimmer == null) {
+                    aEntries.remove(owner);
+                }
+                throw new IllegalStateException(entry.name + " needs " + formatBytes(bytes) + " of "
+                        + KIND_NAMES[kind] + " over the budget of " + formatBytes(aBudget) + "\n" + getBreakdown());
+            }
+        }
+        setBytes(entry, kind, bytes);
+    }
+
+    /**
+     * records what the owner holds of a kind now, without any budget check, e.g. after freeing part of it.
+     */
+    public static synchronized void set(Object owner, int kind, long bytes) {
+        setBytes(getEntry(owner), kind, bytes);
+    }
+
+    /**
+     * drops everything recorded for the owner, call it once its memory is freed.
+     */
+    public static synchronized void forget(Object owner) {
+        final Entry entry = aEntries.remove(owner);
+        if (entry != null) {
+            for (int kind = 0; kind < KINDS; kind++) {
+                aTotals[kind] -= entry.bytes[kind];
+            }
+        }
+    }
+
+    /**
+     * forgets every owner, call this when the EGL context is lost and the shapes are created again.
+     */
+    public static synchronized void invalidate() {
+        aEntries.clear();
+        for (int kind = 0; kind < KINDS; kind++) {
+            aTotals[kind] = 0;
+        }
+    }
+
+    /**
+     * asks the trimmers for memory without anything to allocate, e.g. after an OutOfMemoryError. Must be called
+     * on the GL thread.
+     * @param bytes bytes to free, Long.MAX_VALUE for everything the trimmers can give back.
+     * @return bytes freed.
+     */
+    public static synchronized long trim(long bytes) {
+        if (aTrimming) {
+            return 0;
+        }
+        final long before = getTotalBytes();
+        trim(bytes, null);
+        return before - getTotalBytes();
+    }
+
+    private static void trim(long bytes, Entry requester) {
+        // a copy, reporting freed bytes reorders the entries.
+        final ArrayList<Entry> entries = new ArrayList<Entry>(aEntries.values());
+        if (requester != null && entries.remove(requester)) {
+            // the owner asking for room gives back its own memory last.
+            entries.add(requester);
+        }
+        final long target = getTotalBytes() - bytes;
+        aTrimming = true;
+        try {
+            for (Entry entry : entries) {
+                if (getTotalBytes() <= target) {
+                    break;
+                }
+                if (entry.trimmer == null) {
+                    continue;
+                }
+                final long before = getTotalBytes();
+                entry.trimmer.trim(before - target);
+                final long freed = before - getTotalBytes();
+                if (freed > 0) {
+                    aTrimCount++;
+                    aTrimmedBytes += freed;
+                }
+            }
+        } finally {
+            aTrimming = false;
+        }
+    }
+
+    private static Entry getEntry(Object owner) {
+        Entry entry = aEntries.get(owner);
+        if (entry == null) {
+            entry = new Entry();
+            entry.name = owner.getClass().getSimpleName() + "#" + (++aNextId);
+            aEntries.put(owner, entry);
+        }
+        return entry;
+    }
+
+    private static void setBytes(Entry entry, int kind, long bytes) {
+        aTotals[kind] += bytes - entry.bytes[kind];
+        entry.bytes[kind] = bytes;
+    }
+
+    /**
+     * @return bytes held by the owner of a kind, 0 for unknown owners.
+     */
+    public static synchronized long getBytes(Object owner, int kind) {
+        final Entry entry = aEntries.get(owner);
+        return entry == null ? 0 : entry.bytes[kind];
+    }
+
+    /**
+     * @return bytes held of a kind by all owners.
+     */
+    public static synchronized long getTotalBytes(int kind) {
+        return aTotals[kind];
+    }
+
+    public static synchronized long getTotalBytes() {
+        return aTotals[DIRECT] + aTotals[GPU_BUFFER] + aTotals[GPU_TEXTURE];
+    }
+
+    /**
+     * @return owners that gave memory back.
+     */
+    public static synchronized long getTrimCount() {
+        return aTrimCount;
+    }
+
+    public static synchronized long getTrimmedBytes() {
+        return aTrimmedBytes;
+    }
+
+    /**
+     * @return reserve() calls refused because the bytes did not fit.
+     */
+    public static synchronized long getDeniedCount() {
+        return aDeniedCount;
+    }
+
+    /**
+     * @return one line for the totals and one per owner, the largest first.
+     */
+    public static synchronized String getBreakdown() {
+        final ArrayList<Entry> entries = new ArrayList<Entry>(aEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                final long difference = b.getTotal() - a.getTotal();
+                return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+            }
+        });
+        final StringBuilder builder = new StringBuilder();
+        builder.append("total ").append(formatBytes(getTotalBytes())).append(" of ").append(formatBytes(aBudget));
+        appendKinds(builder, aTotals);
+        for (Entry entry : entries) {
+            builder.append('\n').append(entry.name).append(' ').append(formatBytes(entry.getTotal()));
+            appendKinds(builder, entry.bytes);
+        }
+        return builder.toString();
+    }
+
+    private static void appendKinds(StringBuilder builder, long[] bytes) {
+        builder.append(" (");
+        for (int kind = 0; kind < KINDS; kind++) {
+            builder.append(kind > 0 ? ", " : "").append(KIND_NAMES[kind]).append(' ').append(formatBytes(bytes[kind]));
+        }
+        builder.append(')');
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.US, "%.1f KB", bytes / 1024f);
+        }
+        return String.format(Locale.US, "%.1f MB", bytes / (1024f * 1024f));
+    }
+}
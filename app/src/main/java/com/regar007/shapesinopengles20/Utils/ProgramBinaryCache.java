@@ -0,0 +1,334 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to keep linked program binaries on disk, so a warm start (or a lost EGL context)
+ *     does not have to compile and link every shader again. Binaries are keyed by a hash of the shader
+ *     sources and attribute bindings, and tagged with the driver that produced them. A missing file, a
+ *     driver update or a binary rejected by the driver falls back to compiling from source.
+ * </p>
+ * <p>
+ *     All gl calls go through a {@link Backend}, so the cache can be exercised against a local stand-in
+ *     instead of a real context.
+ * </p>
+ */
+public class ProgramBinaryCache {
+    private static final String TAG = "ProgramBinaryCache";
+
+    private static final int FILE_MAGIC = 0x50424331; // "PBC1"
+    private static final String FILE_SUFFIX = ".bin";
+
+    private final File aDirectory;
+    private final Backend aBackend;
+
+    private int aHitCount;
+    private int aMissCount;
+
+    /**
+     * The gl entry points the cache needs.
+     */
+    public interface Backend {
+        /** @return true if the current context can save and load program binaries. */
+        boolean isSupported();
+
+        /** @return a string identifying the driver, binaries from another driver are not loaded. */
+        String getDriverId();
+
+        /** @return program handle linked from source, throws if compiling/linking fails. */
+        int compileAndLink(String vertexShader, String fragmentShader, String[] attributes);
+
+        /**
+         * @param programHandle linked program.
+         * @param binaryFormat receives the driver specific binary format.
+         * @return the program binary, or null if the driver did not give one.
+         */
+        byte[] getProgramBinary(int programHandle, int[] binaryFormat);
+
+        /** @return program handle, or 0 if the driver rejected the binary. */
+        int loadProgramBinary(int binaryFormat, byte[] binary);
+    }
+
+    /**
+     * @param directory folder to store the binaries in, i.e. new File(context.getCacheDir(), "programs").
+     */
+    public ProgramBinaryCache(File directory) {
+        this(directory, new GlesBackend());
+    }
+
+    public ProgramBinaryCache(File directory, Backend backend) {
+        aDirectory = directory;
+        aBackend = backend;
+    }
+
+    /**
+     * returns a linked program for the given sources, loading it from disk when a binary from the same
+     * driver exists, otherwise compiling it and storing its binary for the next start.
+     * @param vertexShader vertex shader source code.
+     * @param fragmentShader fragment shader source code.
+     * @param attributes attributes that need to be bound to the program.
+     * @return An OpenGL handle to the program.
+     */
+    public synchronized int getProgram(String vertexShader, String fragmentShader, String[] attributes) {
+        if (!aBackend.isSupported()) {
+            aMissCount++;
+            return aBackend.compileAndLink(vertexShader, fragmentShader, attributes);
+        }
+
+        final String driverId = aBackend.getDriverId();
+        final File file = new File(aDirectory, createKey(vertexShader, fragmentShader, attributes) + FILE_SUFFIX);
+
+        final int programHandle = loadFromFile(file, driverId);
+        if (programHandle != 0) {
+            aHitCount++;
+            return programHandle;
+        }
+
+        aMissCount++;
+        final int linkedHandle = aBackend.compileAndLink(vertexShader, fragmentShader, attributes);
+        saveToFile(file, driverId, linkedHandle);
+        return linkedHandle;
+    }
+
+    private int loadFromFile(File file, String driverId) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || !driverId.equals(in.readUTF())) {
+                in.close();
+                in = null;
+                file.delete();
+                return 0;
+            }
+            final int binaryFormat = in.readInt();
+            final byte[] binary = new byte[in.readInt()];
+            in.readFully(binary);
+
+            final int programHandle = aBackend.loadProgramBinary(binaryFormat, binary);
+            if (programHandle == 0) {
+                file.delete();
+            }
+            return programHandle;
+        } catch (IOException e) {
+            Log.w(TAG, "could not read program binary " + file.getName(), e);
+            file.delete();
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void saveToFile(File file, String driverId, int programHandle) {
+        final int[] binaryFormat = new int[1];
+        final byte[] binary = aBackend.getProgramBinary(programHandle, binaryFormat);
+        if (binary == null || binary.length == 0) {
+            return;
+        }
+        if (!aDirectory.isDirectory() && !aDirectory.mkdirs()) {
+            Log.w(TAG, "could not create " + aDirectory);
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FILE_MAGIC);
+            out.writeUTF(driverId);
+            out.writeInt(binaryFormat[0]);
+            out.writeInt(binary.length);
+            out.write(binary);
+        } catch (IOException e) {
+            Log.w(TAG, "could not write program binary " + file.getName(), e);
+            closeQuietly(out);
+            out = null;
+            file.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return number of programs loaded from a stored binary.
+     */
+    public synchronized int getHitCount() {
+        return aHitCount;
+    }
+
+    /**
+     * @return number of programs which had to be compiled from source.
+     */
+    public synchronized int getMissCount() {
+        return aMissCount;
+    }
+
+    /**
+     * deletes every stored binary.
+     */
+    public synchronized void clear() {
+        final File[] files = aDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    static String createKey(String vertexShader, String fragmentShader, String[] attributes) {
+        final StringBuilder source = new StringBuilder();
+        source.append(vertexShader).append('\0').append(fragmentShader);
+        if (attributes != null) {
+            for (String attribute : attributes) {
+                source.append('\0').append(attribute);
+            }
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.toString().getBytes("UTF-8"));
+            final StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * {@link Backend} talking to the current gles context.
+     * <p>
+     * Android only exposes glGetProgramBinary()/glProgramBinary() through GLES30 (the OES entry points of
+     * OES_get_program_binary have no java binding), so binaries are used when the context is ES 3.0 or
+     * newer, which most drivers hand out even for setEGLContextClientVersion(2). GLES30 is API 18, isSupported()
+     * checks for it before any of the other calls.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static class GlesBackend implements Backend {
+        /** Errors drained at most before a checked call, a lost context may keep reporting them. */
+        private static final int MAX_STALE_ERRORS = 16;
+
+        private Boolean aSupported;
+
+        @Override
+        public boolean isSupported() {
+            if (aSupported == null) {
+                aSupported = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                        && getMajorVersion(GLES20.glGetString(GLES20.GL_VERSION)) >= 3
+                        && getBinaryFormatCount() > 0;
+            }
+            return aSupported;
+        }
+
+        private static int getBinaryFormatCount() {
+            final int[] count = new int[1];
+            clearErrors();
+            GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, count, 0);
+            return GLES20.glGetError() == GLES20.GL_NO_ERROR ? count[0] : 0;
+        }
+
+        private static int getMajorVersion(String version) {
+            // "OpenGL ES 3.2 vendor specific text"
+            if (version == null || !version.startsWith("OpenGL ES ") || version.length() < 11) {
+                return 0;
+            }
+            return Character.digit(version.charAt(10), 10);
+        }
+
+        @Override
+        public String getDriverId() {
+            return GLES20.glGetString(GLES20.GL_VENDOR) + "|" + GLES20.glGetString(GLES20.GL_RENDERER) + "|"
+                    + GLES20.glGetString(GLES20.GL_VERSION) + "|" + Build.VERSION.SDK_INT;
+        }
+
+        @Override
+        public int compileAndLink(String vertexShader, String fragmentShader, String[] attributes) {
+            return ShaderProgram.linkProgram(vertexShader, fragmentShader, attributes);
+        }
+
+        @Override
+        public byte[] getProgramBinary(int programHandle, int[] binaryFormat) {
+            final int[] length = new int[1];
+            GLES20.glGetProgramiv(programHandle, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+            if (length[0] <= 0) {
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+            clearErrors();
+            GLES30.glGetProgramBinary(programHandle, length[0], length, 0, binaryFormat, 0, buffer);
+            if (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+                return null;
+            }
+            final byte[] binary = new byte[length[0]];
+            buffer.position(0);
+            buffer.get(binary);
+            return binary;
+        }
+
+        @Override
+        public int loadProgramBinary(int binaryFormat, byte[] binary) {
+            final int programHandle = GLES20.glCreateProgram();
+            if (programHandle == 0) {
+                return 0;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+            buffer.put(binary).position(0);
+            // an error left by an earlier call must not read as a rejected binary.
+            clearErrors();
+            GLES30.glProgramBinary(programHandle, binaryFormat, buffer, binary.length);
+
+            final int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (GLES20.glGetError() != GLES20.GL_NO_ERROR || linkStatus[0] == 0) {
+                GLES20.glDeleteProgram(programHandle);
+                return 0;
+            }
+            return programHandle;
+        }
+
+        /**
+         * drains the errors of earlier calls, so the next glGetError() reports the call it follows.
+         */
+        private static void clearErrors() {
+            for (int i = 0; i < MAX_STALE_ERRORS; i++) {
+                if (GLES20.glGetError() == GLES20.GL_NO_ERROR) {
+                    return;
+                }
+            }
+        }
+    }
+}
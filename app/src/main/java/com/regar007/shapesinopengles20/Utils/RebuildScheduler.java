@@ -0,0 +1,310 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLSurfaceView;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to keep mesh building off the render thread, for shapes loaded once as well as for shapes
+ *     rebuilt many times a second, e.g. while a slider is dragged, where only the newest result matters. Every load
+ *     is a Job scheduled under a key, one key per shape, and runs in two stages: Job.build() generates the vertex
+ *     data on a worker thread without any gl call, then Job.upload() runs on the GL thread through
+ *     GLSurfaceView.queueEvent() and only sets up shaders and uploads the prepared buffers, so a frame never waits
+ *     for more than the upload. A newer job for the same key supersedes the older ones. A job still queued is
+ *     replaced without ever running, a job already building runs to its end but its result is dropped instead of
+ *     uploaded, so the GL thread never uploads stale data and the jobs of a key never build concurrently.
+ * </p>
+ * <p>
+ *     All schedulers share one pool of at most POOL_SIZE daemon threads, its queue holds at most one task per key. It
+ *     is kept apart from the WorkerPool because builds fan out on that one, see POOL_SIZE.
+ * </p>
+ * <p>
+ *     Use(Once): aScheduler = new RebuildScheduler(glSurfaceView);
+ *     Use(AnyTime): aScheduler.schedule("points", new RebuildScheduler.Job<VertexData, Points>() {
+ *                       public VertexData build() { return Points.buildVertices(positions, colors); }
+ *                       public Points upload(VertexData data) { return aPoints = new Points(activity, data); }
+ *                       public void discard(VertexData data) { data.recycle(); }
+ *                   }, callback);
+ *     Use(OnDestroy): aScheduler.cancelAll();
+ * </p>
+ */
+public class RebuildScheduler {
+
+    /**
+     * Threads of the shared pool, leaving a core to the UI and GL threads. Builds do not run on the WorkerPool:
+     * some, e.g. HeightMap.prepareBuffers(), split their work with WorkerPool.parallelFor(), which waits for parts
+     * queued on the WorkerPool. With every WorkerPool thread inside such a build, nothing would be left to run the
+     * parts they wait for.
+     */
+    public static final int POOL_SIZE = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static ExecutorService aExecutor;
+
+    /**
+     * the two stages of loading a shape.
+     * @param <D> data handed from the worker to the GL thread.
+     * @param <S> loaded shape.
+     */
+    public interface Job<D, S> {
+        /** runs on a worker thread, must not make gl calls. */
+        D build();
+
+        /** runs on the GL thread with what build() returned. */
+        S upload(D data);
+
+        /**
+         * runs instead of upload() when the result is dropped as stale, on the worker or on the GL thread. Gives
+         * back what build() borrowed, e.g. with VertexData.recycle(); must not make gl calls.
+         */
+        void discard(D data);
+    }
+
+    /**
+     * told about the end of a job, on the GL thread once uploaded, or on the worker if build() failed.
+     */
+    public interface Callback<S> {
+        void onLoaded(S shape, long buildNanos, long uploadNanos);
+
+        void onFailed(Throwable error);
+    }
+
+    /**
+     * newest job of a key and whether a worker is already on it. Guarded by the scheduler.
+     */
+    private static class Slot {
+        Job<?, ?> job;
+        Callback<?> callback;
+        /** bumped by every schedule() and cancel(), a result of an older generation is dropped. */
+        long generation;
+        boolean active;
+    }
+
+    private final GLSurfaceView aGlSurfaceView;
+    private final HashMap<Object, Slot> aSlots = new HashMap<Object, Slot>();
+
+    private final AtomicLong aScheduled = new AtomicLong();
+    private final AtomicLong aCompleted = new AtomicLong();
+    private final AtomicLong aSuperseded = new AtomicLong();
+    private final AtomicLong aDiscarded = new AtomicLong();
+    private final AtomicLong aFailed = new AtomicLong();
+
+    /**
+     * @param glSurfaceView runs the upload stages on its GL thread.
+     */
+    public RebuildScheduler(GLSurfaceView glSurfaceView) {
+        aGlSurfaceView = glSurfaceView;
+    }
+
+    /**
+     * @return the pool shared by every scheduler, created on first use.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (aExecutor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "RebuildScheduler-" + threadNumber.incrementAndGet());
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.NORM_PRIORITY - 1);
+                            return thread;
+                        }
+                    });
+            // idle workers go away, nothing is kept alive between bursts of rebuilds.
+            executor.allowCoreThreadTimeOut(true);
+            aExecutor = executor;
+        }
+        return aExecutor;
+    }
+
+    /**
+     * builds and uploads a job, superseding the jobs of the same key not uploaded yet. May be called on any thread.
+     * @param key identifies the shape the job rebuilds, compared with equals().
+     * @param callback may be null, only told about jobs that were not superseded.
+     */
+    public <D, S> void schedule(Object key, Job<D, S> job, Callback<? super S> callback) {
+        aScheduled.incrementAndGet();
+        final Slot slot;
+        synchronized (this) {
+            Slot existing = aSlots.get(key);
+            if (existing == null) {
+                existing = new Slot();
+                aSlots.put(key, existing);
+            }
+            slot = existing;
+            slot.generation++;
+            if (slot.job != null) {
+                aSuperseded.incrementAndGet();
+            }
+            slot.job = job;
+            slot.callback = callback;
+            if (slot.active) {
+                // the worker on this key picks the job up once its current build is done.
+                return;
+            }
+            slot.active = true;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                runSlot(slot);
+            }
+        });
+    }
+
+    /**
+     * drops the job of a key not uploaded yet.
+     */
+    public synchronized void cancel(Object key) {
+        final Slot slot = aSlots.get(key);
+        if (slot != null) {
+            cancel(slot);
+        }
+    }
+
+    /**
+     * drops every job not uploaded yet, e.g. when the surface goes away.
+     */
+    public synchronized void cancelAll() {
+        for (Slot slot : aSlots.values()) {
+            cancel(slot);
+        }
+    }
+
+    private void cancel(Slot slot) {
+        slot.generation++;
+        if (slot.job != null) {
+            aSuperseded.incrementAndGet();
+            slot.job = null;
+            slot.callback = null;
+        }
+    }
+
+    /**
+     * builds the newest job of a key until none is left, on a worker.
+     */
+    private void runSlot(Slot slot) {
+        while (true) {
+            final Job<?, ?> job;
+            final Callback<?> callback;
+            final long generation;
+            synchronized (this) {
+                if (slot.job == null) {
+                    slot.active = false;
+                    return;
+                }
+                job = slot.job;
+                callback = slot.callback;
+                generation = slot.generation;
+                slot.job = null;
+                slot.callback = null;
+            }
+            build(slot, job, callback, generation);
+        }
+    }
+
+    private <D, S> void build(final Slot slot, final Job<D, S> job, Callback<?> anyCallback,
+                              final long generation) {
+        @SuppressWarnings("unchecked")
+        final Callback<? super S> callback = (Callback<? super S>) anyCallback;
+        final long start = System.nanoTime();
+        final D data;
+        try {
+            data = job.build();
+        } catch (Throwable t) {
+            aFailed.incrementAndGet();
+            if (callback != null && isCurrent(slot, generation)) {
+                callback.onFailed(t);
+            }
+            return;
+        }
+        final long buildNanos = System.nanoTime() - start;
+        if (!isCurrent(slot, generation)) {
+            aDiscarded.incrementAndGet();
+            job.discard(data);
+            return;
+        }
+
+        aGlSurfaceView.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                // a newer job may have been scheduled while this one waited for the GL thread.
+                if (!isCurrent(slot, generation)) {
+                    aDiscarded.incrementAndGet();
+                    job.discard(data);
+                    return;
+                }
+                final long uploadStart = System.nanoTime();
+                final S shape;
+                try {
+                    shape = job.upload(data);
+                } catch (Throwable t) {
+                    aFailed.incrementAndGet();
+                    if (callback != null) {
+                        callback.onFailed(t);
+                    }
+                    return;
+                }
+                aCompleted.incrementAndGet();
+                if (callback != null) {
+                    callback.onLoaded(shape, buildNanos, System.nanoTime() - uploadStart);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isCurrent(Slot slot, long generation) {
+        return slot.generation == generation;
+    }
+
+    /**
+     * @return jobs passed to schedule().
+     */
+    public long getScheduledCount() {
+        return aScheduled.get();
+    }
+
+    /**
+     * @return jobs uploaded.
+     */
+    public long getCompletedCount() {
+        return aCompleted.get();
+    }
+
+    /**
+     * @return jobs replaced or cancelled before they started building.
+     */
+    public long getSupersededCount() {
+        return aSuperseded.get();
+    }
+
+    /**
+     * @return jobs built but superseded before their upload, so their result was handed to Job.discard().
+     */
+    public long getDiscardedCount() {
+        return aDiscarded.get();
+    }
+
+    public long getFailedCount() {
+        return aFailed.get();
+    }
+
+    /**
+     * @return jobs superseded, discarded or failed, i.e. that never reached the GPU.
+     */
+    public long getDroppedCount() {
+        return aSuperseded.get() + aDiscarded.get() + aFailed.get();
+    }
+}
@@ -0,0 +1,261 @@
+package com.regar007.shapesinopengles20.Utils;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to draw scenes of many shapes in the order that changes the least GL state. Every frame the
+ *     shapes add() their draw items, each with its own matrix and a 64 bit sort key made by makeKey(), and draw()
+ *     radix sorts the keys and draws the items in key order. Opaque items come first, grouped by program, then
+ *     texture, then buffer, and front-to-back within a group so early depth testing rejects hidden fragments.
+ *     Blended items come last and strictly back-to-front, which they need to blend right; program, texture and
+ *     buffer only order blended items at the same depth.
+ * </p>
+ * <p>
+ *     Items only hold references, the queue allocates nothing once it has grown to the largest frame. Shapes
+ *     test their bounds against getFrustum() before adding, so only visible items are queued. Must be used on the
+ *     GL thread only.
+ * </p>
+ * <p>
+ *     Use(Once): aRenderQueue = new RenderQueue();
+ *     Use(OnDrawFrame): aRenderQueue.clear(); aCubes.submit(aRenderQueue, aMVPMatrix, aTexture);
+ *                       aRenderQueue.draw();
+ * </p>
+ */
+public class RenderQueue {
+
+    /**
+     * anything that can draw a queued item.
+     */
+    public interface Drawable {
+        /**
+         * @param mvpMatrix matrix the item was added with, only valid during the call.
+         * @param item whatever the drawable added the item with, e.g. the index of a sphere.
+         */
+        void draw(float[] mvpMatrix, int item);
+    }
+
+    private static final int MATRIX_SIZE = 16;
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int PASSES = 64 / RADIX_BITS;
+
+    private static final long BLENDED = 1L << 63;
+    private static final int DEPTH_BITS = 24;
+    private static final int PROGRAM_BITS = 12;
+    private static final int TEXTURE_BITS = 12;
+    private static final int BUFFER_BITS = 15;
+
+    private int aSize;
+    private long[] aKeys = new long[64];
+    private Drawable[] aDrawables = new Drawable[64];
+    private int[] aItems = new int[64];
+    private float[] aMatrices = new float[64 * MATRIX_SIZE];
+
+    /** Keys and item indices while sorting, the order ends up in aOrder. */
+    private long[] aSortKeys = new long[64];
+    private long[] aSortKeysScratch = new long[64];
+    private int[] aOrder = new int[64];
+    private int[] aOrderScratch = new int[64];
+    private final int[] aCounts = new int[PASSES * RADIX];
+
+    private final float[] aMatrix = new float[MATRIX_SIZE];
+
+    /** Frustum of aFrustumMatrix, extracted again only when a different matrix is asked for. */
+    private final Frustum aFrustum = new Frustum();
+    private final float[] aFrustumMatrix = new float[MATRIX_SIZE];
+    private boolean aFrustumValid;
+
+    private long aLastSortNanos;
+    private int aLastSortPasses;
+
+    /**
+     * builds the sort key of an item.
+     * @param blended true for items drawn with blending, they are drawn after the opaque ones, back-to-front.
+     * @param program handle of the program the item is drawn with.
+     * @param texture handle of its texture, 0 for none.
+     * @param buffer handle of its vertex buffer.
+     * @param depth distance from the eye, see getDepth(). Negative depths count as 0.
+     */
+    public static long makeKey(boolean blended, int program, int texture, int buffer, float depth) {
+        // positive floats order like their bits, the top bits keep the exponent and most of the mantissa.
+        final long depthBits = Float.floatToIntBits(Math.max(depth, 0f)) >>> (31 - DEPTH_BITS);
+        final long programBits = program & ((1 << PROGRAM_BITS) - 1);
+        final long textureBits = texture & ((1 << TEXTURE_BITS) - 1);
+        final long bufferBits = buffer & ((1 << BUFFER_BITS) - 1);
+        if (blended) {
+            final long farFirst = ((1 << DEPTH_BITS) - 1) - depthBits;
+            return BLENDED | farFirst << (PROGRAM_BITS + TEXTURE_BITS + BUFFER_BITS)
+                    | programBits << (TEXTURE_BITS + BUFFER_BITS) | textureBits << BUFFER_BITS | bufferBits;
+        }
+        return programBits << (TEXTURE_BITS + BUFFER_BITS + DEPTH_BITS) | textureBits << (BUFFER_BITS + DEPTH_BITS)
+                | bufferBits << DEPTH_BITS | depthBits;
+    }
+
+    /**
+     * @return clip space w of a point, its distance from the eye along the view direction for perspective matrices.
+     */
+    public static float getDepth(float[] mvpMatrix, float x, float y, float z) {
+        return mvpMatrix[3] * x + mvpMatrix[7] * y + mvpMatrix[11] * z + mvpMatrix[15];
+    }
+
+    /**
+     * @return the view frustum of a matrix, in the model space of the matrix. Shapes submitting with the same
+     * matrix share one extraction.
+     */
+    public Frustum getFrustum(float[] mvpMatrix) {
+        boolean same = aFrustumValid;
+        for (int i = 0; i < MATRIX_SIZE && same; i++) {
+            same = aFrustumMatrix[i] == mvpMatrix[i];
+        }
+        if (!same) {
+            System.arraycopy(mvpMatrix, 0, aFrustumMatrix, 0, MATRIX_SIZE);
+            aFrustum.set(mvpMatrix);
+            aFrustumValid = true;
+        }
+        return aFrustum;
+    }
+
+    /**
+     * queues an item for the next draw().
+     * @param key made by makeKey().
+     * @param drawable draws the item.
+     * @param item passed back to the drawable.
+     * @param mvpMatrix copied, the caller may reuse it right away.
+     */
+    public void add(long key, Drawable drawable, int item, float[] mvpMatrix) {
+        if (aSize == aKeys.length) {
+            grow(aSize * 2);
+        }
+        aKeys[aSize] = key;
+        aDrawables[aSize] = drawable;
+        aItems[aSize] = item;
+        System.arraycopy(mvpMatrix, 0, aMatrices, aSize * MATRIX_SIZE, MATRIX_SIZE);
+        aSize++;
+    }
+
+    private void grow(int capacity) {
+        final long[] keys = new long[capacity];
+        final Drawable[] drawables = new Drawable[capacity];
+        final int[] items = new int[capacity];
+        final float[] matrices = new float[capacity * MATRIX_SIZE];
+        System.arraycopy(aKeys, 0, keys, 0, aSize);
+        System.arraycopy(aDrawables, 0, drawables, 0, aSize);
+        System.arraycopy(aItems, 0, items, 0, aSize);
+        System.arraycopy(aMatrices, 0, matrices, 0, aSize * MATRIX_SIZE);
+        aKeys = keys;
+        aDrawables = drawables;
+        aItems = items;
+        aMatrices = matrices;
+
+        aSortKeys = new long[capacity];
+        aSortKeysScratch = new long[capacity];
+        aOrder = new int[capacity];
+        aOrderScratch = new int[capacity];
+    }
+
+    /**
+     * sorts the items and draws them in key order. The items stay queued until clear().
+     */
+    public void draw() {
+        sort();
+        for (int i = 0; i < aSize; i++) {
+            final int index = aOrder[i];
+            System.arraycopy(aMatrices, index * MATRIX_SIZE, aMatrix, 0, MATRIX_SIZE);
+            aDrawables[index].draw(aMatrix, aItems[index]);
+        }
+    }
+
+    /**
+     * least significant digit radix sort of the keys as unsigned numbers, one pass per byte. The histograms of all
+     * bytes are counted in a single scan, and bytes every key shares are skipped.
+     */
+    private void sort() {
+        final long start = System.nanoTime();
+        final int n = aSize;
+        long[] keys = aSortKeys;
+        long[] keysScratch = aSortKeysScratch;
+        int[] order = aOrder;
+        int[] orderScratch = aOrderScratch;
+
+        final int[] counts = aCounts;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            final long key = aKeys[i];
+            keys[i] = key;
+            order[i] = i;
+            for (int pass = 0; pass < PASSES; pass++) {
+                counts[pass * RADIX + (int) ((key >>> (pass * RADIX_BITS)) & (RADIX - 1))]++;
+            }
+        }
+
+        int passes = 0;
+        for (int pass = 0; pass < PASSES && n > 1; pass++) {
+            final int base = pass * RADIX;
+            final int shift = pass * RADIX_BITS;
+            if (counts[base + (int) ((keys[0] >>> shift) & (RADIX - 1))] == n) {
+                continue;
+            }
+            // counts to the first position of every digit.
+            int position = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                final int count = counts[base + digit];
+                counts[base + digit] = position;
+                position += count;
+            }
+            for (int i = 0; i < n; i++) {
+                final long key = keys[i];
+                final int target = counts[base + (int) ((key >>> shift) & (RADIX - 1))]++;
+                keysScratch[target] = key;
+                orderScratch[target] = order[i];
+            }
+            final long[] swapKeys = keys;
+            keys = keysScratch;
+            keysScratch = swapKeys;
+            final int[] swapOrder = order;
+            order = orderScratch;
+            orderScratch = swapOrder;
+            passes++;
+        }
+
+        aSortKeys = keys;
+        aSortKeysScratch = keysScratch;
+        aOrder = order;
+        aOrderScratch = orderScratch;
+        aLastSortPasses = passes;
+        aLastSortNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * drops every queued item, call it at the start of every frame.
+     */
+    public void clear() {
+        for (int i = 0; i < aSize; i++) {
+            aDrawables[i] = null;
+        }
+        aSize = 0;
+    }
+
+    /**
+     * @return items queued.
+     */
+    public int getSize() {
+        return aSize;
+    }
+
+    /**
+     * @return nanoseconds the last draw() spent sorting.
+     */
+    public long getLastSortNanos() {
+        return aLastSortNanos;
+    }
+
+    /**
+     * @return radix passes the last sort needed, at most 8.
+     */
+    public int getLastSortPasses() {
+        return aLastSortPasses;
+    }
+}
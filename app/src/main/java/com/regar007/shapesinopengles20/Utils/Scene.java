@@ -0,0 +1,126 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.Matrix;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to draw many objects of any shape type in one frame. An instance is a shape object with a
+ *     model matrix of its own, and any number of instances may share one shape object and so its buffers: a
+ *     thousand cubes at different places are one Cubes added a thousand times. submit() queues every instance on a
+ *     RenderQueue with the view projection matrix times its model matrix, and the queue sorts the items of all
+ *     shapes together, so instances of the same program, texture and buffer are drawn one after another whatever
+ *     order they were added in.
+ * </p>
+ * <p>
+ *     Instances only hold references, the scene allocates nothing once it has grown to its largest size. Must be
+ *     used on the GL thread only.
+ * </p>
+ * <p>
+ *     Use(Once): aScene = new Scene(); aScene.add(aCubes, modelMatrix);
+ *     Use(OnDrawFrame): aRenderQueue.clear(); aScene.submit(aRenderQueue, aViewProjectionMatrix);
+ *                       aRenderQueue.draw();
+ * </p>
+ */
+public class Scene {
+
+    /**
+     * a shape object that queues its draw items, e.g. a Cubes or a HeightMap.
+     */
+    public interface Shape {
+        /**
+         * queues the draw items of the shape, leaving out what is outside the view of the matrix.
+         * @param mvpMatrix model view projection matrix of one instance, only valid during the call.
+         */
+        void submit(RenderQueue queue, float[] mvpMatrix);
+    }
+
+    private static final int MATRIX_SIZE = 16;
+
+    private int aSize;
+    private Shape[] aShapes = new Shape[64];
+    private float[] aModelMatrices = new float[64 * MATRIX_SIZE];
+
+    private final float[] aMVPMatrix = new float[MATRIX_SIZE];
+
+    /**
+     * adds an instance of a shape object.
+     * @param modelMatrix copied, the caller may reuse it right away.
+     * @return index of the instance, see setModelMatrix().
+     */
+    public int add(Shape shape, float[] modelMatrix) {
+        if (aSize == aShapes.length) {
+            grow(aSize * 2);
+        }
+        aShapes[aSize] = shape;
+        System.arraycopy(modelMatrix, 0, aModelMatrices, aSize * MATRIX_SIZE, MATRIX_SIZE);
+        return aSize++;
+    }
+
+    private void grow(int capacity) {
+        final Shape[] shapes = new Shape[capacity];
+        final float[] modelMatrices = new float[capacity * MATRIX_SIZE];
+        System.arraycopy(aShapes, 0, shapes, 0, aSize);
+        System.arraycopy(aModelMatrices, 0, modelMatrices, 0, aSize * MATRIX_SIZE);
+        aShapes = shapes;
+        aModelMatrices = modelMatrices;
+    }
+
+    /**
+     * moves an instance, the change is picked up by the next submit().
+     * @param modelMatrix copied.
+     */
+    public void setModelMatrix(int instance, float[] modelMatrix) {
+        if (instance < 0 || instance >= aSize) {
+            throw new IndexOutOfBoundsException("instance " + instance + " of " + aSize);
+        }
+        System.arraycopy(modelMatrix, 0, aModelMatrices, instance * MATRIX_SIZE, MATRIX_SIZE);
+    }
+
+    /**
+     * copies the model matrix of an instance.
+     * @param out receives the 16 floats.
+     */
+    public void getModelMatrix(int instance, float[] out) {
+        if (instance < 0 || instance >= aSize) {
+            throw new IndexOutOfBoundsException("instance " + instance + " of " + aSize);
+        }
+        System.arraycopy(aModelMatrices, instance * MATRIX_SIZE, out, 0, MATRIX_SIZE);
+    }
+
+    public Shape getShape(int instance) {
+        if (instance < 0 || instance >= aSize) {
+            throw new IndexOutOfBoundsException("instance " + instance + " of " + aSize);
+        }
+        return aShapes[instance];
+    }
+
+    /**
+     * drops every instance, the shape objects are left alone.
+     */
+    public void clear() {
+        for (int i = 0; i < aSize; i++) {
+            aShapes[i] = null;
+        }
+        aSize = 0;
+    }
+
+    /**
+     * @return instances added since the last clear().
+     */
+    public int getSize() {
+        return aSize;
+    }
+
+    /**
+     * queues every instance for the next RenderQueue.draw().
+     * @param viewProjectionMatrix projection times view, each instance is queued with it times its model matrix.
+     */
+    public void submit(RenderQueue queue, float[] viewProjectionMatrix) {
+        for (int i = 0; i < aSize; i++) {
+            Matrix.multiplyMM(aMVPMatrix, 0, viewProjectionMatrix, 0, aModelMatrices, i * MATRIX_SIZE);
+            aShapes[i].submit(queue, aMVPMatrix);
+        }
+    }
+}
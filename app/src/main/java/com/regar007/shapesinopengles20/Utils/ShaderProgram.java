@@ -0,0 +1,173 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to wrap a linked gles program. Every active uniform and attribute is looked up
+ *     once right after linking, so shapes can keep the handles instead of calling
+ *     glGetUniformLocation()/glGetAttribLocation() on every frame. It also remembers the last value of
+ *     every uniform set through GlState, a program keeps its uniforms while other programs are in use.
+ * </p>
+ */
+public class ShaderProgram {
+    private static final String TAG = "ShaderProgram";
+
+    private final int aProgramHandle;
+
+    private final HashMap<String, Integer> aUniformHandles = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> aAttributeHandles = new HashMap<String, Integer>();
+
+    /** Last values set through GlState by uniform location, null until the uniform is set once. */
+    private float[][] aUniformValues;
+
+    /**
+     * compiles the given shader sources and links them to a program.
+     * @param vertexShader vertex shader source code
+     * @param fragmentShader fragment shader source code
+     * @param attributes attributes that need to be bound to the program.
+     */
+    public ShaderProgram(String vertexShader, String fragmentShader, String[] attributes) {
+        this(linkProgram(vertexShader, fragmentShader, attributes));
+    }
+
+    /**
+     * wraps an already linked program.
+     * @param programHandle An OpenGL handle to a linked program.
+     */
+    public ShaderProgram(int programHandle) {
+        aProgramHandle = programHandle;
+        resolveHandles();
+    }
+
+    static int linkProgram(String vertexShader, String fragmentShader, String[] attributes) {
+        final int vertexShaderHandle = ShaderHelper.compileShader(GLES20.GL_VERTEX_SHADER, vertexShader);
+        final int fragmentShaderHandle = ShaderHelper.compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
+        final int programHandle = ShaderHelper.createAndLinkProgram(vertexShaderHandle, fragmentShaderHandle, attributes);
+
+        // The shaders are only flagged for deletion, they stay alive as long as the program does.
+        GLES20.glDeleteShader(vertexShaderHandle);
+        GLES20.glDeleteShader(fragmentShaderHandle);
+        return programHandle;
+    }
+
+    /**
+     * reads every active uniform and attribute of the program and stores its location.
+     */
+    private void resolveHandles() {
+        final int[] count = new int[1];
+        final int[] maxLength = new int[1];
+        final int[] length = new int[1];
+        final int[] size = new int[1];
+        final int[] type = new int[1];
+
+        GLES20.glGetProgramiv(aProgramHandle, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+        GLES20.glGetProgramiv(aProgramHandle, GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+        byte[] name = new byte[Math.max(maxLength[0], 1)];
+        int maxLocation = -1;
+        for (int i = 0; i < count[0]; i++) {
+            GLES20.glGetActiveUniform(aProgramHandle, i, name.length, length, 0, size, 0, type, 0, name, 0);
+            final String uniform = stripArraySuffix(new String(name, 0, length[0]));
+            final int location = GLES20.glGetUniformLocation(aProgramHandle, uniform);
+            aUniformHandles.put(uniform, location);
+            maxLocation = Math.max(maxLocation, location);
+        }
+        aUniformValues = new float[maxLocation + 1][];
+
+        GLES20.glGetProgramiv(aProgramHandle, GLES20.GL_ACTIVE_ATTRIBUTES, count, 0);
+        GLES20.glGetProgramiv(aProgramHandle, GLES20.GL_ACTIVE_ATTRIBUTE_MAX_LENGTH, maxLength, 0);
+        name = new byte[Math.max(maxLength[0], 1)];
+        for (int i = 0; i < count[0]; i++) {
+            GLES20.glGetActiveAttrib(aProgramHandle, i, name.length, length, 0, size, 0, type, 0, name, 0);
+            final String attribute = new String(name, 0, length[0]);
+            aAttributeHandles.put(attribute, GLES20.glGetAttribLocation(aProgramHandle, attribute));
+        }
+    }
+
+    /**
+     * uniform arrays are reported as "u_Name[0]", shapes look them up as "u_Name".
+     */
+    private static String stripArraySuffix(String name) {
+        final int bracket = name.indexOf('[');
+        return bracket > 0 ? name.substring(0, bracket) : name;
+    }
+
+    /**
+     * @param name uniform name as written in the shader.
+     * @return location of the uniform, or -1 if the program has no such active uniform.
+     */
+    public int getUniformHandle(String name) {
+        final Integer handle = aUniformHandles.get(name);
+        return handle != null ? handle : -1;
+    }
+
+    /**
+     * @param name attribute name as written in the shader.
+     * @return location of the attribute, or -1 if the program has no such active attribute.
+     */
+    public int getAttributeHandle(String name) {
+        final Integer handle = aAttributeHandles.get(name);
+        return handle != null ? handle : -1;
+    }
+
+    /**
+     * @return An OpenGL handle to the program.
+     */
+    public int getHandle() {
+        return aProgramHandle;
+    }
+
+    /**
+     * Tell OpenGL to use this program when rendering.
+     */
+    public void use() {
+        GlState.useProgram(this);
+    }
+
+    /**
+     * stores the values of a uniform about to be set, called by GlState.
+     * @return false if the uniform already has these values, so setting it can be skipped.
+     */
+    boolean updateUniform(int location, float[] values, int offset, int count) {
+        if (location >= aUniformValues.length) {
+            return true;
+        }
+        float[] current = aUniformValues[location];
+        if (current != null && current.length == count) {
+            int i = 0;
+            while (i < count && current[i] == values[offset + i]) {
+                i++;
+            }
+            if (i == count) {
+                return false;
+            }
+        } else {
+            current = new float[count];
+            aUniformValues[location] = current;
+        }
+        System.arraycopy(values, offset, current, 0, count);
+        return true;
+    }
+
+    /**
+     * drops the stored values of the uniforms at the locations, called by GlState when it sets them without
+     * storing them.
+     */
+    void forgetUniforms(int location, int count) {
+        for (int i = location; i < Math.min(location + count, aUniformValues.length); i++) {
+            aUniformValues[i] = null;
+        }
+    }
+
+    /**
+     * deletes the program from OpenGL's memory.
+     */
+    public void delete() {
+        GlState.onProgramDeleted(this);
+        GLES20.glDeleteProgram(aProgramHandle);
+    }
+}
@@ -0,0 +1,126 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to share linked programs between shape objects. Programs are keyed by their raw
+ *     vertex/fragment shader resources and attribute bindings, so ten Cubes objects compile and link the
+ *     cube program only once. Every acquire() must be paired with a release(); the program is deleted
+ *     from OpenGL's memory when the last user releases it.
+ * </p>
+ */
+public class ShaderProgramCache {
+    private static final String TAG = "ShaderProgramCache";
+
+    private static final HashMap<String, Entry> aPrograms = new HashMap<String, Entry>();
+
+    /** Optional on-disk cache of linked program binaries. */
+    private static ProgramBinaryCache aBinaryCache;
+
+    private static class Entry {
+        final String key;
+        final ShaderProgram program;
+        int refCount;
+
+        Entry(String key, ShaderProgram program) {
+            this.key = key;
+            this.program = program;
+        }
+    }
+
+    private ShaderProgramCache() {}     // do not instantiate
+
+    /**
+     * returns a shared program for the given shader resources, compiling and linking it on first use.
+     * @param context context to read the raw resources from.
+     * @param vertexShaderResId raw resource id of the vertex shader.
+     * @param fragmentShaderResId raw resource id of the fragment shader.
+     * @param attributes attributes that need to be bound to the program.
+     * @return shared program, call release() once done with it.
+     */
+    public static synchronized ShaderProgram acquire(Context context, int vertexShaderResId,
+                                                     int fragmentShaderResId, String[] attributes) {
+        final String key = createKey(vertexShaderResId, fragmentShaderResId, attributes);
+        Entry entry = aPrograms.get(key);
+        if (entry == null) {
+            final String vertexShader = RawResourceReader.readTextFileFromRawResource(context, vertexShaderResId);
+            final String fragmentShader = RawResourceReader.readTextFileFromRawResource(context, fragmentShaderResId);
+
+            final ShaderProgram program = aBinaryCache != null
+                    ? new ShaderProgram(aBinaryCache.getProgram(vertexShader, fragmentShader, attributes))
+                    : new ShaderProgram(vertexShader, fragmentShader, attributes);
+            entry = new Entry(key, program);
+            aPrograms.put(key, entry);
+        }
+        entry.refCount++;
+        return entry.program;
+    }
+
+    /**
+     * drops one reference to the program, deleting it once nobody uses it anymore.
+     * @param program program returned by acquire().
+     */
+    public static synchronized void release(ShaderProgram program) {
+        if (program == null) {
+            return;
+        }
+        for (Entry entry : aPrograms.values()) {
+            if (entry.program == program) {
+                entry.refCount--;
+                if (entry.refCount <= 0) {
+                    aPrograms.remove(entry.key);
+                    program.delete();
+                }
+                return;
+            }
+        }
+        Log.w(TAG, "released a program which is not cached: " + program.getHandle());
+    }
+
+    /**
+     * sets the on-disk binary cache used for programs which are not alive yet, null disables it.
+     * @param binaryCache cache of linked program binaries.
+     */
+    public static synchronized void setBinaryCache(ProgramBinaryCache binaryCache) {
+        aBinaryCache = binaryCache;
+    }
+
+    /**
+     * @return the on-disk binary cache, or null if none is set.
+     */
+    public static synchronized ProgramBinaryCache getBinaryCache() {
+        return aBinaryCache;
+    }
+
+    /**
+     * forgets every cached program without deleting it. Call this when the EGL context is lost
+     * (i.e. from onSurfaceCreated()), the old handles are not valid in the new context.
+     */
+    public static synchronized void invalidate() {
+        aPrograms.clear();
+    }
+
+    /**
+     * @return number of distinct programs currently alive.
+     */
+    public static synchronized int size() {
+        return aPrograms.size();
+    }
+
+    private static String createKey(int vertexShaderResId, int fragmentShaderResId, String[] attributes) {
+        final StringBuilder key = new StringBuilder();
+        key.append(vertexShaderResId).append(':').append(fragmentShaderResId);
+        if (attributes != null) {
+            for (String attribute : attributes) {
+                key.append(':').append(attribute);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -86,4 +86,71 @@ public class ShapeBuilder
 
 		return cubeData;
 	}
+
+	/**
+	 * Builds the same cube as generateCubeData(), but stores the 4 corners of every face only once:
+	 * 6 sides, 4 vertices per side. Draw it with the indices from generateCubeIndices().
+	 */
+	public static float[] generateIndexedCubeData(
+			float[] point1,
+			float[] point2,
+			float[] point3,
+			float[] point4,
+			float[] point5,
+			float[] point6,
+			float[] point7,
+			float[] point8,
+			int elementsPerPoint)
+	{
+		// Same faces as generateCubeData(), each row is p1 = top left, p2 = top right, p3 = bottom left, p4 = bottom right.
+		final float[][][] faces = {
+				{point1, point2, point3, point4},	// front
+				{point2, point6, point4, point8},	// right
+				{point6, point5, point8, point7},	// back
+				{point5, point1, point7, point3},	// left
+				{point5, point6, point1, point2},	// top
+				{point8, point7, point4, point3},	// bottom
+		};
+
+		final float[] cubeData = new float[elementsPerPoint * 4 * 6];
+		int offset = 0;
+		for (float[][] face : faces)
+		{
+			for (float[] point : face)
+			{
+				for (int i = 0; i < elementsPerPoint; i++) { cubeData[offset++] = point[i]; }
+			}
+		}
+
+		return cubeData;
+	}
+
+	/**
+	 * Indices for cubeCount consecutive cubes built by generateIndexedCubeData(), with the same
+	 * counter-clockwise triangles as generateCubeData().
+	 */
+	public static short[] generateCubeIndices(int cubeCount)
+	{
+		final short[] indices = new short[cubeCount * 6 * 6];
+		int offset = 0;
+		for (int face = 0; face < cubeCount * 6; face++)
+		{
+			final int p1 = face * 4;
+			final int p2 = p1 + 1;
+			final int p3 = p1 + 2;
+			final int p4 = p1 + 3;
+
+			//  1---3,6
+			//  | / |
+			// 2,4--5
+			indices[offset++] = (short) p1;
+			indices[offset++] = (short) p3;
+			indices[offset++] = (short) p2;
+			indices[offset++] = (short) p3;
+			indices[offset++] = (short) p4;
+			indices[offset++] = (short) p2;
+		}
+
+		return indices;
+	}
 }
@@ -38,7 +38,7 @@ public class TextureHelper
 			int w = bitmap.getWidth();
 			int h = bitmap.getHeight();
 			// Bind to the texture in OpenGL
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+			GlState.bindTexture(textureHandle[0]);
 
 			// Set filtering
 			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
@@ -77,7 +77,7 @@ public class TextureHelper
 			options.inScaled = false;	// No pre-scaling
 
 			// Bind to the texture in OpenGL
-			GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
+			GlState.bindTexture(textureHandle[0]);
 
 			// Set filtering
 			GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
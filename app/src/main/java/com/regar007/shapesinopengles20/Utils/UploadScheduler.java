@@ -0,0 +1,217 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to keep large buffer uploads from stalling a single frame. submit() queues the data of a
+ *     buffer object, and pump(), called at the start of every frame, spends at most setBytesPerFrame() bytes on the
+ *     queue: the storage of a new buffer object is allocated once, then filled with glBufferSubData() slices over
+ *     as many frames as it takes. The Listener gets the buffer object only once it is complete, so a shape keeps
+ *     drawing its old buffer until then and swaps in the new one in a single step.
+ * </p>
+ * <p>
+ *     Uploads run in submit order. Cancelling one drops it, and deletes its buffer object if it was started. Either
+ *     way its listener is told with onCancelled(), also for the uploads invalidate() drops.
+ * </p>
+ * <p>
+ *     Use(Once): aUploadScheduler = new UploadScheduler();
+ *     Use(AnyTime): aCubes.createBuffers(data, aUploadScheduler);
+ *     Use(OnDrawFrame): aUploadScheduler.pump(); first thing of the frame.
+ * </p>
+ */
+public class UploadScheduler {
+
+    public static final int DEFAULT_BYTES_PER_FRAME = 1 << 20;
+
+    /**
+     * told on the GL thread how an upload ended, the data may be recycled then.
+     */
+    public interface Listener {
+        /** the buffer object holds all of the data, the listener owns it from now on. */
+        void onUploaded(int buffer);
+
+        /** the upload was cancelled and dropped, nothing was handed over. */
+        void onCancelled();
+    }
+
+    /**
+     * one queued upload.
+     */
+    public static class Upload {
+        private final int aTarget;
+        private final ByteBuffer aData;
+        private final int aUsage;
+        private final Listener aListener;
+        private final int[] aBuffer = new int[1];
+        private volatile int aOffset;
+        private volatile boolean aCancelled;
+        private volatile boolean aDone;
+
+        Upload(int target, ByteBuffer data, int usage, Listener listener) {
+            aTarget = target;
+            // a view of its own, the caller's position and limit are left alone.
+            aData = data.duplicate();
+            aData.position(0);
+            aUsage = usage;
+            aListener = listener;
+        }
+
+        /**
+         * drops the upload if it is not complete yet, the listener is told with onCancelled() by the next pump().
+         * May be called on any thread.
+         */
+        public void cancel() {
+            aCancelled = true;
+        }
+
+        public boolean isDone() {
+            return aDone;
+        }
+
+        /**
+         * @return uploaded part of the data, in [0, 1].
+         */
+        public float getProgress() {
+            return aData.limit() == 0 ? 1 : aOffset / (float) aData.limit();
+        }
+    }
+
+    private final ArrayDeque<Upload> aQueue = new ArrayDeque<Upload>();
+    private volatile int aBytesPerFrame = DEFAULT_BYTES_PER_FRAME;
+
+    private long aPendingBytes;
+    private int aLastFrameBytes;
+    private long aCompletedCount;
+
+    /**
+     * @param bytes uploaded per pump() at most, at least one byte. A slice never spans two uploads.
+     */
+    public void setBytesPerFrame(int bytes) {
+        aBytesPerFrame = Math.max(1, bytes);
+    }
+
+    public int getBytesPerFrame() {
+        return aBytesPerFrame;
+    }
+
+    /**
+     * queues the upload of a whole buffer into a new buffer object. May be called on any thread; the data must not
+     * change until the upload is done.
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     * @param data uploaded from 0 to its limit.
+     * @param usage GL_STATIC_DRAW, GL_DYNAMIC_DRAW, ...
+     * @param listener gets the buffer object once it is complete.
+     */
+    public synchronized Upload submit(int target, ByteBuffer data, int usage, Listener listener) {
+        final Upload upload = new Upload(target, data, usage, listener);
+        aQueue.add(upload);
+        aPendingBytes += upload.aData.limit();
+        return upload;
+    }
+
+    /**
+     * uploads the next bytes of the queue, at most getBytesPerFrame() of them. Must be called on the GL thread,
+     * once per frame before drawing.
+     */
+    public void pump() {
+        int budget = aBytesPerFrame;
+        int uploaded = 0;
+        while (budget > 0) {
+            final Upload upload;
+            synchronized (this) {
+                upload = aQueue.peek();
+            }
+            if (upload == null) {
+                break;
+            }
+            final int size = upload.aData.limit();
+            if (upload.aCancelled) {
+                if (upload.aBuffer[0] != 0) {
+                    GlState.deleteBuffers(1, upload.aBuffer, 0);
+                }
+                finish(upload, size - upload.aOffset);
+                upload.aListener.onCancelled();
+                continue;
+            }
+            if (upload.aBuffer[0] == 0) {
+                GLES20.glGenBuffers(1, upload.aBuffer, 0);
+                VertexLayout.reserve(upload.aTarget, upload.aBuffer[0], size, upload.aUsage);
+            }
+            final int slice = Math.min(budget, size - upload.aOffset);
+            if (slice > 0) {
+                VertexLayout.uploadRange(upload.aTarget, upload.aBuffer[0], upload.aData, upload.aOffset, slice);
+                upload.aOffset += slice;
+                budget -= slice;
+                uploaded += slice;
+            }
+            if (upload.aOffset == size) {
+                finish(upload, slice);
+                upload.aDone = true;
+                aCompletedCount++;
+                upload.aListener.onUploaded(upload.aBuffer[0]);
+            } else {
+                synchronized (this) {
+                    aPendingBytes -= slice;
+                }
+            }
+        }
+        aLastFrameBytes = uploaded;
+    }
+
+    private synchronized void finish(Upload upload, int bytes) {
+        aQueue.remove(upload);
+        aPendingBytes -= bytes;
+    }
+
+    /**
+     * forgets every queued upload without deleting anything, call this on the GL thread when the EGL context is lost.
+     * The listener of each is told with onCancelled(), so the data it holds can be recycled.
+     */
+    public void invalidate() {
+        final Upload[] dropped;
+        synchronized (this) {
+            dropped = aQueue.toArray(new Upload[aQueue.size()]);
+            aQueue.clear();
+            aPendingBytes = 0;
+        }
+        // outside the lock, a listener may submit again.
+        for (Upload upload : dropped) {
+            upload.aCancelled = true;
+            upload.aListener.onCancelled();
+        }
+    }
+
+    /**
+     * @return bytes still waiting to be uploaded.
+     */
+    public synchronized long getPendingBytes() {
+        return aPendingBytes;
+    }
+
+    /**
+     * @return uploads waiting or in progress.
+     */
+    public synchronized int getPendingCount() {
+        return aQueue.size();
+    }
+
+    /**
+     * @return bytes the last pump() uploaded.
+     */
+    public int getLastFrameBytes() {
+        return aLastFrameBytes;
+    }
+
+    /**
+     * @return uploads handed to their listener so far.
+     */
+    public long getCompletedCount() {
+        return aCompletedCount;
+    }
+}
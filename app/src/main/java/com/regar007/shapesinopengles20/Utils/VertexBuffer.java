@@ -0,0 +1,138 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to hold the vertex buffer object of a shape together with what it was built with: the vertex
+ *     count, the position transform the positions were encoded with and their bounds. upload() replaces all of them
+ *     in one go. upload(data, scheduler) queues the vertices on an UploadScheduler instead, the shape keeps drawing
+ *     the old buffer until the new one is complete and then swaps in the buffer, count, transform and bounds
+ *     together; a newer upload cancels the one still pending.
+ * </p>
+ * <p>
+ *     The bytes are reserved with the MemoryAccountant under the owner, which forgets them once released. The data
+ *     handed in is always recycled, also when the reserve is refused. Must be used on the GL thread only.
+ * </p>
+ * <p>
+ *     Use(Once): aVertexBuffer = new VertexBuffer(this);
+ *     Use(AnyTime): aVertexBuffer.upload(data); or aVertexBuffer.upload(data, aUploadScheduler);
+ *     Use(OnDrawFrame): aLayout.bind(aVertexBuffer.getBuffer(), handles);
+ *                       GLES20.glDrawArrays(mode, 0, aVertexBuffer.getVertexCount());
+ * </p>
+ */
+public class VertexBuffer {
+
+    private final Object aOwner;
+    private final int[] aBuffer = new int[1];
+    private final float[] aPositionTransform = new float[VertexFormat.POSITION_TRANSFORM_SIZE];
+    /** Bounds of the positions, {minX, minY, minZ, maxX, maxY, maxZ}. */
+    private final float[] aBounds = new float[6];
+    private int aVertexCount;
+    private UploadScheduler.Upload aPendingUpload;
+
+    /**
+     * generates the buffer object, empty until the first upload.
+     * @param owner the shape the bytes are reserved for in the MemoryAccountant.
+     */
+    public VertexBuffer(Object owner) {
+        aOwner = owner;
+        GLES20.glGenBuffers(aBuffer.length, aBuffer, 0);
+    }
+
+    /**
+     * uploads the vertices in one go, a pending upload is left to finish.
+     * @param data recycled, also if it does not fit the budget.
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget, the old ones are kept.
+     */
+    public void upload(VertexData data) {
+        try {
+            MemoryAccountant.reserve(aOwner, MemoryAccountant.GPU_BUFFER, data.getByteCount());
+            set(data);
+
+            // copy the buffer into OpenGL's memory. After, we don't need to keep the client-side buffer around.
+            VertexLayout.upload(GLES20.GL_ARRAY_BUFFER, aBuffer[0], data.vertices, GLES20.GL_STATIC_DRAW);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * queues the vertices on the scheduler, the old ones are drawn until the new buffer is complete. Cancels the
+     * upload still pending.
+     * @param data recycled once uploaded or cancelled, right away if it does not fit the budget.
+     * @throws IllegalStateException if the vertices do not fit the MemoryAccountant budget, the old ones are kept.
+     */
+    public void upload(final VertexData data, UploadScheduler scheduler) {
+        if (aPendingUpload != null) {
+            aPendingUpload.cancel();
+            aPendingUpload = null;
+        }
+        // the old buffer is deleted once the new one is complete, count the new one from now on.
+        try {
+            MemoryAccountant.reserve(aOwner, MemoryAccountant.GPU_BUFFER, data.getByteCount());
+        } catch (IllegalStateException e) {
+            data.recycle();
+            throw e;
+        }
+        aPendingUpload = scheduler.submit(GLES20.GL_ARRAY_BUFFER, data.vertices, GLES20.GL_STATIC_DRAW,
+                new UploadScheduler.Listener() {
+                    @Override
+                    public void onUploaded(int buffer) {
+                        // swap in the complete buffer, and the vertex count and transform that go with it.
+                        GlState.deleteBuffers(aBuffer.length, aBuffer, 0);
+                        aBuffer[0] = buffer;
+                        set(data);
+                        aPendingUpload = null;
+                        data.recycle();
+                    }
+
+                    @Override
+                    public void onCancelled() {
+                        data.recycle();
+                    }
+                });
+    }
+
+    private void set(VertexData data) {
+        aVertexCount = data.vertexCount;
+        System.arraycopy(data.positionTransform, 0, aPositionTransform, 0, aPositionTransform.length);
+        System.arraycopy(data.bounds, 0, aBounds, 0, aBounds.length);
+    }
+
+    public int getBuffer() {
+        return aBuffer[0];
+    }
+
+    public int getVertexCount() {
+        return aVertexCount;
+    }
+
+    /**
+     * @return the transform for VertexFormat.setPositionUniforms(), not to be modified.
+     */
+    public float[] getPositionTransform() {
+        return aPositionTransform;
+    }
+
+    /**
+     * @return {minX, minY, minZ, maxX, maxY, maxZ} of the drawn vertices, not to be modified.
+     */
+    public float[] getBounds() {
+        return aBounds;
+    }
+
+    /**
+     * cancels the pending upload and deletes the buffer object. The owner forgets its bytes with the
+     * MemoryAccountant.
+     */
+    public void release() {
+        if (aPendingUpload != null) {
+            aPendingUpload.cancel();
+            aPendingUpload = null;
+        }
+        GlState.deleteBuffers(aBuffer.length, aBuffer, 0);
+    }
+}
@@ -0,0 +1,58 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to carry the vertices of a shape from the thread that builds them to the GL thread that
+ *     uploads them: a direct buffer of vertexCount vertices in layout, the position transform they were
+ *     encoded with and the bounds of the positions, which the shape culls against the view frustum. Building
+ *     touches no OpenGL state, so it can run on any thread.
+ * </p>
+ * <p>
+ *     The vertices are borrowed from the BufferPool. The shape uploading them gives them back with recycle(), so
+ *     the data must not be used anymore once handed to a shape.
+ * </p>
+ * <p>
+ *     Use(Worker): data = Points.buildVertices(positions, colors);
+ *     Use(GL thread): aPoints = new Points(activity, data);
+ * </p>
+ */
+public class VertexData {
+
+    public final VertexLayout layout;
+    public final ByteBuffer vertices;
+    public final int vertexCount;
+    public final float[] positionTransform = new float[VertexFormat.POSITION_TRANSFORM_SIZE];
+    /** Bounds of the positions before encoding, {minX, minY, minZ, maxX, maxY, maxZ}. */
+    public final float[] bounds = new float[6];
+    private boolean aRecycled;
+
+    /**
+     * allocates the vertices, the caller fills them, positionTransform and bounds.
+     */
+    public VertexData(VertexLayout layout, int vertexCount) {
+        this.layout = layout;
+        this.vertexCount = vertexCount;
+        vertices = layout.allocate(vertexCount);
+    }
+
+    /**
+     * gives the vertices back to the BufferPool, once they are uploaded or no longer needed. Later calls do nothing.
+     */
+    public synchronized void recycle() {
+        if (!aRecycled) {
+            aRecycled = true;
+            BufferPool.release(vertices);
+        }
+    }
+
+    /**
+     * @return bytes of vertex data.
+     */
+    public int getByteCount() {
+        return vertexCount * layout.getStride();
+    }
+}
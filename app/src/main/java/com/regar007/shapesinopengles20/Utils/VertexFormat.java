@@ -0,0 +1,211 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to choose how shapes store their vertex attributes. FLOAT keeps 32-bit floats everywhere,
+ *     COMPACT stores positions as normalized shorts, colors as normalized unsigned bytes and normals as
+ *     normalized bytes, which makes the vertex buffers 2-3x smaller.
+ * </p>
+ * <p>
+ *     Normalized positions only cover [-1, 1], so a mesh maps its bounds into that range with a per-mesh
+ *     scale/offset (computePositionTransform()) and the vertex shader undoes it with the u_PositionScale and
+ *     u_PositionOffset uniforms (setPositionUniforms()).
+ * </p>
+ * <p>
+ *     Use(Once): aLayout = format.addColor(format.addPosition(new VertexLayout.Builder(), 3)).build();
+ *     Use(CreateBuffers): format.computePositionTransform(positions, 3, aPositionTransform);
+ *                         positions = format.encodePositions(positions, 3, aPositionTransform);
+ *     Use(OnDrawFrame): VertexFormat.setPositionUniforms(scaleHandle, offsetHandle, aPositionTransform);
+ * </p>
+ */
+public class VertexFormat {
+
+    /** 32-bit float positions, colors and normals. */
+    public static final VertexFormat FLOAT = new VertexFormat(GLES20.GL_FLOAT, GLES20.GL_FLOAT, GLES20.GL_FLOAT);
+
+    /** normalized short positions, normalized unsigned byte colors and normalized byte normals. */
+    public static final VertexFormat COMPACT = new VertexFormat(GLES20.GL_SHORT, GLES20.GL_UNSIGNED_BYTE,
+            GLES20.GL_BYTE);
+
+    /** Floats in a position transform: scale {x, y, z} then offset {x, y, z}. */
+    public static final int POSITION_TRANSFORM_SIZE = 6;
+
+    private static VertexFormat aDefault = COMPACT;
+
+    public final int positionType;
+    public final int colorType;
+    public final int normalType;
+
+    /**
+     * @param positionType GL_FLOAT or GL_SHORT.
+     * @param colorType GL_FLOAT or GL_UNSIGNED_BYTE.
+     * @param normalType GL_FLOAT or GL_BYTE.
+     */
+    public VertexFormat(int positionType, int colorType, int normalType) {
+        if (positionType != GLES20.GL_FLOAT && positionType != GLES20.GL_SHORT) {
+            throw new IllegalArgumentException("positions must be GL_FLOAT or GL_SHORT");
+        }
+        if (colorType != GLES20.GL_FLOAT && colorType != GLES20.GL_UNSIGNED_BYTE) {
+            throw new IllegalArgumentException("colors must be GL_FLOAT or GL_UNSIGNED_BYTE");
+        }
+        if (normalType != GLES20.GL_FLOAT && normalType != GLES20.GL_BYTE) {
+            throw new IllegalArgumentException("normals must be GL_FLOAT or GL_BYTE");
+        }
+        this.positionType = positionType;
+        this.colorType = colorType;
+        this.normalType = normalType;
+    }
+
+    /**
+     * @return format used by shapes created from now on.
+     */
+    public static VertexFormat getDefault() {
+        return aDefault;
+    }
+
+    /**
+     * sets the format used by shapes created from now on, existing shapes keep theirs.
+     */
+    public static void setDefault(VertexFormat format) {
+        aDefault = format;
+    }
+
+    public VertexLayout.Builder addPosition(VertexLayout.Builder builder, int componentCount) {
+        return builder.add("a_Position", componentCount, positionType, positionType != GLES20.GL_FLOAT);
+    }
+
+    public VertexLayout.Builder addColor(VertexLayout.Builder builder) {
+        return builder.add("a_Color", 4, colorType, colorType != GLES20.GL_FLOAT);
+    }
+
+    public VertexLayout.Builder addNormal(VertexLayout.Builder builder) {
+        return builder.add("a_Normal", 3, normalType, normalType != GLES20.GL_FLOAT);
+    }
+
+    /**
+     * @return true if positions have to go through computePositionTransform()/encodePositions().
+     */
+    public boolean isPositionQuantized() {
+        return positionType != GLES20.GL_FLOAT;
+    }
+
+    /**
+     * computes the scale/offset that maps the bounds of the positions into [-1, 1], or the identity for float
+     * positions.
+     * @param positions positions, componentCount floats per vertex.
+     * @param componentCount 2 or 3.
+     * @param transform receives POSITION_TRANSFORM_SIZE floats, scale then offset.
+     */
+    public void computePositionTransform(float[] positions, int componentCount, float[] transform) {
+        computePositionTransform(positions, componentCount, componentCount, transform);
+    }
+
+    /**
+     * same as computePositionTransform(), for positions stored at the start of floatsPerVertex floats.
+     */
+    public void computePositionTransform(float[] vertices, int componentCount, int floatsPerVertex,
+                                         float[] transform) {
+        for (int c = 0; c < 3; c++) {
+            transform[c] = 1;
+            transform[3 + c] = 0;
+        }
+        if (!isPositionQuantized() || vertices.length < floatsPerVertex) {
+            return;
+        }
+
+        for (int c = 0; c < componentCount; c++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = c; i < vertices.length; i += floatsPerVertex) {
+                min = Math.min(min, vertices[i]);
+                max = Math.max(max, vertices[i]);
+            }
+            final float halfExtent = (max - min) / 2;
+            transform[c] = halfExtent > 0 ? halfExtent : 1;
+            transform[3 + c] = (max + min) / 2;
+        }
+    }
+
+    /**
+     * computes the axis aligned bounds of positions, e.g. to cull them against the view frustum.
+     * @param positions positions, componentCount floats per vertex.
+     * @param componentCount 2 or 3, z is 0 for 2.
+     * @param bounds receives {minX, minY, minZ, maxX, maxY, maxZ}, all 0 if there are no positions.
+     */
+    public static void computeBounds(float[] positions, int componentCount, float[] bounds) {
+        for (int c = 0; c < 3; c++) {
+            bounds[c] = 0;
+            bounds[3 + c] = 0;
+        }
+        if (positions.length < componentCount) {
+            return;
+        }
+        for (int c = 0; c < componentCount; c++) {
+            float min = Float.MAX_VALUE;
+            float max = -Float.MAX_VALUE;
+            for (int i = c; i < positions.length; i += componentCount) {
+                min = Math.min(min, positions[i]);
+                max = Math.max(max, positions[i]);
+            }
+            bounds[c] = min;
+            bounds[3 + c] = max;
+        }
+    }
+
+    /**
+     * same as computePositionTransform(), for a mesh whose bounds are already known.
+     * @param bounds {minX, minY, minZ, maxX, maxY, maxZ}.
+     * @param transform receives POSITION_TRANSFORM_SIZE floats, scale then offset.
+     */
+    public void computeBoundsTransform(float[] bounds, float[] transform) {
+        for (int c = 0; c < 3; c++) {
+            transform[c] = 1;
+            transform[3 + c] = 0;
+            if (isPositionQuantized()) {
+                final float halfExtent = (bounds[3 + c] - bounds[c]) / 2;
+                transform[c] = halfExtent > 0 ? halfExtent : 1;
+                transform[3 + c] = (bounds[3 + c] + bounds[c]) / 2;
+            }
+        }
+    }
+
+    /**
+     * maps positions into [-1, 1] with the given transform. Float positions are returned unchanged.
+     * @param positions positions, componentCount floats per vertex.
+     * @param componentCount 2 or 3.
+     * @param transform transform from computePositionTransform().
+     * @return encoded positions, ready for VertexLayout.put().
+     */
+    public float[] encodePositions(float[] positions, int componentCount, float[] transform) {
+        return encodePositions(positions, componentCount, componentCount, transform);
+    }
+
+    /**
+     * same as encodePositions(), for positions stored at the start of floatsPerVertex floats. The other
+     * floats are copied unchanged.
+     */
+    public float[] encodePositions(float[] vertices, int componentCount, int floatsPerVertex, float[] transform) {
+        if (!isPositionQuantized()) {
+            return vertices;
+        }
+        final float[] encoded = vertices.clone();
+        for (int v = 0; v < vertices.length; v += floatsPerVertex) {
+            for (int c = 0; c < componentCount; c++) {
+                encoded[v + c] = (vertices[v + c] - transform[3 + c]) / transform[c];
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * passes a position transform to the u_PositionScale/u_PositionOffset uniforms.
+     */
+    public static void setPositionUniforms(int scaleHandle, int offsetHandle, float[] transform) {
+        GlState.uniform3f(scaleHandle, transform[0], transform[1], transform[2]);
+        GlState.uniform3f(offsetHandle, transform[3], transform[4], transform[5]);
+    }
+}
@@ -0,0 +1,361 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to describe one interleaved vertex buffer: every attribute has a name, a component
+ *     count, a gl type, a normalized flag and a byte offset inside the vertex. Shapes build their single VBO
+ *     with put() and bind all attributes of a draw with one bind().
+ * </p>
+ * <p>
+ *     Use(Once): aLayout = new VertexLayout.Builder().add("a_Position", 3, GLES20.GL_FLOAT, false)
+ *                          .add("a_Color", 4, GLES20.GL_FLOAT, false).build();
+ *                aHandles = aLayout.resolveHandles(program);
+ *     Use(OnDrawFrame): aLayout.bind(vbo, aHandles);
+ * </p>
+ */
+public class VertexLayout {
+    private static final String TAG = "VertexLayout";
+
+    /** Counters of the buffer traffic going through layouts. */
+    private static long aBufferBindCount;
+    private static long aUploadedBytes;
+
+    private final Attribute[] aAttributes;
+    private final int aStride;
+
+    /**
+     * one attribute of the vertex.
+     */
+    public static class Attribute {
+        public final String name;
+        public final int componentCount;
+        public final int type;
+        public final boolean normalized;
+        public final int offset;
+
+        Attribute(String name, int componentCount, int type, boolean normalized, int offset) {
+            this.name = name;
+            this.componentCount = componentCount;
+            this.type = type;
+            this.normalized = normalized;
+            this.offset = offset;
+        }
+
+        /** @return bytes this attribute takes in a vertex, without padding. */
+        public int getSize() {
+            return componentCount * getTypeSize(type);
+        }
+    }
+
+    /**
+     * builds a layout, attributes are placed in the order they are added.
+     */
+    public static class Builder {
+        private final ArrayList<Attribute> aAttributes = new ArrayList<Attribute>();
+        private int aOffset;
+
+        /**
+         * @param name attribute name as written in the shader.
+         * @param componentCount 1 to 4.
+         * @param type GL_FLOAT, GL_SHORT, GL_UNSIGNED_SHORT, GL_BYTE or GL_UNSIGNED_BYTE.
+         * @param normalized true to map integer types to [-1, 1] or [0, 1].
+         */
+        public Builder add(String name, int componentCount, int type, boolean normalized) {
+            aAttributes.add(new Attribute(name, componentCount, type, normalized, aOffset));
+            // keep every attribute 4 byte aligned, some gpus fetch misaligned attributes very slowly.
+            aOffset += align(componentCount * getTypeSize(type));
+            return this;
+        }
+
+        public VertexLayout build() {
+            return new VertexLayout(aAttributes.toArray(new Attribute[aAttributes.size()]), aOffset);
+        }
+    }
+
+    private VertexLayout(Attribute[] attributes, int stride) {
+        aAttributes = attributes;
+        aStride = stride;
+    }
+
+    /**
+     * @return bytes per vertex.
+     */
+    public int getStride() {
+        return aStride;
+    }
+
+    public int getAttributeCount() {
+        return aAttributes.length;
+    }
+
+    public Attribute getAttribute(int index) {
+        return aAttributes[index];
+    }
+
+    /**
+     * @param name attribute name.
+     * @return index of the attribute in this layout, or -1.
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < aAttributes.length; i++) {
+            if (aAttributes[i].name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * looks up the handle of every attribute of this layout in the program, do it once after linking.
+     * @param program program the layout is drawn with.
+     * @return handles in attribute order, -1 for attributes the program does not use.
+     */
+    public int[] resolveHandles(ShaderProgram program) {
+        final int[] handles = new int[aAttributes.length];
+        for (int i = 0; i < aAttributes.length; i++) {
+            handles[i] = program.getAttributeHandle(aAttributes[i].name);
+        }
+        return handles;
+    }
+
+    /**
+     * borrows a direct buffer for the given number of vertices from the BufferPool, its limit is the vertex bytes.
+     * Give it back with BufferPool.release() once uploaded.
+     */
+    public ByteBuffer allocate(int vertexCount) {
+        return BufferPool.acquire(vertexCount * aStride);
+    }
+
+    /**
+     * writes one attribute of one vertex, converting from float to the attribute type. Normalized
+     * attributes expect values in [-1, 1] (signed types) or [0, 1] (unsigned types) and are clamped.
+     * @param buffer buffer returned by allocate().
+     * @param vertex vertex index.
+     * @param attribute attribute index.
+     * @param values source values, componentCount of them are read.
+     * @param valuesOffset first value to read.
+     */
+    public void put(ByteBuffer buffer, int vertex, int attribute, float[] values, int valuesOffset) {
+        final Attribute a = aAttributes[attribute];
+        int position = vertex * aStride + a.offset;
+        switch (a.type) {
+            case GLES20.GL_FLOAT:
+                for (int i = 0; i < a.componentCount; i++) {
+                    buffer.putFloat(position, values[valuesOffset + i]);
+                    position += 4;
+                }
+                break;
+            case GLES20.GL_SHORT:
+                for (int i = 0; i < a.componentCount; i++) {
+                    buffer.putShort(position, (short) toInteger(values[valuesOffset + i], a.normalized,
+                            Short.MIN_VALUE + 1, Short.MAX_VALUE));
+                    position += 2;
+                }
+                break;
+            case GLES20.GL_UNSIGNED_SHORT:
+                for (int i = 0; i < a.componentCount; i++) {
+                    buffer.putShort(position, (short) toInteger(values[valuesOffset + i], a.normalized, 0, 0xffff));
+                    position += 2;
+                }
+                break;
+            case GLES20.GL_BYTE:
+                for (int i = 0; i < a.componentCount; i++) {
+                    buffer.put(position, (byte) toInteger(values[valuesOffset + i], a.normalized,
+                            Byte.MIN_VALUE + 1, Byte.MAX_VALUE));
+                    position++;
+                }
+                break;
+            case GLES20.GL_UNSIGNED_BYTE:
+                for (int i = 0; i < a.componentCount; i++) {
+                    buffer.put(position, (byte) toInteger(values[valuesOffset + i], a.normalized, 0, 0xff));
+                    position++;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported attribute type 0x" + Integer.toHexString(a.type));
+        }
+    }
+
+    /**
+     * converts a float to an integer component, scaling normalized values by the largest value of the type.
+     */
+    private static int toInteger(float value, boolean normalized, int min, int max) {
+        final float scaled = normalized ? value * max : value;
+        final int rounded = Math.round(scaled);
+        return rounded < min ? min : (rounded > max ? max : rounded);
+    }
+
+    /**
+     * writes one attribute for vertexCount consecutive vertices from a tightly packed array.
+     */
+    public void putAll(ByteBuffer buffer, int firstVertex, int vertexCount, int attribute, float[] values) {
+        final int componentCount = aAttributes[attribute].componentCount;
+        for (int v = 0; v < vertexCount; v++) {
+            put(buffer, firstVertex + v, attribute, values, v * componentCount);
+        }
+    }
+
+    /**
+     * @return floats of one vertex in a float[] holding all attributes back to back, see putInterleaved().
+     */
+    public int getFloatsPerVertex() {
+        int floats = 0;
+        for (Attribute a : aAttributes) {
+            floats += a.componentCount;
+        }
+        return floats;
+    }
+
+    /**
+     * writes vertexCount whole vertices from a float array holding the attributes of every vertex back to back,
+     * in layout order and without padding.
+     */
+    public void putInterleaved(ByteBuffer buffer, int firstVertex, int vertexCount, float[] values) {
+        putInterleaved(buffer, firstVertex, vertexCount, values, 0);
+    }
+
+    /**
+     * same as putInterleaved(), reading the first vertex at valuesOffset.
+     */
+    public void putInterleaved(ByteBuffer buffer, int firstVertex, int vertexCount, float[] values,
+                               int valuesOffset) {
+        final int floatsPerVertex = getFloatsPerVertex();
+        if (floatsPerVertex * 4 == aStride && isAllFloat()) {
+            // the float array already has the gpu layout, copy it in one go.
+            buffer.position(firstVertex * aStride);
+            buffer.asFloatBuffer().put(values, valuesOffset, vertexCount * floatsPerVertex);
+            buffer.position(0);
+            return;
+        }
+
+        for (int v = 0; v < vertexCount; v++) {
+            int vertexOffset = valuesOffset + v * floatsPerVertex;
+            for (int i = 0; i < aAttributes.length; i++) {
+                put(buffer, firstVertex + v, i, values, vertexOffset);
+                vertexOffset += aAttributes[i].componentCount;
+            }
+        }
+    }
+
+    private boolean isAllFloat() {
+        for (Attribute a : aAttributes) {
+            if (a.type != GLES20.GL_FLOAT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * binds the buffer and points every attribute at it, the attribute arrays of other layouts are disabled.
+     * Only what changed since the last bind() goes to the driver, see GlState.
+     * @param buffer vertex buffer object holding vertices in this layout.
+     * @param handles handles returned by resolveHandles().
+     */
+    public void bind(int buffer, int[] handles) {
+        GlState.bindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        aBufferBindCount++;
+        int enabled = 0;
+        for (int i = 0; i < aAttributes.length; i++) {
+            if (handles[i] < 0) {
+                continue;
+            }
+            final Attribute a = aAttributes[i];
+            GlState.vertexAttribPointer(handles[i], a.componentCount, a.type, a.normalized, aStride, a.offset);
+            enabled |= 1 << handles[i];
+        }
+        GlState.setEnabledAttributes(enabled);
+    }
+
+    /**
+     * uploads a whole buffer to a vertex/index buffer object.
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     * @param buffer buffer object.
+     * @param data data, from 0 to its limit is uploaded.
+     * @param usage GL_STATIC_DRAW, GL_DYNAMIC_DRAW, ...
+     */
+    public static void upload(int target, int buffer, ByteBuffer data, int usage) {
+        data.position(0);
+        GlState.bindBuffer(target, buffer);
+        GLES20.glBufferData(target, data.limit(), data, usage);
+        aBufferBindCount++;
+        aUploadedBytes += data.limit();
+    }
+
+    /**
+     * allocates the storage of a buffer object without uploading anything, to be filled with uploadRange().
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     * @param buffer buffer object.
+     * @param size bytes to allocate.
+     * @param usage GL_STATIC_DRAW, GL_DYNAMIC_DRAW, ...
+     */
+    public static void reserve(int target, int buffer, int size, int usage) {
+        GlState.bindBuffer(target, buffer);
+        GLES20.glBufferData(target, size, null, usage);
+        aBufferBindCount++;
+    }
+
+    /**
+     * uploads part of a buffer into an existing buffer object with glBufferSubData().
+     * @param target GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     * @param buffer buffer object, its storage must already be allocated.
+     * @param data data, read from offset.
+     * @param offset byte offset, both in data and in the buffer object.
+     * @param size bytes to upload.
+     */
+    public static void uploadRange(int target, int buffer, ByteBuffer data, int offset, int size) {
+        data.position(offset);
+        GlState.bindBuffer(target, buffer);
+        GLES20.glBufferSubData(target, offset, size, data);
+        data.position(0);
+        aBufferBindCount++;
+        aUploadedBytes += size;
+    }
+
+    /**
+     * @return buffer binds requested through layouts since the last resetStats(), GlState skips the redundant ones.
+     */
+    public static long getBufferBindCount() {
+        return aBufferBindCount;
+    }
+
+    /**
+     * @return bytes uploaded through layouts since the last resetStats().
+     */
+    public static long getUploadedBytes() {
+        return aUploadedBytes;
+    }
+
+    public static void resetStats() {
+        aBufferBindCount = 0;
+        aUploadedBytes = 0;
+    }
+
+    static int getTypeSize(int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT:
+            case GLES20.GL_INT:
+            case GLES20.GL_UNSIGNED_INT:
+                return 4;
+            case GLES20.GL_SHORT:
+            case GLES20.GL_UNSIGNED_SHORT:
+                return 2;
+            case GLES20.GL_BYTE:
+            case GLES20.GL_UNSIGNED_BYTE:
+                return 1;
+            default:
+                throw new IllegalArgumentException("unknown type 0x" + Integer.toHexString(type));
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+}
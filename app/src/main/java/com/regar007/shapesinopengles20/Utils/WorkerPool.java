@@ -0,0 +1,102 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Created by regar007.
+ *
+ * <p>
+ *     This is created to share one pool of daemon worker threads, one per cpu core, between the cpu heavy parts of
+ *     the shapes. parallelFor() splits an index range over the pool and the calling thread and returns once every
+ *     part is done, so callers keep a simple sequential flow.
+ * </p>
+ * <p>
+ *     Use: WorkerPool.parallelFor(rows, 16, new WorkerPool.RangeTask() {
+ *              public void run(int from, int to) { for (int row = from; row < to; row++) { ... } }
+ *          });
+ * </p>
+ */
+public class WorkerPool {
+
+    /**
+     * work on the indices [from, to).
+     */
+    public interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService aExecutor;
+
+    private WorkerPool() {}     // do not instantiate
+
+    /**
+     * @return the shared executor, created on first use.
+     */
+    public static synchronized ExecutorService getExecutor() {
+        if (aExecutor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            aExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "WorkerPool-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return aExecutor;
+    }
+
+    public static int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    /**
+     * runs task over [0, count) in parallel parts of at least minPerTask indices, small ranges run on the calling
+     * thread only. Exceptions of a part are rethrown once every part has finished.
+     */
+    public static void parallelFor(int count, int minPerTask, final RangeTask task) {
+        final int parts = Math.min(THREAD_COUNT, count / Math.max(1, minPerTask));
+        if (parts <= 1) {
+            task.run(0, count);
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(parts - 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        for (int p = 0; p < parts - 1; p++) {
+            final int from = (int) ((long) count * p / parts);
+            final int to = (int) ((long) count * (p + 1) / parts);
+            getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(from, to);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // the calling thread takes the last part instead of waiting idle.
+        task.run((int) ((long) count * (parts - 1) / parts), count);
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted waiting for workers", e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("worker failed", failure.get());
+        }
+    }
+}
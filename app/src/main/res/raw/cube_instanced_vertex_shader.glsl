@@ -0,0 +1,37 @@
+uniform mat4 u_MVPMatrix;		// A constant representing the combined model/view/projection matrix.
+uniform mat4 u_MVMatrix;		// A constant representing the combined model/view matrix.
+
+// Per-instance data, 3 vectors per cube: translate (xyz), scale (xyz) and color (rgba).
+// 32 cubes per batch, so 96 vectors plus the two matrices fit in the 128 vectors every ES 2.0 device has.
+uniform vec4 u_InstanceData[96];
+
+attribute vec4 a_Position;		// Per-vertex position of the unit cube (-1 to 1).
+attribute vec3 a_Normal;		// Per-vertex normal information we will pass in.
+attribute vec2 a_TexCoordinate; // Per-vertex texture coordinate information we will pass in.
+attribute float a_InstanceIndex;	// Which cube of the batch this vertex belongs to.
+
+varying vec3 v_Position;		// This will be passed into the fragment shader.
+varying vec4 v_Color;   // This will be passed into the fragment shader.
+varying vec3 v_Normal;			// This will be passed into the fragment shader.
+varying vec2 v_TexCoordinate;   // This will be passed into the fragment shader.
+
+// The entry point for our vertex shader.
+void main()
+{
+	int base = int(a_InstanceIndex) * 3;
+	vec4 position = vec4(a_Position.xyz * u_InstanceData[base + 1].xyz + u_InstanceData[base].xyz, 1.0);
+
+	// Transform the vertex into eye space.
+	v_Position = vec3(u_MVMatrix * position);
+
+	// Pass through the texture coordinate.
+	v_TexCoordinate = a_TexCoordinate;
+    v_Color = u_InstanceData[base + 2];
+
+	// Transform the normal's orientation into eye space.
+    v_Normal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
+
+	// gl_Position is a special variable used to store the final position.
+	// Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
+	gl_Position = u_MVPMatrix * position;
+}
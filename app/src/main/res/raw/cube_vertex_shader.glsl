@@ -1,5 +1,7 @@
 uniform mat4 u_MVPMatrix;		// A constant representing the combined model/view/projection matrix.      		       
 uniform mat4 u_MVMatrix;		// A constant representing the combined model/view matrix.       		
+uniform vec3 u_PositionScale;		// Maps the stored position back to model space,
+uniform vec3 u_PositionOffset;		// identity for float positions.
 
 attribute vec4 a_Position;		// Per-vertex position information we will pass in.   							
 attribute vec4 a_Color;			// Per-vertex color information we will pass in.
@@ -14,8 +16,10 @@ varying vec2 v_TexCoordinate;   // This will be passed into the fragment shader.
 // The entry point for our vertex shader.  
 void main()                                                 	
 {                                                         
+	vec4 position = vec4(a_Position.xyz * u_PositionScale + u_PositionOffset, 1.0);
+
 	// Transform the vertex into eye space. 	
-	v_Position = vec3(u_MVMatrix * a_Position);            		
+	v_Position = vec3(u_MVMatrix * position);            		
 	
 	// Pass through the texture coordinate.
 	v_TexCoordinate = a_TexCoordinate;                                      
@@ -26,5 +30,5 @@ void main()
           
 	// gl_Position is a special variable used to store the final position.
 	// Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
-	gl_Position = u_MVPMatrix * a_Position;                       		  
+	gl_Position = u_MVPMatrix * position;                       		  
 }                                                          
\ No newline at end of file
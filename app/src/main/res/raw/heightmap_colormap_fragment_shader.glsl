@@ -0,0 +1,13 @@
+precision mediump float;       	// Set the default precision to medium. We don't need as high of a 
+								// precision in the fragment shader.
+uniform sampler2D u_Colormap;	// Gradient from the lowest to the highest height.
+uniform vec2 u_ColormapRange;	// Heights mapped to the first and the last color.
+
+varying float v_Height;			// Interpolated model space height for this fragment.
+
+// The entry point for our fragment shader.
+void main()
+{
+	float value = (v_Height - u_ColormapRange.x) / (u_ColormapRange.y - u_ColormapRange.x);
+	gl_FragColor = texture2D(u_Colormap, vec2(value, 0.5));
+}
@@ -0,0 +1,36 @@
+uniform mat4 u_MVPMatrix;		// A constant representing the combined model/view/projection matrix.
+uniform vec3 u_PositionScale;		// Maps the stored position back to model space,
+uniform vec3 u_PositionOffset;		// identity for float positions.
+uniform sampler2D u_HeightTexture;	// 16-bit height in r/g, red and green of the color in b/a.
+uniform vec4 u_TextureTransform;	// x/z position to texture coordinate: {scale x, offset x, scale z, offset z}.
+uniform vec2 u_HeightRange;		// Maps the stored height back to model space: {offset, scale}.
+uniform float u_RowOffset;		// Rotates the rows of a waterfall, 0 otherwise.
+
+attribute vec4 a_Position;		// Per-vertex x/z grid position, the height comes from the texture.
+attribute vec4 a_Color;			// Per-vertex color information we will pass in, only b/a are used.
+attribute vec3 a_Normal;		// Per-vertex normal information we will pass in.
+
+varying vec3 v_Position;		// This will be passed into the fragment shader.
+varying vec4 v_Color;			// This will be passed into the fragment shader.
+varying vec3 v_Normal;			// This will be passed into the fragment shader.
+varying float v_Height;			// Model space height, looked up in the colormap.
+
+// The entry point for our vertex shader.
+void main()
+{
+	vec3 position = a_Position.xyz * u_PositionScale + u_PositionOffset;
+
+	// Fetch the sample of this vertex and displace it.
+	vec2 texCoordinate = vec2(position.x * u_TextureTransform.x + u_TextureTransform.y,
+	                          fract(position.z * u_TextureTransform.z + u_TextureTransform.w + u_RowOffset));
+	vec4 texel = texture2DLod(u_HeightTexture, texCoordinate, 0.0);
+	position.y = (texel.r * 65280.0 + texel.g * 255.0) / 65535.0 * u_HeightRange.y + u_HeightRange.x;
+
+	// Pass through the color.
+	v_Color = vec4(texel.b, texel.a, a_Color.b, a_Color.a);
+	v_Height = position.y;
+
+	// gl_Position is a special variable used to store the final position.
+	// Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
+	gl_Position = u_MVPMatrix * vec4(position, 1.0);
+}
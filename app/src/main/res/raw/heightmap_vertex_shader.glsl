@@ -1,5 +1,7 @@
 uniform mat4 u_MVPMatrix;		// A constant representing the combined model/view/projection matrix.
 uniform mat4 u_MVMatrix;		// A constant representing the combined model/view matrix.
+uniform vec3 u_PositionScale;		// Maps the stored position back to model space,
+uniform vec3 u_PositionOffset;		// identity for float positions.
 
 attribute vec4 a_Position;		// Per-vertex position information we will pass in.
 attribute vec4 a_Color;			// Per-vertex color information we will pass in.
@@ -8,6 +10,7 @@ attribute vec3 a_Normal;		// Per-vertex normal information we will pass in.
 varying vec3 v_Position;		// This will be passed into the fragment shader.
 varying vec4 v_Color;			// This will be passed into the fragment shader.
 varying vec3 v_Normal;			// This will be passed into the fragment shader.
+varying float v_Height;			// Model space height, looked up in the colormap.
 
 // The entry point for our vertex shader.
 void main()
@@ -20,8 +23,9 @@ void main()
 
 	// Pass through the color.
 	v_Color = a_Color;
+	v_Height = a_Position.y * u_PositionScale.y + u_PositionOffset.y;
 
 	// gl_Position is a special variable used to store the final position.
 	// Multiply the vertex by the matrix to get the final point in normalized screen coordinates.
-	gl_Position = u_MVPMatrix * a_Position;
+	gl_Position = u_MVPMatrix * vec4(a_Position.xyz * u_PositionScale + u_PositionOffset, 1.0);
 }
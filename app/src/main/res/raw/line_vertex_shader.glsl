@@ -2,6 +2,9 @@
 // This matrix member variable provides a hook to manipulate
 // the coordinates of the objects that use this vertex shader
 uniform mat4 u_MVPMatrix;
+// Maps the stored position back to model space, identity for float positions.
+uniform vec3 u_PositionScale;
+uniform vec3 u_PositionOffset;
 
 attribute vec4 a_Position;
 attribute vec4 a_Color;
@@ -10,7 +13,7 @@ varying vec4 v_Color;
 
 void main() {
 // the matrix must be included as a modifier of gl_Position
-  gl_Position = u_MVPMatrix * a_Position;
+  gl_Position = u_MVPMatrix * vec4(a_Position.xyz * u_PositionScale + u_PositionOffset, 1.0);
 
   v_Color = a_Color;
 
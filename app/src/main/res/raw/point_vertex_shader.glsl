@@ -1,4 +1,6 @@
 uniform mat4 u_MVPMatrix;      		
+uniform vec3 u_PositionScale;		// Maps the stored position back to model space,
+uniform vec3 u_PositionOffset;		// identity for float positions.
 
 attribute vec4 a_Position;
 attribute vec4 a_Color;
@@ -10,6 +12,6 @@ void main()
 {
     v_Color = a_Color;
 
-	gl_Position =  u_MVPMatrix * a_Position;
+	gl_Position =  u_MVPMatrix * vec4(a_Position.xyz * u_PositionScale + u_PositionOffset, 1.0);
     gl_PointSize = 50.0;
 }
\ No newline at end of file
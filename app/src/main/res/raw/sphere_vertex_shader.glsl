@@ -1,12 +1,14 @@
-uniform mat4 u_MVPMatrix;      		
-attribute vec4 a_Position;
-attribute vec4 a_Color;			// Per-vertex color information we will pass in.
+uniform mat4 u_MVPMatrix;
+uniform vec4 u_Sphere;			// Sphere center in xyz and radius in w.
+uniform vec4 u_Color;			// Per-sphere color information we will pass in.
+
+attribute vec4 a_Position;		// Unit sphere position.
 
 varying vec4 v_Color;   // This will be passed into the fragment shader.
 
 
-void main()                    
+void main()
 {
-    v_Color = a_Color;
-	gl_Position = u_MVPMatrix * a_Position;
+    v_Color = u_Color;
+	gl_Position = u_MVPMatrix * vec4(a_Position.xyz * u_Sphere.w + u_Sphere.xyz, 1.0);
 }
\ No newline at end of file
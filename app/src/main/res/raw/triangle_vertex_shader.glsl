@@ -1,4 +1,6 @@
 uniform mat4 u_MVPMatrix;      		// A constant representing the combined model/view/projection matrix.
+uniform vec3 u_PositionScale;  		// Maps the stored position back to model space,
+uniform vec3 u_PositionOffset; 		// identity for float positions.
 
 attribute vec4 a_Position;     		// Per-vertex position information we will pass in.
 attribute vec4 a_Color;        		// Per-vertex color information we will pass in.
@@ -9,6 +11,6 @@ void main()                    		// The entry point for our vertex shader.
 {
    v_Color = a_Color;          		// Pass the color through to the fragment shader.
                                         // It will be interpolated across the triangle.
-   gl_Position = u_MVPMatrix * a_Position;   // gl_Position is a special variable used to store the final position.
+   gl_Position = u_MVPMatrix * vec4(a_Position.xyz * u_PositionScale + u_PositionOffset, 1.0);   // gl_Position is a special variable used to store the final position.
                                              // Multiply the vertex by the matrix to get the final point in
 }                                           // normalized screen coordinates.
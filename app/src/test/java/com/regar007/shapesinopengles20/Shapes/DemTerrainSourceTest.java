@@ -0,0 +1,103 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a small synthetic DEM into a height map built off the GL thread and checks the tile cache stays in budget.
+ */
+public class DemTerrainSourceTest {
+    private static final int DEM_SIZE = 8 * DemTerrainSource.TILE_SIZE;
+    private static final int WINDOW_SIZE = DemTerrainSource.TILE_SIZE;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private File aFile;
+    private HeightMap aMap;
+    private DemTerrainSource aTerrain;
+
+    @Before
+    public void setUp() throws Exception {
+        aFile = File.createTempFile("dem", ".raw");
+        DemTerrainSource.writeSynthetic(aFile, DEM_SIZE, DEM_SIZE, DemTerrainSource.FORMAT_INT16, 1);
+        aMap = HeightMap.build(WINDOW_SIZE, WINDOW_SIZE, 240, -120, 0);
+        // a budget of 0 is raised to the window, the smallest cache that works.
+        aTerrain = new DemTerrainSource(aFile, DEM_SIZE, DEM_SIZE, DemTerrainSource.FORMAT_INT16,
+                ByteOrder.LITTLE_ENDIAN, 0);
+        aTerrain.attach(aMap, 0, 4000);
+    }
+
+    @After
+    public void tearDown() {
+        aTerrain.close();
+        aFile.delete();
+    }
+
+    /**
+     * calls update() like frames would, until every tile of the window arrived.
+     */
+    private void updateUntilComplete() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        aTerrain.update();
+        while (!aTerrain.isWindowComplete()) {
+            assertTrue("window did not load in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+            aTerrain.update();
+        }
+    }
+
+    @Test
+    public void firstWindow_loadsWithinBudget() throws Exception {
+        updateUntilComplete();
+
+        assertTrue(aTerrain.getCacheMisses() > 0);
+        // nothing was resident yet, and copying the loaded tiles is not a hit.
+        assertEquals(0, aTerrain.getCacheHits());
+        assertTrue(aTerrain.getResidentBytes() > 0);
+        assertTrue(aTerrain.getResidentBytes() <= aTerrain.getCacheBudget());
+    }
+
+    @Test
+    public void movingFocus_evictsAndPrefetchesWithinBudget() throws Exception {
+        updateUntilComplete();
+        final int prefetchesBefore = aTerrain.getPrefetchCount();
+
+        // across the file diagonally, one tile at a time.
+        for (int step = 0; step <= 8; step++) {
+            aTerrain.setFocus(step / 8f, step / 8f);
+            updateUntilComplete();
+            assertTrue(aTerrain.getResidentBytes() <= aTerrain.getCacheBudget());
+        }
+
+        assertTrue(aTerrain.getPrefetchCount() > prefetchesBefore);
+        // each step overlaps the tiles of the last window and what was read ahead for it.
+        assertTrue(aTerrain.getCacheHits() > 0);
+        assertTrue(aTerrain.getEvictionCount() > 0);
+        // far more tiles were read than the cache can hold.
+        final long tileBytes = DemTerrainSource.TILE_SIZE * DemTerrainSource.TILE_SIZE * 4L;
+        assertTrue(aTerrain.getCacheMisses() * tileBytes > aTerrain.getCacheBudget());
+    }
+
+    @Test
+    public void completeWindow_holdsElevationsOfTheFile() throws Exception {
+        updateUntilComplete();
+
+        // the synthetic terrain spans [0, 4000], attached over the whole plot range.
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int z = 0; z < WINDOW_SIZE; z++) {
+            for (int x = 0; x < WINDOW_SIZE; x++) {
+                min = Math.min(min, aMap.getHeight(x, z));
+                max = Math.max(max, aMap.getHeight(x, z));
+            }
+        }
+        assertTrue(min >= aMap.getMinPosition());
+        assertTrue(max <= aMap.getMinPosition() + aMap.getPositionRange());
+        assertTrue(max > min);
+    }
+}
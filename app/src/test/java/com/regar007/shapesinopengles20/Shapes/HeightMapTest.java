@@ -0,0 +1,59 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks data points land on the grid sample nearest to them, also on the edges of the plot.
+ */
+public class HeightMapTest {
+    private static final int SIZE = 50;
+
+    private HeightMap aMap;
+
+    @Before
+    public void setUp() {
+        aMap = HeightMap.build(SIZE, SIZE, 240, -120, 0);
+    }
+
+    private int column(int cell) {
+        return cell % aMap.getXLength();
+    }
+
+    private int row(int cell) {
+        return cell / aMap.getXLength();
+    }
+
+    @Test
+    public void binCell_edgesOfThePlot() throws Exception {
+        // x runs from column 1 at x = 1 to the last column one step above x = 0.
+        assertEquals(SIZE - 1, column(aMap.binCell(0f, .5f)));
+        assertEquals(SIZE - 1, column(aMap.binCell(.4f / (SIZE - 1), .5f)));
+        assertEquals(SIZE - 1, column(aMap.binCell(1f / (SIZE - 1), .5f)));
+        assertEquals(1, column(aMap.binCell(1f, .5f)));
+
+        // z runs from the last row at z = 0 to row 0 at z = 1.
+        assertEquals(SIZE - 1, row(aMap.binCell(.5f, 0f)));
+        assertEquals(0, row(aMap.binCell(.5f, 1f)));
+    }
+
+    @Test
+    public void binCell_outsideThePlot() throws Exception {
+        assertEquals(-1, aMap.binCell(-.5f, .5f));
+        assertEquals(-1, aMap.binCell(1.5f, .5f));
+        assertEquals(-1, aMap.binCell(.5f, -.5f));
+        assertEquals(-1, aMap.binCell(.5f, 1.5f));
+        assertEquals(-1, aMap.binCell(Float.NaN, .5f));
+    }
+
+    @Test
+    public void push_keepsPointsOnTheEdges() throws Exception {
+        aMap.pushDataPointsToHeightMap(new float[]{0f, 1f, .5f, 1f, 1f, .5f}, new float[]{1, 0, 0, 1, 1, 0, 0, 1});
+
+        final int row = row(aMap.binCell(.5f, .5f));
+        assertTrue(aMap.getHeight(SIZE - 1, row) != 0);
+        assertTrue(aMap.getHeight(1, row) != 0);
+    }
+}
@@ -0,0 +1,47 @@
+package com.regar007.shapesinopengles20.Shapes;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sphere triangles face outwards, Spheres culls back faces.
+ */
+public class SphereMeshTest {
+
+    @Test
+    public void buildIndices_windsCounterClockwiseFromOutside() throws Exception {
+        final int lats = 12;
+        final int longs = 24;
+        final float[] vertices = SphereMesh.buildVertices(lats, longs);
+        final short[] indices = SphereMesh.buildIndices(lats, longs);
+
+        int degenerate = 0;
+        for (int t = 0; t < indices.length; t += 3) {
+            final int a = indices[t] * 3;
+            final int b = indices[t + 1] * 3;
+            final int c = indices[t + 2] * 3;
+            final float e1x = vertices[b] - vertices[a];
+            final float e1y = vertices[b + 1] - vertices[a + 1];
+            final float e1z = vertices[b + 2] - vertices[a + 2];
+            final float e2x = vertices[c] - vertices[a];
+            final float e2y = vertices[c + 1] - vertices[a + 1];
+            final float e2z = vertices[c + 2] - vertices[a + 2];
+            final float nx = e1y * e2z - e1z * e2y;
+            final float ny = e1z * e2x - e1x * e2z;
+            final float nz = e1x * e2y - e1y * e2x;
+            final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+            if (length < 1e-6f) {
+                // the triangles touching a pole collapse to a line.
+                degenerate++;
+                continue;
+            }
+            // on a unit sphere the centroid points away from the centre.
+            final float cx = vertices[a] + vertices[b] + vertices[c];
+            final float cy = vertices[a + 1] + vertices[b + 1] + vertices[c + 1];
+            final float cz = vertices[a + 2] + vertices[b + 2] + vertices[c + 2];
+            assertTrue("triangle " + t / 3 + " faces inwards", nx * cx + ny * cy + nz * cz > 0);
+        }
+        assertEquals(2 * longs, degenerate);
+    }
+}
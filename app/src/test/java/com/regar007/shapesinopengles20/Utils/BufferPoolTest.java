@@ -0,0 +1,130 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the size classes, reuse and caps of the BufferPool. The pool is static, so every test starts empty and
+ * compares the counters against what they were before it.
+ */
+public class BufferPoolTest {
+
+    @Before
+    public void setUp() {
+        MemoryAccountant.invalidate();
+        BufferPool.setMaxRetainedBytes(BufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        BufferPool.clear();
+    }
+
+    @After
+    public void tearDown() {
+        BufferPool.setMaxRetainedBytes(BufferPool.DEFAULT_MAX_RETAINED_BYTES);
+        BufferPool.clear();
+    }
+
+    @Test
+    public void acquire_roundsUpToPowerOfTwoClass() throws Exception {
+        final ByteBuffer small = BufferPool.acquire(1);
+        assertEquals(BufferPool.MIN_POOLED_SIZE, small.capacity());
+        assertEquals(1, small.limit());
+
+        final ByteBuffer buffer = BufferPool.acquire(5000);
+        assertEquals(8192, buffer.capacity());
+        assertEquals(0, buffer.position());
+        assertEquals(5000, buffer.limit());
+        assertTrue(buffer.isDirect());
+        assertEquals(ByteOrder.nativeOrder(), buffer.order());
+
+        assertEquals(8192, BufferPool.acquire(8192).capacity());
+        assertEquals(16384, BufferPool.acquire(8193).capacity());
+    }
+
+    @Test
+    public void release_reusesBufferOfSameClass() throws Exception {
+        final long hits = BufferPool.getHitCount();
+        final ByteBuffer buffer = BufferPool.acquire(5000);
+        buffer.position(100);
+        BufferPool.release(buffer);
+        assertEquals(8192, BufferPool.getRetainedBytes());
+
+        final ByteBuffer again = BufferPool.acquire(6000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(6000, again.limit());
+        assertEquals(hits + 1, BufferPool.getHitCount());
+        assertEquals(0, BufferPool.getRetainedBytes());
+    }
+
+    @Test
+    public void acquire_otherClassAllocates() throws Exception {
+        final ByteBuffer buffer = BufferPool.acquire(5000);
+        BufferPool.release(buffer);
+
+        final long misses = BufferPool.getMissCount();
+        assertNotSame(buffer, BufferPool.acquire(20000));
+        assertEquals(misses + 1, BufferPool.getMissCount());
+        assertEquals(8192, BufferPool.getRetainedBytes());
+    }
+
+    @Test
+    public void release_keepsAtMostMaxFreePerClass() throws Exception {
+        final long dropped = BufferPool.getDroppedCount();
+        final ByteBuffer[] buffers = new ByteBuffer[BufferPool.MAX_FREE_PER_CLASS + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = BufferPool.acquire(BufferPool.MIN_POOLED_SIZE);
+        }
+        for (ByteBuffer buffer : buffers) {
+            BufferPool.release(buffer);
+        }
+
+        assertEquals(BufferPool.MAX_FREE_PER_CLASS * (long) BufferPool.MIN_POOLED_SIZE, BufferPool.getRetainedBytes());
+        assertEquals(dropped + 1, BufferPool.getDroppedCount());
+    }
+
+    @Test
+    public void release_keepsAtMostMaxRetainedBytes() throws Exception {
+        BufferPool.setMaxRetainedBytes(3 * BufferPool.MIN_POOLED_SIZE);
+        final ByteBuffer large = BufferPool.acquire(2 * BufferPool.MIN_POOLED_SIZE);
+        final ByteBuffer small = BufferPool.acquire(BufferPool.MIN_POOLED_SIZE);
+        final ByteBuffer tooMany = BufferPool.acquire(BufferPool.MIN_POOLED_SIZE);
+        BufferPool.release(large);
+        BufferPool.release(small);
+        BufferPool.release(tooMany);
+        assertEquals(3 * BufferPool.MIN_POOLED_SIZE, BufferPool.getRetainedBytes());
+
+        // lowering the cap drops the largest classes first.
+        BufferPool.setMaxRetainedBytes(BufferPool.MIN_POOLED_SIZE);
+        assertEquals(BufferPool.MIN_POOLED_SIZE, BufferPool.getRetainedBytes());
+        assertSame(small, BufferPool.acquire(1));
+    }
+
+    @Test
+    public void hugeAndForeignBuffers_areNotPooled() throws Exception {
+        final long unpooled = BufferPool.getUnpooledCount();
+        final ByteBuffer huge = BufferPool.acquire(BufferPool.MAX_POOLED_SIZE + 1);
+        assertEquals(BufferPool.MAX_POOLED_SIZE + 1, huge.capacity());
+        assertEquals(unpooled + 1, BufferPool.getUnpooledCount());
+
+        BufferPool.release(huge);
+        BufferPool.release(ByteBuffer.allocate(BufferPool.MIN_POOLED_SIZE));
+        BufferPool.release(ByteBuffer.allocateDirect(5000));
+        BufferPool.release(null);
+        assertEquals(0, BufferPool.getRetainedBytes());
+    }
+
+    @Test
+    public void retainedBytes_areAccountedAndTrimmable() throws Exception {
+        BufferPool.release(BufferPool.acquire(5000));
+        assertEquals(8192, MemoryAccountant.getTotalBytes(MemoryAccountant.DIRECT));
+
+        MemoryAccountant.trim(Long.MAX_VALUE);
+        assertEquals(0, BufferPool.getRetainedBytes());
+        assertEquals(0, MemoryAccountant.getTotalBytes(MemoryAccountant.DIRECT));
+    }
+}
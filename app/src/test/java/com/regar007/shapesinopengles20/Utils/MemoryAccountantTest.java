@@ -0,0 +1,187 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the budget of the MemoryAccountant and the order it asks owners for memory in.
+ */
+public class MemoryAccountantTest {
+    private static final long BUDGET = 1000;
+
+    /**
+     * an owner that frees all of its bytes of one kind when trimmed, and records that it was.
+     */
+    private static class Owner implements MemoryAccountant.Trimmer {
+        final String name;
+        final ArrayList<String> trimmed;
+
+        Owner(String name, ArrayList<String> trimmed) {
+            this.name = name;
+            this.trimmed = trimmed;
+            MemoryAccountant.register(this, name, this);
+        }
+
+        @Override
+        public void trim(long bytes) {
+            trimmed.add(name);
+            MemoryAccountant.set(this, MemoryAccountant.GPU_BUFFER, 0);
+        }
+    }
+
+    private final ArrayList<String> aTrimmed = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        MemoryAccountant.invalidate();
+        MemoryAccountant.setBudget(BUDGET);
+    }
+
+    @After
+    public void tearDown() {
+        MemoryAccountant.invalidate();
+        MemoryAccountant.setBudget(MemoryAccountant.DEFAULT_BUDGET);
+    }
+
+    @Test
+    public void reserve_recordsBytesByKind() throws Exception {
+        final Object owner = new Object();
+        MemoryAccountant.reserve(owner, MemoryAccountant.GPU_BUFFER, 300);
+        MemoryAccountant.reserve(owner, MemoryAccountant.GPU_TEXTURE, 200);
+        MemoryAccountant.set(owner, MemoryAccountant.DIRECT, 100);
+
+        assertEquals(300, MemoryAccountant.getBytes(owner, MemoryAccountant.GPU_BUFFER));
+        assertEquals(200, MemoryAccountant.getTotalBytes(MemoryAccountant.GPU_TEXTURE));
+        assertEquals(600, MemoryAccountant.getTotalBytes());
+
+        // a reserve replaces what the owner held of the kind.
+        MemoryAccountant.reserve(owner, MemoryAccountant.GPU_BUFFER, 50);
+        assertEquals(350, MemoryAccountant.getTotalBytes());
+
+        MemoryAccountant.forget(owner);
+        assertEquals(0, MemoryAccountant.getTotalBytes());
+        assertEquals(0, MemoryAccountant.getBytes(owner, MemoryAccountant.GPU_BUFFER));
+    }
+
+    @Test
+    public void reserve_overBudgetWithoutTrimmers_isRefused() throws Exception {
+        final Object first = new Object();
+        final Object second = new Object();
+        MemoryAccountant.reserve(first, MemoryAccountant.GPU_BUFFER, 800);
+        final long denied = MemoryAccountant.getDeniedCount();
+        try {
+            MemoryAccountant.reserve(second, MemoryAccountant.GPU_BUFFER, 300);
+            fail("reserve over the budget succeeded");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(denied + 1, MemoryAccountant.getDeniedCount());
+        assertEquals(0, MemoryAccountant.getBytes(second, MemoryAccountant.GPU_BUFFER));
+        assertEquals(800, MemoryAccountant.getTotalBytes());
+
+        // exactly up to the budget fits.
+        MemoryAccountant.reserve(second, MemoryAccountant.GPU_BUFFER, 200);
+        assertEquals(BUDGET, MemoryAccountant.getTotalBytes());
+    }
+
+    @Test
+    public void reserve_trimsLeastRecentlyAllocatingFirst() throws Exception {
+        final Owner a = new Owner("a", aTrimmed);
+        final Owner b = new Owner("b", aTrimmed);
+        final Owner c = new Owner("c", aTrimmed);
+        MemoryAccountant.reserve(a, MemoryAccountant.GPU_BUFFER, 300);
+        MemoryAccountant.reserve(b, MemoryAccountant.GPU_BUFFER, 300);
+        MemoryAccountant.reserve(c, MemoryAccountant.GPU_BUFFER, 300);
+        // a allocates again, b is now the least recent.
+        MemoryAccountant.reserve(a, MemoryAccountant.GPU_BUFFER, 350);
+
+        final long trimCount = MemoryAccountant.getTrimCount();
+        final long trimmedBytes = MemoryAccountant.getTrimmedBytes();
+        final Object requester = new Object();
+        MemoryAccountant.reserve(requester, MemoryAccountant.GPU_BUFFER, 300);
+
+        // 950 + 300 is 250 over, b alone frees enough.
+        assertEquals(1, aTrimmed.size());
+        assertEquals("b", aTrimmed.get(0));
+        assertEquals(950, MemoryAccountant.getTotalBytes());
+        assertEquals(trimCount + 1, MemoryAccountant.getTrimCount());
+        assertEquals(trimmedBytes + 300, MemoryAccountant.getTrimmedBytes());
+    }
+
+    @Test
+    public void reserve_trimsRequesterLast() throws Exception {
+        final Owner requester = new Owner("requester", aTrimmed);
+        final Owner other = new Owner("other", aTrimmed);
+        MemoryAccountant.reserve(requester, MemoryAccountant.DIRECT, 400);
+        MemoryAccountant.reserve(requester, MemoryAccountant.GPU_BUFFER, 100);
+        MemoryAccountant.reserve(other, MemoryAccountant.GPU_BUFFER, 200);
+
+        // needs 600 of textures, still 100 over once the other owner gave its 200 back.
+        MemoryAccountant.reserve(requester, MemoryAccountant.GPU_TEXTURE, 600);
+
+        assertEquals(2, aTrimmed.size());
+        assertEquals("other", aTrimmed.get(0));
+        assertEquals("requester", aTrimmed.get(1));
+        assertEquals(BUDGET, MemoryAccountant.getTotalBytes());
+    }
+
+    @Test
+    public void trimmers_doNotTrimAgain() throws Exception {
+        final Object bystander = new Object();
+        MemoryAccountant.register(bystander, "bystander", new MemoryAccountant.Trimmer() {
+            @Override
+            public void trim(long bytes) {
+                aTrimmed.add("bystander");
+            }
+        });
+        MemoryAccountant.reserve(bystander, MemoryAccountant.GPU_BUFFER, 100);
+        // owns its memory itself, like Spheres lowering their tessellation.
+        final MemoryAccountant.Trimmer coarsening = new MemoryAccountant.Trimmer() {
+            @Override
+            public void trim(long bytes) {
+                aTrimmed.add("coarsening");
+                // reallocates smaller, which must not start trimming the others again.
+                MemoryAccountant.reserve(this, MemoryAccountant.GPU_BUFFER, 100);
+            }
+        };
+        MemoryAccountant.register(coarsening, "coarsening", coarsening);
+        MemoryAccountant.reserve(coarsening, MemoryAccountant.GPU_BUFFER, 800);
+
+        assertEquals(700, MemoryAccountant.trim(500));
+
+        assertEquals("bystander", aTrimmed.get(0));
+        assertEquals("coarsening", aTrimmed.get(1));
+        assertEquals(2, aTrimmed.size());
+        assertEquals(200, MemoryAccountant.getTotalBytes());
+    }
+
+    @Test
+    public void trim_asksEveryTrimmer() throws Exception {
+        final Owner a = new Owner("a", aTrimmed);
+        final Owner b = new Owner("b", aTrimmed);
+        final Object fixed = new Object();
+        MemoryAccountant.reserve(a, MemoryAccountant.GPU_BUFFER, 200);
+        MemoryAccountant.reserve(b, MemoryAccountant.GPU_BUFFER, 300);
+        MemoryAccountant.reserve(fixed, MemoryAccountant.GPU_BUFFER, 100);
+
+        assertEquals(500, MemoryAccountant.trim(Long.MAX_VALUE));
+        assertEquals(2, aTrimmed.size());
+        assertEquals(100, MemoryAccountant.getTotalBytes());
+    }
+
+    @Test
+    public void breakdown_namesOwnersLargestFirst() throws Exception {
+        final Owner small = new Owner("small", aTrimmed);
+        final Owner large = new Owner("large", aTrimmed);
+        MemoryAccountant.reserve(small, MemoryAccountant.GPU_BUFFER, 10);
+        MemoryAccountant.reserve(large, MemoryAccountant.GPU_BUFFER, 500);
+
+        final String breakdown = MemoryAccountant.getBreakdown();
+        assertTrue(breakdown, breakdown.startsWith("total 510 B of 1000 B"));
+        assertTrue(breakdown, breakdown.indexOf("\nlarge ") < breakdown.indexOf("\nsmall "));
+    }
+}
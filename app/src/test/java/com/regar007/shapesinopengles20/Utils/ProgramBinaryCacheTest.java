@@ -0,0 +1,184 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises ProgramBinaryCache against a stand-in for the gl calls, binaries are stored in a temporary folder.
+ */
+public class ProgramBinaryCacheTest {
+    private static final String VERTEX_SHADER = "void main() { gl_Position = vec4(0.0); }";
+    private static final String FRAGMENT_SHADER = "void main() { gl_FragColor = vec4(1.0); }";
+    private static final String[] ATTRIBUTES = {"a_Position"};
+
+    /**
+     * remembers which handle every binary was made from, and counts what the cache asked for.
+     */
+    private static class FakeBackend implements ProgramBinaryCache.Backend {
+        String driverId = "vendor|renderer|OpenGL ES 3.0|24";
+        boolean supported = true;
+        boolean rejectBinaries;
+        int nextHandle = 1;
+        int compileCount;
+        int loadCount;
+
+        @Override
+        public boolean isSupported() {
+            return supported;
+        }
+
+        @Override
+        public String getDriverId() {
+            return driverId;
+        }
+
+        @Override
+        public int compileAndLink(String vertexShader, String fragmentShader, String[] attributes) {
+            compileCount++;
+            return nextHandle++;
+        }
+
+        @Override
+        public byte[] getProgramBinary(int programHandle, int[] binaryFormat) {
+            binaryFormat[0] = 0x1234;
+            return ("binary of " + programHandle).getBytes();
+        }
+
+        @Override
+        public int loadProgramBinary(int binaryFormat, byte[] binary) {
+            loadCount++;
+            if (rejectBinaries || binaryFormat != 0x1234 || !new String(binary).startsWith("binary of ")) {
+                return 0;
+            }
+            return nextHandle++;
+        }
+    }
+
+    private File aDirectory;
+    private FakeBackend aBackend;
+    private ProgramBinaryCache aCache;
+
+    @Before
+    public void setUp() throws IOException {
+        aDirectory = File.createTempFile("programs", "");
+        assertTrue(aDirectory.delete());
+        aBackend = new FakeBackend();
+        aCache = new ProgramBinaryCache(aDirectory, aBackend);
+    }
+
+    @After
+    public void tearDown() {
+        aCache.clear();
+        aDirectory.delete();
+    }
+
+    private File getBinaryFile() {
+        return new File(aDirectory, ProgramBinaryCache.createKey(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES) + ".bin");
+    }
+
+    @Test
+    public void miss_compilesAndStoresBinary() throws Exception {
+        assertEquals(1, aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES));
+
+        assertEquals(0, aCache.getHitCount());
+        assertEquals(1, aCache.getMissCount());
+        assertEquals(1, aBackend.compileCount);
+        assertTrue(getBinaryFile().isFile());
+    }
+
+    @Test
+    public void hit_loadsStoredBinaryWithoutCompiling() throws Exception {
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        // a warm start: a new cache over the same folder.
+        final ProgramBinaryCache warmCache = new ProgramBinaryCache(aDirectory, aBackend);
+        assertEquals(2, warmCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES));
+
+        assertEquals(1, warmCache.getHitCount());
+        assertEquals(0, warmCache.getMissCount());
+        assertEquals(1, aBackend.compileCount);
+        assertEquals(1, aBackend.loadCount);
+    }
+
+    @Test
+    public void otherSources_miss() throws Exception {
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, new String[]{"a_Position", "a_Color"});
+
+        assertEquals(0, aCache.getHitCount());
+        assertEquals(2, aCache.getMissCount());
+        assertEquals(2, aBackend.compileCount);
+    }
+
+    @Test
+    public void driverMismatch_fallsBackToCompiling() throws Exception {
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        aBackend.driverId = "vendor|renderer|OpenGL ES 3.2|25";
+        final ProgramBinaryCache updatedCache = new ProgramBinaryCache(aDirectory, aBackend);
+        updatedCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        assertEquals(0, updatedCache.getHitCount());
+        assertEquals(1, updatedCache.getMissCount());
+        assertEquals(2, aBackend.compileCount);
+        // the binary of another driver is never handed to this one.
+        assertEquals(0, aBackend.loadCount);
+
+        // the file now holds the binary of the new driver.
+        updatedCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+        assertEquals(1, updatedCache.getHitCount());
+    }
+
+    @Test
+    public void rejectedBinary_isEvictedAndCompiled() throws Exception {
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        aBackend.rejectBinaries = true;
+        final ProgramBinaryCache warmCache = new ProgramBinaryCache(aDirectory, aBackend);
+        assertEquals(2, warmCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES));
+
+        assertEquals(0, warmCache.getHitCount());
+        assertEquals(1, warmCache.getMissCount());
+        assertEquals(1, aBackend.loadCount);
+        assertEquals(2, aBackend.compileCount);
+    }
+
+    @Test
+    public void corruptFile_isEvictedAndReplaced() throws Exception {
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        // the right header, then the file ends in the middle of it.
+        final FileOutputStream out = new FileOutputStream(getBinaryFile());
+        out.write(new byte[]{0x50, 0x42, 0x43, 0x31, 0x00});
+        out.close();
+
+        final ProgramBinaryCache warmCache = new ProgramBinaryCache(aDirectory, aBackend);
+        warmCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+        assertEquals(0, warmCache.getHitCount());
+        assertEquals(1, warmCache.getMissCount());
+        assertEquals(0, aBackend.loadCount);
+
+        // the compiled program was stored in place of the corrupt file.
+        warmCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+        assertEquals(1, warmCache.getHitCount());
+        assertEquals(2, aBackend.compileCount);
+    }
+
+    @Test
+    public void unsupported_alwaysCompiles() throws Exception {
+        aBackend.supported = false;
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+        aCache.getProgram(VERTEX_SHADER, FRAGMENT_SHADER, ATTRIBUTES);
+
+        assertEquals(0, aCache.getHitCount());
+        assertEquals(2, aCache.getMissCount());
+        assertFalse(getBinaryFile().exists());
+    }
+}
@@ -0,0 +1,164 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the sort keys order draw items like RenderQueue promises, and that draw() sorts them stably.
+ */
+public class RenderQueueTest {
+    private static final float[] MATRIX = new float[16];
+
+    /**
+     * records the items in the order they are drawn.
+     */
+    private static class Recorder implements RenderQueue.Drawable {
+        final ArrayList<Integer> items = new ArrayList<Integer>();
+
+        @Override
+        public void draw(float[] mvpMatrix, int item) {
+            items.add(item);
+        }
+    }
+
+    private RenderQueue aQueue;
+    private Recorder aRecorder;
+
+    @Before
+    public void setUp() {
+        aQueue = new RenderQueue();
+        aRecorder = new Recorder();
+    }
+
+    /** the queue compares keys as unsigned numbers. */
+    private static boolean isBefore(long a, long b) {
+        return a + Long.MIN_VALUE < b + Long.MIN_VALUE;
+    }
+
+    @Test
+    public void opaque_beforeBlended() throws Exception {
+        final long opaque = RenderQueue.makeKey(false, 4095, 4095, 32767, 1000f);
+        final long blended = RenderQueue.makeKey(true, 1, 1, 1, 1f);
+        assertTrue(isBefore(opaque, blended));
+    }
+
+    @Test
+    public void opaque_programThenTextureThenBufferThenDepth() throws Exception {
+        // each field wins over every field after it.
+        assertTrue(isBefore(RenderQueue.makeKey(false, 1, 9, 9, 900f), RenderQueue.makeKey(false, 2, 1, 1, 1f)));
+        assertTrue(isBefore(RenderQueue.makeKey(false, 1, 1, 9, 900f), RenderQueue.makeKey(false, 1, 2, 1, 1f)));
+        assertTrue(isBefore(RenderQueue.makeKey(false, 1, 1, 1, 900f), RenderQueue.makeKey(false, 1, 1, 2, 1f)));
+        assertTrue(isBefore(RenderQueue.makeKey(false, 1, 1, 1, 1f), RenderQueue.makeKey(false, 1, 1, 1, 900f)));
+    }
+
+    @Test
+    public void opaque_nearToFar() throws Exception {
+        float depth = 0.001f;
+        long previous = RenderQueue.makeKey(false, 1, 1, 1, 0f);
+        for (int i = 0; i < 20; i++, depth *= 3) {
+            final long key = RenderQueue.makeKey(false, 1, 1, 1, depth);
+            assertTrue("depth " + depth, isBefore(previous, key));
+            previous = key;
+        }
+    }
+
+    @Test
+    public void blended_farToNear_thenState() throws Exception {
+        // depth wins over program, texture and buffer.
+        assertTrue(isBefore(RenderQueue.makeKey(true, 9, 9, 9, 900f), RenderQueue.makeKey(true, 1, 1, 1, 1f)));
+        // at the same depth the state still groups them.
+        assertTrue(isBefore(RenderQueue.makeKey(true, 1, 9, 9, 5f), RenderQueue.makeKey(true, 2, 1, 1, 5f)));
+        assertTrue(isBefore(RenderQueue.makeKey(true, 1, 1, 9, 5f), RenderQueue.makeKey(true, 1, 2, 1, 5f)));
+        assertTrue(isBefore(RenderQueue.makeKey(true, 1, 1, 1, 5f), RenderQueue.makeKey(true, 1, 1, 2, 5f)));
+    }
+
+    @Test
+    public void negativeDepth_countsAsZero() throws Exception {
+        assertEquals(RenderQueue.makeKey(false, 1, 2, 3, 0f), RenderQueue.makeKey(false, 1, 2, 3, -5f));
+        assertEquals(RenderQueue.makeKey(true, 1, 2, 3, 0f), RenderQueue.makeKey(true, 1, 2, 3, -5f));
+    }
+
+    @Test
+    public void draw_ordersByUnsignedKey() throws Exception {
+        final Random random = new Random(7);
+        final int count = 5000;
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = RenderQueue.makeKey(random.nextBoolean(), random.nextInt(8), random.nextInt(8),
+                    random.nextInt(64), random.nextFloat() * 100);
+            aQueue.add(keys[i], aRecorder, i, MATRIX);
+        }
+        aQueue.draw();
+
+        assertEquals(count, aRecorder.items.size());
+        for (int i = 1; i < count; i++) {
+            assertFalse(isBefore(keys[aRecorder.items.get(i)], keys[aRecorder.items.get(i - 1)]));
+        }
+    }
+
+    @Test
+    public void draw_keepsAddOrderOfEqualKeys() throws Exception {
+        final long first = RenderQueue.makeKey(false, 2, 0, 0, 1f);
+        final long second = RenderQueue.makeKey(false, 1, 0, 0, 1f);
+        for (int i = 0; i < 300; i++) {
+            aQueue.add(i % 2 == 0 ? first : second, aRecorder, i, MATRIX);
+        }
+        aQueue.draw();
+
+        for (int i = 0; i < 300; i++) {
+            // odd items carry the smaller key, both halves in the order they were added.
+            final int expected = i < 150 ? 2 * i + 1 : 2 * (i - 150);
+            assertEquals(expected, (int) aRecorder.items.get(i));
+        }
+    }
+
+    @Test
+    public void draw_skipsBytesEveryKeyShares() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            aQueue.add(RenderQueue.makeKey(false, 1, 1, 1, 1f), aRecorder, i, MATRIX);
+        }
+        aQueue.draw();
+        assertEquals(0, aQueue.getLastSortPasses());
+
+        aQueue.clear();
+        aQueue.add(RenderQueue.makeKey(false, 2, 1, 1, 1f), aRecorder, 0, MATRIX);
+        aQueue.add(RenderQueue.makeKey(false, 1, 1, 1, 1f), aRecorder, 1, MATRIX);
+        aQueue.draw();
+        // only the byte holding the program differs.
+        assertEquals(1, aQueue.getLastSortPasses());
+    }
+
+    @Test
+    public void add_copiesMatrix() throws Exception {
+        final float[] matrix = new float[16];
+        matrix[5] = 3;
+        final float[] drawn = new float[16];
+        aQueue.add(0, new RenderQueue.Drawable() {
+            @Override
+            public void draw(float[] mvpMatrix, int item) {
+                System.arraycopy(mvpMatrix, 0, drawn, 0, 16);
+            }
+        }, 0, matrix);
+        matrix[5] = 7;
+        aQueue.draw();
+
+        assertEquals(3f, drawn[5], 0f);
+    }
+
+    @Test
+    public void clear_dropsItemsAndQueueGrows() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            aQueue.add(i, aRecorder, i, MATRIX);
+        }
+        assertEquals(1000, aQueue.getSize());
+        aQueue.clear();
+        assertEquals(0, aQueue.getSize());
+        aQueue.draw();
+        assertTrue(aRecorder.items.isEmpty());
+    }
+}
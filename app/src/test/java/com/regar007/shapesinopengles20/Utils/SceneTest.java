@@ -0,0 +1,125 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks a Scene mixing instances of several shape types queues all of them, and that the RenderQueue sorts the
+ * mixed items back into one group per shape.
+ */
+public class SceneTest {
+    private static final int TYPES = 7;
+    private static final int INSTANCES_PER_TYPE = 300;
+    private static final float[] MATRIX = new float[16];
+
+    /**
+     * stands in for a shape type: one program and buffer, queued once per instance at a depth of its own.
+     */
+    private static class FakeShape implements Scene.Shape, RenderQueue.Drawable {
+        final int program;
+        final boolean blended;
+        final ArrayList<Integer> drawn;
+        int submitted;
+
+        FakeShape(int program, boolean blended, ArrayList<Integer> drawn) {
+            this.program = program;
+            this.blended = blended;
+            this.drawn = drawn;
+        }
+
+        @Override
+        public void submit(RenderQueue queue, float[] mvpMatrix) {
+            final float depth = 1 + submitted++ % 50;
+            queue.add(RenderQueue.makeKey(blended, program, 0, program, depth), this, program, mvpMatrix);
+        }
+
+        @Override
+        public void draw(float[] mvpMatrix, int item) {
+            drawn.add(item);
+        }
+    }
+
+    private final ArrayList<Integer> aDrawn = new ArrayList<Integer>();
+    private FakeShape[] aShapes;
+    private Scene aScene;
+    private RenderQueue aQueue;
+
+    @Before
+    public void setUp() {
+        aShapes = new FakeShape[TYPES];
+        for (int type = 0; type < TYPES; type++) {
+            // like the spheres, the last type is blended.
+            aShapes[type] = new FakeShape(type + 1, type == TYPES - 1, aDrawn);
+        }
+        aScene = new Scene();
+        aQueue = new RenderQueue();
+        // the types take turns, as in the scene of ShapeRenderer.
+        for (int i = 0; i < TYPES * INSTANCES_PER_TYPE; i++) {
+            aScene.add(aShapes[i % TYPES], MATRIX);
+        }
+    }
+
+    @Test
+    public void submit_queuesEveryInstance() throws Exception {
+        assertEquals(TYPES * INSTANCES_PER_TYPE, aScene.getSize());
+        aScene.submit(aQueue, MATRIX);
+
+        assertEquals(TYPES * INSTANCES_PER_TYPE, aQueue.getSize());
+        for (FakeShape shape : aShapes) {
+            assertEquals(INSTANCES_PER_TYPE, shape.submitted);
+        }
+    }
+
+    @Test
+    public void draw_groupsMixedTypes() throws Exception {
+        aScene.submit(aQueue, MATRIX);
+        aQueue.draw();
+
+        assertEquals(TYPES * INSTANCES_PER_TYPE, aDrawn.size());
+        int switches = 0;
+        for (int i = 1; i < aDrawn.size(); i++) {
+            if (!aDrawn.get(i).equals(aDrawn.get(i - 1))) {
+                switches++;
+            }
+        }
+        // added interleaved, drawn one type after the other.
+        assertEquals(TYPES - 1, switches);
+        // opaque types by program, the blended one last.
+        for (int type = 0; type < TYPES; type++) {
+            assertEquals(type + 1, (int) aDrawn.get(type * INSTANCES_PER_TYPE));
+        }
+    }
+
+    @Test
+    public void modelMatrices_arePerInstance() throws Exception {
+        final float[] matrix = new float[16];
+        matrix[12] = 5;
+        aScene.setModelMatrix(3, matrix);
+        // the scene keeps a copy.
+        matrix[12] = 9;
+
+        final float[] out = new float[16];
+        aScene.getModelMatrix(3, out);
+        assertEquals(5f, out[12], 0f);
+        aScene.getModelMatrix(4, out);
+        assertEquals(0f, out[12], 0f);
+        assertSame(aShapes[3], aScene.getShape(3));
+    }
+
+    @Test
+    public void clear_dropsInstances() throws Exception {
+        aScene.clear();
+        assertEquals(0, aScene.getSize());
+        aScene.submit(aQueue, MATRIX);
+        assertEquals(0, aQueue.getSize());
+        try {
+            aScene.getShape(0);
+            fail("instance of a cleared scene");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import android.opengl.GLES20;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks every upload the UploadScheduler drops without uploading it is reported to its listener. Nothing here
+ * reaches a buffer object, so no GL context is needed.
+ */
+public class UploadSchedulerTest {
+
+    /**
+     * counts how the uploads ended.
+     */
+    private static class Counter implements UploadScheduler.Listener {
+        int uploaded;
+        int cancelled;
+
+        @Override
+        public void onUploaded(int buffer) {
+            uploaded++;
+        }
+
+        @Override
+        public void onCancelled() {
+            cancelled++;
+        }
+    }
+
+    private UploadScheduler aScheduler;
+    private Counter aCounter;
+
+    @Before
+    public void setUp() {
+        aScheduler = new UploadScheduler();
+        aCounter = new Counter();
+    }
+
+    private UploadScheduler.Upload submit(int bytes) {
+        return aScheduler.submit(GLES20.GL_ARRAY_BUFFER, ByteBuffer.allocateDirect(bytes), GLES20.GL_STATIC_DRAW,
+                aCounter);
+    }
+
+    @Test
+    public void invalidate_cancelsEveryQueuedUpload() throws Exception {
+        final UploadScheduler.Upload first = submit(100);
+        submit(200);
+        assertEquals(2, aScheduler.getPendingCount());
+        assertEquals(300, aScheduler.getPendingBytes());
+
+        aScheduler.invalidate();
+
+        assertEquals(2, aCounter.cancelled);
+        assertEquals(0, aCounter.uploaded);
+        assertEquals(0, aScheduler.getPendingCount());
+        assertEquals(0, aScheduler.getPendingBytes());
+        assertFalse(first.isDone());
+    }
+
+    @Test
+    public void invalidate_listenerMaySubmitAgain() throws Exception {
+        aScheduler.submit(GLES20.GL_ARRAY_BUFFER, ByteBuffer.allocateDirect(100), GLES20.GL_STATIC_DRAW,
+                new UploadScheduler.Listener() {
+                    @Override
+                    public void onUploaded(int buffer) {
+                    }
+
+                    @Override
+                    public void onCancelled() {
+                        submit(50);
+                    }
+                });
+
+        aScheduler.invalidate();
+
+        assertEquals(1, aScheduler.getPendingCount());
+        assertEquals(50, aScheduler.getPendingBytes());
+    }
+
+    @Test
+    public void cancel_isReportedByPump() throws Exception {
+        submit(100).cancel();
+        submit(200).cancel();
+
+        aScheduler.pump();
+
+        assertEquals(2, aCounter.cancelled);
+        assertEquals(0, aScheduler.getPendingCount());
+        assertEquals(0, aScheduler.getPendingBytes());
+    }
+}
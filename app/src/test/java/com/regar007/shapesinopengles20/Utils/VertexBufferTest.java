@@ -0,0 +1,78 @@
+package com.regar007.shapesinopengles20.Utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks a VertexBuffer gives the vertices back to the BufferPool also when the MemoryAccountant refuses them, and
+ * keeps what it drew before.
+ */
+public class VertexBufferTest {
+    private static final int VERTICES = 1000;
+
+    private final Object aOwner = new Object();
+    private VertexBuffer aVertexBuffer;
+
+    @Before
+    public void setUp() {
+        MemoryAccountant.invalidate();
+        BufferPool.clear();
+        aVertexBuffer = new VertexBuffer(aOwner);
+    }
+
+    @After
+    public void tearDown() {
+        MemoryAccountant.invalidate();
+        MemoryAccountant.setBudget(MemoryAccountant.DEFAULT_BUDGET);
+        BufferPool.clear();
+    }
+
+    private VertexData build(int vertexCount) {
+        final VertexLayout layout = VertexFormat.getDefault().addPosition(new VertexLayout.Builder(), 3).build();
+        final VertexData data = new VertexData(layout, vertexCount);
+        data.bounds[3] = 1;
+        return data;
+    }
+
+    @Test
+    public void upload_recordsVertices() throws Exception {
+        aVertexBuffer.upload(build(VERTICES));
+
+        assertEquals(VERTICES, aVertexBuffer.getVertexCount());
+        assertEquals(1f, aVertexBuffer.getBounds()[3], 0f);
+        assertTrue(MemoryAccountant.getBytes(aOwner, MemoryAccountant.GPU_BUFFER) > 0);
+        assertTrue(BufferPool.getRetainedBytes() > 0);
+    }
+
+    @Test
+    public void upload_refusedRecyclesData() throws Exception {
+        MemoryAccountant.setBudget(100);
+        try {
+            aVertexBuffer.upload(build(VERTICES));
+            fail("over the budget");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(0, aVertexBuffer.getVertexCount());
+        assertEquals(0, MemoryAccountant.getBytes(aOwner, MemoryAccountant.GPU_BUFFER));
+        assertTrue(BufferPool.getRetainedBytes() > 0);
+    }
+
+    @Test
+    public void scheduledUpload_refusedRecyclesData() throws Exception {
+        final UploadScheduler scheduler = new UploadScheduler();
+        MemoryAccountant.setBudget(100);
+        try {
+            aVertexBuffer.upload(build(VERTICES), scheduler);
+            fail("over the budget");
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(0, scheduler.getPendingCount());
+        assertEquals(0, MemoryAccountant.getBytes(aOwner, MemoryAccountant.GPU_BUFFER));
+        assertTrue(BufferPool.getRetainedBytes() > 0);
+    }
+}